@@ -17,8 +17,13 @@ package org.onebusaway.api.actions.api.gtfs_realtime;
 
 import java.util.Date;
 
+import org.apache.struts2.ServletActionContext;
+import org.apache.struts2.dispatcher.mapper.ActionMapping;
 import org.apache.struts2.rest.DefaultHttpHeaders;
 import org.onebusaway.api.actions.api.ApiActionSupport;
+import org.onebusaway.api.services.GtfsRealtimeFeedSnapshot;
+import org.onebusaway.api.services.GtfsRealtimeFeedSnapshotService;
+import org.onebusaway.api.services.GtfsRealtimeFeedSource;
 import org.onebusaway.exceptions.ServiceException;
 import org.onebusaway.transit_data.services.TransitDataService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,9 +40,15 @@ public abstract class GtfsRealtimeActionSupport extends ApiActionSupport {
 
   private static final int V2 = 2;
 
+  private static final String EXTENSION_PB = "pb";
+
+  private static final String EXTENSION_PBTEXT = "pbtext";
+
   @Autowired
   protected TransitDataService _service;
 
+  private GtfsRealtimeFeedSnapshotService _snapshotService;
+
   private String _agencyId;
 
   private long _time;
@@ -52,6 +63,12 @@ public abstract class GtfsRealtimeActionSupport extends ApiActionSupport {
     _service = service;
   }
 
+  @Autowired(required = false)
+  public void setGtfsRealtimeFeedSnapshotService(
+      GtfsRealtimeFeedSnapshotService snapshotService) {
+    _snapshotService = snapshotService;
+  }
+
   @RequiredFieldValidator
   public void setId(String id) {
     _agencyId = id;
@@ -77,21 +94,38 @@ public abstract class GtfsRealtimeActionSupport extends ApiActionSupport {
     if (hasErrors())
       return setValidationErrorsResponse();
 
+    /**
+     * Feeds for the current time are served from a snapshot shared by all
+     * clients. Requests for a specific time are built from scratch, as are
+     * requests for an unknown agency, so that they don't leave behind a
+     * snapshot that is kept up to date for nobody.
+     */
+    if (_time == 0 && _snapshotService != null
+        && _service.getAgency(_agencyId) != null) {
+      GtfsRealtimeFeedSnapshot snapshot = _snapshotService.getSnapshot(
+          getSnapshotKey(), new ActionFeedSource(copyForSnapshots(), _agencyId));
+      return setSnapshotResponse(snapshot);
+    }
+
     long time = System.currentTimeMillis();
     if (_time != 0)
       time = _time;
 
+    return setOkResponse(buildFeedMessage(_agencyId, time));
+  }
+
+  protected abstract void fillFeedMessage(FeedMessage.Builder feed,
+      String agencyId, long timestamp);
+
+  protected FeedMessage buildFeedMessage(String agencyId, long time) {
     FeedMessage.Builder feed = FeedMessage.newBuilder();
     FeedHeader.Builder header = feed.getHeaderBuilder();
     header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
     header.setTimestamp(time / 1000);
-    fillFeedMessage(feed, _agencyId, time);
-    return setOkResponse(feed.build());
+    fillFeedMessage(feed, agencyId, time);
+    return feed.build();
   }
 
-  protected abstract void fillFeedMessage(FeedMessage.Builder feed,
-      String agencyId, long timestamp);
-
   protected String normalizeId(String id) {
     if (_removeAgencyIds) {
       int index = id.indexOf('_');
@@ -101,4 +135,68 @@ public abstract class GtfsRealtimeActionSupport extends ApiActionSupport {
     }
     return id;
   }
+
+  /**
+   * Only the protocol buffer handlers know how to write a snapshot. Every other
+   * format gets the feed message itself. The binary format may be gzipped, so
+   * its ETag depends on Accept-Encoding, and we say so on 304 responses too.
+   */
+  private DefaultHttpHeaders setSnapshotResponse(
+      GtfsRealtimeFeedSnapshot snapshot) {
+    String extension = getRequestExtension();
+    if (EXTENSION_PB.equals(extension)) {
+      String acceptEncoding = ServletActionContext.getRequest().getHeader(
+          "Accept-Encoding");
+      boolean gzip = GtfsRealtimeFeedSnapshot.isGzipAccepted(acceptEncoding);
+      ServletActionContext.getResponse().setHeader("Vary", "Accept-Encoding");
+      return setOkResponse(snapshot).withETag(snapshot.getETag(gzip));
+    }
+    if (EXTENSION_PBTEXT.equals(extension))
+      return setOkResponse(snapshot).withETag(snapshot.getETag(false));
+    return setOkResponse(snapshot.getFeed());
+  }
+
+  private String getRequestExtension() {
+    ActionMapping mapping = ServletActionContext.getActionMapping();
+    if (mapping == null)
+      return null;
+    return mapping.getExtension();
+  }
+
+  private String getSnapshotKey() {
+    return getClass().getName() + "|" + _agencyId + "|" + _removeAgencyIds;
+  }
+
+  /**
+   * Snapshots are rebuilt in the background, long after this request is done,
+   * so they are built by a fresh action that only shares the settings that
+   * affect the feed.
+   */
+  private GtfsRealtimeActionSupport copyForSnapshots() {
+    try {
+      GtfsRealtimeActionSupport action = getClass().newInstance();
+      action._service = _service;
+      action._removeAgencyIds = _removeAgencyIds;
+      return action;
+    } catch (Exception ex) {
+      throw new ServiceException("error creating " + getClass().getName(), ex);
+    }
+  }
+
+  private static class ActionFeedSource implements GtfsRealtimeFeedSource {
+
+    private final GtfsRealtimeActionSupport _action;
+
+    private final String _agencyId;
+
+    public ActionFeedSource(GtfsRealtimeActionSupport action, String agencyId) {
+      _action = action;
+      _agencyId = agencyId;
+    }
+
+    @Override
+    public FeedMessage getFeed(long time) {
+      return _action.buildFeedMessage(_agencyId, time);
+    }
+  }
 }
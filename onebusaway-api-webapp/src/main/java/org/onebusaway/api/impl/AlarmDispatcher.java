@@ -0,0 +1,363 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.onebusaway.container.stats.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers alarm notifications off the thread that fired the alarm. Deliveries
+ * are admitted up to a fixed capacity, beyond which they are dropped rather
+ * than letting the caller block. Each destination gets at most a fixed number
+ * of concurrent deliveries, so that one slow destination can't tie up every
+ * delivery thread. Failed deliveries are retried with exponential backoff.
+ * 
+ * Destinations are meant to be a small, fixed set, such as the push
+ * notification service a delivery goes through, since the dispatcher keeps
+ * state for every destination it has seen.
+ */
+class AlarmDispatcher {
+
+  private static Logger _log = LoggerFactory.getLogger(AlarmDispatcher.class);
+
+  private final ConcurrentMap<String, Destination> _destinations = new ConcurrentHashMap<String, Destination>();
+
+  private final AtomicInteger _pendingCount = new AtomicInteger();
+
+  private final Histogram _deliveryLatency = new Histogram();
+
+  private final AtomicLong _deliveredCount = new AtomicLong();
+
+  private final AtomicLong _retriedCount = new AtomicLong();
+
+  private final AtomicLong _failedCount = new AtomicLong();
+
+  private final AtomicLong _droppedCount = new AtomicLong();
+
+  private volatile ExecutorService _executor;
+
+  private volatile ScheduledExecutorService _retryExecutor;
+
+  private int _threadPoolSize = 4;
+
+  private int _capacity = 10000;
+
+  private int _maxConcurrentDeliveriesPerDestination = 2;
+
+  private int _maxAttempts = 5;
+
+  private long _initialRetryDelay = 1000;
+
+  private long _maxRetryDelay = 60 * 1000;
+
+  public void setThreadPoolSize(int threadPoolSize) {
+    _threadPoolSize = threadPoolSize;
+  }
+
+  /**
+   * 
+   * @param capacity the maximum number of deliveries that can be queued,
+   *          running or waiting to be retried at once
+   */
+  public void setCapacity(int capacity) {
+    _capacity = capacity;
+  }
+
+  public void setMaxConcurrentDeliveriesPerDestination(
+      int maxConcurrentDeliveriesPerDestination) {
+    _maxConcurrentDeliveriesPerDestination = maxConcurrentDeliveriesPerDestination;
+  }
+
+  /**
+   * 
+   * @param maxAttempts the number of times a delivery is attempted before it's
+   *          given up on
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    _maxAttempts = maxAttempts;
+  }
+
+  /**
+   * 
+   * @param initialRetryDelay in ms, doubled with every further attempt
+   */
+  public void setInitialRetryDelay(long initialRetryDelay) {
+    _initialRetryDelay = initialRetryDelay;
+  }
+
+  /**
+   * 
+   * @param maxRetryDelay in ms
+   */
+  public void setMaxRetryDelay(long maxRetryDelay) {
+    _maxRetryDelay = maxRetryDelay;
+  }
+
+  public void start() {
+    _executor = Executors.newFixedThreadPool(_threadPoolSize);
+    _retryExecutor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  public void stop() {
+    if (_retryExecutor != null) {
+      _retryExecutor.shutdownNow();
+      _retryExecutor = null;
+    }
+    if (_executor != null) {
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+
+  /**
+   * Queues the delivery and returns immediately.
+   * 
+   * @param delivery
+   * @return false if the dispatcher was at capacity and the delivery was
+   *         dropped
+   */
+  public boolean dispatch(Delivery delivery) {
+
+    if (_pendingCount.incrementAndGet() > _capacity) {
+      _pendingCount.decrementAndGet();
+      _droppedCount.incrementAndGet();
+      _log.warn("alarm dispatcher at capacity, dropping delivery to "
+          + delivery.getDestination());
+      return false;
+    }
+
+    Attempt attempt = new Attempt(delivery, System.currentTimeMillis());
+    getDestination(delivery.getDestination()).submit(attempt);
+    return true;
+  }
+
+  /****
+   * Statistics
+   ****/
+
+  public int getPendingCount() {
+    return _pendingCount.get();
+  }
+
+  /**
+   * @return the time, in milliseconds, from dispatch to successful delivery,
+   *         including any time spent waiting and retrying
+   */
+  public Histogram getDeliveryLatency() {
+    return _deliveryLatency;
+  }
+
+  public long getDeliveredCount() {
+    return _deliveredCount.get();
+  }
+
+  public long getRetriedCount() {
+    return _retriedCount.get();
+  }
+
+  public long getFailedCount() {
+    return _failedCount.get();
+  }
+
+  public long getDroppedCount() {
+    return _droppedCount.get();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private Destination getDestination(String name) {
+    Destination destination = _destinations.get(name);
+    if (destination == null) {
+      Destination newDestination = new Destination(name);
+      destination = _destinations.putIfAbsent(name, newDestination);
+      if (destination == null)
+        destination = newDestination;
+    }
+    return destination;
+  }
+
+  private long getRetryDelay(int attempts) {
+    long delay = _initialRetryDelay << Math.min(attempts - 1, 30);
+    return Math.min(delay, _maxRetryDelay);
+  }
+
+  private void finish() {
+    _pendingCount.decrementAndGet();
+  }
+
+  /**
+   * A notification to be delivered
+   */
+  public interface Delivery {
+
+    /**
+     * 
+     * @return the destination of the delivery, which determines which
+     *         deliveries share a concurrency limit
+     */
+    public String getDestination();
+
+    public void deliver() throws Exception;
+  }
+
+  private static class Attempt {
+
+    private final Delivery delivery;
+
+    private final long dispatchTime;
+
+    private int attempts = 0;
+
+    public Attempt(Delivery delivery, long dispatchTime) {
+      this.delivery = delivery;
+      this.dispatchTime = dispatchTime;
+    }
+  }
+
+  /**
+   * Deliveries waiting on a destination's concurrency limit queue up here,
+   * rather than occupying a delivery thread
+   */
+  private class Destination {
+
+    private final String _name;
+
+    private final Semaphore _permits;
+
+    private final Queue<Attempt> _waiting = new ConcurrentLinkedQueue<Attempt>();
+
+    public Destination(String name) {
+      _name = name;
+      _permits = new Semaphore(_maxConcurrentDeliveriesPerDestination);
+    }
+
+    public void submit(Attempt attempt) {
+      _waiting.add(attempt);
+      drain();
+    }
+
+    /**
+     * Starts waiting deliveries for as long as we have permits. A permit is
+     * released only after its delivery completes, followed by another drain,
+     * so a delivery that queues up while all permits are taken is always
+     * picked up.
+     */
+    private void drain() {
+      while (!_waiting.isEmpty() && _permits.tryAcquire()) {
+        Attempt attempt = _waiting.poll();
+        if (attempt == null) {
+          _permits.release();
+          continue;
+        }
+        execute(attempt);
+      }
+    }
+
+    private void execute(final Attempt attempt) {
+
+      ExecutorService executor = _executor;
+      if (executor == null) {
+        drop();
+        return;
+      }
+
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              deliver(attempt);
+            } finally {
+              _permits.release();
+              drain();
+            }
+          }
+        });
+      } catch (RejectedExecutionException ex) {
+        drop();
+      }
+    }
+
+    /**
+     * Gives up on a delivery holding a permit because we've been stopped
+     */
+    private void drop() {
+      _permits.release();
+      _droppedCount.incrementAndGet();
+      finish();
+    }
+
+    private void deliver(final Attempt attempt) {
+
+      attempt.attempts++;
+
+      try {
+        attempt.delivery.deliver();
+        _deliveryLatency.record(System.currentTimeMillis()
+            - attempt.dispatchTime);
+        _deliveredCount.incrementAndGet();
+        finish();
+        return;
+      } catch (Throwable ex) {
+        if (attempt.attempts >= _maxAttempts) {
+          _log.warn("giving up on alarm delivery to " + _name + " after "
+              + attempt.attempts + " attempts", ex);
+          _failedCount.incrementAndGet();
+          finish();
+          return;
+        }
+        _log.debug("error delivering alarm to " + _name + ", will retry", ex);
+      }
+
+      _retriedCount.incrementAndGet();
+
+      ScheduledExecutorService retryExecutor = _retryExecutor;
+      if (retryExecutor == null) {
+        _droppedCount.incrementAndGet();
+        finish();
+        return;
+      }
+
+      try {
+        retryExecutor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            submit(attempt);
+          }
+        }, getRetryDelay(attempt.attempts), TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException ex) {
+        _droppedCount.incrementAndGet();
+        finish();
+      }
+    }
+  }
+}
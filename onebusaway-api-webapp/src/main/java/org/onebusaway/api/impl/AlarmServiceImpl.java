@@ -20,8 +20,12 @@ import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.onebusaway.api.impl.AlarmDispatcher.Delivery;
 import org.onebusaway.api.services.AlarmDetails;
 import org.onebusaway.api.services.AlarmService;
 import org.onebusaway.api.services.apns.ApplePushNotificationService;
@@ -30,11 +34,20 @@ import org.onebusaway.transit_data.model.RegisterAlarmQueryBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
 import com.notnoop.apns.PayloadBuilder;
 
+/**
+ * Push notifications for fired alarms are handed to an {@link AlarmDispatcher}
+ * rather than sent on the thread that fired the alarm, so that a slow push
+ * service doesn't hold up the alarm callback. Each
+ * {@link ApplePushNotificationService} is a dispatch destination of its own.
+ */
 @Component
+@ManagedResource("org.onebusaway.api.impl:name=AlarmServiceImpl")
 class AlarmServiceImpl implements AlarmService {
 
   private static Logger _log = LoggerFactory.getLogger(AlarmServiceImpl.class);
@@ -47,6 +60,8 @@ class AlarmServiceImpl implements AlarmService {
 
   private String _callbackUrl;
 
+  private final AlarmDispatcher _dispatcher = new AlarmDispatcher();
+
   @Autowired(required=false)
   public void setApplePushNotificationServices(
       List<ApplePushNotificationService> applePushNotificationServices) {
@@ -61,6 +76,108 @@ class AlarmServiceImpl implements AlarmService {
     _callbackUrl = callbackUrl;
   }
 
+  public void setDispatchThreadPoolSize(int threadPoolSize) {
+    _dispatcher.setThreadPoolSize(threadPoolSize);
+  }
+
+  /**
+   * 
+   * @param capacity the maximum number of notifications waiting to be sent,
+   *          beyond which further notifications are dropped
+   */
+  public void setDispatchCapacity(int capacity) {
+    _dispatcher.setCapacity(capacity);
+  }
+
+  /**
+   * 
+   * @param maxConcurrentPushes the maximum number of notifications sent
+   *          through any one push notification service at once
+   */
+  public void setMaxConcurrentPushesPerService(int maxConcurrentPushes) {
+    _dispatcher.setMaxConcurrentDeliveriesPerDestination(maxConcurrentPushes);
+  }
+
+  public void setMaxDeliveryAttempts(int maxDeliveryAttempts) {
+    _dispatcher.setMaxAttempts(maxDeliveryAttempts);
+  }
+
+  /**
+   * 
+   * @param initialRetryDelay in ms, doubled with every further attempt
+   */
+  public void setInitialRetryDelay(long initialRetryDelay) {
+    _dispatcher.setInitialRetryDelay(initialRetryDelay);
+  }
+
+  @PostConstruct
+  public void start() {
+    _dispatcher.start();
+  }
+
+  @PreDestroy
+  public void stop() {
+    _dispatcher.stop();
+  }
+
+  /****
+   * Statistics
+   ****/
+
+  @ManagedAttribute
+  public int getPendingDeliveryCount() {
+    return _dispatcher.getPendingCount();
+  }
+
+  @ManagedAttribute
+  public long getDeliveredCount() {
+    return _dispatcher.getDeliveredCount();
+  }
+
+  @ManagedAttribute
+  public long getRetriedDeliveryCount() {
+    return _dispatcher.getRetriedCount();
+  }
+
+  @ManagedAttribute
+  public long getFailedDeliveryCount() {
+    return _dispatcher.getFailedCount();
+  }
+
+  @ManagedAttribute
+  public long getDroppedDeliveryCount() {
+    return _dispatcher.getDroppedCount();
+  }
+
+  @ManagedAttribute
+  public double getDeliveryLatencyMean() {
+    return _dispatcher.getDeliveryLatency().getMean();
+  }
+
+  @ManagedAttribute
+  public long getDeliveryLatencyPercentile50() {
+    return _dispatcher.getDeliveryLatency().getPercentile(50);
+  }
+
+  @ManagedAttribute
+  public long getDeliveryLatencyPercentile95() {
+    return _dispatcher.getDeliveryLatency().getPercentile(95);
+  }
+
+  @ManagedAttribute
+  public long getDeliveryLatencyPercentile99() {
+    return _dispatcher.getDeliveryLatency().getPercentile(99);
+  }
+
+  @ManagedAttribute
+  public long getDeliveryLatencyMax() {
+    return _dispatcher.getDeliveryLatency().getMax();
+  }
+
+  /****
+   * {@link AlarmService} Interface
+   ****/
+
   @Override
   public AlarmDetails alterAlarmQuery(RegisterAlarmQueryBean alarm, String data) {
 
@@ -113,7 +230,8 @@ class AlarmServiceImpl implements AlarmService {
 
       for (ApplePushNotificationService service : _applePushNotificationServices) {
         if (service.isProduction() == isProduction) {
-          service.pushNotification(apnsDetails.getDeviceToken(), payload);
+          _dispatcher.dispatch(new ApnsDelivery(service,
+              apnsDetails.getDeviceToken(), payload));
           return;
         }
       }
@@ -174,6 +292,32 @@ class AlarmServiceImpl implements AlarmService {
     }
   }
 
+  private static class ApnsDelivery implements Delivery {
+
+    private final ApplePushNotificationService _service;
+
+    private final String _deviceToken;
+
+    private final String _payload;
+
+    public ApnsDelivery(ApplePushNotificationService service,
+        String deviceToken, String payload) {
+      _service = service;
+      _deviceToken = deviceToken;
+      _payload = payload;
+    }
+
+    @Override
+    public String getDestination() {
+      return _service.isProduction() ? "apns:production" : "apns:sandbox";
+    }
+
+    @Override
+    public void deliver() {
+      _service.pushNotification(_deviceToken, _payload);
+    }
+  }
+
   private static class ApnsAlarmDetails implements AlarmDetails {
 
     private final String _deviceToken;
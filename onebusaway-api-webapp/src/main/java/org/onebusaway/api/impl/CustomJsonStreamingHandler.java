@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.impl;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.struts2.ServletActionContext;
+
+/**
+ * Handles JSON content by streaming our response beans straight to the
+ * response with {@link JsonBeanWriter}, falling back to json-lib for anything
+ * it doesn't know how to write. The output is the same as with
+ * {@link CustomJsonLibHandler}.
+ * 
+ * The response is written to a buffer first and only copied to the output
+ * once it is complete, so that an error partway through, such as a cycle in
+ * the beans, doesn't leave truncated JSON in the response.
+ */
+public class CustomJsonStreamingHandler extends CustomJsonLibHandler {
+
+  private static final JsonBeanWriter _writer = new JsonBeanWriter();
+
+  @Override
+  public String fromObject(Object obj, String resultCode, Writer stream)
+      throws IOException {
+
+    if (!_writer.canWrite(obj))
+      return super.fromObject(obj, resultCode, stream);
+
+    StringWriter buffer = new StringWriter();
+    _writer.write(obj, buffer);
+
+    String callback = null;
+    HttpServletRequest req = ServletActionContext.getRequest();
+    if (req != null)
+      callback = req.getParameter("callback");
+
+    if (callback != null) {
+      stream.write(callback);
+      stream.write('(');
+    }
+
+    stream.write(buffer.toString());
+
+    if (callback != null)
+      stream.write(')');
+
+    return null;
+  }
+}
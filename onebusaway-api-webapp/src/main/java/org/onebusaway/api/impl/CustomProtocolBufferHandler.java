@@ -19,11 +19,13 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.struts2.ServletActionContext;
 import org.apache.struts2.rest.handler.ContentTypeHandler;
 import org.onebusaway.api.model.ResponseBean;
+import org.onebusaway.api.services.GtfsRealtimeFeedSnapshot;
 
 import com.google.protobuf.Message;
 
@@ -38,7 +40,10 @@ public class CustomProtocolBufferHandler implements ContentTypeHandler {
   public String fromObject(Object obj, String resultCode, Writer stream)
       throws IOException {
     ResponseBean response = (ResponseBean) obj;
-    if (response.getData() != null && response.getData() instanceof Message) {
+    if (response.getData() instanceof GtfsRealtimeFeedSnapshot) {
+      writeSnapshot((GtfsRealtimeFeedSnapshot) response.getData());
+    } else if (response.getData() != null
+        && response.getData() instanceof Message) {
       Message message = (Message) response.getData();
       /**
        * Instead of writing to the output Writer, we write directly to the
@@ -53,6 +58,24 @@ public class CustomProtocolBufferHandler implements ContentTypeHandler {
     return null;
   }
 
+  /**
+   * Precomputed snapshots are written as is, gzipped if the client accepts it
+   */
+  private void writeSnapshot(GtfsRealtimeFeedSnapshot snapshot)
+      throws IOException {
+    HttpServletRequest req = ServletActionContext.getRequest();
+    HttpServletResponse res = ServletActionContext.getResponse();
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    byte[] bytes = snapshot.getBytes();
+    res.setHeader("Vary", "Accept-Encoding");
+    if (GtfsRealtimeFeedSnapshot.isGzipAccepted(acceptEncoding)) {
+      res.setHeader("Content-Encoding", "gzip");
+      bytes = snapshot.getGzipBytes();
+    }
+    res.setContentLength(bytes.length);
+    res.getOutputStream().write(bytes);
+  }
+
   @Override
   public String getContentType() {
     return "application/x-google-protobuf";
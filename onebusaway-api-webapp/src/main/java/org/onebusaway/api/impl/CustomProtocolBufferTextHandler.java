@@ -21,6 +21,7 @@ import java.io.Writer;
 
 import org.apache.struts2.rest.handler.ContentTypeHandler;
 import org.onebusaway.api.model.ResponseBean;
+import org.onebusaway.api.services.GtfsRealtimeFeedSnapshot;
 
 import com.google.protobuf.Message;
 
@@ -35,7 +36,11 @@ public class CustomProtocolBufferTextHandler implements ContentTypeHandler {
   public String fromObject(Object obj, String resultCode, Writer stream)
       throws IOException {
     ResponseBean response = (ResponseBean) obj;
-    if (response.getData() != null && response.getData() instanceof Message) {
+    if (response.getData() instanceof GtfsRealtimeFeedSnapshot) {
+      GtfsRealtimeFeedSnapshot snapshot = (GtfsRealtimeFeedSnapshot) response.getData();
+      stream.write(snapshot.getFeed().toString());
+    } else if (response.getData() != null
+        && response.getData() instanceof Message) {
       Message message = (Message) response.getData();
       stream.write(message.toString());
     } else {
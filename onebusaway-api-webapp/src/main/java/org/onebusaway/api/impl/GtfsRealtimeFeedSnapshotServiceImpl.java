@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.onebusaway.api.services.GtfsRealtimeFeedSnapshot;
+import org.onebusaway.api.services.GtfsRealtimeFeedSnapshotService;
+import org.onebusaway.api.services.GtfsRealtimeFeedSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+@Component
+class GtfsRealtimeFeedSnapshotServiceImpl implements
+    GtfsRealtimeFeedSnapshotService {
+
+  private static Logger _log = LoggerFactory.getLogger(GtfsRealtimeFeedSnapshotServiceImpl.class);
+
+  private final ConcurrentMap<String, FeedEntry> _entriesByKey = new ConcurrentHashMap<String, FeedEntry>();
+
+  private ScheduledExecutorService _executor;
+
+  private long _refreshInterval = 10 * 1000;
+
+  private long _idleExpiry = 5 * 60 * 1000;
+
+  /**
+   * 
+   * @param refreshInterval how often, in ms, feeds are rebuilt. Set this to
+   *          match the refresh interval of the realtime data sources.
+   */
+  public void setRefreshInterval(long refreshInterval) {
+    _refreshInterval = refreshInterval;
+  }
+
+  /**
+   * 
+   * @param idleExpiry how long, in ms, a feed that is no longer requested is
+   *          kept up to date
+   */
+  public void setIdleExpiry(long idleExpiry) {
+    _idleExpiry = idleExpiry;
+  }
+
+  @PostConstruct
+  public void start() {
+    _executor = Executors.newSingleThreadScheduledExecutor();
+    _executor.scheduleWithFixedDelay(new RefreshTask(), _refreshInterval,
+        _refreshInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_executor != null) {
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+
+  @Override
+  public GtfsRealtimeFeedSnapshot getSnapshot(String key,
+      GtfsRealtimeFeedSource source) {
+
+    FeedEntry entry = _entriesByKey.get(key);
+    if (entry == null) {
+      entry = new FeedEntry(source);
+      FeedEntry existing = _entriesByKey.putIfAbsent(key, entry);
+      if (existing != null)
+        entry = existing;
+    }
+
+    long now = System.currentTimeMillis();
+    entry.lastRequested = now;
+
+    GtfsRealtimeFeedSnapshot snapshot = entry.snapshot;
+
+    /**
+     * Build the first snapshot of a feed on the request thread, along with
+     * any snapshot that has fallen well behind, as when the refresh task has
+     * been stopped
+     */
+    if (snapshot == null
+        || snapshot.getCreationTime() + 3 * _refreshInterval < now) {
+      synchronized (entry) {
+        snapshot = entry.snapshot;
+        if (snapshot == null
+            || snapshot.getCreationTime() + 3 * _refreshInterval < now)
+          snapshot = entry.refresh(now);
+      }
+    }
+
+    return snapshot;
+  }
+
+  /****
+   * Package Methods
+   ****/
+
+  void refresh(long now) {
+
+    for (Iterator<Map.Entry<String, FeedEntry>> it = _entriesByKey.entrySet().iterator(); it.hasNext();) {
+
+      Map.Entry<String, FeedEntry> entry = it.next();
+      FeedEntry feedEntry = entry.getValue();
+
+      if (feedEntry.lastRequested + _idleExpiry <= now) {
+        it.remove();
+        continue;
+      }
+
+      try {
+        synchronized (feedEntry) {
+          feedEntry.refresh(now);
+        }
+      } catch (Throwable ex) {
+        _log.warn("error building gtfs-realtime feed " + entry.getKey(), ex);
+      }
+    }
+  }
+
+  private static class FeedEntry {
+
+    private final GtfsRealtimeFeedSource source;
+
+    private volatile GtfsRealtimeFeedSnapshot snapshot;
+
+    private volatile long lastRequested;
+
+    public FeedEntry(GtfsRealtimeFeedSource source) {
+      this.source = source;
+    }
+
+    public GtfsRealtimeFeedSnapshot refresh(long now) {
+      snapshot = GtfsRealtimeFeedSnapshot.create(source.getFeed(now), now);
+      return snapshot;
+    }
+  }
+
+  private class RefreshTask implements Runnable {
+
+    @Override
+    public void run() {
+      refresh(System.currentTimeMillis());
+    }
+  }
+}
@@ -0,0 +1,484 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.impl;
+
+import java.beans.IndexedPropertyDescriptor;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONString;
+import net.sf.json.util.JSONUtils;
+
+import org.apache.commons.beanutils.MethodUtils;
+import org.apache.commons.beanutils.PropertyUtils;
+
+/**
+ * Writes our API beans as JSON directly to a {@link Writer}, producing the
+ * same output as json-lib's {@link JSONObject#fromObject(Object)} and
+ * {@link JSONArray#fromObject(Object)} with the default config, without
+ * building the intermediate JSON tree.
+ * 
+ * The bean properties of each class are introspected once and cached, in the
+ * same order json-lib would visit them. Strings, numbers, booleans,
+ * collections, arrays and beans from our own packages are written directly.
+ * Anything else, as well as the strings json-lib would interpret as JSON text
+ * rather than quote, is handed to json-lib one value at a time so the output
+ * stays the same.
+ * 
+ * Like json-lib's default cycle detection strategy, a bean, collection or
+ * array that contains itself raises a {@link JSONException}. Since output is
+ * written as we go, whatever was written before the exception is left in the
+ * {@link Writer}.
+ */
+public class JsonBeanWriter {
+
+  private static final String BEAN_PACKAGE_PREFIX = "org.onebusaway.";
+
+  private static final String[] DEFAULT_EXCLUDES = {
+      "class", "declaringClass", "metaClass"};
+
+  private static final BeanWriter UNSUPPORTED = new BeanWriter(
+      new PropertyWriter[0]);
+
+  private final ConcurrentMap<Class<?>, BeanWriter> _beanWriters = new ConcurrentHashMap<Class<?>, BeanWriter>();
+
+  private final ConcurrentMap<Object, String> _propertyValues = new ConcurrentHashMap<Object, String>();
+
+  private final ConcurrentMap<Object, String> _elementValues = new ConcurrentHashMap<Object, String>();
+
+  /**
+   * 
+   * @param value
+   * @return true if the value is a collection, an array or a bean that can be
+   *         written by {@link #write(Object, Writer)}
+   */
+  public boolean canWrite(Object value) {
+    if (value == null)
+      return false;
+    if (value instanceof Collection<?> || value.getClass().isArray())
+      return true;
+    return getBeanWriter(value.getClass()) != null;
+  }
+
+  /**
+   * Writes the specified collection, array or bean, as checked with
+   * {@link #canWrite(Object)}.
+   * 
+   * @param value
+   * @param out
+   * @throws IOException
+   */
+  public void write(Object value, Writer out) throws IOException {
+    Set<Object> path = Collections.newSetFromMap(
+        new IdentityHashMap<Object, Boolean>());
+    if (value instanceof Collection<?>) {
+      writeCollection((Collection<?>) value, out, path);
+    } else if (value.getClass().isArray()) {
+      writeArray(value, out, path);
+    } else {
+      BeanWriter beanWriter = getBeanWriter(value.getClass());
+      if (beanWriter == null)
+        throw new IllegalArgumentException("unsupported type: "
+            + value.getClass().getName());
+      writeBean(beanWriter, value, out, path);
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * 
+   * @param path the beans, collections and arrays currently being written,
+   *          from the root down, to detect cycles
+   */
+  private void writeValue(Object value, Writer out, boolean element,
+      Set<Object> path) throws IOException {
+
+    if (value == null) {
+      out.write("null");
+      return;
+    }
+
+    Class<?> type = value.getClass();
+
+    if (type == String.class) {
+      String s = (String) value;
+      if (isInterpretedByJsonLib(s))
+        writeWithJsonLib(s, out, element);
+      else
+        writeString(s, out);
+    } else if (type == Integer.class || type == Long.class
+        || type == Short.class || type == Byte.class
+        || type == Boolean.class) {
+      out.write(value.toString());
+    } else if (type == Double.class) {
+      writeDecimal((Double) value, out, element);
+    } else if (type == Float.class) {
+      // json-lib promotes floats to doubles through their string form
+      writeDecimal(new Double(value.toString()), out, element);
+    } else if (value instanceof Collection<?>) {
+      writeCollection((Collection<?>) value, out, path);
+    } else if (type.isArray()) {
+      writeArray(value, out, path);
+    } else if (value instanceof Enum<?>) {
+      writeEnum(value, out, element);
+    } else {
+      BeanWriter beanWriter = getBeanWriter(type);
+      if (beanWriter != null)
+        writeBean(beanWriter, value, out, path);
+      else
+        writeWithJsonLib(value, out, element);
+    }
+  }
+
+  private void writeBean(BeanWriter beanWriter, Object bean, Writer out,
+      Set<Object> path) throws IOException {
+    enter(bean, path);
+    beanWriter.write(this, bean, out, path);
+    path.remove(bean);
+  }
+
+  private void writeCollection(Collection<?> values, Writer out,
+      Set<Object> path) throws IOException {
+    enter(values, path);
+    out.write('[');
+    boolean first = true;
+    for (Object value : values) {
+      if (!first)
+        out.write(',');
+      first = false;
+      writeValue(value, out, true, path);
+    }
+    out.write(']');
+    path.remove(values);
+  }
+
+  private void writeArray(Object values, Writer out, Set<Object> path)
+      throws IOException {
+    enter(values, path);
+    out.write('[');
+    int n = Array.getLength(values);
+    for (int i = 0; i < n; i++) {
+      if (i > 0)
+        out.write(',');
+      writeValue(Array.get(values, i), out, true, path);
+    }
+    out.write(']');
+    path.remove(values);
+  }
+
+  /**
+   * Same error as json-lib's default cycle detection strategy
+   */
+  private static void enter(Object value, Set<Object> path) {
+    if (!path.add(value))
+      throw new JSONException("There is a cycle in the hierarchy!");
+  }
+
+  private void writeDecimal(Double value, Writer out, boolean element)
+      throws IOException {
+    if (value.isNaN() || value.isInfinite()) {
+      // Let json-lib raise the error it would have raised
+      writeWithJsonLib(value, out, element);
+      return;
+    }
+    String s = value.toString();
+    if (s.indexOf('.') > 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+      int end = s.length();
+      while (s.charAt(end - 1) == '0')
+        end--;
+      if (s.charAt(end - 1) == '.')
+        end--;
+      out.write(s, 0, end);
+    } else {
+      out.write(s);
+    }
+  }
+
+  private void writeEnum(Object value, Writer out, boolean element)
+      throws IOException {
+    ConcurrentMap<Object, String> cache = element ? _elementValues
+        : _propertyValues;
+    String json = cache.get(value);
+    if (json == null) {
+      json = toJsonWithJsonLib(value, element);
+      cache.put(value, json);
+    }
+    out.write(json);
+  }
+
+  private void writeWithJsonLib(Object value, Writer out, boolean element)
+      throws IOException {
+    out.write(toJsonWithJsonLib(value, element));
+  }
+
+  /**
+   * Converts a single value the way json-lib would when it is found in a
+   * property of a bean or in an element of an array.
+   */
+  private static String toJsonWithJsonLib(Object value, boolean element) {
+    if (element) {
+      JSONArray holder = new JSONArray();
+      holder.element(value);
+      String json = holder.toString();
+      return json.substring(1, json.length() - 1);
+    } else {
+      JSONObject holder = new JSONObject();
+      holder.element("v", value);
+      String json = holder.toString();
+      return json.substring(5, json.length() - 1);
+    }
+  }
+
+  /**
+   * json-lib writes strings found in untyped properties and in arrays as raw
+   * JSON when they look like JSON text, a function or a quoted string. This
+   * errs on the side of handing too many strings to json-lib.
+   */
+  private static boolean isInterpretedByJsonLib(String s) {
+    if (s.length() == 0)
+      return false;
+    char c = s.charAt(0);
+    return c == '[' || c == '{' || c == '"' || c == '\''
+        || s.startsWith("function") || s.equals("null") || s.equals("true")
+        || s.equals("false");
+  }
+
+  /**
+   * Same escaping as json-lib's JSONUtils.quote
+   */
+  static void writeString(String s, Writer out) throws IOException {
+    out.write('"');
+    int n = s.length();
+    int from = 0;
+    char prev = 0;
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      String escape = null;
+      switch (c) {
+        case '"':
+          escape = "\\\"";
+          break;
+        case '\\':
+          escape = "\\\\";
+          break;
+        case '/':
+          if (prev == '<')
+            escape = "\\/";
+          break;
+        case '\b':
+          escape = "\\b";
+          break;
+        case '\t':
+          escape = "\\t";
+          break;
+        case '\n':
+          escape = "\\n";
+          break;
+        case '\f':
+          escape = "\\f";
+          break;
+        case '\r':
+          escape = "\\r";
+          break;
+        default:
+          if (c < ' ') {
+            String hex = "000" + Integer.toHexString(c);
+            escape = "\\u" + hex.substring(hex.length() - 4);
+          }
+      }
+      if (escape != null) {
+        if (from < i)
+          out.write(s, from, i - from);
+        out.write(escape);
+        from = i + 1;
+      }
+      prev = c;
+    }
+    if (from < n)
+      out.write(s, from, n - from);
+    out.write('"');
+  }
+
+  private BeanWriter getBeanWriter(Class<?> type) {
+    BeanWriter beanWriter = _beanWriters.get(type);
+    if (beanWriter == null) {
+      beanWriter = createBeanWriter(type);
+      BeanWriter existing = _beanWriters.putIfAbsent(type, beanWriter);
+      if (existing != null)
+        beanWriter = existing;
+    }
+    return beanWriter == UNSUPPORTED ? null : beanWriter;
+  }
+
+  private static BeanWriter createBeanWriter(Class<?> type) {
+
+    if (!isBeanType(type))
+      return UNSUPPORTED;
+
+    PropertyDescriptor[] descriptors = PropertyUtils.getPropertyDescriptors(type);
+    List<PropertyWriter> writers = new ArrayList<PropertyWriter>();
+    boolean first = true;
+
+    for (PropertyDescriptor descriptor : descriptors) {
+
+      String name = descriptor.getName();
+      if (isDefaultExclude(name) || descriptor.getReadMethod() == null)
+        continue;
+
+      // Corner cases that we'd rather leave to json-lib entirely
+      if (descriptor instanceof IndexedPropertyDescriptor)
+        return UNSUPPORTED;
+      Method readMethod = MethodUtils.getAccessibleMethod(type,
+          descriptor.getReadMethod());
+      if (readMethod == null)
+        return UNSUPPORTED;
+
+      writers.add(new PropertyWriter(name, first, readMethod,
+          descriptor.getPropertyType()));
+      first = false;
+    }
+
+    return new BeanWriter(writers.toArray(new PropertyWriter[writers.size()]));
+  }
+
+  private static boolean isBeanType(Class<?> type) {
+    return type.getName().startsWith(BEAN_PACKAGE_PREFIX)
+        && !type.isArray() && !type.isPrimitive()
+        && !Enum.class.isAssignableFrom(type)
+        && !Map.class.isAssignableFrom(type)
+        && !Collection.class.isAssignableFrom(type)
+        && !JSON.class.isAssignableFrom(type)
+        && !JSONString.class.isAssignableFrom(type);
+  }
+
+  private static boolean isDefaultExclude(String name) {
+    for (String exclude : DEFAULT_EXCLUDES) {
+      if (exclude.equals(name))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * What json-lib writes for a null property, based on its declared type
+   */
+  private static String getNullValue(Class<?> type) {
+    if (type == null)
+      return "null";
+    if (type.isArray() || Collection.class.isAssignableFrom(type))
+      return "[]";
+    if (type == String.class || type == Character.class
+        || type == Character.TYPE)
+      return "\"\"";
+    if (type == Boolean.class || type == Boolean.TYPE)
+      return "false";
+    if (Number.class.isAssignableFrom(type)
+        || (type.isPrimitive() && type != Void.TYPE))
+      return "0";
+    return "null";
+  }
+
+  private static class BeanWriter {
+
+    private final PropertyWriter[] _properties;
+
+    public BeanWriter(PropertyWriter[] properties) {
+      _properties = properties;
+    }
+
+    public void write(JsonBeanWriter writer, Object bean, Writer out,
+        Set<Object> path) throws IOException {
+      out.write('{');
+      for (PropertyWriter property : _properties)
+        property.write(writer, bean, out, path);
+      out.write('}');
+    }
+  }
+
+  private static class PropertyWriter {
+
+    /**
+     * The quoted name, the colon and, for all but the first property, the
+     * leading comma
+     */
+    private final char[] _prefix;
+
+    private final Method _readMethod;
+
+    /**
+     * json-lib stores values of String properties as-is, rather than parsing
+     * them for JSON text
+     */
+    private final boolean _string;
+
+    private final String _nullValue;
+
+    public PropertyWriter(String name, boolean first, Method readMethod,
+        Class<?> type) {
+      StringBuilder b = new StringBuilder();
+      if (!first)
+        b.append(',');
+      b.append(JSONUtils.quote(name));
+      b.append(':');
+      _prefix = b.toString().toCharArray();
+      _readMethod = readMethod;
+      _string = type != null && String.class.isAssignableFrom(type);
+      _nullValue = getNullValue(type);
+    }
+
+    public void write(JsonBeanWriter writer, Object bean, Writer out,
+        Set<Object> path) throws IOException {
+      Object value = get(bean);
+      out.write(_prefix);
+      if (value == null)
+        out.write(_nullValue);
+      else if (_string)
+        writeString((String) value, out);
+      else
+        writer.writeValue(value, out, false, path);
+    }
+
+    private Object get(Object bean) {
+      try {
+        return _readMethod.invoke(bean);
+      } catch (InvocationTargetException ex) {
+        throw new JSONException(ex.getCause());
+      } catch (IllegalAccessException ex) {
+        throw new JSONException(ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * A GTFS-realtime feed along with its serialized form, both raw and gzipped,
+ * so that it can be served to any number of clients without being serialized
+ * again.
+ * 
+ * The ETag is derived from the feed with its header timestamp cleared, since
+ * the timestamp changes every time the feed is rebuilt even when its entities
+ * don't. It is a weak ETag for that reason, and the gzipped encoding gets its
+ * own ETag, as it is a different representation of the feed.
+ * 
+ * @see GtfsRealtimeFeedSnapshotService
+ */
+public final class GtfsRealtimeFeedSnapshot {
+
+  private final FeedMessage _feed;
+
+  private final byte[] _bytes;
+
+  private final byte[] _gzipBytes;
+
+  private final String _contentHash;
+
+  private final long _creationTime;
+
+  public static GtfsRealtimeFeedSnapshot create(FeedMessage feed,
+      long creationTime) {
+    byte[] bytes = feed.toByteArray();
+    return new GtfsRealtimeFeedSnapshot(feed, bytes, gzip(bytes),
+        computeContentHash(feed), creationTime);
+  }
+
+  /**
+   * 
+   * @param acceptEncoding the Accept-Encoding request header, if any
+   * @return true if the gzipped feed should be served
+   */
+  public static boolean isGzipAccepted(String acceptEncoding) {
+    return acceptEncoding != null && acceptEncoding.contains("gzip");
+  }
+
+  private GtfsRealtimeFeedSnapshot(FeedMessage feed, byte[] bytes,
+      byte[] gzipBytes, String contentHash, long creationTime) {
+    _feed = feed;
+    _bytes = bytes;
+    _gzipBytes = gzipBytes;
+    _contentHash = contentHash;
+    _creationTime = creationTime;
+  }
+
+  public FeedMessage getFeed() {
+    return _feed;
+  }
+
+  /**
+   * @return the serialized feed. Don't modify the array.
+   */
+  public byte[] getBytes() {
+    return _bytes;
+  }
+
+  /**
+   * @return the gzipped serialized feed. Don't modify the array.
+   */
+  public byte[] getGzipBytes() {
+    return _gzipBytes;
+  }
+
+  /**
+   * 
+   * @param gzip true for the ETag of the gzipped feed
+   * @return the ETag of the feed in the given encoding
+   */
+  public String getETag(boolean gzip) {
+    if (gzip)
+      return "W/\"" + _contentHash + "-gzip\"";
+    return "W/\"" + _contentHash + "\"";
+  }
+
+  public long getCreationTime() {
+    return _creationTime;
+  }
+
+  private static byte[] gzip(byte[] bytes) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+      GZIPOutputStream gzip = new GZIPOutputStream(out);
+      gzip.write(bytes);
+      gzip.close();
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static String computeContentHash(FeedMessage feed) {
+    FeedMessage.Builder content = feed.toBuilder();
+    content.getHeaderBuilder().clearTimestamp();
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(content.build().toByteArray());
+      StringBuilder b = new StringBuilder(hash.length * 2);
+      for (int i = 0; i < hash.length; i++) {
+        b.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+        b.append(Character.forDigit(hash[i] & 0xf, 16));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
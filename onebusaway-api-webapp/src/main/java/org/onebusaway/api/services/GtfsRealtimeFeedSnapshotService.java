@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.services;
+
+/**
+ * Keeps precomputed {@link GtfsRealtimeFeedSnapshot} instances for the
+ * GTFS-realtime feeds that clients are polling, and rebuilds them in the
+ * background, so that the cost of a poll doesn't depend on the number of
+ * clients.
+ */
+public interface GtfsRealtimeFeedSnapshotService {
+
+  /**
+   * Returns the current snapshot of a feed. The first call for a key builds
+   * the snapshot on the calling thread. From then on the snapshot is rebuilt
+   * in the background, for as long as the feed keeps being requested.
+   * 
+   * @param key uniquely identifies the feed, including any options that
+   *          affect its contents
+   * @param source used to build the feed
+   * @return the current snapshot of the feed
+   */
+  public GtfsRealtimeFeedSnapshot getSnapshot(String key,
+      GtfsRealtimeFeedSource source);
+}
@@ -13,14 +13,16 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package org.onebusaway.transit_data_federation.services.otp;
+package org.onebusaway.api.services;
 
-import org.opentripplanner.routing.core.State;
-import org.opentripplanner.routing.core.TraverseOptions;
-import org.opentripplanner.routing.core.Vertex;
-import org.opentripplanner.routing.spt.BasicShortestPathTree;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
-public interface TransitShedPathService {
-  public BasicShortestPathTree getTransitShed(Vertex origin, State originState,
-      TraverseOptions options);
+/**
+ * Builds a GTFS-realtime feed on behalf of a
+ * {@link GtfsRealtimeFeedSnapshotService}. Sources are called from a
+ * background thread, so they must not depend on the request that registered
+ * them.
+ */
+public interface GtfsRealtimeFeedSource {
+  public FeedMessage getFeed(long time);
 }
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.api.impl.AlarmDispatcher.Delivery;
+
+public class AlarmDispatcherTest {
+
+  private AlarmDispatcher _dispatcher;
+
+  @Before
+  public void setup() {
+    _dispatcher = new AlarmDispatcher();
+    _dispatcher.setThreadPoolSize(4);
+    _dispatcher.setMaxConcurrentDeliveriesPerDestination(1);
+    _dispatcher.setInitialRetryDelay(10);
+    _dispatcher.setMaxAttempts(3);
+    _dispatcher.setCapacity(100);
+    _dispatcher.start();
+  }
+
+  @After
+  public void teardown() {
+    _dispatcher.stop();
+  }
+
+  @Test
+  public void testSlowDestinationDoesNotBlockOthers() throws Exception {
+
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch fastDone = new CountDownLatch(10);
+    AtomicInteger slowRunning = new AtomicInteger();
+
+    for (int i = 0; i < 5; i++)
+      assertTrue(_dispatcher.dispatch(new SlowDelivery(release, slowRunning)));
+    for (int i = 0; i < 10; i++)
+      assertTrue(_dispatcher.dispatch(new CountingDelivery("fast", fastDone)));
+
+    assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+    assertTrue(slowRunning.get() <= 1);
+
+    release.countDown();
+    waitForPending(0);
+    assertEquals(15, _dispatcher.getDeliveredCount());
+    assertEquals(15, _dispatcher.getDeliveryLatency().getCount());
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+
+    final AtomicInteger attempts = new AtomicInteger();
+
+    _dispatcher.dispatch(new Delivery() {
+      public String getDestination() {
+        return "flaky";
+      }
+
+      public void deliver() {
+        if (attempts.incrementAndGet() < 3)
+          throw new IllegalStateException("unavailable");
+      }
+    });
+
+    _dispatcher.dispatch(new Delivery() {
+      public String getDestination() {
+        return "down";
+      }
+
+      public void deliver() {
+        throw new IllegalStateException("unavailable");
+      }
+    });
+
+    waitForPending(0);
+    assertEquals(3, attempts.get());
+    assertEquals(1, _dispatcher.getDeliveredCount());
+    assertEquals(1, _dispatcher.getFailedCount());
+    assertEquals(4, _dispatcher.getRetriedCount());
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger running = new AtomicInteger();
+
+    for (int i = 0; i < 100; i++)
+      assertTrue(_dispatcher.dispatch(new SlowDelivery(release, running)));
+    assertFalse(_dispatcher.dispatch(new SlowDelivery(release, running)));
+    assertEquals(1, _dispatcher.getDroppedCount());
+
+    release.countDown();
+    waitForPending(0);
+    assertEquals(100, _dispatcher.getDeliveredCount());
+  }
+
+  private void waitForPending(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (_dispatcher.getPendingCount() != count
+        && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertEquals(count, _dispatcher.getPendingCount());
+  }
+
+  private static class CountingDelivery implements Delivery {
+
+    private final String _destination;
+
+    private final CountDownLatch _latch;
+
+    public CountingDelivery(String destination, CountDownLatch latch) {
+      _destination = destination;
+      _latch = latch;
+    }
+
+    @Override
+    public String getDestination() {
+      return _destination;
+    }
+
+    @Override
+    public void deliver() {
+      _latch.countDown();
+    }
+  }
+
+  private static class SlowDelivery implements Delivery {
+
+    private final CountDownLatch _release;
+
+    private final AtomicInteger _running;
+
+    public SlowDelivery(CountDownLatch release, AtomicInteger running) {
+      _release = release;
+      _running = running;
+    }
+
+    @Override
+    public String getDestination() {
+      return "slow";
+    }
+
+    @Override
+    public void deliver() throws Exception {
+      _running.incrementAndGet();
+      try {
+        _release.await();
+      } finally {
+        _running.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.onebusaway.api.services.GtfsRealtimeFeedSnapshot;
+import org.onebusaway.api.services.GtfsRealtimeFeedSource;
+
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeConstants;
+
+public class GtfsRealtimeFeedSnapshotServiceImplTest {
+
+  @Test
+  public void test() throws Exception {
+
+    GtfsRealtimeFeedSnapshotServiceImpl service = new GtfsRealtimeFeedSnapshotServiceImpl();
+    service.setIdleExpiry(60 * 1000);
+
+    CountingFeedSource source = new CountingFeedSource();
+
+    GtfsRealtimeFeedSnapshot a = service.getSnapshot("a", source);
+    assertEquals(1, source.count);
+    assertSame(a, service.getSnapshot("a", source));
+    assertEquals(1, source.count);
+
+    FeedMessage feed = FeedMessage.parseFrom(a.getBytes());
+    assertEquals(a.getFeed(), feed);
+    feed = FeedMessage.parseFrom(new GZIPInputStream(new ByteArrayInputStream(
+        a.getGzipBytes())));
+    assertEquals(a.getFeed(), feed);
+
+    // Only the header timestamp changes, so the ETag doesn't
+    service.refresh(a.getCreationTime() + 1000);
+    assertEquals(2, source.count);
+    GtfsRealtimeFeedSnapshot b = service.getSnapshot("a", source);
+    assertFalse(a.getFeed().equals(b.getFeed()));
+    assertEquals(a.getETag(false), b.getETag(false));
+    assertEquals(a.getETag(true), b.getETag(true));
+    assertFalse(b.getETag(false).equals(b.getETag(true)));
+
+    source.entityId = "2";
+    service.refresh(b.getCreationTime() + 1000);
+    assertEquals(3, source.count);
+    GtfsRealtimeFeedSnapshot c = service.getSnapshot("a", source);
+    assertFalse(b.getETag(false).equals(c.getETag(false)));
+    assertFalse(b.getETag(true).equals(c.getETag(true)));
+
+    // Not requested for longer than the idle expiry
+    service.refresh(System.currentTimeMillis() + 120 * 1000);
+    assertEquals(3, source.count);
+  }
+
+  private static class CountingFeedSource implements GtfsRealtimeFeedSource {
+
+    private int count = 0;
+
+    private String entityId = "1";
+
+    @Override
+    public FeedMessage getFeed(long time) {
+      count++;
+      FeedMessage.Builder feed = FeedMessage.newBuilder();
+      FeedHeader.Builder header = feed.getHeaderBuilder();
+      header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+      header.setTimestamp(time / 1000);
+      feed.addEntityBuilder().setId(entityId);
+      return feed.build();
+    }
+  }
+}
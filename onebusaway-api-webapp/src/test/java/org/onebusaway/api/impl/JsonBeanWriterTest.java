@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.api.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.junit.Test;
+import org.onebusaway.api.model.ResponseBean;
+import org.onebusaway.api.model.transit.ListWithReferencesBean;
+import org.onebusaway.api.model.transit.ReferencesBean;
+import org.onebusaway.api.model.transit.StopV2Bean;
+import org.onebusaway.transit_data.model.EAccessibility;
+
+public class JsonBeanWriterTest {
+
+  private JsonBeanWriter _writer = new JsonBeanWriter();
+
+  @Test
+  public void testResponse() throws Exception {
+
+    StopV2Bean stopA = new StopV2Bean();
+    stopA.setId("1_stopA");
+    stopA.setName("3rd Ave & \"Pike\" St </script>\\\n\t\u0001");
+    stopA.setLat(47.0);
+    stopA.setLon(-122.3125);
+    stopA.setLocationType(1);
+    stopA.setWheelchairBoarding(EAccessibility.ACCESSIBLE);
+    stopA.setRouteIds(Arrays.asList("1_10", "[1, 2]", "{\"a\":1}", "null",
+        "", null));
+
+    // Mostly nulls
+    StopV2Bean stopB = new StopV2Bean();
+    stopB.setCode("{not json}");
+
+    ReferencesBean references = new ReferencesBean();
+    references.addStop(stopA);
+
+    List<StopV2Bean> stops = new ArrayList<StopV2Bean>();
+    stops.add(stopA);
+    stops.add(stopB);
+
+    ListWithReferencesBean<StopV2Bean> list = new ListWithReferencesBean<StopV2Bean>(
+        stops, true, references);
+    assertSameJson(new ResponseBean(2, 200, "OK", list));
+    assertSameJson(new ResponseBean(2, 404, null, null));
+  }
+
+  @Test
+  public void testValues() throws Exception {
+    assertSameJson(new ResponseBean(2, 200, "OK", 1.25e-7));
+    assertSameJson(new ResponseBean(2, 200, "OK", 12.5f));
+    assertSameJson(new ResponseBean(2, 200, "OK", Long.MAX_VALUE));
+    assertSameJson(new ResponseBean(2, 200, "OK", "[1,2,3]"));
+    assertSameJson(new ResponseBean(2, 200, "OK", new int[] {1, 2}));
+    assertSameJson(new ResponseBean(2, 200, "OK", new double[] {1.0, 0.5}));
+    assertSameJson(new ResponseBean(2, 200, "OK", EAccessibility.UNKNOWN));
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("a", 1);
+    assertSameJson(new ResponseBean(2, 200, "OK", map));
+
+    assertSameJson(Arrays.asList("a", "{\"b\":2}", 3, null));
+  }
+
+  @Test
+  public void testCycle() throws Exception {
+
+    Node node = new Node();
+    node.setName("a");
+    node.setChildren(Arrays.asList(node));
+
+    try {
+      _writer.write(node, new StringWriter());
+      fail();
+    } catch (JSONException ex) {
+
+    }
+
+    // The same bean in two places isn't a cycle
+    Node leaf = new Node();
+    leaf.setName("b");
+    Node parent = new Node();
+    parent.setChildren(Arrays.asList(leaf, leaf));
+    assertSameJson(Arrays.asList(parent, leaf));
+
+    // And the writer can be used again after a cycle
+    assertSameJson(parent);
+  }
+
+  @Test
+  public void testCanWrite() {
+    assertTrue(_writer.canWrite(new ResponseBean(2, 200, "OK", null)));
+    assertTrue(_writer.canWrite(Arrays.asList(1, 2)));
+    assertFalse(_writer.canWrite(null));
+    assertFalse(_writer.canWrite("{}"));
+    assertFalse(_writer.canWrite(new HashMap<String, Object>()));
+  }
+
+  private void assertSameJson(Object value) throws Exception {
+    String expected;
+    if (value instanceof List<?>)
+      expected = JSONArray.fromObject(value).toString();
+    else
+      expected = JSONObject.fromObject(value).toString();
+    StringWriter out = new StringWriter();
+    _writer.write(value, out);
+    assertEquals(expected, out.toString());
+  }
+
+  public static class Node {
+
+    private String name;
+
+    private List<Node> children;
+
+    public String getName() {
+      return name;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public List<Node> getChildren() {
+      return children;
+    }
+
+    public void setChildren(List<Node> children) {
+      this.children = children;
+    }
+  }
+}
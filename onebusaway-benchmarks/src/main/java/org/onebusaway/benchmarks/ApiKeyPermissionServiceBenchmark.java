@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.users.impl.ApiKeyPermissionServiceImpl;
+import org.onebusaway.users.services.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures API key permission checks from several threads at once, spread over
+ * {@link #keyCount} keys that each allow one request every
+ * {@link #minRequestInterval} ms. At 10,000 keys and a 200ms interval, the
+ * keys can sustain 50,000 accepted requests per second in total, so the
+ * throughput reported here should be well above that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+public class ApiKeyPermissionServiceBenchmark {
+
+  @Param({"10000"})
+  public int keyCount;
+
+  @Param({"200"})
+  public long minRequestInterval;
+
+  @Param({"10"})
+  public int burstCapacity;
+
+  private ApiKeyPermissionServiceImpl _service;
+
+  private String[] _keys;
+
+  @Setup
+  public void setup() {
+
+    _keys = new String[keyCount];
+    for (int i = 0; i < keyCount; i++)
+      _keys[i] = "key-" + i;
+
+    UserService userService = (UserService) Proxy.newProxyInstance(
+        UserService.class.getClassLoader(), new Class<?>[] {UserService.class},
+        new UserServiceHandler(minRequestInterval));
+
+    _service = new ApiKeyPermissionServiceImpl();
+    _service.setUserService(userService);
+    _service.setBurstCapacity(burstCapacity);
+    _service.start();
+
+    // Look up every key's limit outside of the measurement
+    for (String key : _keys)
+      _service.getPermission(key, "api");
+  }
+
+  @TearDown
+  public void tearDown() {
+    _service.stop();
+  }
+
+  @Benchmark
+  public boolean getPermission(KeyIndex index) {
+    String key = _keys[index.next(keyCount)];
+    return _service.getPermission(key, "api");
+  }
+
+  private static class UserServiceHandler implements InvocationHandler {
+
+    private final Long _minRequestInterval;
+
+    public UserServiceHandler(long minRequestInterval) {
+      _minRequestInterval = minRequestInterval;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      if (method.getName().equals("getMinApiRequestIntervalForKey"))
+        return _minRequestInterval;
+      throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class KeyIndex {
+
+    private int _index = (int) (Math.random() * Integer.MAX_VALUE);
+
+    public int next(int keyCount) {
+      _index = (_index * 1103515245 + 12345) & Integer.MAX_VALUE;
+      return _index % keyCount;
+    }
+  }
+}
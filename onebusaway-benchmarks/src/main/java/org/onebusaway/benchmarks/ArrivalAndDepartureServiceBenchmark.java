@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.transit_data_federation.impl.ArrivalAndDepartureServiceImpl;
+import org.onebusaway.transit_data_federation.impl.blocks.BlockStatusServiceImpl;
+import org.onebusaway.transit_data_federation.impl.realtime.BlockLocationServiceImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.StopEntryImpl;
+import org.onebusaway.transit_data_federation.model.TargetTime;
+import org.onebusaway.transit_data_federation.services.realtime.ArrivalAndDepartureInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the arrival and departure lookups behind the arrivals-and-departures
+ * for stop API calls, for the busiest stop in a {@link SyntheticNetwork}. When
+ * {@link #realTime} is enabled, every block active at the query time has a
+ * vehicle reporting a schedule deviation, which exercises the real-time
+ * propagation path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ArrivalAndDepartureServiceBenchmark {
+
+  @Param({"SMALL", "MEDIUM"})
+  public NetworkSize size;
+
+  @Param({"true", "false"})
+  public boolean realTime;
+
+  private ArrivalAndDepartureServiceImpl _service;
+
+  private StopEntryImpl _stop;
+
+  private TargetTime _targetTime;
+
+  private long _fromTime;
+
+  private long _toTime;
+
+  @Setup
+  public void setup() throws Exception {
+
+    SyntheticNetwork network = new SyntheticNetwork(size);
+    network.build();
+
+    long now = network.getTime(7, time(8, 0)).getTime();
+
+    BlockLocationServiceImpl blockLocationService = network.createBlockLocationService();
+    if (realTime)
+      network.addRealTimeForActiveBlocks(blockLocationService, now, 120);
+
+    BlockStatusServiceImpl blockStatusService = new BlockStatusServiceImpl();
+    blockStatusService.setActive(network.getBlockCalendarService());
+    blockStatusService.setBlockLocationService(blockLocationService);
+    blockStatusService.setExtendedCalendarService(network.getCalendarService());
+
+    _service = new ArrivalAndDepartureServiceImpl();
+    _service.setStopTimeService(network.createStopTimeService());
+    _service.setBlockLocationService(blockLocationService);
+    _service.setBlockStatusService(blockStatusService);
+
+    _stop = network.getHubStop();
+    _targetTime = new TargetTime(now, now);
+    _fromTime = now - 5 * 60 * 1000;
+    _toTime = now + 35 * 60 * 1000;
+  }
+
+  @Benchmark
+  public List<ArrivalAndDepartureInstance> getArrivalsAndDeparturesForStopInTimeRange() {
+    return _service.getArrivalsAndDeparturesForStopInTimeRange(_stop,
+        _targetTime, _fromTime, _toTime);
+  }
+
+  @Benchmark
+  public List<ArrivalAndDepartureInstance> getScheduledArrivalsAndDeparturesForStopInTimeRange() {
+    return _service.getScheduledArrivalsAndDeparturesForStopInTimeRange(
+        _stop, _targetTime.getCurrentTime(), _fromTime, _toTime);
+  }
+}
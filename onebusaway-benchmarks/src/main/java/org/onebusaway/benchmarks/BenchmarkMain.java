@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmark suites, accepting the same command line options as the
+ * standard JMH runner. Unless told otherwise, results are written as JSON to
+ * a file named for the current module version (for example
+ * {@code onebusaway-benchmarks-1.1.14.json}), so that the results of
+ * successive releases can be kept side by side and compared.
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+
+    CommandLineOptions cmd = new CommandLineOptions(args);
+
+    if (cmd.shouldHelp()) {
+      cmd.showHelp();
+      return;
+    }
+
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+
+    if (!cmd.getResultFormat().hasValue())
+      options.resultFormat(ResultFormatType.JSON);
+
+    if (!cmd.getResult().hasValue())
+      options.result("onebusaway-benchmarks-" + getVersion() + ".json");
+
+    new Runner(options.build()).run();
+  }
+
+  private static String getVersion() throws IOException {
+    InputStream in = BenchmarkMain.class.getResourceAsStream("benchmarks.properties");
+    if (in == null)
+      return "unknown";
+    try {
+      Properties properties = new Properties();
+      properties.load(in);
+      return properties.getProperty("version", "unknown");
+    } finally {
+      in.close();
+    }
+  }
+}
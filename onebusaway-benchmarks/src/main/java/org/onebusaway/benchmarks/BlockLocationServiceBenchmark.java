@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.transit_data_federation.impl.realtime.BlockLocationServiceImpl;
+import org.onebusaway.transit_data_federation.model.TargetTime;
+import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures
+ * {@link BlockLocationServiceImpl#getLocationsForBlockInstance(BlockInstance, TargetTime)}
+ * for every block active at a given time in a {@link SyntheticNetwork}, with
+ * and without a real-time vehicle location reported for each block. Each
+ * operation covers all active blocks, which mirrors the work done to answer a
+ * vehicles-for-agency query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BlockLocationServiceBenchmark {
+
+  @Param({"SMALL", "MEDIUM"})
+  public NetworkSize size;
+
+  @Param({"true", "false"})
+  public boolean realTime;
+
+  private BlockLocationServiceImpl _service;
+
+  private List<BlockInstance> _blockInstances;
+
+  private TargetTime _targetTime;
+
+  @Setup
+  public void setup() throws Exception {
+
+    SyntheticNetwork network = new SyntheticNetwork(size);
+    network.build();
+
+    long now = network.getTime(7, time(8, 0)).getTime();
+
+    _service = network.createBlockLocationService();
+    if (realTime)
+      network.addRealTimeForActiveBlocks(_service, now, 120);
+
+    _blockInstances = network.getBlockCalendarService().getActiveBlocksInTimeRange(
+        now, now);
+    _targetTime = new TargetTime(now, now);
+  }
+
+  @Benchmark
+  public void getLocationsForBlockInstance(Blackhole blackhole) {
+    for (BlockInstance blockInstance : _blockInstances)
+      blackhole.consume(_service.getLocationsForBlockInstance(blockInstance,
+          _targetTime));
+  }
+}
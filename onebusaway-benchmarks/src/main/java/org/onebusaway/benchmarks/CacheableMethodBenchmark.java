@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.CacheManager;
+
+import org.onebusaway.container.cache.Cacheable;
+import org.onebusaway.container.cache.CacheableAnnotationInterceptor;
+import org.onebusaway.container.cache.CacheableMethodKeyFactoryManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+
+/**
+ * Measures the overhead of {@link Cacheable} methods when every call hits the
+ * cache: a raw call to the underlying method, a call through
+ * {@link CacheableAnnotationInterceptor} backed by EhCache alone, and a call
+ * through the interceptor with a near cache in front of EhCache. The service
+ * is proxied the same way Spring proxies it in the webapps, and the two
+ * argument methods exercise the composite cache key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+public class CacheableMethodBenchmark {
+
+  @Param({"1000"})
+  public int keyCount;
+
+  private CacheManager _cacheManager;
+
+  private CacheableAnnotationInterceptor _interceptor;
+
+  private LookupService _target;
+
+  private LookupService _proxy;
+
+  private String[] _agencyIds;
+
+  @Setup
+  public void setup() {
+
+    _cacheManager = new CacheManager();
+
+    _interceptor = new CacheableAnnotationInterceptor();
+    _interceptor.setCacheManager(_cacheManager);
+    _interceptor.setCacheableMethodKeyFactoryManager(new CacheableMethodKeyFactoryManager());
+    _interceptor.setRegisterMBeans(false);
+
+    _target = new LookupServiceImpl();
+
+    AspectJProxyFactory factory = new AspectJProxyFactory(_target);
+    factory.addAspect(_interceptor);
+    _proxy = factory.getProxy();
+
+    _agencyIds = new String[keyCount];
+    for (int i = 0; i < keyCount; i++)
+      _agencyIds[i] = "agency-" + i;
+
+    // Fill both caches outside of the measurement
+    for (int i = 0; i < keyCount; i++) {
+      _proxy.getStopId(_agencyIds[i], i);
+      _proxy.getStopIdWithNearCache(_agencyIds[i], i);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    _interceptor.stop();
+    _cacheManager.shutdown();
+  }
+
+  @Benchmark
+  public String raw(KeyIndex index) {
+    int i = index.next(keyCount);
+    return _target.getStopId(_agencyIds[i], i);
+  }
+
+  @Benchmark
+  public String cached(KeyIndex index) {
+    int i = index.next(keyCount);
+    return _proxy.getStopId(_agencyIds[i], i);
+  }
+
+  @Benchmark
+  public String nearCached(KeyIndex index) {
+    int i = index.next(keyCount);
+    return _proxy.getStopIdWithNearCache(_agencyIds[i], i);
+  }
+
+  public interface LookupService {
+
+    public String getStopId(String agencyId, int index);
+
+    public String getStopIdWithNearCache(String agencyId, int index);
+  }
+
+  public static class LookupServiceImpl implements LookupService {
+
+    @Cacheable
+    @Override
+    public String getStopId(String agencyId, int index) {
+      return agencyId + "_" + index;
+    }
+
+    @Cacheable(isValueSerializable = false, nearCacheSize = 10000)
+    @Override
+    public String getStopIdWithNearCache(String agencyId, int index) {
+      return agencyId + "_" + index;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class KeyIndex {
+
+    private int _index = (int) (Math.random() * Integer.MAX_VALUE);
+
+    public int next(int keyCount) {
+      _index = (_index * 1103515245 + 12345) & Integer.MAX_VALUE;
+      return _index % keyCount;
+    }
+  }
+}
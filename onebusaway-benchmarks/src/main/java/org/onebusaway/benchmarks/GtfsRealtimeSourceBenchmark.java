@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.timeZone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.VehicleLocationListener;
+import org.onebusaway.realtime.api.VehicleLocationRecord;
+import org.onebusaway.transit_data_federation.impl.realtime.BlockLocationServiceImpl;
+import org.onebusaway.transit_data_federation.impl.realtime.gtfs_realtime.GtfsRealtimeSource;
+import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
+import org.onebusaway.transit_data_federation.services.blocks.ScheduledBlockLocation;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockStopTimeEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtimeConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures a single {@link GtfsRealtimeSource#refresh()} against trip updates
+ * and vehicle positions feeds served by a local HTTP stub, with one vehicle for
+ * every block active in a {@link SyntheticNetwork} (about 12k for
+ * {@link NetworkSize#LARGE}). When {@code feedChanges} is true, the feed
+ * timestamp advances on every refresh, so each operation covers the full
+ * download, parse and processing path. When false, the stub answers
+ * conditional requests with a 304, which is the steady state for an agency
+ * whose feed updates less often than we poll it.
+ *
+ * The GTFS-realtime trip matching code reads the system clock, so the network's
+ * service is shifted to the present. The benchmark fails fast if no blocks are
+ * active at the time it is run (roughly 1am to 6am in the network's time zone).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GtfsRealtimeSourceBenchmark {
+
+  private static final int SERVICE_DAY = 7;
+
+  @Param({"LARGE"})
+  public NetworkSize size;
+
+  @Param({"true", "false"})
+  public boolean feedChanges;
+
+  @Param({"1", "4"})
+  public int processingThreads;
+
+  private final AtomicLong _feedTimestamp = new AtomicLong();
+
+  private HttpServer _server;
+
+  private GtfsRealtimeSource _source;
+
+  @Setup
+  public void setup() throws Exception {
+
+    long now = System.currentTimeMillis();
+
+    SyntheticNetwork network = new SyntheticNetwork(size);
+    network.setServiceStartDate(getServiceStartDate(now));
+    network.build();
+
+    List<BlockInstance> instances = network.getBlockCalendarService().getActiveBlocksInTimeRange(
+        now, now);
+    if (instances.isEmpty())
+      throw new IllegalStateException(
+          "no blocks are active at the current time of day");
+
+    FeedMessage.Builder tripUpdates = FeedMessage.newBuilder();
+    FeedMessage.Builder vehiclePositions = FeedMessage.newBuilder();
+    int vehicles = 0;
+
+    for (BlockInstance instance : instances) {
+      int scheduleTime = (int) ((now - instance.getServiceDate()) / 1000);
+      ScheduledBlockLocation location = network.getScheduledBlockLocationService().getScheduledBlockLocationFromScheduledTime(
+          instance.getBlock(), scheduleTime);
+      if (location == null || location.getNextStop() == null)
+        continue;
+      addVehicle(instance, location, now, tripUpdates, vehiclePositions);
+      vehicles++;
+    }
+
+    System.out.println("gtfs-realtime vehicles: " + vehicles);
+
+    _feedTimestamp.set(now / 1000);
+
+    _server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    _server.createContext("/trip-updates", new FeedHandler(
+        tripUpdates.buildPartial().toByteArray()));
+    _server.createContext("/vehicle-positions", new FeedHandler(
+        vehiclePositions.buildPartial().toByteArray()));
+    _server.start();
+
+    String base = "http://localhost:" + _server.getAddress().getPort();
+
+    final BlockLocationServiceImpl blockLocationService = network.createBlockLocationService();
+
+    _source = new GtfsRealtimeSource();
+    _source.setAgencyIds(Arrays.asList(SyntheticNetwork.AGENCY_ID));
+    _source.setTransitGraphDao(network.getTransitGraphDao());
+    _source.setBlockCalendarService(network.getBlockCalendarService());
+    _source.setVehicleLocationListener(new VehicleLocationListener() {
+
+      @Override
+      public void handleVehicleLocationRecord(VehicleLocationRecord record) {
+        blockLocationService.handleVehicleLocationRecord(record);
+      }
+
+      @Override
+      public void handleVehicleLocationRecords(
+          List<VehicleLocationRecord> records) {
+        for (VehicleLocationRecord record : records)
+          blockLocationService.handleVehicleLocationRecord(record);
+      }
+
+      @Override
+      public void resetVehicleLocation(AgencyAndId vehicleId) {
+        blockLocationService.resetVehicleLocation(vehicleId);
+      }
+    });
+    _source.setTripUpdatesUrl(new URL(base + "/trip-updates"));
+    _source.setVehiclePositionsUrl(new URL(base + "/vehicle-positions"));
+    _source.setProcessingThreads(processingThreads);
+    _source.setRefreshInterval(0);
+    _source.start();
+
+    // Prime the conditional request state
+    _source.refresh();
+  }
+
+  @TearDown
+  public void tearDown() {
+    _source.stop();
+    _server.stop(0);
+  }
+
+  @Benchmark
+  public void refresh() throws IOException {
+    if (feedChanges)
+      _feedTimestamp.incrementAndGet();
+    _source.refresh();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * @return midnight of a service day such that the specified time falls on
+   *         day {@link #SERVICE_DAY} of service, no earlier than 6am
+   */
+  private static Date getServiceStartDate(long now) {
+    Calendar c = Calendar.getInstance(timeZone());
+    c.setTimeInMillis(now);
+    c.add(Calendar.HOUR_OF_DAY, -6);
+    c.set(Calendar.HOUR_OF_DAY, 0);
+    c.set(Calendar.MINUTE, 0);
+    c.set(Calendar.SECOND, 0);
+    c.set(Calendar.MILLISECOND, 0);
+    c.add(Calendar.DAY_OF_YEAR, -SERVICE_DAY);
+    return c.getTime();
+  }
+
+  private static void addVehicle(BlockInstance instance,
+      ScheduledBlockLocation location, long now,
+      FeedMessage.Builder tripUpdates, FeedMessage.Builder vehiclePositions) {
+
+    AgencyAndId blockId = instance.getBlock().getBlock().getId();
+    String vehicleId = "v_" + blockId.getId();
+    String tripId = location.getActiveTrip().getTrip().getId().getId();
+    BlockStopTimeEntry nextStop = location.getNextStop();
+    StopTimeEntry nextStopTime = nextStop.getStopTime();
+
+    TripDescriptor.Builder trip = TripDescriptor.newBuilder();
+    trip.setTripId(tripId);
+    VehicleDescriptor.Builder vehicle = VehicleDescriptor.newBuilder();
+    vehicle.setId(vehicleId);
+
+    StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder();
+    stopTimeUpdate.setStopSequence(nextStopTime.getSequence());
+    stopTimeUpdate.setStopId(nextStopTime.getStop().getId().getId());
+    stopTimeUpdate.setArrival(StopTimeEvent.newBuilder().setDelay(120));
+
+    TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+    tripUpdate.setTrip(trip);
+    tripUpdate.setVehicle(vehicle);
+    tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+
+    FeedEntity.Builder tripUpdateEntity = FeedEntity.newBuilder();
+    tripUpdateEntity.setId(tripId);
+    tripUpdateEntity.setTripUpdate(tripUpdate);
+    tripUpdates.addEntity(tripUpdateEntity);
+
+    Position.Builder position = Position.newBuilder();
+    position.setLatitude((float) location.getLocation().getLat());
+    position.setLongitude((float) location.getLocation().getLon());
+
+    VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
+    vehiclePosition.setTrip(trip);
+    vehiclePosition.setVehicle(vehicle);
+    vehiclePosition.setPosition(position);
+    vehiclePosition.setTimestamp(now / 1000);
+
+    FeedEntity.Builder vehiclePositionEntity = FeedEntity.newBuilder();
+    vehiclePositionEntity.setId(vehicleId);
+    vehiclePositionEntity.setVehicle(vehiclePosition);
+    vehiclePositions.addEntity(vehiclePositionEntity);
+  }
+
+  /**
+   * Serves a feed whose entities never change, but whose header timestamp
+   * tracks {@link GtfsRealtimeSourceBenchmark#_feedTimestamp}. Protocol buffer
+   * messages merge when concatenated, so the header is serialized on its own
+   * and written ahead of the pre-serialized entities. The timestamp doubles as
+   * the ETag.
+   */
+  private class FeedHandler implements HttpHandler {
+
+    private final byte[] _entities;
+
+    public FeedHandler(byte[] entities) {
+      _entities = entities;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        long timestamp = _feedTimestamp.get();
+        String etag = "\"" + timestamp + "\"";
+
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          exchange.sendResponseHeaders(304, -1);
+          return;
+        }
+
+        FeedHeader.Builder header = FeedHeader.newBuilder();
+        header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+        header.setTimestamp(timestamp);
+        byte[] headerBytes = FeedMessage.newBuilder().setHeader(header).build().toByteArray();
+
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.sendResponseHeaders(200, headerBytes.length + _entities.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(headerBytes);
+        out.write(_entities);
+        out.close();
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Approximates the amount of live heap by forcing a few rounds of garbage
+ * collection before sampling heap usage. The numbers are only meaningful when
+ * compared against one another within the same JVM, which is how the
+ * benchmarks use them.
+ */
+final class HeapUsage {
+
+  private static final int GC_ROUNDS = 5;
+
+  private HeapUsage() {
+
+  }
+
+  public static long getRetainedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < GC_ROUNDS; i++) {
+      memory.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
+
+import org.onebusaway.api.impl.JsonBeanWriter;
+import org.onebusaway.api.model.ResponseBean;
+import org.onebusaway.api.model.transit.ListWithReferencesBean;
+import org.onebusaway.api.model.transit.ReferencesBean;
+import org.onebusaway.api.model.transit.RouteV2Bean;
+import org.onebusaway.api.model.transit.StopV2Bean;
+import org.onebusaway.transit_data.model.EAccessibility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares writing a stops-for-location style response with json-lib, as
+ * {@link org.onebusaway.api.impl.CustomJsonLibHandler} does, against
+ * streaming it with {@link JsonBeanWriter}. Both write to a writer that only
+ * counts characters. Run with "-prof gc" to compare allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class JsonResponseBenchmark {
+
+  @Param({"100", "1000"})
+  public int stopCount;
+
+  @Param({"20"})
+  public int routeCount;
+
+  private ResponseBean _response;
+
+  private JsonBeanWriter _writer;
+
+  @Setup
+  public void setup() {
+
+    ReferencesBean references = new ReferencesBean();
+
+    for (int i = 0; i < routeCount; i++) {
+      RouteV2Bean route = new RouteV2Bean();
+      route.setId("1_" + i);
+      route.setAgencyId("1");
+      route.setShortName(Integer.toString(i));
+      route.setDescription("Downtown - Northgate");
+      route.setType(3);
+      references.addRoute(route);
+    }
+
+    List<StopV2Bean> stops = new ArrayList<StopV2Bean>();
+    for (int i = 0; i < stopCount; i++) {
+      StopV2Bean stop = new StopV2Bean();
+      stop.setId("1_" + (10000 + i));
+      stop.setCode(Integer.toString(10000 + i));
+      stop.setName("3rd Ave & Pike St");
+      stop.setDirection("N");
+      stop.setLat(47.6 + i * 0.0001);
+      stop.setLon(-122.3 - i * 0.0001);
+      stop.setWheelchairBoarding(EAccessibility.UNKNOWN);
+      stop.setRouteIds(Arrays.asList("1_" + (i % routeCount), "1_"
+          + ((i + 1) % routeCount)));
+      stops.add(stop);
+    }
+
+    ListWithReferencesBean<StopV2Bean> list = new ListWithReferencesBean<StopV2Bean>(
+        stops, false, references);
+    _response = new ResponseBean(2, 200, "OK", list);
+    _writer = new JsonBeanWriter();
+  }
+
+  @Benchmark
+  public long jsonLib() throws IOException {
+    CountingWriter out = new CountingWriter();
+    out.write(JSONObject.fromObject(_response).toString());
+    return out.getCount();
+  }
+
+  @Benchmark
+  public long streaming() throws IOException {
+    CountingWriter out = new CountingWriter();
+    _writer.write(_response, out);
+    return out.getCount();
+  }
+
+  private static class CountingWriter extends Writer {
+
+    private long _count = 0;
+
+    public long getCount() {
+      return _count;
+    }
+
+    @Override
+    public void write(int c) {
+      _count++;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      _count += len;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      _count += len;
+    }
+
+    @Override
+    public void flush() {
+
+    }
+
+    @Override
+    public void close() {
+
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+/**
+ * Preset sizes for a {@link SyntheticNetwork}. Benchmarks take the size as a
+ * JMH parameter, so a particular size can be selected from the command line
+ * with {@code -p size=LARGE}.
+ */
+public enum NetworkSize {
+
+  /**
+   * Roughly a small-town agency: 50k stop times
+   */
+  SMALL(10, 20, 250),
+
+  /**
+   * Roughly a mid-sized city: 1.2M stop times
+   */
+  MEDIUM(50, 40, 600),
+
+  /**
+   * Roughly a large metropolitan region: 6M stop times
+   */
+  LARGE(200, 60, 500);
+
+  private final int _routes;
+
+  private final int _stopsPerRoute;
+
+  private final int _tripsPerRoute;
+
+  private NetworkSize(int routes, int stopsPerRoute, int tripsPerRoute) {
+    _routes = routes;
+    _stopsPerRoute = stopsPerRoute;
+    _tripsPerRoute = tripsPerRoute;
+  }
+
+  public int getRoutes() {
+    return _routes;
+  }
+
+  public int getStopsPerRoute() {
+    return _stopsPerRoute;
+  }
+
+  public int getTripsPerRoute() {
+    return _tripsPerRoute;
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.transit_data_federation.impl.blocks.ScheduledBlockLocationServiceImpl;
+import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the two ways of locating a vehicle along its scheduled block, by
+ * schedule time and by distance along the block, for every block active at a
+ * given time in a {@link SyntheticNetwork}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ScheduledBlockLocationServiceBenchmark {
+
+  @Param({"SMALL", "MEDIUM"})
+  public NetworkSize size;
+
+  private ScheduledBlockLocationServiceImpl _service;
+
+  private List<BlockConfigurationEntry> _blockConfigs = new ArrayList<BlockConfigurationEntry>();
+
+  private int[] _scheduleTimes;
+
+  private double[] _distancesAlongBlock;
+
+  @Setup
+  public void setup() throws Exception {
+
+    SyntheticNetwork network = new SyntheticNetwork(size);
+    network.build();
+
+    _service = network.getScheduledBlockLocationService();
+
+    int scheduleTime = time(8, 0);
+    long now = network.getTime(7, scheduleTime).getTime();
+    List<BlockInstance> instances = network.getBlockCalendarService().getActiveBlocksInTimeRange(
+        now, now);
+
+    _scheduleTimes = new int[instances.size()];
+    _distancesAlongBlock = new double[instances.size()];
+
+    for (int i = 0; i < instances.size(); i++) {
+      BlockConfigurationEntry blockConfig = instances.get(i).getBlock();
+      _blockConfigs.add(blockConfig);
+      _scheduleTimes[i] = scheduleTime;
+      _distancesAlongBlock[i] = _service.getScheduledBlockLocationFromScheduledTime(
+          blockConfig, scheduleTime).getDistanceAlongBlock();
+    }
+  }
+
+  @Benchmark
+  public void getScheduledBlockLocationFromScheduledTime(Blackhole blackhole) {
+    for (int i = 0; i < _scheduleTimes.length; i++)
+      blackhole.consume(_service.getScheduledBlockLocationFromScheduledTime(
+          _blockConfigs.get(i), _scheduleTimes[i]));
+  }
+
+  @Benchmark
+  public void getScheduledBlockLocationFromDistanceAlongBlock(
+      Blackhole blackhole) {
+    for (int i = 0; i < _distancesAlongBlock.length; i++)
+      blackhole.consume(_service.getScheduledBlockLocationFromDistanceAlongBlock(
+          _blockConfigs.get(i), _distancesAlongBlock[i]));
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.impl.service_alerts.ServiceAlertLibrary;
+import org.onebusaway.transit_data_federation.impl.service_alerts.ServiceAlertsServiceImpl;
+import org.onebusaway.transit_data_federation.services.service_alerts.ServiceAlerts.Affects;
+import org.onebusaway.transit_data_federation.services.service_alerts.ServiceAlerts.ServiceAlert;
+import org.onebusaway.transit_data_federation.services.service_alerts.ServiceAlerts.TimeRange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures service alert lookups by stop and by agency against a large set of
+ * alerts, most of which are outside their publication windows at the query
+ * time. Alerts are spread over {@link #STOP_COUNT} stops, with a fraction
+ * affecting the whole agency, and each gets a two hour publication window
+ * somewhere in a 30 day span. A few alerts have no publication window at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ServiceAlertsServiceBenchmark {
+
+  private static final String AGENCY_ID = "1";
+
+  private static final int STOP_COUNT = 2000;
+
+  private static final long HOUR = 60 * 60 * 1000;
+
+  private static final long SPAN = 30 * 24 * HOUR;
+
+  @Param({"50000"})
+  public int alertCount;
+
+  @Param({"0.1"})
+  public double agencyWideFraction;
+
+  private ServiceAlertsServiceImpl _service;
+
+  private File _serviceAlertsPath;
+
+  private long _time;
+
+  private List<AgencyAndId> _stopIds = new ArrayList<AgencyAndId>();
+
+  private int _stopIndex = 0;
+
+  @Setup
+  public void setup() throws Exception {
+
+    _serviceAlertsPath = File.createTempFile("ServiceAlertsServiceBenchmark-",
+        ".pb2");
+
+    _service = new ServiceAlertsServiceImpl();
+    _service.setServiceAlertsPath(_serviceAlertsPath);
+    _service.start();
+
+    long start = 1400000000000L;
+    _time = start + SPAN / 2;
+
+    for (int i = 0; i < STOP_COUNT; i++)
+      _stopIds.add(new AgencyAndId(AGENCY_ID, "stop-" + i));
+    Collections.shuffle(_stopIds, new Random(7));
+
+    Random random = new Random(42);
+    List<ServiceAlert.Builder> builders = new ArrayList<ServiceAlert.Builder>();
+
+    for (int i = 0; i < alertCount; i++) {
+
+      Affects.Builder affects = Affects.newBuilder();
+      if (random.nextDouble() < agencyWideFraction) {
+        affects.setAgencyId(AGENCY_ID);
+      } else {
+        AgencyAndId stopId = _stopIds.get(random.nextInt(STOP_COUNT));
+        affects.setStopId(ServiceAlertLibrary.id(stopId));
+      }
+
+      ServiceAlert.Builder builder = ServiceAlert.newBuilder();
+      builder.addAffects(affects);
+
+      if (random.nextInt(100) != 0) {
+        long from = start + (long) (random.nextDouble() * SPAN);
+        TimeRange.Builder window = TimeRange.newBuilder();
+        window.setStart(from);
+        window.setEnd(from + 2 * HOUR);
+        builder.addPublicationWindow(window);
+      }
+
+      builders.add(builder);
+    }
+
+    _service.createOrUpdateServiceAlerts(builders, AGENCY_ID);
+  }
+
+  @TearDown
+  public void tearDown() {
+    _service.stop();
+    _serviceAlertsPath.delete();
+    new File(_serviceAlertsPath.getPath() + ".journal").delete();
+  }
+
+  @Benchmark
+  public List<ServiceAlert> getServiceAlertsForStopId() {
+    AgencyAndId stopId = _stopIds.get(_stopIndex);
+    _stopIndex = (_stopIndex + 1) % _stopIds.size();
+    return _service.getServiceAlertsForStopId(_time, stopId);
+  }
+
+  @Benchmark
+  public List<ServiceAlert> getServiceAlertsForAgencyId() {
+    return _service.getServiceAlertsForAgencyId(_time, AGENCY_ID);
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.transit_data.model.StopRouteScheduleBean;
+import org.onebusaway.transit_data_federation.impl.beans.AgencyBeanServiceImpl;
+import org.onebusaway.transit_data_federation.impl.beans.RouteBeanServiceImpl;
+import org.onebusaway.transit_data_federation.impl.beans.StopScheduleBeanServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the full-day schedule of the busiest stop in a
+ * {@link SyntheticNetwork}, as served by the schedule-for-stop API call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StopScheduleBeanServiceBenchmark {
+
+  @Param({"SMALL", "MEDIUM"})
+  public NetworkSize size;
+
+  private StopScheduleBeanServiceImpl _service;
+
+  private AgencyAndId _stopId;
+
+  private ServiceDate _serviceDate;
+
+  @Setup
+  public void setup() throws Exception {
+
+    SyntheticNetwork network = new SyntheticNetwork(size);
+    network.build();
+
+    AgencyBeanServiceImpl agencyBeanService = new AgencyBeanServiceImpl();
+    agencyBeanService.setNarrativeService(network.getNarrativeService());
+
+    RouteBeanServiceImpl routeBeanService = new RouteBeanServiceImpl();
+    routeBeanService.setNarrativeService(network.getNarrativeService());
+    routeBeanService.setAgencyBeanService(agencyBeanService);
+    routeBeanService.setTransitGraphDao(network.getTransitGraphDao());
+    routeBeanService.setBlockIndexService(network.getBlockIndexService());
+
+    _service = new StopScheduleBeanServiceImpl();
+    _service.setTransitGraphDao(network.getTransitGraphDao());
+    _service.setCalendarService(network.getCalendarService());
+    _service.setNarrativeService(network.getNarrativeService());
+    _service.setBlockIndexService(network.getBlockIndexService());
+    _service.setRouteBeanService(routeBeanService);
+
+    _stopId = network.getHubStop().getId();
+    _serviceDate = network.getServiceDate(7);
+  }
+
+  @Benchmark
+  public List<StopRouteScheduleBean> getScheduledArrivalsForStopAndDate() {
+    return _service.getScheduledArrivalsForStopAndDate(_stopId, _serviceDate);
+  }
+}
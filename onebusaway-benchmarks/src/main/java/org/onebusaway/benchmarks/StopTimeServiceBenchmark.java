@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.CacheManager;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.container.cache.CacheableAnnotationInterceptor;
+import org.onebusaway.transit_data_federation.impl.ExtendedCalendarServiceImpl;
+import org.onebusaway.transit_data_federation.impl.StopTimeServiceImpl;
+import org.onebusaway.transit_data_federation.services.tripplanner.StopTimeInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of
+ * {@link StopTimeServiceImpl#getStopTimeInstancesInTimeRange(AgencyAndId, Date, Date)}
+ * against a {@link SyntheticNetwork}, with and without compact stop time
+ * storage, and with service dates either precomputed as bitsets by
+ * {@link ExtendedCalendarServiceImpl} or, as the baseline, looked up by
+ * {@link LegacyExtendedCalendarServiceImpl}, the calendar service as it was
+ * before the bitsets. Either way, the calendar service has its EhCache service
+ * date range cache and is proxied through a
+ * {@link CacheableAnnotationInterceptor}, as it is in the webapps, so the
+ * baseline numbers are for the cached path production used to take.
+ * 
+ * The heap retained by the transit graph is reported once per trial, so that
+ * the memory side of the trade-off can be compared alongside the throughput
+ * numbers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StopTimeServiceBenchmark {
+
+  @Param({"true", "false"})
+  public boolean compactStopTimes;
+
+  @Param({"true", "false"})
+  public boolean precomputeServiceDates;
+
+  @Param({"SMALL", "MEDIUM"})
+  public NetworkSize size;
+
+  private CacheManager _cacheManager;
+
+  private SyntheticNetwork _network;
+
+  private StopTimeServiceImpl _service;
+
+  private AgencyAndId _stopId;
+
+  private Date _from;
+
+  private Date _to;
+
+  @Setup
+  public void setup() throws Exception {
+
+    long heapBefore = HeapUsage.getRetainedHeap();
+
+    _cacheManager = new CacheManager();
+
+    _network = new SyntheticNetwork(size);
+    _network.setCompactStopTimes(compactStopTimes);
+    _network.setPrecomputeServiceDates(precomputeServiceDates);
+    _network.setCacheManager(_cacheManager);
+    _network.build();
+
+    long heapAfter = HeapUsage.getRetainedHeap();
+    System.out.println("retained heap: size=" + size + " compactStopTimes="
+        + compactStopTimes + " bytes=" + (heapAfter - heapBefore));
+
+    _service = _network.createStopTimeService();
+
+    _stopId = _network.getHubStop().getId();
+    _from = _network.getTime(7, time(8, 0));
+    _to = _network.getTime(7, time(9, 0));
+  }
+
+  @TearDown
+  public void tearDown() {
+    _network.close();
+    _cacheManager.shutdown();
+  }
+
+  @Benchmark
+  public List<StopTimeInstance> getStopTimeInstancesInTimeRange() {
+    return _service.getStopTimeInstancesInTimeRange(_stopId, _from, _to);
+  }
+}
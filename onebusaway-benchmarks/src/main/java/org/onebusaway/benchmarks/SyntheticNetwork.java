@@ -0,0 +1,578 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.addServiceDates;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.agency;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.aid;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.block;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.date;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.linkBlockTrips;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.route;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.routeCollection;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.shapePointsFromLatLons;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stop;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stopTime;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.timeZone;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+
+import org.onebusaway.container.cache.CacheableAnnotationInterceptor;
+import org.onebusaway.container.cache.CacheableMethodKeyFactoryManager;
+import org.onebusaway.gtfs.impl.calendar.CalendarServiceImpl;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.realtime.api.VehicleLocationRecord;
+import org.onebusaway.transit_data_federation.impl.ExtendedCalendarServiceImpl;
+import org.onebusaway.transit_data_federation.impl.StopTimeServiceImpl;
+import org.onebusaway.transit_data_federation.impl.blocks.BlockCalendarServiceImpl;
+import org.onebusaway.transit_data_federation.impl.blocks.BlockIndexFactoryServiceImpl;
+import org.onebusaway.transit_data_federation.impl.blocks.BlockIndexServiceImpl;
+import org.onebusaway.transit_data_federation.impl.blocks.ScheduledBlockLocationServiceImpl;
+import org.onebusaway.transit_data_federation.impl.narrative.NarrativeProviderImpl;
+import org.onebusaway.transit_data_federation.impl.narrative.NarrativeServiceImpl;
+import org.onebusaway.transit_data_federation.impl.realtime.BlockLocationServiceImpl;
+import org.onebusaway.transit_data_federation.impl.realtime.VehicleLocationRecordCacheImpl;
+import org.onebusaway.transit_data_federation.impl.realtime.history.RealTimeHistoryServiceImpl;
+import org.onebusaway.transit_data_federation.impl.shapes.ShapePointServiceImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.AgencyEntryImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.BlockEntryImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.RouteCollectionEntryImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.RouteEntryImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.StopEntryImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.TransitGraphDaoImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.TransitGraphImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.TripEntryImpl;
+import org.onebusaway.transit_data_federation.model.ShapePoints;
+import org.onebusaway.transit_data_federation.model.narrative.AgencyNarrative;
+import org.onebusaway.transit_data_federation.model.narrative.RouteCollectionNarrative;
+import org.onebusaway.transit_data_federation.model.narrative.TripNarrative;
+import org.onebusaway.transit_data_federation.services.ExtendedCalendarService;
+import org.onebusaway.transit_data_federation.services.FederatedTransitDataBundle;
+import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.TripEntry;
+import org.onebusaway.utility.ObjectSerializationLibrary;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+
+/**
+ * Generates a synthetic transit network of configurable size, wired up with
+ * the set of services needed to exercise schedule and real-time lookups
+ * without a Spring container or a bundle built from a real GTFS feed.
+ *
+ * The network consists of a number of linear routes that all pass through a
+ * single shared hub stop at their midpoint, which gives benchmarks a busy stop
+ * to query. Trips run at a fixed headway through the service day and are
+ * chained into blocks as a real operator would, so that each vehicle picks up
+ * the next trip once it has finished its current one.
+ *
+ * The block indices are written to a temporary bundle directory and loaded
+ * back through {@link BlockIndexServiceImpl}, so that the indices the
+ * benchmarks run against are built exactly as they are in production.
+ *
+ * Note that services are wired up directly rather than through Spring, so
+ * {@code @Cacheable} methods are not cached unless a cache manager is set, in
+ * which case the calendar service is proxied the way Spring proxies it.
+ * Otherwise benchmarks measure the cost of a cache miss.
+ */
+public class SyntheticNetwork {
+
+  public static final String AGENCY_ID = "1";
+
+  public static final String SERVICE_ID = "weekday";
+
+  /**
+   * The first day of service for the synthetic network
+   */
+  public static final String SERVICE_START_DATE = "2010-09-01 00:00";
+
+  private static final int SERVICE_DAYS = 30;
+
+  private static final int FIRST_DEPARTURE = time(5, 0);
+
+  private static final int LAST_DEPARTURE = time(23, 0);
+
+  private static final int SECONDS_BETWEEN_STOPS = 90;
+
+  private static final int DWELL_TIME = 30;
+
+  private static final int LAYOVER_TIME = 10 * 60;
+
+  private static final double DEGREES_BETWEEN_STOPS = 0.004;
+
+  private final int _routes;
+
+  private final int _stopsPerRoute;
+
+  private final int _tripsPerRoute;
+
+  private boolean _compactStopTimes = true;
+
+  private Date _serviceStartDate = date(SERVICE_START_DATE);
+
+  private boolean _precomputeServiceDates = true;
+
+  private TransitGraphImpl _graph;
+
+  private TransitGraphDaoImpl _transitGraphDao;
+
+  private NarrativeServiceImpl _narrativeService;
+
+  private ShapePointServiceImpl _shapePointService;
+
+  private CacheManager _cacheManager;
+
+  private CacheableAnnotationInterceptor _interceptor;
+
+  private ExtendedCalendarService _calendarService;
+
+  private BlockIndexServiceImpl _blockIndexService;
+
+  private BlockCalendarServiceImpl _blockCalendarService;
+
+  private ScheduledBlockLocationServiceImpl _scheduledBlockLocationService;
+
+  private StopEntryImpl _hubStop;
+
+  public SyntheticNetwork(NetworkSize size) {
+    this(size.getRoutes(), size.getStopsPerRoute(), size.getTripsPerRoute());
+  }
+
+  public SyntheticNetwork(int routes, int stopsPerRoute, int tripsPerRoute) {
+    if (routes < 1 || stopsPerRoute < 2 || tripsPerRoute < 1)
+      throw new IllegalArgumentException("invalid network size: routes="
+          + routes + " stopsPerRoute=" + stopsPerRoute + " tripsPerRoute="
+          + tripsPerRoute);
+    _routes = routes;
+    _stopsPerRoute = stopsPerRoute;
+    _tripsPerRoute = tripsPerRoute;
+  }
+
+  /**
+   * When true (the default), stop times are converted to their compact
+   * representation before the graph is initialized, just as the bundle builder
+   * does.
+   *
+   * @param compactStopTimes
+   */
+  public void setCompactStopTimes(boolean compactStopTimes) {
+    _compactStopTimes = compactStopTimes;
+  }
+
+  /**
+   * The first day of service, which defaults to {@link #SERVICE_START_DATE}.
+   * Benchmarks that exercise code reading the system clock can move service
+   * to the present. Must be called before {@link #build()}.
+   *
+   * @param serviceStartDate midnight of the first service day, in the
+   *          network's time zone
+   */
+  public void setServiceStartDate(Date serviceStartDate) {
+    _serviceStartDate = serviceStartDate;
+  }
+
+  /**
+   * When true (the default), the network uses
+   * {@link ExtendedCalendarServiceImpl}, which precomputes the service dates
+   * of every block's service ids as bitsets. When false, it uses
+   * {@link LegacyExtendedCalendarServiceImpl}, the calendar service as it was
+   * before, which relies on the service date range cache and
+   * {@code @Cacheable} methods, so it should be combined with
+   * {@link #setCacheManager(CacheManager)}. Must be called before
+   * {@link #build()}.
+   *
+   * @param precomputeServiceDates
+   */
+  public void setPrecomputeServiceDates(boolean precomputeServiceDates) {
+    _precomputeServiceDates = precomputeServiceDates;
+  }
+
+  /**
+   * If set, the calendar service gets a service date range cache, configured
+   * as in the transit data federation's application context, and is proxied
+   * through a {@link CacheableAnnotationInterceptor}. Must be called before
+   * {@link #build()}, and the network closed with {@link #close()}.
+   *
+   * @param cacheManager
+   */
+  public void setCacheManager(CacheManager cacheManager) {
+    _cacheManager = cacheManager;
+  }
+
+  public void build() throws Exception {
+
+    NarrativeProviderImpl narratives = new NarrativeProviderImpl();
+
+    buildGraph(narratives);
+
+    _transitGraphDao = new TransitGraphDaoImpl();
+    _transitGraphDao.setTripPlannerGraph(_graph);
+
+    _narrativeService = new NarrativeServiceImpl();
+    _narrativeService.setStopTimeNarrativeProvider(narratives);
+
+    _shapePointService = new ShapePointServiceImpl();
+    _shapePointService.setNarrativeService(_narrativeService);
+
+    CalendarServiceData data = new CalendarServiceData();
+    addServiceDates(data, SERVICE_ID, getServiceDates());
+    CalendarServiceImpl calendarService = new CalendarServiceImpl();
+    calendarService.setData(data);
+
+    if (_precomputeServiceDates) {
+      ExtendedCalendarServiceImpl service = new ExtendedCalendarServiceImpl();
+      service.setCalendarService(calendarService);
+      service.setTransitGraphDao(_transitGraphDao);
+      service.setServiceDateRangeCache(createServiceDateRangeCache());
+      service.start();
+      _calendarService = createCacheableProxy(service);
+    } else {
+      LegacyExtendedCalendarServiceImpl service = new LegacyExtendedCalendarServiceImpl();
+      service.setCalendarService(calendarService);
+      service.setTransitGraphDao(_transitGraphDao);
+      service.setServiceDateRangeCache(createServiceDateRangeCache());
+      service.start();
+      _calendarService = createCacheableProxy(service);
+    }
+
+    _blockIndexService = new BlockIndexServiceImpl();
+    _blockIndexService.setGraphDao(_transitGraphDao);
+    _blockIndexService.setBlockIndexFactoryService(new BlockIndexFactoryServiceImpl());
+    _blockIndexService.setBundle(writeBlockIndices());
+    _blockIndexService.setup();
+
+    _blockCalendarService = new BlockCalendarServiceImpl();
+    _blockCalendarService.setCalendarService(_calendarService);
+    _blockCalendarService.setBlockIndexService(_blockIndexService);
+    _blockCalendarService.setTransitGraphDao(_transitGraphDao);
+
+    _scheduledBlockLocationService = new ScheduledBlockLocationServiceImpl();
+    _scheduledBlockLocationService.setShapePointService(_shapePointService);
+  }
+
+  public TransitGraphImpl getGraph() {
+    return _graph;
+  }
+
+  public TransitGraphDaoImpl getTransitGraphDao() {
+    return _transitGraphDao;
+  }
+
+  public NarrativeServiceImpl getNarrativeService() {
+    return _narrativeService;
+  }
+
+  /**
+   * Stops the cacheable interceptor, if any. The cache manager is left to the
+   * caller.
+   */
+  public void close() {
+    if (_interceptor != null) {
+      _interceptor.stop();
+      _interceptor = null;
+    }
+  }
+
+  public ExtendedCalendarService getCalendarService() {
+    return _calendarService;
+  }
+
+  public BlockIndexServiceImpl getBlockIndexService() {
+    return _blockIndexService;
+  }
+
+  public BlockCalendarServiceImpl getBlockCalendarService() {
+    return _blockCalendarService;
+  }
+
+  public ScheduledBlockLocationServiceImpl getScheduledBlockLocationService() {
+    return _scheduledBlockLocationService;
+  }
+
+  /**
+   * @return the stop shared by every route in the network
+   */
+  public StopEntryImpl getHubStop() {
+    return _hubStop;
+  }
+
+  /**
+   * @param day the zero-based day of service
+   * @param secondsIntoDay
+   * @return the time the specified number of seconds into the given service
+   *         day
+   */
+  public Date getTime(int day, int secondsIntoDay) {
+    Calendar c = Calendar.getInstance();
+    c.setTimeZone(timeZone());
+    c.setTime(_serviceStartDate);
+    c.add(Calendar.DAY_OF_YEAR, day);
+    c.add(Calendar.SECOND, secondsIntoDay);
+    return c.getTime();
+  }
+
+  /**
+   * @param day the zero-based day of service
+   * @return the service date for the given day
+   */
+  public ServiceDate getServiceDate(int day) {
+    Calendar c = Calendar.getInstance();
+    c.setTimeZone(timeZone());
+    c.setTime(getTime(day, 0));
+    return new ServiceDate(c);
+  }
+
+  public StopTimeServiceImpl createStopTimeService() {
+    StopTimeServiceImpl service = new StopTimeServiceImpl();
+    service.setTransitGraphDao(_transitGraphDao);
+    service.setCalendarService(_calendarService);
+    service.setBlockIndexService(_blockIndexService);
+    return service;
+  }
+
+  /**
+   * Creates a {@link BlockLocationServiceImpl} backed by an in-memory vehicle
+   * location cache. Block location records are not persisted.
+   */
+  public BlockLocationServiceImpl createBlockLocationService() {
+
+    BlockLocationServiceImpl service = new BlockLocationServiceImpl();
+    service.setVehicleLocationRecordCache(new VehicleLocationRecordCacheImpl());
+    service.setTransitGraphDao(_transitGraphDao);
+    service.setScheduledBlockLocationService(_scheduledBlockLocationService);
+    service.setBlockCalendarService(_blockCalendarService);
+    service.setRealTimeHistoryService(new RealTimeHistoryServiceImpl());
+    service.setPersistBlockLocationRecords(false);
+    return service;
+  }
+
+  /**
+   * Reports a vehicle location, with the specified schedule deviation, for
+   * every block that is active at the specified time.
+   *
+   * @param service
+   * @param time
+   * @param scheduleDeviation in seconds
+   * @return the number of vehicle location records submitted
+   */
+  public int addRealTimeForActiveBlocks(BlockLocationServiceImpl service,
+      long time, int scheduleDeviation) {
+
+    List<BlockInstance> instances = _blockCalendarService.getActiveBlocksInTimeRange(
+        time, time);
+
+    for (BlockInstance instance : instances) {
+      AgencyAndId blockId = instance.getBlock().getBlock().getId();
+      VehicleLocationRecord record = new VehicleLocationRecord();
+      record.setBlockId(blockId);
+      record.setServiceDate(instance.getServiceDate());
+      record.setVehicleId(new AgencyAndId(blockId.getAgencyId(), "vehicle_"
+          + blockId.getId()));
+      record.setTimeOfRecord(time);
+      record.setTimeOfLocationUpdate(time);
+      record.setScheduleDeviation(scheduleDeviation);
+      service.handleVehicleLocationRecord(record);
+    }
+
+    return instances.size();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private Cache createServiceDateRangeCache() {
+    if (_cacheManager == null)
+      return null;
+    Cache cache = new Cache(ExtendedCalendarServiceImpl.class.getName()
+        + ".serviceDateRangeCache", 200, false, false, 0, 3600);
+    _cacheManager.addCache(cache);
+    return cache;
+  }
+
+  private ExtendedCalendarService createCacheableProxy(
+      ExtendedCalendarService service) {
+
+    if (_cacheManager == null)
+      return service;
+
+    _interceptor = new CacheableAnnotationInterceptor();
+    _interceptor.setCacheManager(_cacheManager);
+    _interceptor.setCacheableMethodKeyFactoryManager(new CacheableMethodKeyFactoryManager());
+    _interceptor.setRegisterMBeans(false);
+
+    AspectJProxyFactory factory = new AspectJProxyFactory(service);
+    factory.addAspect(_interceptor);
+    return factory.getProxy();
+  }
+
+  private void buildGraph(NarrativeProviderImpl narratives) {
+
+    _graph = new TransitGraphImpl();
+
+    AgencyEntryImpl agency = agency(AGENCY_ID);
+    List<StopEntry> agencyStops = new ArrayList<StopEntry>();
+
+    AgencyNarrative.Builder agencyNarrative = AgencyNarrative.builder();
+    agencyNarrative.setName("Synthetic Transit");
+    agencyNarrative.setTimezone(timeZone().getID());
+    agencyNarrative.setLang("en");
+    narratives.setNarrativeForAgency(AGENCY_ID, agencyNarrative.create());
+
+    _hubStop = stop("hub", 47.6, -122.3);
+    agencyStops.add(_hubStop);
+    _graph.putStopEntry(_hubStop);
+
+    int hubIndex = _stopsPerRoute / 2;
+    int stopTimeId = 0;
+
+    for (int r = 0; r < _routes; r++) {
+
+      double angle = 2 * Math.PI * r / _routes;
+
+      List<StopEntryImpl> stops = new ArrayList<StopEntryImpl>();
+      double[] latLons = new double[_stopsPerRoute * 2];
+
+      for (int s = 0; s < _stopsPerRoute; s++) {
+        StopEntryImpl stop = _hubStop;
+        if (s != hubIndex) {
+          double offset = (s - hubIndex) * DEGREES_BETWEEN_STOPS;
+          stop = stop("r" + r + "_s" + s, 47.6 + offset * Math.sin(angle),
+              -122.3 + offset * Math.cos(angle));
+          agencyStops.add(stop);
+          _graph.putStopEntry(stop);
+        }
+        stops.add(stop);
+        latLons[s * 2] = stop.getStopLat();
+        latLons[s * 2 + 1] = stop.getStopLon();
+      }
+
+      AgencyAndId shapeId = aid("r" + r);
+      ShapePoints shapePoints = shapePointsFromLatLons("r" + r, latLons);
+      narratives.setShapePointsForId(shapeId, shapePoints);
+      double[] distances = shapePoints.getDistTraveled();
+
+      RouteEntryImpl route = route("r" + r);
+      RouteCollectionEntryImpl routeCollection = routeCollection("r" + r,
+          route);
+      List<TripEntry> routeTrips = new ArrayList<TripEntry>();
+
+      RouteCollectionNarrative.Builder routeNarrative = RouteCollectionNarrative.builder();
+      routeNarrative.setShortName(Integer.toString(r));
+      routeNarrative.setLongName("Route " + r);
+      routeNarrative.setType(3);
+      narratives.setNarrativeForRouteCollectionId(routeCollection.getId(),
+          routeNarrative.create());
+
+      TripNarrative tripNarrative = TripNarrative.builder().setTripHeadsign(
+          "Route " + r + " Outbound").create();
+
+      int tripDuration = (_stopsPerRoute - 1) * SECONDS_BETWEEN_STOPS
+          + _stopsPerRoute * DWELL_TIME;
+      int headway = Math.max(60, (LAST_DEPARTURE - FIRST_DEPARTURE)
+          / _tripsPerRoute);
+      int vehicles = Math.min(_tripsPerRoute,
+          (tripDuration + LAYOVER_TIME + headway - 1) / headway);
+
+      List<List<TripEntryImpl>> tripsByBlock = new ArrayList<List<TripEntryImpl>>();
+      for (int v = 0; v < vehicles; v++)
+        tripsByBlock.add(new ArrayList<TripEntryImpl>());
+
+      for (int t = 0; t < _tripsPerRoute; t++) {
+
+        TripEntryImpl trip = trip("r" + r + "_t" + t, SERVICE_ID,
+            distances[distances.length - 1]);
+        trip.setRoute(route);
+        trip.setDirectionId("0");
+        trip.setShapeId(shapeId);
+        narratives.setNarrativeForTripId(trip.getId(), tripNarrative);
+
+        int departure = FIRST_DEPARTURE + t * headway;
+        for (int s = 0; s < _stopsPerRoute; s++) {
+          int arrival = departure + s * (SECONDS_BETWEEN_STOPS + DWELL_TIME);
+          stopTime(stopTimeId++, stops.get(s), trip, arrival, arrival
+              + DWELL_TIME, distances[s], s);
+        }
+
+        routeTrips.add(trip);
+        tripsByBlock.get(t % vehicles).add(trip);
+        _graph.putTripEntry(trip);
+      }
+
+      for (int v = 0; v < vehicles; v++) {
+        List<TripEntryImpl> trips = tripsByBlock.get(v);
+        BlockEntryImpl block = block("r" + r + "_b" + v);
+        linkBlockTrips(block, trips.toArray(new TripEntryImpl[trips.size()]));
+        _graph.putBlockEntry(block);
+      }
+
+      route.setTrips(routeTrips);
+      _graph.putRouteEntry(route);
+      _graph.putRouteCollectionEntry(routeCollection);
+    }
+
+    agency.setStops(agencyStops);
+    _graph.putAgencyEntry(agency);
+
+    if (_compactStopTimes)
+      _graph.compactStopTimes();
+    _graph.initialize();
+  }
+
+  private FederatedTransitDataBundle writeBlockIndices() throws IOException {
+
+    File path = File.createTempFile("SyntheticNetwork-", "");
+    path.delete();
+    path.mkdirs();
+    path.deleteOnExit();
+
+    FederatedTransitDataBundle bundle = new FederatedTransitDataBundle(path);
+    BlockIndexFactoryServiceImpl factory = new BlockIndexFactoryServiceImpl();
+
+    writeAndDeleteOnExit(bundle.getBlockTripIndicesPath(),
+        factory.createTripData(_transitGraphDao.getAllBlocks()));
+    writeAndDeleteOnExit(bundle.getBlockLayoverIndicesPath(),
+        factory.createLayoverData(_transitGraphDao.getAllBlocks()));
+    writeAndDeleteOnExit(bundle.getFrequencyBlockTripIndicesPath(),
+        factory.createFrequencyTripData(_transitGraphDao.getAllBlocks()));
+
+    return bundle;
+  }
+
+  private void writeAndDeleteOnExit(File path, Object object)
+      throws IOException {
+    ObjectSerializationLibrary.writeObject(path, object);
+    path.deleteOnExit();
+  }
+
+  private ServiceDate[] getServiceDates() {
+    ServiceDate[] dates = new ServiceDate[SERVICE_DAYS];
+    for (int i = 0; i < SERVICE_DAYS; i++)
+      dates[i] = getServiceDate(i);
+    return dates;
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.benchmarks;
+
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.geospatial.model.CoordinatePoint;
+import org.onebusaway.transit_data_federation.impl.otp.OBATraverseOptions;
+import org.onebusaway.transit_data_federation.impl.tripplanner.StopTransferServiceImpl;
+import org.onebusaway.transit_data_federation.impl.tripplanner.TransitShedServiceImpl;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentripplanner.routing.core.TraverseModeSet;
+
+/**
+ * Measures the throughput of
+ * {@link TransitShedServiceImpl#getMinTravelTimeToStops(CoordinatePoint, long, OBATraverseOptions)}
+ * from the hub of a {@link SyntheticNetwork}, where every route can be reached
+ * with a single boarding, from one thread and from four threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TransitShedBenchmark {
+
+  @Param({"SMALL", "MEDIUM"})
+  public NetworkSize size;
+
+  @Param({"60"})
+  public int maxTripDurationMinutes;
+
+  private TransitShedServiceImpl _service;
+
+  private CoordinatePoint _location;
+
+  private long _time;
+
+  private OBATraverseOptions _options;
+
+  @Setup
+  public void setup() throws Exception {
+
+    SyntheticNetwork network = new SyntheticNetwork(size);
+    network.build();
+
+    _service = new TransitShedServiceImpl();
+    _service.setTransitGraphDao(network.getTransitGraphDao());
+    _service.setBlockIndexService(network.getBlockIndexService());
+    _service.setStopTransferService(new StopTransferServiceImpl());
+    _service.setCalendarService(network.getCalendarService());
+    _service.setup();
+
+    _location = network.getHubStop().getStopLocation();
+    _time = network.getTime(7, time(8, 0)).getTime();
+
+    _options = new OBATraverseOptions();
+    TraverseModeSet modes = new TraverseModeSet();
+    modes.setWalk(true);
+    modes.setTransit(true);
+    _options.setModes(modes);
+    _options.maxWalkDistance = 1500;
+    _options.maxTransfers = 2;
+    _options.maxTripDuration = maxTripDurationMinutes * 60 * 1000;
+
+    Map<StopEntry, Long> results = getMinTravelTimeToStops();
+    System.out.println("reachable stops: size=" + size + " stops="
+        + results.size());
+  }
+
+  @Benchmark
+  public Map<StopEntry, Long> getMinTravelTimeToStops() {
+    return _service.getMinTravelTimeToStops(_location, _time, _options);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Map<StopEntry, Long> getMinTravelTimeToStopsConcurrently() {
+    return _service.getMinTravelTimeToStops(_location, _time, _options);
+  }
+}
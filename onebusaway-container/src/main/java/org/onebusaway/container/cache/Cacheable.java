@@ -42,6 +42,16 @@ import java.lang.annotation.Target;
  * {@link DefaultCacheableObjectKeyFactory} factories to generate a key for each
  * argument, unless otherwise specified with a {@link CacheableKey} annotation.
  * 
+ * By default, concurrent calls that miss the cache for the same key are
+ * coalesced, so that the underlying method is called once while the others
+ * wait for its result. With {@link #staleWhileRevalidate()}, a value that has
+ * outlived the cache's time-to-live is still returned for a while longer, and
+ * refreshed in the background.
+ * 
+ * For methods whose values aren't serialized, {@link #nearCacheSize()} adds a
+ * small in-process near cache in front of EhCache for the most frequently
+ * requested keys.
+ * 
  * @author bdferris
  * @see CacheableAnnotationInterceptor
  * @see CacheableMethodKeyFactory
@@ -57,4 +67,24 @@ public @interface Cacheable {
   Class<? extends CacheableMethodKeyFactory> keyFactory() default CacheableMethodKeyFactory.class;
   
   boolean isValueSerializable() default true;
+
+  /**
+   * @return true if concurrent calls that miss the cache for the same key
+   *         should wait for a single call to the underlying method
+   */
+  boolean coalesceLoads() default true;
+
+  /**
+   * @return time, in seconds, past the cache's time-to-live during which a
+   *         cached value is still returned while a fresh value is computed in
+   *         the background, or zero to disable
+   */
+  int staleWhileRevalidate() default 0;
+
+  /**
+   * @return the max number of elements kept in a near cache in front of
+   *         EhCache, or zero to disable. Only applies when
+   *         {@link #isValueSerializable()} is false.
+   */
+  int nearCacheSize() default 0;
 }
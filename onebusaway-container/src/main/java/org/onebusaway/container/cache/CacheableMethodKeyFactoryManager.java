@@ -206,13 +206,14 @@ public class CacheableMethodKeyFactoryManager {
     cacheRefreshIndicator |= cacheableArgumentAnnotation.cacheRefreshIndicator();
 
     if (!(keyProperty == null || keyProperty.equals(""))) {
+      Class<?> parameterType = type;
       PropertyPathExpression expression = new PropertyPathExpression(
           keyProperty);
       type = expression.initialize(type);
       CacheableObjectKeyFactory factory = getKeyFactoryForParameterType(type,
           cacheRefreshIndicator);
       return new PropertyPathExpressionCacheableObjectKeyFactory(expression,
-          factory);
+          keyProperty, parameterType, factory);
     }
 
     // Nothing interesting defined in the annotation? Apply the default behavior
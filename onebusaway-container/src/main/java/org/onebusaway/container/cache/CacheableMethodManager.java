@@ -16,15 +16,31 @@
 package org.onebusaway.container.cache;
 
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
 
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.Signature;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Support class providing functionality for caching the output of arbitrary
@@ -32,6 +48,18 @@ import org.aspectj.lang.Signature;
  * 
  * EhCache is used as the backing cache store.
  * 
+ * Concurrent calls that miss the cache for the same key are coalesced unless
+ * disabled with {@link Cacheable#coalesceLoads()}: the first call computes the
+ * value while the others wait for it. With
+ * {@link Cacheable#staleWhileRevalidate()}, expired values are kept around a
+ * little longer and returned while a fresh value is computed in the
+ * background. Methods matched without a {@link Cacheable} annotation use the
+ * defaults set on the manager. Methods with a {@link Cacheable#nearCacheSize()}
+ * get a {@link NearCache} in front of EhCache.
+ * 
+ * Hit, miss, coalesced load and load time statistics for each method cache
+ * are registered with JMX as {@link CacheableMethodStatisticsMBean} instances.
+ * 
  * @author bdferris
  * @see Cacheable
  * @see CacheableAnnotationInterceptor
@@ -40,14 +68,36 @@ import org.aspectj.lang.Signature;
  */
 public class CacheableMethodManager {
 
+  private static Logger _log = LoggerFactory.getLogger(CacheableMethodManager.class);
+
   private ConcurrentHashMap<String, CacheEntry> _entries = new ConcurrentHashMap<String, CacheEntry>();
 
+  /**
+   * Saves building the cache name on every call when the join point exposes
+   * the method being called
+   */
+  private ConcurrentHashMap<Method, CacheEntry> _entriesByMethod = new ConcurrentHashMap<Method, CacheEntry>();
+
   private CacheManager _cacheManager;
 
   protected CacheableMethodKeyFactoryManager _cacheableMethodKeyFactoryManager;
 
   private String _cacheNamePrefix;
 
+  private boolean _coalesceLoads = true;
+
+  private int _staleWhileRevalidate = 0;
+
+  private int _refreshThreadCount = 2;
+
+  private ExecutorService _refreshExecutor;
+
+  private boolean _ownsRefreshExecutor = false;
+
+  private MBeanServer _mbeanServer;
+
+  private boolean _registerMBeans = true;
+
   public void setCacheManager(CacheManager cacheManager) {
     _cacheManager = cacheManager;
   }
@@ -61,26 +111,147 @@ public class CacheableMethodManager {
     _cacheNamePrefix = cacheNamePrefix;
   }
 
+  /**
+   * 
+   * @param coalesceLoads the default for methods without a {@link Cacheable}
+   *          annotation
+   */
+  public void setCoalesceLoads(boolean coalesceLoads) {
+    _coalesceLoads = coalesceLoads;
+  }
+
+  /**
+   * 
+   * @param staleWhileRevalidate the default, in seconds, for methods without a
+   *          {@link Cacheable} annotation
+   */
+  public void setStaleWhileRevalidate(int staleWhileRevalidate) {
+    _staleWhileRevalidate = staleWhileRevalidate;
+  }
+
+  /**
+   * 
+   * @param refreshExecutor runs background refreshes of stale values. By
+   *          default, a small pool of daemon threads is created on first use.
+   */
+  public void setRefreshExecutor(ExecutorService refreshExecutor) {
+    _refreshExecutor = refreshExecutor;
+  }
+
+  public void setRefreshThreadCount(int refreshThreadCount) {
+    _refreshThreadCount = refreshThreadCount;
+  }
+
+  /**
+   * 
+   * @param mbeanServer the server statistics are registered with. Defaults to
+   *          the platform MBean server.
+   */
+  public void setMBeanServer(MBeanServer mbeanServer) {
+    _mbeanServer = mbeanServer;
+  }
+
+  public void setRegisterMBeans(boolean registerMBeans) {
+    _registerMBeans = registerMBeans;
+  }
+
+  /**
+   * 
+   * @param cacheName
+   * @return statistics for the named method cache, or null if the method has
+   *         not yet been called
+   */
+  public CacheableMethodStatistics getStatistics(String cacheName) {
+    CacheEntry entry = _entries.get(cacheName);
+    return entry == null ? null : entry.getStatistics();
+  }
+
+  @PreDestroy
+  public void stop() {
+    synchronized (this) {
+      if (_ownsRefreshExecutor) {
+        _refreshExecutor.shutdownNow();
+        _refreshExecutor = null;
+        _ownsRefreshExecutor = false;
+      }
+    }
+    for (CacheEntry entry : _entries.values()) {
+      unregisterStatistics(entry);
+      unregisterNearCache(entry);
+    }
+  }
+
   public Object evaluate(ProceedingJoinPoint pjp) throws Throwable {
 
     CacheEntry entry = getCache(pjp);
     CacheableMethodKeyFactory keyFactory = entry.getKeyFactory();
+    CacheableMethodStatistics statistics = entry.getStatistics();
     Cache cache = entry.getCache();
     CacheKeyInfo keyInfo = keyFactory.createKey(pjp);
     Serializable key = keyInfo.getKey();
 
-    Element element = cache.get(key);
+    if (!keyInfo.isCacheRefreshIndicated()) {
+      NearCache nearCache = entry.getNearCache();
+      Element element = null;
+      if (nearCache != null) {
+        element = nearCache.get(key);
+        if (element != null)
+          statistics.nearHit();
+      }
+      if (element == null) {
+        element = cache.get(key);
+        if (element != null) {
+          statistics.hit();
+          if (nearCache != null)
+            nearCache.put(key, element);
+        }
+      }
+      if (element != null) {
+        if (entry.isStale(element)) {
+          statistics.staleHit();
+          refreshInBackground(entry, pjp, key, element);
+        }
+        return entry.getValue(element);
+      }
+    }
+
+    statistics.miss();
 
-    if (element == null || keyInfo.isCacheRefreshIndicated()) {
-      Object retVal = pjp.proceed();
-      element = new Element(key, retVal);
-      cache.put(element);
+    if (!entry.isCoalesceLoads())
+      return entry.getValue(load(entry, pjp, key));
+
+    ConcurrentMap<Serializable, PendingLoad> pendingLoads = entry.getPendingLoads();
+    PendingLoad pending = new PendingLoad(Thread.currentThread());
+    PendingLoad existing = pendingLoads.putIfAbsent(key, pending);
+
+    if (existing != null) {
+      /**
+       * A recursive call for the same key would wait on itself forever
+       */
+      if (existing.isOwnedByCurrentThread())
+        return entry.getValue(load(entry, pjp, key));
+      statistics.coalesced();
+      return entry.getValue(existing.get());
     }
 
-    if (entry.isValueSerializable())
-      return element.getValue();
-    else
-      return element.getObjectValue();
+    try {
+      Element element = null;
+      /**
+       * Another call may have finished loading the value between our cache
+       * miss and registering our own load
+       */
+      if (!keyInfo.isCacheRefreshIndicated())
+        element = cache.get(key);
+      if (element == null)
+        element = load(entry, pjp, key);
+      pending.setElement(element);
+      return entry.getValue(element);
+    } catch (Throwable ex) {
+      pending.setException(ex);
+      throw ex;
+    } finally {
+      pendingLoads.remove(key, pending);
+    }
   }
 
   /***************************************************************************
@@ -114,6 +285,18 @@ public class CacheableMethodManager {
 
   private CacheEntry getCache(ProceedingJoinPoint pjp) {
 
+    Signature sig = pjp.getSignature();
+    Method sigMethod = null;
+
+    if (sig instanceof MethodSignature) {
+      sigMethod = ((MethodSignature) sig).getMethod();
+      if (sigMethod != null) {
+        CacheEntry entry = _entriesByMethod.get(sigMethod);
+        if (entry != null)
+          return entry;
+      }
+    }
+
     String name = getCacheName(pjp);
 
     CacheEntry entry = _entries.get(name);
@@ -134,8 +317,29 @@ public class CacheableMethodManager {
         }
       }
       entry = new CacheEntry(keyFactory, valueSerializable, cache);
-      _entries.put(name, entry);
+      Cacheable c = method.getAnnotation(Cacheable.class);
+      if (c != null) {
+        entry.setCoalesceLoads(c.coalesceLoads());
+        entry.setStaleWhileRevalidate(c.staleWhileRevalidate());
+        if (c.nearCacheSize() > 0 && !valueSerializable)
+          entry.setNearCache(new NearCache(cache.getCacheConfiguration(),
+              c.nearCacheSize()));
+      } else {
+        entry.setCoalesceLoads(_coalesceLoads);
+        entry.setStaleWhileRevalidate(_staleWhileRevalidate);
+      }
+      CacheEntry existing = _entries.putIfAbsent(name, entry);
+      if (existing != null) {
+        entry = existing;
+      } else {
+        registerStatistics(entry);
+        registerNearCache(entry);
+      }
     }
+
+    if (sigMethod != null)
+      _entriesByMethod.put(sigMethod, entry);
+
     return entry;
   }
 
@@ -146,6 +350,126 @@ public class CacheableMethodManager {
     return c.isValueSerializable();
   }
 
+  private Element load(CacheEntry entry, ProceedingJoinPoint pjp,
+      Serializable key) throws Throwable {
+    long t = System.nanoTime();
+    boolean failed = true;
+    try {
+      Object retVal = pjp.proceed();
+      failed = false;
+      Element element = new Element(key, retVal);
+      entry.extendTimeToLive(element);
+      entry.getCache().put(element);
+      /**
+       * The put above notifies the near cache, which drops any previous
+       * element for the key, so we add the new element afterwards
+       */
+      NearCache nearCache = entry.getNearCache();
+      if (nearCache != null)
+        nearCache.put(key, element);
+      return element;
+    } finally {
+      entry.getStatistics().load(System.nanoTime() - t, failed);
+    }
+  }
+
+  private void refreshInBackground(final CacheEntry entry,
+      final ProceedingJoinPoint pjp, final Serializable key,
+      final Element staleElement) {
+
+    final ConcurrentMap<Serializable, PendingLoad> pendingLoads = entry.getPendingLoads();
+    final PendingLoad pending = new PendingLoad(null);
+    if (pendingLoads.putIfAbsent(key, pending) != null)
+      return;
+
+    Runnable refresh = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          pending.setElement(load(entry, pjp, key));
+        } catch (Throwable ex) {
+          _log.warn("error refreshing stale value in cache "
+              + entry.getCache().getName() + " for key " + key, ex);
+          pending.setElement(staleElement);
+        } finally {
+          pendingLoads.remove(key, pending);
+        }
+      }
+    };
+
+    try {
+      getRefreshExecutor().execute(refresh);
+    } catch (RejectedExecutionException ex) {
+      pending.setElement(staleElement);
+      pendingLoads.remove(key, pending);
+    }
+  }
+
+  private synchronized ExecutorService getRefreshExecutor() {
+    if (_refreshExecutor == null) {
+      _refreshExecutor = Executors.newFixedThreadPool(_refreshThreadCount,
+          new DaemonThreadFactory());
+      _ownsRefreshExecutor = true;
+    }
+    return _refreshExecutor;
+  }
+
+  private void registerStatistics(CacheEntry entry) {
+    if (!_registerMBeans)
+      return;
+    CacheableMethodStatistics statistics = entry.getStatistics();
+    try {
+      getMBeanServer().registerMBean(statistics,
+          getObjectName(statistics.getCacheName()));
+    } catch (Exception ex) {
+      _log.warn("error registering statistics for cache "
+          + statistics.getCacheName() + ": " + ex);
+    }
+  }
+
+  private void unregisterStatistics(CacheEntry entry) {
+    if (!_registerMBeans)
+      return;
+    String cacheName = entry.getStatistics().getCacheName();
+    try {
+      ObjectName name = getObjectName(cacheName);
+      MBeanServer server = getMBeanServer();
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+    } catch (Exception ex) {
+      _log.warn("error unregistering statistics for cache " + cacheName
+          + ": " + ex);
+    }
+  }
+
+  private void registerNearCache(CacheEntry entry) {
+    NearCache nearCache = entry.getNearCache();
+    if (nearCache != null)
+      entry.getCache().getCacheEventNotificationService().registerListener(
+          nearCache);
+  }
+
+  private void unregisterNearCache(CacheEntry entry) {
+    NearCache nearCache = entry.getNearCache();
+    if (nearCache != null) {
+      entry.getCache().getCacheEventNotificationService().unregisterListener(
+          nearCache);
+      nearCache.clear();
+    }
+  }
+
+  private MBeanServer getMBeanServer() {
+    if (_mbeanServer == null)
+      _mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    return _mbeanServer;
+  }
+
+  private static ObjectName getObjectName(String cacheName) throws Exception {
+    return new ObjectName(
+        "org.onebusaway.container.cache:type=CacheableMethodStatistics,name="
+            + ObjectName.quote(cacheName));
+  }
+
   private static class CacheEntry {
 
     private CacheableMethodKeyFactory _keyFactory;
@@ -154,11 +478,33 @@ public class CacheableMethodManager {
 
     private Cache _cache;
 
+    private final CacheableMethodStatistics _statistics;
+
+    private final ConcurrentMap<Serializable, PendingLoad> _pendingLoads = new ConcurrentHashMap<Serializable, PendingLoad>();
+
+    private boolean _coalesceLoads = true;
+
+    private int _staleWhileRevalidate = 0;
+
+    private NearCache _nearCache;
+
+    /**
+     * The cache's time-to-live and time-to-idle, in seconds, or zero if
+     * elements don't expire
+     */
+    private final long _timeToLive;
+
+    private final long _timeToIdle;
+
     public CacheEntry(CacheableMethodKeyFactory keyFactory,
         boolean valueSerializable, Cache cache) {
       _keyFactory = keyFactory;
       _valueSerializable = valueSerializable;
       _cache = cache;
+      _statistics = new CacheableMethodStatistics(cache.getName());
+      CacheConfiguration config = cache.getCacheConfiguration();
+      _timeToLive = config.isEternal() ? 0 : config.getTimeToLiveSeconds();
+      _timeToIdle = config.isEternal() ? 0 : config.getTimeToIdleSeconds();
     }
 
     public CacheableMethodKeyFactory getKeyFactory() {
@@ -172,5 +518,117 @@ public class CacheableMethodManager {
     public Cache getCache() {
       return _cache;
     }
+
+    public CacheableMethodStatistics getStatistics() {
+      return _statistics;
+    }
+
+    public ConcurrentMap<Serializable, PendingLoad> getPendingLoads() {
+      return _pendingLoads;
+    }
+
+    public boolean isCoalesceLoads() {
+      return _coalesceLoads;
+    }
+
+    public void setCoalesceLoads(boolean coalesceLoads) {
+      _coalesceLoads = coalesceLoads;
+    }
+
+    public void setStaleWhileRevalidate(int staleWhileRevalidate) {
+      _staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * 
+     * @return the near cache in front of the EhCache cache, or null if none
+     */
+    public NearCache getNearCache() {
+      return _nearCache;
+    }
+
+    public void setNearCache(NearCache nearCache) {
+      _nearCache = nearCache;
+    }
+
+    public Object getValue(Element element) {
+      if (_valueSerializable)
+        return element.getValue();
+      else
+        return element.getObjectValue();
+    }
+
+    /**
+     * Keeps the element in the cache past the cache's time-to-live, so that it
+     * can be served while stale
+     */
+    public void extendTimeToLive(Element element) {
+      if (_staleWhileRevalidate <= 0 || _timeToLive <= 0)
+        return;
+      element.setTimeToLive((int) (_timeToLive + _staleWhileRevalidate));
+      if (_timeToIdle > 0)
+        element.setTimeToIdle((int) (_timeToIdle + _staleWhileRevalidate));
+    }
+
+    public boolean isStale(Element element) {
+      if (_staleWhileRevalidate <= 0 || _timeToLive <= 0)
+        return false;
+      long age = System.currentTimeMillis()
+          - element.getLatestOfCreationAndUpdateTime();
+      return age > _timeToLive * 1000;
+    }
+  }
+
+  /**
+   * A call to the underlying method that other calls for the same key can wait
+   * on
+   */
+  private static class PendingLoad {
+
+    private final CountDownLatch _done = new CountDownLatch(1);
+
+    private final Thread _owner;
+
+    private volatile Element _element;
+
+    private volatile Throwable _exception;
+
+    public PendingLoad(Thread owner) {
+      _owner = owner;
+    }
+
+    public boolean isOwnedByCurrentThread() {
+      return _owner == Thread.currentThread();
+    }
+
+    public void setElement(Element element) {
+      _element = element;
+      _done.countDown();
+    }
+
+    public void setException(Throwable exception) {
+      _exception = exception;
+      _done.countDown();
+    }
+
+    public Element get() throws Throwable {
+      _done.await();
+      if (_exception != null)
+        throw _exception;
+      return _element;
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger _index = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "CacheableMethodManager-refresh-"
+          + _index.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.container.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss, coalesced load and load time counters for a single method cache.
+ * 
+ * @author bdferris
+ * @see CacheableMethodManager
+ */
+public class CacheableMethodStatistics implements CacheableMethodStatisticsMBean {
+
+  private final String _cacheName;
+
+  private final AtomicLong _hits = new AtomicLong();
+
+  private final AtomicLong _nearHits = new AtomicLong();
+
+  private final AtomicLong _misses = new AtomicLong();
+
+  private final AtomicLong _coalesced = new AtomicLong();
+
+  private final AtomicLong _staleHits = new AtomicLong();
+
+  private final AtomicLong _loads = new AtomicLong();
+
+  private final AtomicLong _loadFailures = new AtomicLong();
+
+  private final AtomicLong _totalLoadTimeNanos = new AtomicLong();
+
+  public CacheableMethodStatistics(String cacheName) {
+    _cacheName = cacheName;
+  }
+
+  public void hit() {
+    _hits.incrementAndGet();
+  }
+
+  /**
+   * A hit answered by the near cache, which also counts towards
+   * {@link #getHits()}
+   */
+  public void nearHit() {
+    _nearHits.incrementAndGet();
+  }
+
+  public void miss() {
+    _misses.incrementAndGet();
+  }
+
+  public void coalesced() {
+    _coalesced.incrementAndGet();
+  }
+
+  public void staleHit() {
+    _staleHits.incrementAndGet();
+  }
+
+  /**
+   * 
+   * @param nanos time spent in the underlying method
+   * @param failed true if the method threw an exception
+   */
+  public void load(long nanos, boolean failed) {
+    _loads.incrementAndGet();
+    _totalLoadTimeNanos.addAndGet(nanos);
+    if (failed)
+      _loadFailures.incrementAndGet();
+  }
+
+  /****
+   * {@link CacheableMethodStatisticsMBean} Interface
+   ****/
+
+  @Override
+  public String getCacheName() {
+    return _cacheName;
+  }
+
+  @Override
+  public long getHits() {
+    return _hits.get() + _nearHits.get();
+  }
+
+  @Override
+  public long getNearHits() {
+    return _nearHits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return _misses.get();
+  }
+
+  @Override
+  public long getCoalesced() {
+    return _coalesced.get();
+  }
+
+  @Override
+  public long getStaleHits() {
+    return _staleHits.get();
+  }
+
+  @Override
+  public long getLoads() {
+    return _loads.get();
+  }
+
+  @Override
+  public long getLoadFailures() {
+    return _loadFailures.get();
+  }
+
+  @Override
+  public long getTotalLoadTime() {
+    return _totalLoadTimeNanos.get() / 1000000;
+  }
+
+  @Override
+  public double getAverageLoadTime() {
+    long loads = _loads.get();
+    if (loads == 0)
+      return 0;
+    return _totalLoadTimeNanos.get() / (loads * 1e6);
+  }
+
+  @Override
+  public void reset() {
+    _hits.set(0);
+    _nearHits.set(0);
+    _misses.set(0);
+    _coalesced.set(0);
+    _staleHits.set(0);
+    _loads.set(0);
+    _loadFailures.set(0);
+    _totalLoadTimeNanos.set(0);
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.container.cache;
+
+/**
+ * JMX view of the {@link CacheableMethodStatistics} kept for each method cache
+ * by {@link CacheableMethodManager}.
+ * 
+ * @author bdferris
+ */
+public interface CacheableMethodStatisticsMBean {
+
+  public String getCacheName();
+
+  /**
+   * @return calls answered from the cache, including stale values
+   */
+  public long getHits();
+
+  /**
+   * @return hits answered by the near cache without consulting EhCache
+   */
+  public long getNearHits();
+
+  /**
+   * @return calls that found no usable value in the cache
+   */
+  public long getMisses();
+
+  /**
+   * @return misses that waited for a concurrent call with the same key,
+   *         rather than calling the underlying method themselves
+   */
+  public long getCoalesced();
+
+  /**
+   * @return hits on a stale value, which scheduled a background refresh
+   */
+  public long getStaleHits();
+
+  /**
+   * @return calls to the underlying method, including background refreshes
+   */
+  public long getLoads();
+
+  /**
+   * @return calls to the underlying method that threw an exception
+   */
+  public long getLoadFailures();
+
+  /**
+   * @return total time spent in the underlying method, in ms
+   */
+  public long getTotalLoadTime();
+
+  /**
+   * @return average time spent in the underlying method, in ms
+   */
+  public double getAverageLoadTime();
+
+  public void reset();
+}
@@ -31,6 +31,10 @@ import java.util.Arrays;
  * each argument key are ORed together to produce a refresh indicator for the
  * entire method.
  * 
+ * Arguments handled by a plain {@link DefaultCacheableObjectKeyFactory} are
+ * keyed inline, without creating an intermediate {@link CacheKeyInfo} for
+ * each argument, and the composite key computes its hash code once.
+ * 
  * @author bdferris
  * @see Cacheable#keyFactory()
  * @see CacheableMethodKeyFactory
@@ -41,8 +45,22 @@ public class DefaultCacheableKeyFactory implements CacheableMethodKeyFactory,
 
   private static final long serialVersionUID = 1L;
 
+  private static final CacheKeyInfo NO_ARGUMENTS = new CacheKeyInfo(
+      new KeyImpl(new Serializable[0]), false);
+
+  private static final byte ARGUMENT_FACTORY = 0;
+
+  private static final byte ARGUMENT_DIRECT = 1;
+
+  private static final byte ARGUMENT_REFRESH_CHECK = 2;
+
   private CacheableObjectKeyFactory[] _keyFactories;
 
+  /**
+   * How each argument is keyed, worked out once from its key factory
+   */
+  private transient byte[] _argumentTypes;
+
   public DefaultCacheableKeyFactory(CacheableObjectKeyFactory[] keyFactories) {
     _keyFactories = keyFactories;
   }
@@ -65,14 +83,51 @@ public class DefaultCacheableKeyFactory implements CacheableMethodKeyFactory,
     if (args.length == 1)
       return _keyFactories[0].createKey(args[0]);
 
-    KeyImpl keys = new KeyImpl(args.length);
+    if (args.length == 0)
+      return NO_ARGUMENTS;
+
+    byte[] argumentTypes = getArgumentTypes();
+    Serializable[] keys = new Serializable[args.length];
     boolean refreshCache = false;
+
     for (int i = 0; i < args.length; i++) {
-      CacheKeyInfo keyInfo = _keyFactories[i].createKey(args[i]);
-      keys.set(i, keyInfo.getKey());
-      refreshCache |= keyInfo.isCacheRefreshIndicated();
+      Object arg = args[i];
+      switch (argumentTypes[i]) {
+        case ARGUMENT_DIRECT:
+          keys[i] = DefaultCacheableObjectKeyFactory.getKey(arg);
+          break;
+        case ARGUMENT_REFRESH_CHECK:
+          keys[i] = Boolean.FALSE;
+          refreshCache |= DefaultCacheableObjectKeyFactory.isCacheRefreshIndicated(arg);
+          break;
+        default:
+          CacheKeyInfo keyInfo = _keyFactories[i].createKey(arg);
+          keys[i] = keyInfo.getKey();
+          refreshCache |= keyInfo.isCacheRefreshIndicated();
+          break;
+      }
+    }
+    return new CacheKeyInfo(new KeyImpl(keys), refreshCache);
+  }
+
+  private byte[] getArgumentTypes() {
+    byte[] argumentTypes = _argumentTypes;
+    if (argumentTypes == null) {
+      argumentTypes = new byte[_keyFactories.length];
+      for (int i = 0; i < argumentTypes.length; i++) {
+        CacheableObjectKeyFactory factory = _keyFactories[i];
+        if (factory != null
+            && factory.getClass() == DefaultCacheableObjectKeyFactory.class) {
+          DefaultCacheableObjectKeyFactory defaultFactory = (DefaultCacheableObjectKeyFactory) factory;
+          argumentTypes[i] = defaultFactory.isCacheRefreshCheck()
+              ? ARGUMENT_REFRESH_CHECK : ARGUMENT_DIRECT;
+        } else {
+          argumentTypes[i] = ARGUMENT_FACTORY;
+        }
+      }
+      _argumentTypes = argumentTypes;
     }
-    return new CacheKeyInfo(keys, refreshCache);
+    return argumentTypes;
   }
 
   static class KeyImpl implements Serializable {
@@ -81,6 +136,11 @@ public class DefaultCacheableKeyFactory implements CacheableMethodKeyFactory,
 
     private Serializable[] _keys;
 
+    /**
+     * Lazily computed, since keys are hashed at least twice per lookup
+     */
+    private transient int _hash;
+
     public KeyImpl(int entries) {
       _keys = new Serializable[entries];
     }
@@ -91,6 +151,7 @@ public class DefaultCacheableKeyFactory implements CacheableMethodKeyFactory,
 
     public void set(int index, Serializable key) {
       _keys[index] = key;
+      _hash = 0;
     }
 
     @Override
@@ -103,7 +164,12 @@ public class DefaultCacheableKeyFactory implements CacheableMethodKeyFactory,
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(_keys);
+      int hash = _hash;
+      if (hash == 0) {
+        hash = Arrays.hashCode(_keys);
+        _hash = hash;
+      }
+      return hash;
     }
 
     @Override
@@ -31,6 +31,14 @@ public class DefaultCacheableObjectKeyFactory implements
 
   private static final long serialVersionUID = 1L;
 
+  private static final CacheKeyInfo REFRESH = new CacheKeyInfo(Boolean.FALSE,
+      true);
+
+  private static final CacheKeyInfo NO_REFRESH = new CacheKeyInfo(
+      Boolean.FALSE, false);
+
+  private static final CacheKeyInfo NULL_KEY = new CacheKeyInfo(null, false);
+
   private boolean _cacheRefreshCheck = false;
 
   /**
@@ -53,22 +61,31 @@ public class DefaultCacheableObjectKeyFactory implements
 
     if (_cacheRefreshCheck) {
 
-      boolean refreshCache = Boolean.TRUE.equals(object);
-
       /**
        * We short-circuit the cache key to Boolean.FALSE, no matter the actual
        * key value so that the resulting cache key will be the same whether a
        * refresh has been requested or not
        */
-      return new CacheKeyInfo(Boolean.FALSE, refreshCache);
+      return isCacheRefreshIndicated(object) ? REFRESH : NO_REFRESH;
     }
 
-    if (object != null) {
-      if (object instanceof Serializable)
-        return new CacheKeyInfo((Serializable) object, false);
-      return new CacheKeyInfo(object.toString(), false);
-    }
+    if (object == null)
+      return NULL_KEY;
+
+    return new CacheKeyInfo(getKey(object), false);
+  }
+
+  /**
+   * The key for an argument that isn't a cache refresh indicator, without
+   * wrapping it in a {@link CacheKeyInfo}
+   */
+  static Serializable getKey(Object object) {
+    if (object == null || object instanceof Serializable)
+      return (Serializable) object;
+    return object.toString();
+  }
 
-    return new CacheKeyInfo(null, false);
+  static boolean isCacheRefreshIndicated(Object object) {
+    return Boolean.TRUE.equals(object);
   }
 }
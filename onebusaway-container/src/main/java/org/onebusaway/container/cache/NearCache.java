@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.container.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+/**
+ * A small in-process map of recently used elements that sits in front of an
+ * EhCache {@link Ehcache}, so that repeat lookups of hot keys skip the
+ * EhCache store entirely. Elements are shared with the backing cache and
+ * expire on its schedule. The near cache listens for removals, evictions and
+ * updates in the backing cache and drops the matching entries.
+ * 
+ * The near cache holds at most roughly {@link #getMaxSize()} entries. Each
+ * entry counts its hits, and when the near cache overflows, the least
+ * frequently used entries are evicted in a batch and the counts of the rest
+ * are halved, so that keys that were hot a while ago eventually give way to
+ * keys that are hot now.
+ * 
+ * @author bdferris
+ * @see Cacheable#nearCacheSize()
+ * @see CacheableMethodManager
+ */
+final class NearCache extends CacheEventListenerAdapter {
+
+  private final ConcurrentHashMap<Object, NearEntry> _entries = new ConcurrentHashMap<Object, NearEntry>();
+
+  private final AtomicInteger _size = new AtomicInteger();
+
+  private final AtomicBoolean _evicting = new AtomicBoolean();
+
+  private final CacheConfiguration _config;
+
+  private final int _maxSize;
+
+  private final int _evictionBatchSize;
+
+  public NearCache(CacheConfiguration config, int maxSize) {
+    _config = config;
+    _maxSize = maxSize;
+    _evictionBatchSize = Math.max(1, maxSize / 10);
+  }
+
+  public int getMaxSize() {
+    return _maxSize;
+  }
+
+  public int size() {
+    return _size.get();
+  }
+
+  /**
+   * 
+   * @param key
+   * @return the element for the specified key, or null if not present or
+   *         expired
+   */
+  public Element get(Object key) {
+    if (key == null)
+      return null;
+    NearEntry entry = _entries.get(key);
+    if (entry == null)
+      return null;
+    Element element = entry.element;
+    if (element.isExpired(_config)) {
+      remove(key, entry);
+      return null;
+    }
+    entry.frequency++;
+    element.updateAccessStatistics();
+    return element;
+  }
+
+  public void put(Object key, Element element) {
+    if (key == null)
+      return;
+    NearEntry prev = _entries.put(key, new NearEntry(element));
+    if (prev == null && _size.incrementAndGet() > _maxSize
+        + _evictionBatchSize)
+      evict();
+  }
+
+  public void remove(Object key) {
+    if (key != null && _entries.remove(key) != null)
+      _size.decrementAndGet();
+  }
+
+  public void clear() {
+    for (Object key : _entries.keySet())
+      remove(key);
+  }
+
+  /****
+   * {@link CacheEventListenerAdapter} Interface
+   ****/
+
+  @Override
+  public void notifyElementRemoved(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyElementPut(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyElementUpdated(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyRemoveAll(Ehcache cache) {
+    clear();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void remove(Object key, NearEntry entry) {
+    if (_entries.remove(key, entry))
+      _size.decrementAndGet();
+  }
+
+  /**
+   * Only one thread evicts at a time. Others keep inserting, and the next
+   * insert past the limit triggers another round if needed.
+   */
+  private void evict() {
+
+    if (!_evicting.compareAndSet(false, true))
+      return;
+
+    try {
+
+      List<Map.Entry<Object, NearEntry>> entries = new ArrayList<Map.Entry<Object, NearEntry>>(
+          _entries.size());
+
+      for (Map.Entry<Object, NearEntry> entry : _entries.entrySet()) {
+        NearEntry nearEntry = entry.getValue();
+        if (nearEntry.element.isExpired(_config))
+          remove(entry.getKey(), nearEntry);
+        else
+          entries.add(entry);
+      }
+
+      int excess = _size.get() - (_maxSize - _evictionBatchSize);
+      if (excess > 0) {
+        /**
+         * Frequencies keep changing under us, so we sort a snapshot of them,
+         * packed together with the index of each entry
+         */
+        long[] order = new long[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+          long frequency = Math.max(0, entries.get(i).getValue().frequency);
+          order[i] = (frequency << 32) | i;
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < excess && i < order.length; i++) {
+          Map.Entry<Object, NearEntry> entry = entries.get((int) order[i]);
+          remove(entry.getKey(), entry.getValue());
+        }
+      }
+
+      for (NearEntry entry : _entries.values())
+        entry.frequency >>= 1;
+
+    } finally {
+      _evicting.set(false);
+    }
+  }
+
+  private static class NearEntry {
+
+    private final Element element;
+
+    /**
+     * Updated without synchronization, so concurrent hits may be lost. The
+     * count only needs to be roughly right.
+     */
+    private int frequency = 1;
+
+    public NearEntry(Element element) {
+      this.element = element;
+    }
+  }
+}
@@ -15,7 +15,13 @@
  */
 package org.onebusaway.container.cache;
 
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
 import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 
 import org.onebusaway.collections.PropertyPathExpression;
 
@@ -25,6 +31,11 @@ import org.onebusaway.collections.PropertyPathExpression;
  * and then applying a secondary {@link CacheableObjectKeyFactory} to the
  * result.
  * 
+ * When constructed with the declared type of the argument, the getter for
+ * each property in the path is looked up once, up front, instead of on every
+ * call. If a getter can't be found on the declared type, we fall back to the
+ * {@link PropertyPathExpression}.
+ * 
  * @author bdferris
  * @see CacheableObjectKeyFactory
  * @see DefaultCacheableKeyFactory
@@ -39,6 +50,8 @@ public class PropertyPathExpressionCacheableObjectKeyFactory implements
 
   private final CacheableObjectKeyFactory _objectKeyFactory;
 
+  private transient Method[] _getters;
+
   public PropertyPathExpressionCacheableObjectKeyFactory(
       PropertyPathExpression expression,
       CacheableObjectKeyFactory objectKeyFactory) {
@@ -46,8 +59,87 @@ public class PropertyPathExpressionCacheableObjectKeyFactory implements
     _objectKeyFactory = objectKeyFactory;
   }
 
+  /**
+   * 
+   * @param expression
+   * @param propertyPath the property path of the expression
+   * @param type the declared type of the argument the expression is applied to
+   * @param objectKeyFactory
+   */
+  public PropertyPathExpressionCacheableObjectKeyFactory(
+      PropertyPathExpression expression, String propertyPath, Class<?> type,
+      CacheableObjectKeyFactory objectKeyFactory) {
+    this(expression, objectKeyFactory);
+    _getters = getGetters(propertyPath, type);
+  }
+
   public CacheKeyInfo createKey(Object object) {
-    object = _expression.invoke(object);
+    Method[] getters = _getters;
+    if (getters != null)
+      object = invokeGetters(getters, object);
+    else
+      object = _expression.invoke(object);
     return _objectKeyFactory.createKey(object);
   }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static Object invokeGetters(Method[] getters, Object object) {
+    for (Method getter : getters) {
+      if (object == null)
+        return null;
+      try {
+        object = getter.invoke(object);
+      } catch (InvocationTargetException ex) {
+        throw new IllegalStateException("error invoking property getter "
+            + getter, ex.getCause());
+      } catch (IllegalAccessException ex) {
+        throw new IllegalStateException("error invoking property getter "
+            + getter, ex);
+      }
+    }
+    return object;
+  }
+
+  /**
+   * 
+   * @return the getter for each property in the path, or null if any of them
+   *         can't be determined from the declared types alone
+   */
+  private static Method[] getGetters(String propertyPath, Class<?> type) {
+    String[] properties = propertyPath.split("\\.");
+    Method[] getters = new Method[properties.length];
+    for (int i = 0; i < properties.length; i++) {
+      Method getter = getGetter(type, properties[i]);
+      if (getter == null)
+        return null;
+      getters[i] = getter;
+      type = getter.getReturnType();
+    }
+    return getters;
+  }
+
+  private static Method getGetter(Class<?> type, String property) {
+    try {
+      BeanInfo info = Introspector.getBeanInfo(type);
+      for (PropertyDescriptor desc : info.getPropertyDescriptors()) {
+        if (!desc.getName().equals(property))
+          continue;
+        Method getter = desc.getReadMethod();
+        if (getter != null) {
+          try {
+            getter.setAccessible(true);
+          } catch (SecurityException ex) {
+            return null;
+          }
+        }
+        return getter;
+      }
+    } catch (IntrospectionException ex) {
+      return null;
+    }
+    return null;
+  }
 }
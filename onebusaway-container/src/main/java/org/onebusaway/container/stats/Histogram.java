@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.container.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative long values, suitable for tracking
+ * latencies, batch sizes, and throughput from many threads at once and
+ * exposing summary statistics over JMX.
+ * 
+ * Values below {@value #SUB_BUCKETS} are counted exactly. Larger values are
+ * assigned to log-linear buckets: each power of two is split into
+ * {@value #SUB_BUCKETS} equal sub-buckets, which bounds the relative error of
+ * a reported percentile to 1/{@value #SUB_BUCKETS}, regardless of magnitude.
+ */
+public class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+
+  private final AtomicLong _count = new AtomicLong();
+
+  private final AtomicLong _sum = new AtomicLong();
+
+  private final AtomicLong _max = new AtomicLong();
+
+  /**
+   * 
+   * @param value a non-negative value - negative values are recorded as zero
+   */
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    _counts.incrementAndGet(getBucketIndex(value));
+    _count.incrementAndGet();
+    _sum.addAndGet(value);
+    while (true) {
+      long max = _max.get();
+      if (value <= max || _max.compareAndSet(max, value))
+        break;
+    }
+  }
+
+  public long getCount() {
+    return _count.get();
+  }
+
+  public long getMax() {
+    return _max.get();
+  }
+
+  public double getMean() {
+    long count = _count.get();
+    if (count == 0)
+      return 0;
+    return (double) _sum.get() / count;
+  }
+
+  /**
+   * 
+   * @param percentile between 0 and 100
+   * @return an upper bound on the value at the specified percentile, or zero if
+   *         no values have been recorded
+   */
+  public long getPercentile(double percentile) {
+
+    long count = _count.get();
+    if (count == 0)
+      return 0;
+
+    long target = (long) Math.ceil(percentile / 100.0 * count);
+    if (target < 1)
+      target = 1;
+
+    long cumulative = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      cumulative += _counts.get(i);
+      if (cumulative >= target)
+        return Math.min(getBucketUpperBound(i), _max.get());
+    }
+
+    return _max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++)
+      _counts.set(i, 0);
+    _count.set(0);
+    _sum.set(0);
+    _max.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "Histogram(count=" + getCount() + " mean=" + getMean() + " p50="
+        + getPercentile(50) + " p95=" + getPercentile(95) + " p99="
+        + getPercentile(99) + " max=" + getMax() + ")";
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  static int getBucketIndex(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long getBucketUpperBound(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    long lowerBound = (SUB_BUCKETS + subBucket) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+}
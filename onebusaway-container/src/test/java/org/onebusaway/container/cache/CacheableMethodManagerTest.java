@@ -16,9 +16,16 @@
 package org.onebusaway.container.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 
 import org.aspectj.lang.ProceedingJoinPoint;
@@ -64,5 +71,240 @@ public class CacheableMethodManagerTest {
 
     assertEquals("test", value);
     assertEquals(2, impl.getEvalauteBeanWithParameterAnnotationCount());
+
+    CacheableMethodStatistics statistics = manager.getStatistics(MockServiceImpl.class.getName()
+        + ".evalauteBeanWithParameterAnnotation");
+    assertEquals(1, statistics.getHits());
+    assertEquals(2, statistics.getMisses());
+    assertEquals(2, statistics.getLoads());
+
+    manager.stop();
+    cacheManager.shutdown();
+  }
+
+  @Test
+  public void testCoalesceLoads() throws Throwable {
+
+    CacheableMethodKeyFactoryManager factoryManager = new CacheableMethodKeyFactoryManager();
+    CacheManager cacheManager = new CacheManager(getClass().getResource(
+        "ehcache-test.xml"));
+
+    final CacheableMethodManager manager = new CacheableMethodManager();
+    manager.setCacheableMethodKeyFactoryManager(factoryManager);
+    manager.setCacheManager(cacheManager);
+    manager.setRegisterMBeans(false);
+
+    BlockingService service = new BlockingService();
+    Method method = BlockingService.class.getMethod("evaluate", String.class);
+    final ProceedingJoinPoint pjp = ProceedingJoinPointFactory.create(service,
+        service, BlockingService.class, method, "a");
+
+    final Object[] values = new Object[2];
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            values[index] = manager.evaluate(pjp);
+          } catch (Throwable ex) {
+            values[index] = ex;
+          }
+        }
+      };
+    }
+
+    threads[0].start();
+    assertTrue(service.entered.await(10, TimeUnit.SECONDS));
+    threads[1].start();
+
+    CacheableMethodStatistics statistics = manager.getStatistics(BlockingService.class.getName()
+        + ".evaluate");
+    long timeout = System.currentTimeMillis() + 10 * 1000;
+    while (statistics.getCoalesced() == 0
+        && System.currentTimeMillis() < timeout)
+      Thread.sleep(10);
+
+    service.release.countDown();
+    for (Thread thread : threads)
+      thread.join();
+
+    assertEquals("a", values[0]);
+    assertEquals("a", values[1]);
+    assertEquals(1, service.count.get());
+    assertEquals(2, statistics.getMisses());
+    assertEquals(1, statistics.getCoalesced());
+    assertEquals(1, statistics.getLoads());
+
+    manager.stop();
+    cacheManager.shutdown();
+  }
+
+  @Test
+  public void testNearCache() throws Throwable {
+
+    CacheableMethodKeyFactoryManager factoryManager = new CacheableMethodKeyFactoryManager();
+    CacheManager cacheManager = new CacheManager(getClass().getResource(
+        "ehcache-test.xml"));
+
+    CacheableMethodManager manager = new CacheableMethodManager();
+    manager.setCacheableMethodKeyFactoryManager(factoryManager);
+    manager.setCacheManager(cacheManager);
+    manager.setRegisterMBeans(false);
+
+    NearCachedService service = new NearCachedService();
+    Method method = NearCachedService.class.getMethod("evaluate",
+        String.class, String.class);
+    ProceedingJoinPoint pjp = ProceedingJoinPointFactory.create(service,
+        service, NearCachedService.class, method, "a", "b");
+
+    String cacheName = NearCachedService.class.getName() + ".evaluate";
+
+    assertEquals("ab", manager.evaluate(pjp));
+    assertEquals("ab", manager.evaluate(pjp));
+    assertEquals("ab", manager.evaluate(pjp));
+    assertEquals(1, service.count.get());
+
+    CacheableMethodStatistics statistics = manager.getStatistics(cacheName);
+    assertEquals(2, statistics.getHits());
+    assertEquals(2, statistics.getNearHits());
+
+    /**
+     * Clearing the backing cache should clear the near cache too
+     */
+    cacheManager.getCache(cacheName).removeAll();
+
+    assertEquals("ab", manager.evaluate(pjp));
+    assertEquals(2, service.count.get());
+    assertEquals(2, statistics.getNearHits());
+
+    manager.stop();
+    cacheManager.shutdown();
+  }
+
+  @Test
+  public void testStaleWhileRevalidate() throws Throwable {
+
+    CacheableMethodKeyFactoryManager factoryManager = new CacheableMethodKeyFactoryManager();
+    CacheManager cacheManager = new CacheManager(getClass().getResource(
+        "ehcache-test.xml"));
+
+    String cacheName = StaleService.class.getName() + ".evaluate";
+    cacheManager.addCache(new Cache(cacheName, 50, false, false, 1, 0));
+
+    ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+
+    CacheableMethodManager manager = new CacheableMethodManager();
+    manager.setCacheableMethodKeyFactoryManager(factoryManager);
+    manager.setCacheManager(cacheManager);
+    manager.setRefreshExecutor(refreshExecutor);
+    manager.setRegisterMBeans(false);
+
+    StaleService service = new StaleService();
+    Method method = StaleService.class.getMethod("evaluate", String.class);
+    ProceedingJoinPoint pjp = ProceedingJoinPointFactory.create(service,
+        service, StaleService.class, method, "a");
+
+    assertEquals("a1", manager.evaluate(pjp));
+    CacheableMethodStatistics statistics = manager.getStatistics(cacheName);
+
+    /**
+     * Once the value has outlived the one second time-to-live, it's still
+     * returned while a single background call refreshes it
+     */
+    Thread.sleep(1100);
+    service.release = new CountDownLatch(1);
+
+    assertEquals("a1", manager.evaluate(pjp));
+    assertTrue(service.entered.await(10, TimeUnit.SECONDS));
+    assertEquals("a1", manager.evaluate(pjp));
+    assertEquals("a1", manager.evaluate(pjp));
+    assertEquals(3, statistics.getStaleHits());
+
+    service.release.countDown();
+    waitFor(statistics, 2, 0);
+
+    assertEquals("a2", manager.evaluate(pjp));
+    assertEquals(2, service.count.get());
+    assertEquals(3, statistics.getStaleHits());
+    assertEquals(1, statistics.getMisses());
+
+    /**
+     * A failed refresh keeps the stale value around
+     */
+    Thread.sleep(1100);
+    service.failing = true;
+
+    assertEquals("a2", manager.evaluate(pjp));
+    waitFor(statistics, 3, 1);
+
+    assertEquals("a2", manager.evaluate(pjp));
+    assertEquals(1, statistics.getMisses());
+
+    manager.stop();
+    refreshExecutor.shutdownNow();
+    cacheManager.shutdown();
+  }
+
+  private static void waitFor(CacheableMethodStatistics statistics,
+      long loads, long loadFailures) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 10 * 1000;
+    while ((statistics.getLoads() < loads
+        || statistics.getLoadFailures() < loadFailures)
+        && System.currentTimeMillis() < timeout)
+      Thread.sleep(10);
+    assertEquals(loads, statistics.getLoads());
+    assertEquals(loadFailures, statistics.getLoadFailures());
+  }
+
+  public static class BlockingService {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Cacheable
+    public String evaluate(String value) throws InterruptedException {
+      count.incrementAndGet();
+      entered.countDown();
+      release.await();
+      return value;
+    }
+  }
+
+  public static class NearCachedService {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Cacheable(isValueSerializable = false, nearCacheSize = 10)
+    public String evaluate(String a, String b) {
+      count.incrementAndGet();
+      return a + b;
+    }
+  }
+
+  public static class StaleService {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    private volatile boolean failing = false;
+
+    @Cacheable(staleWhileRevalidate = 60)
+    public String evaluate(String value) throws InterruptedException {
+      if (failing)
+        throw new IllegalStateException("refresh failed");
+      int n = count.incrementAndGet();
+      if (n > 1)
+        entered.countDown();
+      release.await();
+      return value + n;
+    }
   }
 }
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.container.stats;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+  @Test
+  public void testEmpty() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0.0, histogram.getMean(), 0.0);
+    assertEquals(0, histogram.getPercentile(99));
+  }
+
+  @Test
+  public void testPercentiles() {
+
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 1000; i++)
+      histogram.record(i);
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500.5, histogram.getMean(), 0.0);
+    assertEquals(1000, histogram.getMax());
+
+    assertPercentile(500, histogram.getPercentile(50));
+    assertPercentile(950, histogram.getPercentile(95));
+    assertPercentile(990, histogram.getPercentile(99));
+    assertEquals(1000, histogram.getPercentile(100));
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void testBuckets() {
+    for (long value : new long[] {0, 1, 7, 8, 15, 16, 17, 1000, 123456789L,
+        Long.MAX_VALUE}) {
+      int index = Histogram.getBucketIndex(value);
+      long upperBound = Histogram.getBucketUpperBound(index);
+      assertEquals(true, value <= upperBound);
+      if (index > 0)
+        assertEquals(true, value > Histogram.getBucketUpperBound(index - 1));
+    }
+  }
+
+  private void assertPercentile(long expected, long actual) {
+    assertEquals(true, actual >= expected);
+    assertEquals(true, actual <= expected + expected / Histogram.SUB_BUCKETS);
+  }
+}
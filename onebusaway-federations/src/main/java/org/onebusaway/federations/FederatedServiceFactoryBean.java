@@ -37,6 +37,10 @@ import org.springframework.beans.factory.config.AbstractFactoryBean;
  * </bean>
  * </pre>
  * 
+ * Aggregate methods are fanned out to all services concurrently. Set the
+ * "fanOut" property to a {@link FederatedServiceFanOut} to configure the call
+ * deadline and backoff, or to monitor the health of each service.
+ * 
  * @author bdferris
  * @see FederatedService
  * @see FederatedServiceCollection
@@ -49,6 +53,8 @@ public class FederatedServiceFactoryBean extends AbstractFactoryBean<Object> {
 
   private FederatedServiceCollection _collection;
 
+  private FederatedServiceFanOut _fanOut;
+
   public void setServiceInterface(Class<?> serviceInterface) {
     _serviceInterface = serviceInterface;
   }
@@ -57,6 +63,10 @@ public class FederatedServiceFactoryBean extends AbstractFactoryBean<Object> {
     _collection = collection;
   }
 
+  public void setFanOut(FederatedServiceFanOut fanOut) {
+    _fanOut = fanOut;
+  }
+
   @Override
   public Class<?> getObjectType() {
     return _serviceInterface;
@@ -85,9 +95,13 @@ public class FederatedServiceFactoryBean extends AbstractFactoryBean<Object> {
   }
 
   private Map<Method, FederatedServiceMethodInvocationHandler> getMethodHandlers() {
+    FederatedServiceMethodInvocationHandlerFactory handlerFactory = _handlerFactory;
+    if (_fanOut != null)
+      handlerFactory = new FederatedServiceMethodInvocationHandlerFactory(
+          _fanOut);
     Map<Method, FederatedServiceMethodInvocationHandler> handlers = new HashMap<Method, FederatedServiceMethodInvocationHandler>();
     for (Method method : _serviceInterface.getDeclaredMethods()) {
-      FederatedServiceMethodInvocationHandler handler = _handlerFactory.getHandlerForMethod(method);
+      FederatedServiceMethodInvocationHandler handler = handlerFactory.getHandlerForMethod(method);
       handlers.put(method, handler);
     }
     return handlers;
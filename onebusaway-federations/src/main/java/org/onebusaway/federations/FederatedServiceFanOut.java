@@ -0,0 +1,372 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.federations;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.onebusaway.exceptions.ServiceException;
+import org.onebusaway.exceptions.TimeoutServiceException;
+import org.onebusaway.federations.annotations.FederatedByAggregateMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.caucho.hessian.client.HessianRuntimeException;
+
+/**
+ * Invokes a method on a number of {@link FederatedService} instances
+ * concurrently, as is done for {@link FederatedByAggregateMethod} methods.
+ * Every call is bounded by a deadline: services that have not answered by the
+ * deadline are left out of the results, so that a slow or dead service can't
+ * hold up the whole call. The health of each service is tracked in a
+ * {@link FederatedServiceStatus}, and a service that keeps failing is skipped
+ * for an exponentially growing backoff interval.
+ * 
+ * Only timeouts and transport failures count against the health of a service.
+ * A service that throws an exception of its own, a {@link ServiceException}
+ * for example, is working just fine. Either way, a service that fails is left
+ * out of the results, unless no service produced a result, in which case the
+ * first exception is rethrown. If every service missed the deadline, a
+ * {@link TimeoutServiceException} is thrown instead.
+ * 
+ * @author bdferris
+ * @see FederatedServiceStatus
+ */
+public class FederatedServiceFanOut {
+
+  private static Logger _log = LoggerFactory.getLogger(FederatedServiceFanOut.class);
+
+  private final ConcurrentMap<FederatedService, FederatedServiceStatus> _statusByService = new ConcurrentHashMap<FederatedService, FederatedServiceStatus>();
+
+  private ExecutorService _executor;
+
+  private boolean _ownsExecutor = false;
+
+  private long _timeout = 10 * 1000;
+
+  private int _failuresBeforeBackoff = 3;
+
+  private long _minBackoff = 1000;
+
+  private long _maxBackoff = 60 * 1000;
+
+  private int _maxThreads = 32;
+
+  private int _maxQueuedCalls = 256;
+
+  /**
+   * By default, calls are run on an internal, bounded pool of daemon threads.
+   * 
+   * @param executor
+   */
+  public synchronized void setExecutor(ExecutorService executor) {
+    _executor = executor;
+    _ownsExecutor = false;
+  }
+
+  /**
+   * 
+   * @param timeout the per-call deadline in ms, or 0 to wait for every service
+   */
+  public void setTimeout(long timeout) {
+    _timeout = timeout;
+  }
+
+  public void setFailuresBeforeBackoff(int failuresBeforeBackoff) {
+    _failuresBeforeBackoff = failuresBeforeBackoff;
+  }
+
+  /**
+   * 
+   * @param minBackoff in ms
+   */
+  public void setMinBackoff(long minBackoff) {
+    _minBackoff = minBackoff;
+  }
+
+  /**
+   * 
+   * @param maxBackoff in ms
+   */
+  public void setMaxBackoff(long maxBackoff) {
+    _maxBackoff = maxBackoff;
+  }
+
+  /**
+   * 
+   * @param maxThreads the size of the internal thread pool
+   */
+  public void setMaxThreads(int maxThreads) {
+    _maxThreads = maxThreads;
+  }
+
+  /**
+   * Calls that can't be queued for the internal thread pool are not made at
+   * all, and the service is left out of the results.
+   * 
+   * @param maxQueuedCalls
+   */
+  public void setMaxQueuedCalls(int maxQueuedCalls) {
+    _maxQueuedCalls = maxQueuedCalls;
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    if (_ownsExecutor) {
+      _executor.shutdownNow();
+      _executor = null;
+      _ownsExecutor = false;
+    }
+  }
+
+  /**
+   * @return the health of every service called so far
+   */
+  public Map<FederatedService, FederatedServiceStatus> getServiceStatus() {
+    return Collections.unmodifiableMap(new HashMap<FederatedService, FederatedServiceStatus>(
+        _statusByService));
+  }
+
+  /**
+   * @param service
+   * @return the health of the specified service, or null if it hasn't been
+   *         called
+   */
+  public FederatedServiceStatus getServiceStatus(FederatedService service) {
+    return _statusByService.get(service);
+  }
+
+  /**
+   * Invokes the method on each of the services and returns the results of the
+   * services that answered before the deadline. Services that are backing off
+   * are skipped, unless all of them are.
+   * 
+   * @param services
+   * @param method
+   * @param args
+   * @return the results, in no particular order
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException if no service produced a result
+   * @throws TimeoutServiceException if no service answered before the deadline
+   */
+  public List<Object> invokeAll(Collection<FederatedService> services,
+      Method method, Object[] args) throws IllegalAccessException,
+      InvocationTargetException {
+
+    long tIn = System.currentTimeMillis();
+
+    List<FederatedService> targets = new ArrayList<FederatedService>(
+        services.size());
+    for (FederatedService service : services) {
+      if (!getStatus(service).isBackingOff(tIn))
+        targets.add(service);
+    }
+
+    if (targets.isEmpty())
+      targets.addAll(services);
+
+    ExecutorService executor = getExecutor();
+    Map<FederatedService, Future<Object>> futures = new LinkedHashMap<FederatedService, Future<Object>>();
+    for (FederatedService service : targets) {
+      try {
+        futures.put(service, executor.submit(new MethodCall(service, method,
+            args)));
+      } catch (RejectedExecutionException ex) {
+        _log.warn("too many calls queued, skipping service " + service
+            + " for " + method.getName());
+      }
+    }
+
+    List<Object> results = new ArrayList<Object>(futures.size());
+    Throwable firstFailure = null;
+
+    try {
+      for (Map.Entry<FederatedService, Future<Object>> entry : futures.entrySet()) {
+
+        FederatedService service = entry.getKey();
+        Future<Object> future = entry.getValue();
+        FederatedServiceStatus status = getStatus(service);
+
+        try {
+          Object result;
+          if (_timeout > 0) {
+            long remaining = tIn + _timeout - System.currentTimeMillis();
+            result = future.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+          } else {
+            result = future.get();
+          }
+          status.success(System.currentTimeMillis() - tIn);
+          results.add(result);
+        } catch (TimeoutException ex) {
+          future.cancel(true);
+          _log.warn("service " + service + " missed the " + _timeout
+              + "ms deadline for " + method.getName());
+          failure(status, true, "timeout");
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (isTransportFailure(cause)) {
+            _log.warn("service " + service + " failed for " + method.getName(),
+                cause);
+            failure(status, false, cause.toString());
+          } else {
+            status.success(System.currentTimeMillis() - tIn);
+          }
+          if (firstFailure == null)
+            firstFailure = cause;
+        }
+      }
+    } catch (InterruptedException ex) {
+      for (Future<Object> future : futures.values())
+        future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ServiceException("interrupted calling " + method.getName(),
+          ex);
+    }
+
+    if (results.isEmpty() && !targets.isEmpty()) {
+      if (firstFailure != null)
+        rethrow(firstFailure);
+      throw new TimeoutServiceException("no service answered "
+          + method.getName() + " within " + _timeout + "ms");
+    }
+
+    return results;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private FederatedServiceStatus getStatus(FederatedService service) {
+    FederatedServiceStatus status = _statusByService.get(service);
+    if (status == null) {
+      status = new FederatedServiceStatus();
+      FederatedServiceStatus existing = _statusByService.putIfAbsent(service,
+          status);
+      if (existing != null)
+        status = existing;
+    }
+    return status;
+  }
+
+  private void failure(FederatedServiceStatus status, boolean timeout,
+      String message) {
+    status.failure(System.currentTimeMillis(), timeout, message,
+        _failuresBeforeBackoff, _minBackoff, _maxBackoff);
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (_executor == null) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(_maxThreads,
+          _maxThreads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(_maxQueuedCalls),
+          new DaemonThreadFactory());
+      executor.allowCoreThreadTimeOut(true);
+      _executor = executor;
+      _ownsExecutor = true;
+    }
+    return _executor;
+  }
+
+  /**
+   * Methods are called through {@link Method#invoke(Object, Object...)}, so
+   * whatever the service threw is wrapped in an
+   * {@link InvocationTargetException}. Remote services throw a
+   * {@link HessianRuntimeException} or an {@link IOException} when they can't
+   * be reached.
+   */
+  private static boolean isTransportFailure(Throwable ex) {
+    if (ex instanceof InvocationTargetException)
+      ex = ((InvocationTargetException) ex).getTargetException();
+    if (ex instanceof ServiceException)
+      return false;
+    while (ex != null) {
+      if (ex instanceof HessianRuntimeException || ex instanceof IOException)
+        return true;
+      ex = ex.getCause();
+    }
+    return false;
+  }
+
+  private static void rethrow(Throwable ex) throws IllegalAccessException,
+      InvocationTargetException {
+    if (ex instanceof InvocationTargetException)
+      throw (InvocationTargetException) ex;
+    if (ex instanceof IllegalAccessException)
+      throw (IllegalAccessException) ex;
+    if (ex instanceof RuntimeException)
+      throw (RuntimeException) ex;
+    if (ex instanceof Error)
+      throw (Error) ex;
+    throw new ServiceException(ex);
+  }
+
+  private static class MethodCall implements Callable<Object> {
+
+    private final FederatedService _service;
+
+    private final Method _method;
+
+    private final Object[] _args;
+
+    public MethodCall(FederatedService service, Method method, Object[] args) {
+      _service = service;
+      _method = method;
+      _args = args;
+    }
+
+    @Override
+    public Object call() throws Exception {
+      return _method.invoke(_service, _args);
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger _index = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "FederatedServiceFanOut-"
+          + _index.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.federations;
+
+/**
+ * Health of a single {@link FederatedService} instance, as observed by a
+ * {@link FederatedServiceFanOut}. A service that fails or misses the call
+ * deadline enough times in a row is skipped for a backoff interval that
+ * doubles with every further failure, and is tried again once the interval
+ * has passed.
+ * 
+ * @author bdferris
+ * @see FederatedServiceFanOut
+ */
+public final class FederatedServiceStatus {
+
+  private int _consecutiveFailures = 0;
+
+  private long _callCount = 0;
+
+  private long _failureCount = 0;
+
+  private long _timeoutCount = 0;
+
+  private long _lastLatency = -1;
+
+  private long _backoffUntil = 0;
+
+  private long _backoff = 0;
+
+  private String _lastFailure;
+
+  public synchronized int getConsecutiveFailures() {
+    return _consecutiveFailures;
+  }
+
+  public synchronized long getCallCount() {
+    return _callCount;
+  }
+
+  /**
+   * @return the number of failed calls, including missed deadlines
+   */
+  public synchronized long getFailureCount() {
+    return _failureCount;
+  }
+
+  public synchronized long getTimeoutCount() {
+    return _timeoutCount;
+  }
+
+  /**
+   * @return the latency of the last successful call in ms, or -1 if there
+   *         has been none
+   */
+  public synchronized long getLastLatency() {
+    return _lastLatency;
+  }
+
+  /**
+   * @return the time until which the service is skipped, or 0 if it is not
+   *         being backed off
+   */
+  public synchronized long getBackoffUntil() {
+    return _backoffUntil;
+  }
+
+  public synchronized String getLastFailure() {
+    return _lastFailure;
+  }
+
+  public synchronized boolean isBackingOff(long time) {
+    return time < _backoffUntil;
+  }
+
+  synchronized void success(long latency) {
+    _callCount++;
+    _consecutiveFailures = 0;
+    _lastLatency = latency;
+    _backoff = 0;
+    _backoffUntil = 0;
+  }
+
+  synchronized void failure(long time, boolean timeout, String message,
+      int failuresBeforeBackoff, long minBackoff, long maxBackoff) {
+    _callCount++;
+    _failureCount++;
+    if (timeout)
+      _timeoutCount++;
+    _consecutiveFailures++;
+    _lastFailure = message;
+    if (_consecutiveFailures >= failuresBeforeBackoff) {
+      _backoff = _backoff == 0 ? minBackoff : Math.min(_backoff * 2,
+          maxBackoff);
+      _backoffUntil = time + _backoff;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "FederatedServiceStatus(calls=" + _callCount + " failures="
+        + _failureCount + " timeouts=" + _timeoutCount
+        + " consecutiveFailures=" + _consecutiveFailures + " lastLatency="
+        + _lastLatency + " backoffUntil=" + _backoffUntil + ")";
+  }
+}
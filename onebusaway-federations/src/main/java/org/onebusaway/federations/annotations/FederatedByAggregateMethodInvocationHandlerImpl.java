@@ -16,8 +16,8 @@
 package org.onebusaway.federations.annotations;
 
 import org.onebusaway.exceptions.ServiceAreaServiceException;
-import org.onebusaway.federations.FederatedService;
 import org.onebusaway.federations.FederatedServiceCollection;
+import org.onebusaway.federations.FederatedServiceFanOut;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -28,7 +28,9 @@ import java.util.Map;
 
 /**
  * Provides a {@link FederatedServiceMethodInvocationHandler} implementation for
- * the {@link FederatedByAggregateMethod} annotation.
+ * the {@link FederatedByAggregateMethod} annotation. The method is invoked on
+ * all services concurrently through a {@link FederatedServiceFanOut}, and the
+ * results of the services that answered within its deadline are aggregated.
  * 
  * @author bdferris
  */
@@ -36,8 +38,16 @@ class FederatedByAggregateMethodInvocationHandlerImpl implements FederatedServic
 
   private EMethodAggregationType _aggregationType;
 
+  private FederatedServiceFanOut _fanOut;
+
   public FederatedByAggregateMethodInvocationHandlerImpl(EMethodAggregationType aggregationType) {
+    this(aggregationType, new FederatedServiceFanOut());
+  }
+
+  public FederatedByAggregateMethodInvocationHandlerImpl(
+      EMethodAggregationType aggregationType, FederatedServiceFanOut fanOut) {
     _aggregationType = aggregationType;
+    _fanOut = fanOut;
   }
   
   public EMethodAggregationType getAggregationType() {
@@ -47,10 +57,8 @@ class FederatedByAggregateMethodInvocationHandlerImpl implements FederatedServic
   public Object invoke(FederatedServiceCollection collection, Method method, Object[] args)
       throws ServiceAreaServiceException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
 
-    List<Object> results = new ArrayList<Object>();
-
-    for (FederatedService service : collection.getAllServices())
-      results.add(method.invoke(service, args));
+    List<Object> results = _fanOut.invokeAll(collection.getAllServices(),
+        method, args);
 
     return aggregateResults(results);
   }
@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.onebusaway.exceptions.ServiceException;
+import org.onebusaway.federations.FederatedServiceFanOut;
 
 /**
  * This factory can be used to examine a Method signature and create an
@@ -39,6 +40,21 @@ import org.onebusaway.exceptions.ServiceException;
  */
 public class FederatedServiceMethodInvocationHandlerFactory {
 
+  private final FederatedServiceFanOut _fanOut;
+
+  public FederatedServiceMethodInvocationHandlerFactory() {
+    this(new FederatedServiceFanOut());
+  }
+
+  /**
+   * 
+   * @param fanOut used by the handlers that call more than one service
+   */
+  public FederatedServiceMethodInvocationHandlerFactory(
+      FederatedServiceFanOut fanOut) {
+    _fanOut = fanOut;
+  }
+
   public FederatedServiceMethodInvocationHandler getHandlerForMethod(
       Method method) {
 
@@ -78,7 +94,7 @@ public class FederatedServiceMethodInvocationHandlerFactory {
     if (ann4 != null) {
       EMethodAggregationType aggregationType = getAggregationTypeForMethod(method);
       return new FederatedByAggregateMethodInvocationHandlerImpl(
-          aggregationType);
+          aggregationType, _fanOut);
     }
 
     FederatedByCoordinateBoundsMethod ann5 = method.getAnnotation(FederatedByCoordinateBoundsMethod.class);
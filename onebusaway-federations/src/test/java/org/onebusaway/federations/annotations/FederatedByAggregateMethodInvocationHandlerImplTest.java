@@ -16,15 +16,27 @@
 package org.onebusaway.federations.annotations;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.onebusaway.exceptions.NoSuchStopServiceException;
+import org.onebusaway.exceptions.TimeoutServiceException;
 
 import org.onebusaway.federations.FederatedService;
 import org.onebusaway.federations.FederatedServiceCollection;
+import org.onebusaway.federations.FederatedServiceFanOut;
+import org.onebusaway.federations.FederatedServiceStatus;
 import org.onebusaway.federations.SimpleFederatedService;
 import org.onebusaway.federations.impl.FederatedServiceCollectionImpl;
 
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.caucho.hessian.client.HessianConnectionException;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Collections;
@@ -109,4 +121,125 @@ public class FederatedByAggregateMethodInvocationHandlerImplTest {
     assertEquals("c3",results.get("c"));
     assertEquals("d4",results.get("d"));
   }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testDeadlineAndBackoff() throws Exception {
+
+    SimpleFederatedService mockServiceA = Mockito.mock(SimpleFederatedService.class);
+    Mockito.when(mockServiceA.getValuesAsList()).thenReturn(Arrays.asList("a","b"));
+
+    SimpleFederatedService mockServiceB = Mockito.mock(SimpleFederatedService.class);
+    Mockito.when(mockServiceB.getValuesAsList()).thenAnswer(new Answer<List<String>>() {
+      @Override
+      public List<String> answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(5000);
+        return Arrays.asList("c");
+      }
+    });
+
+    Set<FederatedService> services = new HashSet<FederatedService>();
+    services.add(mockServiceA);
+    services.add(mockServiceB);
+
+    FederatedServiceCollection mockCollection = Mockito.mock(FederatedServiceCollectionImpl.class);
+    Mockito.when(mockCollection.getAllServices()).thenReturn(services);
+
+    Method method = SimpleFederatedService.class.getDeclaredMethod("getValuesAsList");
+
+    FederatedServiceFanOut fanOut = new FederatedServiceFanOut();
+    fanOut.setTimeout(100);
+    fanOut.setFailuresBeforeBackoff(1);
+    fanOut.setMinBackoff(60 * 1000);
+
+    FederatedServiceMethodInvocationHandler handler = new FederatedByAggregateMethodInvocationHandlerImpl(EMethodAggregationType.LIST, fanOut);
+
+    long tIn = System.currentTimeMillis();
+    List<String> results = (List<String>) handler.invoke(mockCollection, method, new Object[] {});
+    assertTrue(System.currentTimeMillis() - tIn < 2000);
+
+    assertEquals(Arrays.asList("a","b"),results);
+
+    FederatedServiceStatus statusB = fanOut.getServiceStatus(mockServiceB);
+    assertEquals(1,statusB.getTimeoutCount());
+    assertTrue(statusB.isBackingOff(System.currentTimeMillis()));
+    assertEquals(0,fanOut.getServiceStatus(mockServiceA).getFailureCount());
+
+    // The slow service is skipped while it is backing off
+    results = (List<String>) handler.invoke(mockCollection, method, new Object[] {});
+    assertEquals(Arrays.asList("a","b"),results);
+
+    Mockito.verify(mockServiceA,Mockito.times(2)).getValuesAsList();
+    Mockito.verify(mockServiceB,Mockito.times(1)).getValuesAsList();
+
+    fanOut.stop();
+  }
+
+  @Test
+  public void testFailures() throws Exception {
+
+    SimpleFederatedService mockServiceA = Mockito.mock(SimpleFederatedService.class);
+    Mockito.when(mockServiceA.getValuesAsList()).thenThrow(new NoSuchStopServiceException("stop"));
+
+    SimpleFederatedService mockServiceB = Mockito.mock(SimpleFederatedService.class);
+    Mockito.when(mockServiceB.getValuesAsList()).thenThrow(new HessianConnectionException("connection refused"));
+
+    Set<FederatedService> services = new HashSet<FederatedService>();
+    services.add(mockServiceA);
+    services.add(mockServiceB);
+
+    FederatedServiceCollection mockCollection = Mockito.mock(FederatedServiceCollectionImpl.class);
+    Mockito.when(mockCollection.getAllServices()).thenReturn(services);
+
+    Method method = SimpleFederatedService.class.getDeclaredMethod("getValuesAsList");
+
+    FederatedServiceFanOut fanOut = new FederatedServiceFanOut();
+    fanOut.setFailuresBeforeBackoff(1);
+
+    try {
+      fanOut.invokeAll(services, method, new Object[] {});
+      fail();
+    } catch (InvocationTargetException ex) {
+      // One of the two exceptions is rethrown
+    }
+
+    // A service that throws its own exceptions is still healthy
+    assertEquals(0,fanOut.getServiceStatus(mockServiceA).getFailureCount());
+    assertEquals(1,fanOut.getServiceStatus(mockServiceB).getFailureCount());
+    assertTrue(fanOut.getServiceStatus(mockServiceB).isBackingOff(System.currentTimeMillis()));
+
+    fanOut.stop();
+  }
+
+  @Test
+  public void testAllServicesMissDeadline() throws Exception {
+
+    SimpleFederatedService mockServiceA = Mockito.mock(SimpleFederatedService.class);
+    Mockito.when(mockServiceA.getValuesAsList()).thenAnswer(new Answer<List<String>>() {
+      @Override
+      public List<String> answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(5000);
+        return Arrays.asList("a");
+      }
+    });
+
+    Set<FederatedService> services = new HashSet<FederatedService>();
+    services.add(mockServiceA);
+
+    Method method = SimpleFederatedService.class.getDeclaredMethod("getValuesAsList");
+
+    FederatedServiceFanOut fanOut = new FederatedServiceFanOut();
+    fanOut.setTimeout(100);
+
+    try {
+      fanOut.invokeAll(services, method, new Object[] {});
+      fail();
+    } catch (TimeoutServiceException ex) {
+
+    }
+
+    assertEquals(1,fanOut.getServiceStatus(mockServiceA).getTimeoutCount());
+
+    fanOut.stop();
+  }
 }
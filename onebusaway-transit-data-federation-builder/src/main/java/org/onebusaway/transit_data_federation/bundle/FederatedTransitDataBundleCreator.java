@@ -21,16 +21,26 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.onebusaway.collections.CollectionsLibrary;
 import org.onebusaway.container.ContainerLibrary;
 import org.onebusaway.container.spring.PropertyOverrideConfigurer;
 import org.onebusaway.transit_data_federation.bundle.model.GtfsBundle;
+import org.onebusaway.transit_data_federation.bundle.model.GtfsBundles;
+import org.onebusaway.transit_data_federation.bundle.model.ReusableOutputsTask;
 import org.onebusaway.transit_data_federation.bundle.model.TaskDefinition;
 import org.onebusaway.transit_data_federation.impl.DirectedGraph;
 import org.onebusaway.transit_data_federation.services.FederatedTransitDataBundle;
@@ -61,6 +71,13 @@ import org.springframework.context.ConfigurableApplicationContext;
  * 
  * {@value #BUNDLE_RESOURCE}
  * 
+ * Tasks that declare their inputs and outputs (see
+ * {@link TaskDefinition#getOutputs()}) can run concurrently with one another
+ * when {@link #setTaskThreads(int)} is greater than one, and their outputs can
+ * be reused from a previous build of the same bundle path when
+ * {@link #setReuseTaskOutputs(boolean)} is enabled and their inputs are
+ * unchanged. All other tasks run one at a time, in order.
+ * 
  * @author bdferris
  * @see FederatedTransitDataBundleCreatorMain
  */
@@ -90,6 +107,10 @@ public class FederatedTransitDataBundleCreator {
 
   private String _bundleKey;
 
+  private int _taskThreads = 1;
+
+  private boolean _reuseTaskOutputs = false;
+
   /**
    * 
    * @param context
@@ -150,6 +171,28 @@ public class FederatedTransitDataBundleCreator {
     _additionalBeanPropertyOverrides = props;
   }
 
+  /**
+   * 
+   * @param taskThreads the number of tasks with declared outputs that may run
+   *          at the same time
+   */
+  public void setTaskThreads(int taskThreads) {
+    _taskThreads = taskThreads;
+  }
+
+  /**
+   * Inputs are compared by content, so tasks that read the transit graph are
+   * only reused reliably when the transit graph stage is skipped too. See
+   * {@link TaskOutputCache}.
+   * 
+   * @param reuseTaskOutputs if true, a task with declared outputs is not run
+   *          again when its inputs hash the same as they did the last time it
+   *          ran against this bundle path
+   */
+  public void setReuseTaskOutputs(boolean reuseTaskOutputs) {
+    _reuseTaskOutputs = reuseTaskOutputs;
+  }
+
   /**
    * Build the bundle!
    * 
@@ -181,24 +224,12 @@ public class FederatedTransitDataBundleCreator {
     FederatedTransitDataBundle bundle = context.getBean(FederatedTransitDataBundle.class);
     clearExistingCacheFiles(bundle);
 
-    for (TaskDefinition def : taskDefinitions) {
-      String taskName = def.getTaskName();
-      if (taskNames.contains(taskName)) {
-        System.out.println("== " + taskName + " =====>");
-        Runnable task = getTask(context, def.getTask(), def.getTaskBeanName());
-        if (task == null)
-          throw new IllegalStateException("unknown task bean with name: "
-              + taskName);
-        task.run();
-      } else {
-        Runnable task = getTask(context, def.getTaskWhenSkipped(),
-            def.getTaskWhenSkippedBeanName());
-        if (task != null) {
-          System.out.println("== skipping " + taskName + " =====>");
-          task.run();
-        }
-      }
-    }
+    TaskOutputCache outputCache = null;
+    if (_reuseTaskOutputs)
+      outputCache = new TaskOutputCache(bundle.getPath(),
+          getGtfsBundles(context));
+
+    runTasks(context, taskDefinitions, taskNames, outputCache);
 
     // We don't need this context anymore
     if (closeContextOnCompletion) {
@@ -288,6 +319,113 @@ public class FederatedTransitDataBundleCreator {
     }
   }
 
+  /**
+   * Runs each task once all of the tasks it depends on have completed. With a
+   * single thread, this is the same as running the tasks in order.
+   */
+  private void runTasks(ApplicationContext context,
+      List<TaskDefinition> taskDefinitions, Set<String> taskNames,
+      TaskOutputCache outputCache) {
+
+    Map<String, Set<String>> dependencies = getTaskDependencies(taskDefinitions);
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+        _taskThreads));
+    CompletionService<String> completionService = new ExecutorCompletionService<String>(
+        executor);
+
+    Set<String> submitted = new HashSet<String>();
+    int completed = 0;
+
+    try {
+      while (completed < taskDefinitions.size()) {
+
+        for (TaskDefinition def : taskDefinitions) {
+          String taskName = def.getTaskName();
+          if (!submitted.contains(taskName)
+              && dependencies.get(taskName).isEmpty()) {
+            submitted.add(taskName);
+            completionService.submit(new TaskRunner(context, def,
+                taskNames.contains(taskName), outputCache));
+          }
+        }
+
+        String taskName = waitForTask(completionService);
+        completed++;
+
+        for (Set<String> remaining : dependencies.values())
+          remaining.remove(taskName);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Determines, for each task, the earlier tasks that must complete before it
+   * can start. A task that does not declare its outputs depends on every
+   * earlier task, and every later task depends on it. Two tasks that both
+   * declare their outputs depend on one another only if one reads or writes
+   * something the other writes.
+   * 
+   * @param taskDefinitions in topological order
+   * @return the names of the tasks each task depends on, keyed by task name
+   */
+  static Map<String, Set<String>> getTaskDependencies(
+      List<TaskDefinition> taskDefinitions) {
+
+    Map<String, Set<String>> dependencies = new LinkedHashMap<String, Set<String>>();
+
+    for (int j = 0; j < taskDefinitions.size(); j++) {
+      TaskDefinition later = taskDefinitions.get(j);
+      Set<String> dependsOn = new HashSet<String>();
+      for (int i = 0; i < j; i++) {
+        TaskDefinition earlier = taskDefinitions.get(i);
+        if (!earlier.hasDeclaredOutputs() || !later.hasDeclaredOutputs()
+            || intersects(earlier.getOutputs(), later.getInputs())
+            || intersects(earlier.getOutputs(), later.getOutputs())
+            || intersects(earlier.getInputs(), later.getOutputs()))
+          dependsOn.add(earlier.getTaskName());
+      }
+      dependencies.put(later.getTaskName(), dependsOn);
+    }
+
+    return dependencies;
+  }
+
+  private static boolean intersects(List<String> a, List<String> b) {
+    for (String value : a) {
+      if (b.contains(value))
+        return true;
+    }
+    return false;
+  }
+
+  private String waitForTask(CompletionService<String> completionService) {
+    try {
+      Future<String> future = completionService.take();
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while running tasks", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private List<GtfsBundle> getGtfsBundles(ApplicationContext context) {
+    List<GtfsBundle> gtfsBundles = new ArrayList<GtfsBundle>();
+    for (GtfsBundles bundles : context.getBeansOfType(GtfsBundles.class).values())
+      gtfsBundles.addAll(bundles.getBundles());
+    gtfsBundles.addAll(context.getBeansOfType(GtfsBundle.class).values());
+    return gtfsBundles;
+  }
+
   private Runnable getTask(ApplicationContext context, Runnable task,
       String taskBeanName) {
 
@@ -403,4 +541,65 @@ public class FederatedTransitDataBundleCreator {
     return _onlyTasks.contains(taskDef.getTaskName())
         || _includeTasks.contains(taskDef.getTaskName()) || taskDef.isEnabled();
   }
+
+  private class TaskRunner implements Callable<String> {
+
+    private final ApplicationContext _taskContext;
+
+    private final TaskDefinition _def;
+
+    private final boolean _enabled;
+
+    private final TaskOutputCache _outputCache;
+
+    public TaskRunner(ApplicationContext context, TaskDefinition def,
+        boolean enabled, TaskOutputCache outputCache) {
+      _taskContext = context;
+      _def = def;
+      _enabled = enabled;
+      _outputCache = outputCache;
+    }
+
+    @Override
+    public String call() throws IOException {
+
+      String taskName = _def.getTaskName();
+
+      if (!_enabled) {
+        Runnable task = getTask(_taskContext, _def.getTaskWhenSkipped(),
+            _def.getTaskWhenSkippedBeanName());
+        if (task != null) {
+          System.out.println("== skipping " + taskName + " =====>");
+          task.run();
+        }
+        return taskName;
+      }
+
+      Runnable task = getTask(_taskContext, _def.getTask(),
+          _def.getTaskBeanName());
+      if (task == null)
+        throw new IllegalStateException("unknown task bean with name: "
+            + taskName);
+
+      String inputHash = null;
+      if (_outputCache != null && _def.hasDeclaredOutputs()) {
+        inputHash = _outputCache.getInputHash(_def, task);
+        if (_outputCache.isUpToDate(_def, inputHash)) {
+          System.out.println("== reusing " + taskName + " =====>");
+          if (task instanceof ReusableOutputsTask)
+            ((ReusableOutputsTask) task).handleOutputsReused();
+          return taskName;
+        }
+        _outputCache.invalidate(_def);
+      }
+
+      System.out.println("== " + taskName + " =====>");
+      task.run();
+
+      if (inputHash != null)
+        _outputCache.record(_def, inputHash);
+
+      return taskName;
+    }
+  }
 }
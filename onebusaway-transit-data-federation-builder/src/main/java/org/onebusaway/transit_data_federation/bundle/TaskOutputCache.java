@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.bundle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.onebusaway.transit_data_federation.bundle.model.GtfsBundle;
+import org.onebusaway.transit_data_federation.bundle.model.TaskDefinition;
+
+/**
+ * Remembers a content hash of the inputs of each task that declares its
+ * outputs, so that a later build of the same bundle can reuse those outputs
+ * when nothing the task reads has changed. The hash covers the task name, the
+ * class of the task bean and the contents of every declared input file or
+ * directory. Configuration of the task bean itself is not covered, so a
+ * changed task configuration calls for a build without output reuse.
+ * 
+ * Because inputs are hashed by content, a task is only reused when every
+ * input is byte-for-byte identical to last time. The tasks that read
+ * TransitGraph.obj are the common case: the transit graph is rewritten on
+ * every build that runs the transit graph stage, and Java serialization of the
+ * graph is not guaranteed to produce the same bytes twice, so those tasks are
+ * reliably reused only when the transit graph stage is skipped and the graph
+ * from the previous build is kept.
+ */
+class TaskOutputCache {
+
+  static final String HASHES_FILE_NAME = "TaskInputHashes.properties";
+
+  private final File _bundlePath;
+
+  private final List<GtfsBundle> _gtfsBundles;
+
+  private final File _hashesPath;
+
+  private final Properties _hashes = new Properties();
+
+  public TaskOutputCache(File bundlePath, List<GtfsBundle> gtfsBundles)
+      throws IOException {
+    _bundlePath = bundlePath;
+    _gtfsBundles = gtfsBundles;
+    _hashesPath = new File(bundlePath, HASHES_FILE_NAME);
+    if (_hashesPath.exists()) {
+      InputStream in = new FileInputStream(_hashesPath);
+      try {
+        _hashes.load(in);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  public String getInputHash(TaskDefinition def, Runnable task)
+      throws IOException {
+    MessageDigest digest = createDigest();
+    update(digest, def.getTaskName());
+    update(digest, task.getClass().getName());
+    for (String input : def.getInputs()) {
+      update(digest, input);
+      if (TaskDefinition.GTFS_INPUT.equals(input)) {
+        for (GtfsBundle gtfsBundle : _gtfsBundles)
+          updateForGtfsBundle(digest, gtfsBundle);
+      } else {
+        updateForPath(digest, new File(_bundlePath, input));
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * 
+   * @param def
+   * @param inputHash
+   * @return true if the task last ran with the same inputs and all of its
+   *         outputs are still in place
+   */
+  public synchronized boolean isUpToDate(TaskDefinition def, String inputHash) {
+    if (!inputHash.equals(_hashes.getProperty(def.getTaskName())))
+      return false;
+    for (String output : def.getOutputs()) {
+      if (!new File(_bundlePath, output).exists())
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Forgets the hash for a task that is about to run, so that a build that
+   * dies halfway through the task does not leave partial outputs looking up
+   * to date
+   */
+  public synchronized void invalidate(TaskDefinition def) throws IOException {
+    if (_hashes.remove(def.getTaskName()) != null)
+      save();
+  }
+
+  public synchronized void record(TaskDefinition def, String inputHash)
+      throws IOException {
+    _hashes.setProperty(def.getTaskName(), inputHash);
+    save();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void save() throws IOException {
+    OutputStream out = new FileOutputStream(_hashesPath);
+    try {
+      _hashes.store(out, "input hashes of bundle tasks with declared outputs");
+    } finally {
+      out.close();
+    }
+  }
+
+  private void updateForGtfsBundle(MessageDigest digest, GtfsBundle gtfsBundle)
+      throws IOException {
+    update(digest, String.valueOf(gtfsBundle.getDefaultAgencyId()));
+    Map<String, String> mappings = new TreeMap<String, String>(
+        gtfsBundle.getAgencyIdMappings());
+    update(digest, mappings.toString());
+    if (gtfsBundle.getPath() != null)
+      updateForPath(digest, gtfsBundle.getPath());
+    if (gtfsBundle.getUrl() != null)
+      update(digest, gtfsBundle.getUrl().toExternalForm());
+  }
+
+  private void updateForPath(MessageDigest digest, File path)
+      throws IOException {
+
+    if (!path.exists()) {
+      update(digest, "missing");
+      return;
+    }
+
+    if (path.isDirectory()) {
+      File[] files = path.listFiles();
+      if (files == null)
+        throw new IOException("unable to list " + path);
+      Arrays.sort(files);
+      for (File file : files) {
+        update(digest, file.getName());
+        updateForPath(digest, file);
+      }
+      return;
+    }
+
+    byte[] buffer = new byte[64 * 1024];
+    InputStream in = new FileInputStream(path);
+    try {
+      int n;
+      while ((n = in.read(buffer)) != -1)
+        digest.update(buffer, 0, n);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    try {
+      digest.update(value.getBytes("UTF-8"));
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    digest.update((byte) 0);
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder b = new StringBuilder(bytes.length * 2);
+    for (byte v : bytes)
+      b.append(String.format("%02x", v & 0xff));
+    return b.toString();
+  }
+}
@@ -20,6 +20,12 @@ import java.util.List;
 
 public class TaskDefinition {
 
+  /**
+   * An input name that stands for the contents of every GTFS feed configured
+   * for the bundle
+   */
+  public static final String GTFS_INPUT = "gtfs";
+
   private String taskName;
 
   private String beforeTaskName;
@@ -36,6 +42,10 @@ public class TaskDefinition {
 
   private boolean enabled = true;
 
+  private List<String> inputs = new ArrayList<String>();
+
+  private List<String> outputs = new ArrayList<String>();
+
   public String getTaskName() {
     return taskName;
   }
@@ -104,10 +114,51 @@ public class TaskDefinition {
     this.enabled = enabled;
   }
 
+  /**
+   * The bundle files (relative to the bundle path) that the task reads, or
+   * {@link #GTFS_INPUT} for the GTFS feeds. Only meaningful when the task also
+   * declares its outputs.
+   */
+  public List<String> getInputs() {
+    return inputs;
+  }
+
+  public void setInput(String input) {
+    this.inputs.add(input);
+  }
+
+  public void setInputs(List<String> inputs) {
+    this.inputs.addAll(inputs);
+  }
+
+  /**
+   * The bundle files (relative to the bundle path) that the task writes. A
+   * task that declares its outputs promises to read only its declared inputs
+   * and to write only its declared outputs, which lets it run alongside other
+   * such tasks and lets its outputs be reused when its inputs are unchanged.
+   * Tasks that declare no outputs run one at a time, in order.
+   */
+  public List<String> getOutputs() {
+    return outputs;
+  }
+
+  public void setOutput(String output) {
+    this.outputs.add(output);
+  }
+
+  public void setOutputs(List<String> outputs) {
+    this.outputs.addAll(outputs);
+  }
+
+  public boolean hasDeclaredOutputs() {
+    return !outputs.isEmpty();
+  }
+
   @Override
   public String toString() {
     return "TaskDef(taskName=" + taskName + " beforeTaskName=" + beforeTaskName
         + " afterTaskNames=" + afterTaskNames + " task=" + task
-        + " taskBeanName=" + taskBeanName + " enabled=" + enabled + ")";
+        + " taskBeanName=" + taskBeanName + " enabled=" + enabled + " inputs="
+        + inputs + " outputs=" + outputs + ")";
   }
 }
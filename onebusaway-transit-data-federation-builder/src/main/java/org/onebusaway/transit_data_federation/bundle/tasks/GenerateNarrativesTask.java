@@ -33,6 +33,7 @@ import org.onebusaway.gtfs.model.Stop;
 import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
+import org.onebusaway.transit_data_federation.bundle.model.ReusableOutputsTask;
 import org.onebusaway.transit_data_federation.bundle.services.UniqueService;
 import org.onebusaway.transit_data_federation.impl.RefreshableResources;
 import org.onebusaway.transit_data_federation.impl.narrative.NarrativeProviderImpl;
@@ -77,7 +78,7 @@ import cern.jet.stat.Descriptive;
  * @see NarrativeServiceImpl
  * @see NarrativeProviderImpl
  */
-public class GenerateNarrativesTask implements Runnable {
+public class GenerateNarrativesTask implements ReusableOutputsTask {
 
   private Logger _log = LoggerFactory.getLogger(GenerateNarrativesTask.class);
 
@@ -164,6 +165,11 @@ public class GenerateNarrativesTask implements Runnable {
     }
   }
 
+  @Override
+  public void handleOutputsReused() {
+    _refreshService.refresh(RefreshableResources.NARRATIVE_DATA);
+  }
+
   public void generateAgencyNarratives(NarrativeProviderImpl provider) {
 
     for (Agency agency : _gtfsDao.getAllAgencies()) {
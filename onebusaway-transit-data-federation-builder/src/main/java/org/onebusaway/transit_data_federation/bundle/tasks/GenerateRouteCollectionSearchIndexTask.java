@@ -25,6 +25,7 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.queryParser.ParseException;
 import org.onebusaway.container.refresh.RefreshService;
 import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.bundle.model.ReusableOutputsTask;
 import org.onebusaway.transit_data_federation.impl.RefreshableResources;
 import org.onebusaway.transit_data_federation.impl.RouteCollectionSearchServiceImpl;
 import org.onebusaway.transit_data_federation.model.narrative.RouteCollectionNarrative;
@@ -48,7 +49,8 @@ import org.springframework.transaction.annotation.Transactional;
  * @see RouteCollectionSearchServiceImpl
  */
 @Component
-public class GenerateRouteCollectionSearchIndexTask implements Runnable {
+public class GenerateRouteCollectionSearchIndexTask implements
+    ReusableOutputsTask {
 
   private TransitGraphDao _transitGraphDao;
 
@@ -102,6 +104,11 @@ public class GenerateRouteCollectionSearchIndexTask implements Runnable {
     _refreshService.refresh(RefreshableResources.ROUTE_COLLECTION_SEARCH_DATA);
   }
 
+  @Override
+  public void handleOutputsReused() {
+    _refreshService.refresh(RefreshableResources.ROUTE_COLLECTION_SEARCH_DATA);
+  }
+
   private Document getRouteCollectionAsDocument(
       RouteCollectionEntry routeCollection, RouteCollectionNarrative narrative) {
 
@@ -25,6 +25,7 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.queryParser.ParseException;
 import org.onebusaway.container.refresh.RefreshService;
 import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.bundle.model.ReusableOutputsTask;
 import org.onebusaway.transit_data_federation.impl.RefreshableResources;
 import org.onebusaway.transit_data_federation.impl.StopSearchServiceImpl;
 import org.onebusaway.transit_data_federation.model.narrative.StopNarrative;
@@ -46,7 +47,7 @@ import org.springframework.stereotype.Component;
  * @see StopSearchService
  */
 @Component
-public class GenerateStopSearchIndexTask implements Runnable {
+public class GenerateStopSearchIndexTask implements ReusableOutputsTask {
 
   private TransitGraphDao _transitGraphDao;
 
@@ -97,6 +98,11 @@ public class GenerateStopSearchIndexTask implements Runnable {
     _refreshService.refresh(RefreshableResources.STOP_SEARCH_DATA);
   }
 
+  @Override
+  public void handleOutputsReused() {
+    _refreshService.refresh(RefreshableResources.STOP_SEARCH_DATA);
+  }
+
   private Document getStopAsDocument(StopEntry stopEntry,
       StopNarrative narrative) {
 
@@ -31,6 +31,7 @@ import org.onebusaway.geospatial.model.CoordinateBounds;
 import org.onebusaway.geospatial.model.CoordinatePoint;
 import org.onebusaway.geospatial.services.SphericalGeometryLibrary;
 import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.bundle.model.ReusableOutputsTask;
 import org.onebusaway.transit_data_federation.impl.RefreshableResources;
 import org.onebusaway.transit_data_federation.model.ShapePoints;
 import org.onebusaway.transit_data_federation.services.FederatedTransitDataBundle;
@@ -44,7 +45,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
-class ShapeGeospatialIndexTask implements Runnable {
+class ShapeGeospatialIndexTask implements ReusableOutputsTask {
 
   private static Logger _log = LoggerFactory.getLogger(ShapeGeospatialIndexTask.class);
 
@@ -95,6 +96,11 @@ class ShapeGeospatialIndexTask implements Runnable {
     }
   }
 
+  @Override
+  public void handleOutputsReused() {
+    _refreshService.refresh(RefreshableResources.SHAPE_GEOSPATIAL_INDEX);
+  }
+
   /****
    * Private Methods
    ****/
@@ -40,7 +40,13 @@ public class ShapePointHelper {
     _gtfsDao = gtfsDao;
   }
 
-  public ShapePoints getShapePointsForShapeId(AgencyAndId shapeId) {
+  /**
+   * Synchronized, since tasks that share this helper can run concurrently
+   * 
+   * @param shapeId
+   * @return the shape points for the shape, or null if there are none
+   */
+  public synchronized ShapePoints getShapePointsForShapeId(AgencyAndId shapeId) {
 
     ShapePoints shapePoints = _cache.get(shapeId);
     if (shapePoints == null) {
@@ -15,21 +15,30 @@
  */
 package org.onebusaway.transit_data_federation.bundle.tasks.history;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.TimeZone;
 import java.util.TreeMap;
 
 import org.onebusaway.collections.FactoryMap;
 import org.onebusaway.collections.Range;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.AgencyAndIdInstance;
+import org.onebusaway.transit_data_federation.impl.realtime.history.BlockLocationArchiveFile;
 import org.onebusaway.transit_data_federation.impl.realtime.history.BlockLocationArchiveRecord;
 import org.onebusaway.transit_data_federation.impl.realtime.history.ScheduleDeviationHistory;
 import org.onebusaway.transit_data_federation.services.AgencyAndIdLibrary;
 import org.onebusaway.transit_data_federation.services.realtime.ScheduleDeviationHistoryDao;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockTripEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.TransitGraphDao;
 import org.onebusaway.transit_data_federation.services.transit_graph.TripEntry;
 import org.onebusaway.utility.InterpolationLibrary;
@@ -58,6 +67,8 @@ public class BlockLocationHistoryTask implements Runnable {
 
   private AgencyAndId _skipToTrip = null;
 
+  private File _archiveDir = null;
+
   @Autowired
   public void setTransitGraphDao(TransitGraphDao transitGraphDao) {
     _transitGraphDao = transitGraphDao;
@@ -89,6 +100,18 @@ public class BlockLocationHistoryTask implements Runnable {
     _skipToTrip = AgencyAndIdLibrary.convertFromString(tripId);
   }
 
+  /**
+   * If set, the records read for each block are also written to a columnar
+   * archive under this directory, one {@link BlockLocationArchiveFile} per
+   * block and service date, for use as the data dir of
+   * {@link org.onebusaway.transit_data_federation.impl.realtime.history.BlockLocationHistoryServiceImpl}
+   * 
+   * @param archiveDir
+   */
+  public void setArchiveDir(File archiveDir) {
+    _archiveDir = archiveDir;
+  }
+
   @Override
   public void run() {
 
@@ -98,31 +121,86 @@ public class BlockLocationHistoryTask implements Runnable {
 
     int tripIndex = 0;
 
-    Iterable<TripEntry> allTrips = _transitGraphDao.getAllTrips();
-
     boolean skipTo = _skipToTrip != null;
 
-    for (TripEntry trip : allTrips) {
+    /**
+     * We walk trips block by block so that the archive for a block can be
+     * written from the records we already loaded for its trips
+     */
+    for (BlockEntry block : _transitGraphDao.getAllBlocks()) {
 
-      if (tripIndex % 20 == 0)
-        _log.info("tripsProcessed=" + tripIndex);
-      tripIndex++;
+      Set<TripEntry> trips = getTripsForBlock(block);
+      List<BlockLocationArchiveRecord> blockRecords = new ArrayList<BlockLocationArchiveRecord>();
 
-      if (_skipToTrip != null && trip.getId().equals(_skipToTrip)) {
-        skipTo = false;
-      } else if (!skipTo) {
+      /**
+       * An archive replaces any previous one for the block, so it's only
+       * written if we have the records for every trip in the block
+       */
+      boolean blockComplete = true;
+
+      for (TripEntry trip : trips) {
+
+        if (tripIndex % 20 == 0)
+          _log.info("tripsProcessed=" + tripIndex);
+        tripIndex++;
+
+        if (_skipToTrip != null && trip.getId().equals(_skipToTrip)) {
+          skipTo = false;
+          blockComplete = false;
+        } else if (!skipTo) {
+          try {
+            List<BlockLocationArchiveRecord> records = _source.getRecordsForTrip(trip.getId());
+            processTrip(records);
+            if (_archiveDir != null)
+              blockRecords.addAll(records);
+          } catch (Throwable ex) {
+            _log.warn("error processing trip " + trip.getId(), ex);
+            blockComplete = false;
+          }
+        } else {
+          blockComplete = false;
+        }
+      }
+
+      if (!blockComplete && !blockRecords.isEmpty()) {
+        _log.warn("not writing archive for block " + block.getId()
+            + ", since some of its trips were not processed");
+      } else if (!blockRecords.isEmpty()) {
         try {
-          processTrip(trip);
-        } catch (Throwable ex) {
-          _log.warn("error processing trip " + trip.getId(), ex);
+          TimeZone timeZone = trips.iterator().next().getServiceId().getTimeZone();
+          writeArchive(block, timeZone, blockRecords);
+        } catch (IOException ex) {
+          _log.warn("error writing archive for block " + block.getId(), ex);
         }
       }
     }
   }
 
-  private void processTrip(TripEntry trip) {
+  private Set<TripEntry> getTripsForBlock(BlockEntry block) {
+    Set<TripEntry> trips = new LinkedHashSet<TripEntry>();
+    for (BlockConfigurationEntry blockConfig : block.getConfigurations()) {
+      for (BlockTripEntry blockTrip : blockConfig.getTrips())
+        trips.add(blockTrip.getTrip());
+    }
+    return trips;
+  }
+
+  private void writeArchive(BlockEntry block, TimeZone timeZone,
+      List<BlockLocationArchiveRecord> records) throws IOException {
+
+    Map<Long, List<BlockLocationArchiveRecord>> recordsByServiceDate = new FactoryMap<Long, List<BlockLocationArchiveRecord>>(
+        new ArrayList<BlockLocationArchiveRecord>());
+    for (BlockLocationArchiveRecord record : records)
+      recordsByServiceDate.get(record.getServiceDate()).add(record);
+
+    for (Map.Entry<Long, List<BlockLocationArchiveRecord>> entry : recordsByServiceDate.entrySet()) {
+      File path = BlockLocationArchiveFile.getPath(_archiveDir, entry.getKey(),
+          block.getId(), timeZone);
+      BlockLocationArchiveFile.write(path, entry.getValue());
+    }
+  }
 
-    List<BlockLocationArchiveRecord> records = _source.getRecordsForTrip(trip.getId());
+  private void processTrip(List<BlockLocationArchiveRecord> records) {
 
     Map<AgencyAndId, BlockLocationArchiveRecordMap> recordsByTrip = loadRecords(records);
 
@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.bundle.tasks.transfer_pattern;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.services.AgencyAndIdLibrary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the transfer pattern of each source stop to one of a fixed number of
+ * partition files as soon as it has been computed, and keeps a checkpoint log
+ * of the completed stops so that an interrupted run can pick up where it left
+ * off.
+ * 
+ * Each pattern is appended to its partition as a self-contained gzip member,
+ * which {@link java.util.zip.GZIPInputStream} reads back as one continuous
+ * stream. The checkpoint log records the length of the partition after each
+ * pattern is written, so on resume any bytes written after the last
+ * checkpointed pattern are discarded. A partition that is missing or shorter
+ * than its checkpointed length is started over, and the stops checkpointed
+ * against it are computed again.
+ * 
+ * The checkpoint log also records a key identifying the inputs of the run (the
+ * graph, the source stops and the task settings). A checkpoint written for
+ * different inputs is discarded, since its patterns would be stale.
+ * 
+ * Partition files are named so that
+ * {@link org.onebusaway.transit_data_federation.services.FederatedTransitDataBundle#getAllTransferPatternsPaths()}
+ * picks them up.
+ */
+class TransferPatternsOutput {
+
+  private static Logger _log = LoggerFactory.getLogger(TransferPatternsOutput.class);
+
+  private static final String CHECKPOINT_FILE_NAME = "Checkpoint.txt";
+
+  private static final String PARTITIONS_HEADER = "partitions";
+
+  private static final String INPUTS_HEADER = "inputs";
+
+  private final File _dir;
+
+  private final File _checkpointPath;
+
+  private final Set<AgencyAndId> _completedStopIds = new HashSet<AgencyAndId>();
+
+  private int _partitionCount;
+
+  private RandomAccessFile[] _partitions;
+
+  private PrintWriter _checkpoint;
+
+  /**
+   * 
+   * @param dir the directory holding the partitions and the checkpoint log
+   * @param partitionCount the number of partitions for a fresh run. A resumed
+   *          run keeps the partition count of the run it resumes.
+   */
+  public TransferPatternsOutput(File dir, int partitionCount) {
+    _dir = dir;
+    _checkpointPath = new File(dir, CHECKPOINT_FILE_NAME);
+    _partitionCount = partitionCount;
+  }
+
+  /**
+   * Opens the output, either resuming from an existing checkpoint log or
+   * starting over with empty partitions.
+   * 
+   * @param resume
+   * @param inputsKey identifies the inputs of the run, a checkpoint written
+   *          with a different key is not resumed
+   * @throws IOException
+   */
+  public void open(boolean resume, String inputsKey) throws IOException {
+
+    _dir.mkdirs();
+
+    List<String> checkpointLines = new ArrayList<String>();
+    long[] lengths = null;
+    if (resume && _checkpointPath.exists()) {
+      lengths = readCheckpoint(inputsKey, checkpointLines);
+      if (lengths != null) {
+        for (int i = 0; i < _partitionCount; i++) {
+          if (getPartitionPath(i).length() < lengths[i])
+            resetPartition(i, lengths, checkpointLines);
+        }
+      }
+    }
+
+    if (lengths == null) {
+      _completedStopIds.clear();
+      checkpointLines.clear();
+      lengths = new long[_partitionCount];
+      File[] files = _dir.listFiles();
+      if (files != null) {
+        for (File file : files)
+          file.delete();
+      }
+    }
+
+    _partitions = new RandomAccessFile[_partitionCount];
+    for (int i = 0; i < _partitionCount; i++) {
+      RandomAccessFile partition = new RandomAccessFile(getPartitionPath(i),
+          "rw");
+      /**
+       * Only ever truncates, since a partition shorter than its checkpoint has
+       * already been reset
+       */
+      partition.setLength(lengths[i]);
+      partition.seek(lengths[i]);
+      _partitions[i] = partition;
+    }
+
+    /**
+     * The log is rewritten rather than appended to, so that a partially
+     * written last line doesn't run into the next one
+     */
+    _checkpoint = new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+        _checkpointPath), "UTF-8"));
+    _checkpoint.println(PARTITIONS_HEADER + "\t" + _partitionCount);
+    _checkpoint.println(INPUTS_HEADER + "\t" + inputsKey);
+    for (String line : checkpointLines)
+      _checkpoint.println(line);
+    _checkpoint.flush();
+  }
+
+  public synchronized boolean isCompleted(AgencyAndId stopId) {
+    return _completedStopIds.contains(stopId);
+  }
+
+  public synchronized int getCompletedCount() {
+    return _completedStopIds.size();
+  }
+
+  /**
+   * Writes the pattern for a stop to its partition and records the stop as
+   * completed. Safe to call from multiple threads.
+   * 
+   * @param pattern
+   * @throws IOException
+   */
+  public void write(MutableTransferPattern pattern) throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(
+        new GZIPOutputStream(bytes), "UTF-8"));
+    pattern.writeTransferPatternsToPrintWriter(out, 0);
+    out.close();
+
+    AgencyAndId stopId = pattern.getOriginStop().getId();
+    int index = getPartitionIndex(stopId);
+    RandomAccessFile partition = _partitions[index];
+
+    /**
+     * The checkpoint entry is logged while we still hold the partition, so
+     * that the entries for a partition are logged in the order its patterns
+     * were written
+     */
+    synchronized (partition) {
+      partition.write(bytes.toByteArray());
+      partition.getFD().sync();
+      long length = partition.getFilePointer();
+      synchronized (this) {
+        _checkpoint.println(AgencyAndIdLibrary.convertToString(stopId) + "\t"
+            + index + "\t" + length);
+        _checkpoint.flush();
+        _completedStopIds.add(stopId);
+      }
+    }
+  }
+
+  /**
+   * Closes the output. Once all stops have been written, the checkpoint log
+   * is removed so that the next run starts over.
+   * 
+   * @param complete true if every source stop has been written
+   * @throws IOException
+   */
+  public void close(boolean complete) throws IOException {
+    if (_partitions != null) {
+      for (RandomAccessFile partition : _partitions)
+        partition.close();
+      _partitions = null;
+    }
+    if (_checkpoint != null) {
+      _checkpoint.close();
+      _checkpoint = null;
+    }
+    if (complete)
+      _checkpointPath.delete();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private int getPartitionIndex(AgencyAndId stopId) {
+    return (stopId.hashCode() & Integer.MAX_VALUE) % _partitionCount;
+  }
+
+  File getPartitionPath(int index) {
+    return new File(_dir, "TransferPatterns-" + index + ".gz");
+  }
+
+  /**
+   * Starts a damaged partition over, dropping the stops checkpointed against
+   * it so that they are computed again.
+   */
+  private void resetPartition(int index, long[] lengths,
+      List<String> checkpointLines) {
+
+    _log.warn("transfer patterns partition " + getPartitionPath(index)
+        + " is missing or truncated, recomputing its stops");
+
+    lengths[index] = 0;
+
+    for (Iterator<String> it = checkpointLines.iterator(); it.hasNext();) {
+      String[] tokens = it.next().split("\t");
+      if (Integer.parseInt(tokens[1]) == index) {
+        _completedStopIds.remove(AgencyAndIdLibrary.convertFromString(tokens[0]));
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * 
+   * @return the checkpointed length of each partition, or null if the
+   *         checkpoint log is unusable or was written for other inputs
+   */
+  private long[] readCheckpoint(String inputsKey, List<String> checkpointLines)
+      throws IOException {
+
+    BufferedReader reader = new BufferedReader(new FileReader(_checkpointPath));
+
+    try {
+      String line = reader.readLine();
+      if (line == null || !line.startsWith(PARTITIONS_HEADER + "\t"))
+        return null;
+      int partitionCount = Integer.parseInt(line.substring(PARTITIONS_HEADER.length() + 1));
+
+      line = reader.readLine();
+      if (line == null || !line.equals(INPUTS_HEADER + "\t" + inputsKey)) {
+        _log.info("transfer patterns checkpoint " + _checkpointPath
+            + " was written for different inputs, starting over");
+        return null;
+      }
+
+      _partitionCount = partitionCount;
+      long[] lengths = new long[_partitionCount];
+
+      while ((line = reader.readLine()) != null) {
+        String[] tokens = line.split("\t");
+        /**
+         * A partially written line can only be the last one, and its pattern
+         * is simply computed again
+         */
+        if (tokens.length != 3)
+          break;
+        try {
+          AgencyAndId stopId = AgencyAndIdLibrary.convertFromString(tokens[0]);
+          int index = Integer.parseInt(tokens[1]);
+          long length = Long.parseLong(tokens[2]);
+          lengths[index] = length;
+          _completedStopIds.add(stopId);
+          checkpointLines.add(line);
+        } catch (RuntimeException ex) {
+          break;
+        }
+      }
+
+      return lengths;
+    } finally {
+      reader.close();
+    }
+  }
+}
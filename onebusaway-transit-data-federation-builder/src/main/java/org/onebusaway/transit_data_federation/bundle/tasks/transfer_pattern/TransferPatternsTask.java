@@ -15,11 +15,15 @@
  */
 package org.onebusaway.transit_data_federation.bundle.tasks.transfer_pattern;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -33,6 +37,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.onebusaway.collections.Counter;
 import org.onebusaway.collections.FactoryMap;
@@ -64,7 +73,6 @@ import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.TransitGraphDao;
 import org.onebusaway.transit_data_federation.services.tripplanner.ItinerariesService;
 import org.onebusaway.transit_data_federation.services.tripplanner.StopTimeInstance;
-import org.onebusaway.utility.IOLibrary;
 import org.opentripplanner.routing.algorithm.GenericDijkstra;
 import org.opentripplanner.routing.algorithm.strategies.SkipTraverseResultStrategy;
 import org.opentripplanner.routing.core.Edge;
@@ -78,10 +86,14 @@ import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.MultiShortestPathTree;
 import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 public class TransferPatternsTask implements Runnable {
 
+  private static Logger _log = LoggerFactory.getLogger(TransferPatternsTask.class);
+
   private static StateDurationComparator _sptVertexDurationComparator = new StateDurationComparator();
 
   private FederatedTransitDataBundle _bundle;
@@ -116,6 +128,12 @@ public class TransferPatternsTask implements Runnable {
 
   private boolean _useAllStopsAsSourceStops = false;
 
+  private int _parallelism = Runtime.getRuntime().availableProcessors();
+
+  private int _partitionCount = 16;
+
+  private boolean _resume = true;
+
   @Autowired
   public void setBundle(FederatedTransitDataBundle bundle) {
     _bundle = bundle;
@@ -182,6 +200,33 @@ public class TransferPatternsTask implements Runnable {
     _useAllStopsAsSourceStops = useAllStopsAsSourceStops;
   }
 
+  /**
+   * 
+   * @param parallelism the number of source stops searched at the same time
+   */
+  public void setParallelism(int parallelism) {
+    _parallelism = parallelism;
+  }
+
+  /**
+   * 
+   * @param partitionCount the number of files the transfer patterns are
+   *          spread across
+   */
+  public void setPartitionCount(int partitionCount) {
+    _partitionCount = partitionCount;
+  }
+
+  /**
+   * 
+   * @param resume if true (the default), an interrupted run picks up after
+   *          the last stop whose transfer pattern was written, as long as the
+   *          graph, source stops and settings haven't changed since
+   */
+  public void setResume(boolean resume) {
+    _resume = resume;
+  }
+
   @Override
   public void run() {
 
@@ -193,114 +238,225 @@ public class TransferPatternsTask implements Runnable {
     Set<StopEntry> hubStopsAsSet = new HashSet<StopEntry>(hubStops);
 
     Graph graph = _graphService.getGraph();
-    GraphContext context = _otpConfigurationService.createGraphContext();
 
-    Map<AgencyAndId, MutableTransferPattern> patternsByStopId = new HashMap<AgencyAndId, MutableTransferPattern>();
+    /**
+     * Graph contexts are handed out per worker thread, so that no search state
+     * is shared between concurrent searches
+     */
+    ThreadLocal<GraphContext> contexts = new ThreadLocal<GraphContext>() {
+      @Override
+      protected GraphContext initialValue() {
+        return _otpConfigurationService.createGraphContext();
+      }
+    };
+
+    TransferPatternsOutput output = new TransferPatternsOutput(getOutputDir(),
+        _partitionCount);
+
+    try {
+      output.open(_resume, computeInputsKey(stops, hubStops));
+    } catch (IOException ex) {
+      throw new IllegalStateException("error opening transfer patterns output",
+          ex);
+    }
 
-    for (StopEntry stop : stops) {
+    /**
+     * Any output left by a run that wrote a single file would be read
+     * alongside the partitions
+     */
+    _bundle.getTransferPatternsPath().delete();
 
-      Map<StopEntry, Integer> nearbyStopsAndWalkTimes = getNearbyStopsAndWalkTimes(stop);
+    if (output.getCompletedCount() > 0)
+      _log.info("resuming after " + output.getCompletedCount()
+          + " completed stops");
 
-      boolean isHubStop = hubStopsAsSet.contains(stop);
-      System.out.println("stop=" + stop.getId() + " hub=" + isHubStop);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+        _parallelism));
+    boolean complete = false;
 
-      List<ServiceDate> serviceDates = computeServiceDates(stop);
+    try {
 
-      Map<StopEntry, Counter<List<Pair<StopEntry>>>> pathCountsByStop = new FactoryMap<StopEntry, Counter<List<Pair<StopEntry>>>>(
-          new Counter<List<Pair<StopEntry>>>());
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (StopEntry stop : stops) {
+        if (output.isCompleted(stop.getId()))
+          continue;
+        futures.add(executor.submit(new StopTask(stop,
+            hubStopsAsSet.contains(stop), graph, contexts, output,
+            stops.size())));
+      }
 
-      for (ServiceDate serviceDate : serviceDates) {
+      for (Future<?> future : futures)
+        future.get();
 
-        System.out.println("  serviceDate=" + serviceDate);
+      complete = true;
 
-        List<StopTimeInstance> instances = getStopTimeInstancesForStopAndServiceDate(
-            stop, serviceDate);
-        System.out.println("      instances=" + instances.size());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted computing transfer patterns",
+          ex);
+    } catch (ExecutionException ex) {
+      throw new IllegalStateException("error computing transfer patterns",
+          ex.getCause());
+    } finally {
+      executor.shutdownNow();
+      try {
+        output.close(complete);
+      } catch (IOException ex) {
+        throw new IllegalStateException(
+            "error closing transfer patterns output", ex);
+      }
+    }
 
-        if (instances.isEmpty())
-          continue;
+    long tOut = System.currentTimeMillis();
+    int duration = (int) ((tOut - tIn) / 1000);
+    _log.info("duration=" + duration);
+  }
 
-        StopTimeInstance first = instances.get(0);
-        long tFrom = first.getDepartureTime();
+  private MutableTransferPattern computeTransferPattern(StopEntry stop,
+      boolean isHubStop, Graph graph, GraphContext context) {
 
-        Map<StopEntry, List<StopTimeInstance>> nearbyStopTimeInstances = getNearbyStopTimeInstances(
-            nearbyStopsAndWalkTimes.keySet(), serviceDate);
+    Map<StopEntry, Integer> nearbyStopsAndWalkTimes = getNearbyStopsAndWalkTimes(stop);
 
-        OBATraverseOptions options = _otpConfigurationService.createTraverseOptions();
+    _log.debug("stop=" + stop.getId() + " hub=" + isHubStop);
 
-        options.maxComputationTime = -1;
-        options.waitAtBeginningFactor = 1.0;
-        options.extraSpecialMode = true;
-        if (isHubStop)
-          options.maxTransfers = Integer.MAX_VALUE;
-        else
-          options.maxTransfers = 2;
+    List<ServiceDate> serviceDates = computeServiceDates(stop);
 
-        GenericDijkstra dijkstra = new GenericDijkstra(graph, options);
-        dijkstra.setSkipTraverseResultStrategy(new SkipVertexImpl(stop, tFrom));
-        dijkstra.setShortestPathTreeFactory(MultiShortestPathTree.FACTORY);
-        dijkstra.setPriorityQueueFactory(PriorityQueueImpl.FACTORY);
+    Map<StopEntry, Counter<List<Pair<StopEntry>>>> pathCountsByStop = new FactoryMap<StopEntry, Counter<List<Pair<StopEntry>>>>(
+        new Counter<List<Pair<StopEntry>>>());
 
-        TPOfflineOriginVertex origin = new TPOfflineOriginVertex(context, stop,
-            instances, nearbyStopsAndWalkTimes, nearbyStopTimeInstances);
-        State state = new OBAState(tFrom, origin, options);
+    for (ServiceDate serviceDate : serviceDates) {
 
-        MultiShortestPathTree spt = (MultiShortestPathTree) dijkstra.getShortestPathTree(state);
+      _log.debug("stop=" + stop.getId() + " serviceDate=" + serviceDate);
 
-        processTree(spt, stop, pathCountsByStop);
-      }
+      List<StopTimeInstance> instances = getStopTimeInstancesForStopAndServiceDate(
+          stop, serviceDate);
+      _log.debug("stop=" + stop.getId() + " instances=" + instances.size());
 
-      MutableTransferPattern pattern = new MutableTransferPattern(stop);
+      if (instances.isEmpty())
+        continue;
 
-      System.out.println("arrivalStops=" + pathCountsByStop.size());
+      StopTimeInstance first = instances.get(0);
+      long tFrom = first.getDepartureTime();
 
-      for (Map.Entry<StopEntry, Counter<List<Pair<StopEntry>>>> entry : pathCountsByStop.entrySet()) {
-        boolean verbose = false;// entry.getKey().getId().toString().equals("1_29430");
-        Counter<List<Pair<StopEntry>>> pathCounts = entry.getValue();
-        List<List<Pair<StopEntry>>> keys = pathCounts.getSortedKeys();
-        int maxCount = isHubStop ? _maxPathCountForHubStop
-            : _maxPathCountForLocalStop;
-        if (verbose) {
-          for (List<Pair<StopEntry>> path : keys)
-            System.out.println(pathCounts.getCount(path) + "\t" + path);
-        }
-        while (keys.size() > maxCount)
-          keys.remove(0);
-        for (List<Pair<StopEntry>> path : keys)
-          pattern.addPath(path);
-      }
+      Map<StopEntry, List<StopTimeInstance>> nearbyStopTimeInstances = getNearbyStopTimeInstances(
+          nearbyStopsAndWalkTimes.keySet(), serviceDate);
 
-      avgPaths(pattern, stop);
+      OBATraverseOptions options = _otpConfigurationService.createTraverseOptions();
 
-      patternsByStopId.put(stop.getId(), pattern);
+      options.maxComputationTime = -1;
+      options.waitAtBeginningFactor = 1.0;
+      options.extraSpecialMode = true;
+      if (isHubStop)
+        options.maxTransfers = Integer.MAX_VALUE;
+      else
+        options.maxTransfers = 2;
+
+      GenericDijkstra dijkstra = new GenericDijkstra(graph, options);
+      dijkstra.setSkipTraverseResultStrategy(new SkipVertexImpl(stop, tFrom));
+      dijkstra.setShortestPathTreeFactory(MultiShortestPathTree.FACTORY);
+      dijkstra.setPriorityQueueFactory(PriorityQueueImpl.FACTORY);
+
+      TPOfflineOriginVertex origin = new TPOfflineOriginVertex(context, stop,
+          instances, nearbyStopsAndWalkTimes, nearbyStopTimeInstances);
+      State state = new OBAState(tFrom, origin, options);
+
+      MultiShortestPathTree spt = (MultiShortestPathTree) dijkstra.getShortestPathTree(state);
+
+      processTree(spt, stop, pathCountsByStop);
     }
 
-    writeData(patternsByStopId);
+    MutableTransferPattern pattern = new MutableTransferPattern(stop);
 
-    long tOut = System.currentTimeMillis();
-    int duration = (int) ((tOut - tIn) / 1000);
-    System.out.println("duration=" + duration);
-  }
+    _log.debug("stop=" + stop.getId() + " arrivalStops="
+        + pathCountsByStop.size());
+
+    for (Map.Entry<StopEntry, Counter<List<Pair<StopEntry>>>> entry : pathCountsByStop.entrySet()) {
+      boolean verbose = false;// entry.getKey().getId().toString().equals("1_29430");
+      Counter<List<Pair<StopEntry>>> pathCounts = entry.getValue();
+      List<List<Pair<StopEntry>>> keys = pathCounts.getSortedKeys();
+      int maxCount = isHubStop ? _maxPathCountForHubStop
+          : _maxPathCountForLocalStop;
+      if (verbose) {
+        for (List<Pair<StopEntry>> path : keys)
+          System.out.println(pathCounts.getCount(path) + "\t" + path);
+      }
+      while (keys.size() > maxCount)
+        keys.remove(0);
+      for (List<Pair<StopEntry>> path : keys)
+        pattern.addPath(path);
+    }
 
-  private void writeData(
-      Map<AgencyAndId, MutableTransferPattern> patternsByStopId) {
+    avgPaths(pattern, stop);
 
-    File path = _bundle.getTransferPatternsPath();
+    return pattern;
+  }
 
+  /**
+   * Identifies everything the transfer patterns are computed from, so that a
+   * checkpoint is never resumed against a rebuilt graph or different settings.
+   * The graph files are hashed in full, which is cheap next to computing the
+   * patterns themselves.
+   */
+  private String computeInputsKey(List<StopEntry> stops,
+      List<StopEntry> hubStops) throws IOException {
+
+    MessageDigest digest;
     try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
 
-      PrintWriter out = new PrintWriter(IOLibrary.getFileAsWriter(path));
+    updateDigest(digest, _bundle.getTransitGraphPath());
+    updateDigest(digest, _bundle.getGraphPath());
+    updateDigest(digest, _bundle.getCalendarServiceDataPath());
+
+    StringBuilder b = new StringBuilder();
+    b.append(_serviceDateCount).append(',');
+    b.append(_transferPatternFrequencyCutoff).append(',');
+    b.append(_transferPatternFrequencySlack).append(',');
+    b.append(_transferPatternWeightImprovement).append(',');
+    b.append(_maxPathCountForLocalStop).append(',');
+    b.append(_maxPathCountForHubStop).append(',');
+    b.append(_nearbyStopsRadius).append('\n');
+    for (StopEntry stop : stops)
+      b.append(AgencyAndIdLibrary.convertToString(stop.getId())).append(',');
+    b.append('\n');
+    for (StopEntry stop : hubStops)
+      b.append(AgencyAndIdLibrary.convertToString(stop.getId())).append(',');
+    digest.update(b.toString().getBytes("UTF-8"));
+
+    byte[] hash = digest.digest();
+    StringBuilder key = new StringBuilder(hash.length * 2);
+    for (int i = 0; i < hash.length; i++) {
+      key.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+      key.append(Character.forDigit(hash[i] & 0xf, 16));
+    }
+    return key.toString();
+  }
 
-      long index = 0;
-      for (MutableTransferPattern pattern : patternsByStopId.values()) {
-        index = pattern.writeTransferPatternsToPrintWriter(out, index);
-      }
-      out.close();
-    } catch (Throwable ex) {
-      throw new IllegalStateException("error writing output to " + path, ex);
+  private void updateDigest(MessageDigest digest, File path)
+      throws IOException {
+    digest.update(path.getName().getBytes("UTF-8"));
+    if (!path.exists())
+      return;
+    InputStream in = new BufferedInputStream(new FileInputStream(path));
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) != -1)
+        digest.update(buffer, 0, n);
+    } finally {
+      in.close();
     }
   }
 
+  private File getOutputDir() {
+    String key = _bundle.getKey();
+    String name = key == null ? "Partitions" : "Partitions-" + key;
+    return new File(_bundle.getTransferPatternsParentPath(), name);
+  }
+
   private void avgPaths(MutableTransferPattern pattern, StopEntry origin) {
     /*
      * DoubleArrayList values = new DoubleArrayList(); for (StopEntry stop :
@@ -747,6 +903,45 @@ public class TransferPatternsTask implements Runnable {
     return (int) (Math.abs(state.getTime() - state.getStartTime()) / 1000);
   }
 
+  private class StopTask implements Callable<Void> {
+
+    private final StopEntry _stop;
+
+    private final boolean _isHubStop;
+
+    private final Graph _graph;
+
+    private final ThreadLocal<GraphContext> _contexts;
+
+    private final TransferPatternsOutput _output;
+
+    private final int _stopCount;
+
+    public StopTask(StopEntry stop, boolean isHubStop, Graph graph,
+        ThreadLocal<GraphContext> contexts, TransferPatternsOutput output,
+        int stopCount) {
+      _stop = stop;
+      _isHubStop = isHubStop;
+      _graph = graph;
+      _contexts = contexts;
+      _output = output;
+      _stopCount = stopCount;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      long tIn = System.currentTimeMillis();
+      MutableTransferPattern pattern = computeTransferPattern(_stop,
+          _isHubStop, _graph, _contexts.get());
+      _output.write(pattern);
+      long tOut = System.currentTimeMillis();
+      _log.info("stop=" + _stop.getId() + " hub=" + _isHubStop + " duration="
+          + (tOut - tIn) + "ms completed=" + _output.getCompletedCount() + "/"
+          + _stopCount);
+      return null;
+    }
+  }
+
   private static class SkipVertexImpl implements SkipTraverseResultStrategy {
 
     private final Set<StopEntry> _stops = new HashSet<StopEntry>();
@@ -789,16 +984,14 @@ public class TransferPatternsTask implements Runnable {
       }
 
       /**
-       * Print the visited stop count as a show of progress
+       * Log the visited stop count as a show of progress
        */
-      if (vertex instanceof HasStopTransitVertex) {
+      if (vertex instanceof HasStopTransitVertex && _log.isDebugEnabled()) {
         HasStopTransitVertex v = (HasStopTransitVertex) vertex;
         StopEntry stop = v.getStop();
-        if (_stops.add(stop) && _stops.size() % 100 == 0) {
-          System.out.println("stops=" + _stops.size());
-          if (_stops.size() == 13900)
-            System.out.println("here");
-        }
+        if (_stops.add(stop) && _stops.size() % 100 == 0)
+          _log.debug("origin=" + _originStop.getId() + " stops="
+              + _stops.size());
       }
 
       return false;
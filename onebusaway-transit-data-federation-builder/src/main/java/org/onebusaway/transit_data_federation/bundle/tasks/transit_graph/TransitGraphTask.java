@@ -16,8 +16,11 @@
  */
 package org.onebusaway.transit_data_federation.bundle.tasks.transit_graph;
 
+import java.io.File;
+
 import org.onebusaway.container.refresh.RefreshService;
 import org.onebusaway.transit_data_federation.impl.RefreshableResources;
+import org.onebusaway.transit_data_federation.impl.transit_graph.ColumnarTransitGraphWriter;
 import org.onebusaway.transit_data_federation.impl.transit_graph.TransitGraphImpl;
 import org.onebusaway.transit_data_federation.services.FederatedTransitDataBundle;
 import org.onebusaway.utility.ObjectSerializationLibrary;
@@ -44,6 +47,8 @@ public class TransitGraphTask implements Runnable {
 
   private FrequencyEntriesFactory _frequencyEntriesFactory;
 
+  private boolean _writeColumnarGraph = true;
+
   @Autowired
   public void setBundle(FederatedTransitDataBundle bundle) {
     _bundle = bundle;
@@ -91,6 +96,16 @@ public class TransitGraphTask implements Runnable {
     _refreshService = refreshService;
   }
 
+  /**
+   * Should we write the memory-mappable columnar form of the transit graph
+   * alongside the serialized form? Defaults to true.
+   * 
+   * @param writeColumnarGraph
+   */
+  public void setWriteColumnarGraph(boolean writeColumnarGraph) {
+    _writeColumnarGraph = writeColumnarGraph;
+  }
+
   @Transactional
   public void run() {
 
@@ -104,6 +119,12 @@ public class TransitGraphTask implements Runnable {
     _blockEntriesFactory.processBlocks(graph);
     _frequencyEntriesFactory.processFrequencies(graph);
 
+    /**
+     * Stop times are no longer modified past this point, so we switch them over
+     * to their compact representation before the graph is serialized
+     */
+    graph.compactStopTimes();
+
     /**
      * Make sure the graph is initialized as result of the graph building
      * process, as it will be used by subsequent tasks
@@ -115,6 +136,12 @@ public class TransitGraphTask implements Runnable {
       ObjectSerializationLibrary.writeObject(_bundle.getTransitGraphPath(),
           graph);
 
+      File columnarPath = _bundle.getColumnarTransitGraphPath();
+      if (_writeColumnarGraph)
+        ColumnarTransitGraphWriter.write(graph, columnarPath);
+      else if (columnarPath != null)
+        ColumnarTransitGraphWriter.delete(columnarPath);
+
     } catch (Exception ex) {
       throw new IllegalStateException("error writing graph to file", ex);
     }
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.bundle;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.onebusaway.transit_data_federation.bundle.model.TaskDefinition;
+
+public class FederatedTransitDataBundleCreatorTest {
+
+  @Test
+  public void testGetTaskDependencies() {
+
+    TaskDefinition graph = task("graph", null, null);
+    TaskDefinition narratives = task("narratives", "TransitGraph.obj",
+        "NarrativeProvider.obj");
+    TaskDefinition shapes = task("shapes", "TransitGraph.obj", "Shapes.obj");
+    TaskDefinition routes = task("routes", "NarrativeProvider.obj",
+        "RouteSearchIndex");
+    TaskDefinition stops = task("stops", "NarrativeProvider.obj",
+        "StopSearchIndex");
+    TaskDefinition rewriteGraph = task("rewrite_graph", "Shapes.obj",
+        "TransitGraph.obj");
+    TaskDefinition preCache = task("pre_cache", null, null);
+
+    Map<String, Set<String>> dependencies = FederatedTransitDataBundleCreator.getTaskDependencies(Arrays.asList(
+        graph, narratives, shapes, routes, stops, rewriteGraph, preCache));
+
+    assertEquals(set(), dependencies.get("graph"));
+    assertEquals(set("graph"), dependencies.get("narratives"));
+    assertEquals(set("graph"), dependencies.get("shapes"));
+    assertEquals(set("graph", "narratives"), dependencies.get("routes"));
+    assertEquals(set("graph", "narratives"), dependencies.get("stops"));
+    // Reads what shapes writes, writes what narratives and shapes read
+    assertEquals(set("graph", "narratives", "shapes"),
+        dependencies.get("rewrite_graph"));
+    assertEquals(set("graph", "narratives", "shapes", "routes", "stops",
+        "rewrite_graph"), dependencies.get("pre_cache"));
+  }
+
+  private TaskDefinition task(String name, String input, String output) {
+    TaskDefinition def = new TaskDefinition();
+    def.setTaskName(name);
+    if (input != null)
+      def.setInput(input);
+    if (output != null)
+      def.setOutput(output);
+    return def;
+  }
+
+  private Set<String> set(String... values) {
+    return new HashSet<String>(Arrays.asList(values));
+  }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.bundle.tasks.transfer_pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.aid;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stop;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.services.AgencyAndIdLibrary;
+
+public class TransferPatternsOutputTest {
+
+  private File _dir;
+
+  @Before
+  public void setup() throws IOException {
+    _dir = File.createTempFile(TransferPatternsOutputTest.class.getName(),
+        "");
+    _dir.delete();
+    _dir.mkdirs();
+  }
+
+  @After
+  public void teardown() {
+    File[] files = _dir.listFiles();
+    if (files != null) {
+      for (File file : files)
+        file.delete();
+    }
+    _dir.delete();
+  }
+
+  @Test
+  public void testResume() throws IOException {
+
+    TransferPatternsOutput output = new TransferPatternsOutput(_dir, 2);
+    output.open(false, "inputs");
+    output.write(pattern("a"));
+    output.write(pattern("b"));
+    output.write(pattern("c"));
+    output.close(false);
+
+    // A resumed run keeps the partition count of the run it resumes
+    output = new TransferPatternsOutput(_dir, 5);
+    output.open(true, "inputs");
+    assertEquals(3, output.getCompletedCount());
+    assertTrue(output.isCompleted(aid("a")));
+    assertFalse(output.isCompleted(aid("d")));
+    output.write(pattern("d"));
+    output.close(true);
+
+    assertFalse(new File(_dir, "Checkpoint.txt").exists());
+    assertFalse(new File(_dir, "TransferPatterns-2.gz").exists());
+    assertEquals(set("a", "b", "c", "d"), readOrigins(output, 2));
+  }
+
+  @Test
+  public void testStartOver() throws IOException {
+
+    TransferPatternsOutput output = new TransferPatternsOutput(_dir, 2);
+    output.open(false, "inputs");
+    output.write(pattern("a"));
+    output.close(false);
+
+    output = new TransferPatternsOutput(_dir, 2);
+    output.open(false, "inputs");
+    assertEquals(0, output.getCompletedCount());
+    output.write(pattern("b"));
+    output.close(true);
+
+    assertEquals(set("b"), readOrigins(output, 2));
+  }
+
+  @Test
+  public void testInputsChanged() throws IOException {
+
+    TransferPatternsOutput output = new TransferPatternsOutput(_dir, 2);
+    output.open(false, "inputs");
+    output.write(pattern("a"));
+    output.close(false);
+
+    // A checkpoint written for a different graph is not resumed
+    output = new TransferPatternsOutput(_dir, 2);
+    output.open(true, "rebuilt");
+    assertEquals(0, output.getCompletedCount());
+    output.write(pattern("b"));
+    output.close(false);
+
+    output = new TransferPatternsOutput(_dir, 2);
+    output.open(true, "rebuilt");
+    assertEquals(1, output.getCompletedCount());
+    assertTrue(output.isCompleted(aid("b")));
+    output.close(true);
+
+    assertEquals(set("b"), readOrigins(output, 2));
+  }
+
+  @Test
+  public void testTruncateBytesAfterCheckpoint() throws IOException {
+
+    TransferPatternsOutput output = new TransferPatternsOutput(_dir, 1);
+    output.open(false, "inputs");
+    output.write(pattern("a"));
+    output.close(false);
+
+    File partition = output.getPartitionPath(0);
+    long length = partition.length();
+
+    // A pattern that was partially written when the run was interrupted
+    FileOutputStream out = new FileOutputStream(partition, true);
+    out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0});
+    out.close();
+
+    output = new TransferPatternsOutput(_dir, 1);
+    output.open(true, "inputs");
+    assertEquals(length, partition.length());
+    output.write(pattern("b"));
+    output.close(true);
+
+    assertEquals(set("a", "b"), readOrigins(output, 1));
+  }
+
+  @Test
+  public void testIgnorePartialCheckpointLine() throws IOException {
+
+    TransferPatternsOutput output = new TransferPatternsOutput(_dir, 1);
+    output.open(false, "inputs");
+    output.write(pattern("a"));
+    output.close(false);
+
+    PrintWriter out = new PrintWriter(new FileOutputStream(new File(_dir,
+        "Checkpoint.txt"), true));
+    out.print("1_b\t0");
+    out.close();
+
+    output = new TransferPatternsOutput(_dir, 1);
+    output.open(true, "inputs");
+    assertEquals(1, output.getCompletedCount());
+    assertFalse(output.isCompleted(aid("b")));
+    output.write(pattern("b"));
+    output.close(false);
+
+    // The partial line has been dropped from the rewritten log
+    output = new TransferPatternsOutput(_dir, 1);
+    output.open(true, "inputs");
+    assertEquals(2, output.getCompletedCount());
+    output.close(true);
+
+    assertEquals(set("a", "b"), readOrigins(output, 1));
+  }
+
+  @Test
+  public void testMissingPartition() throws IOException {
+
+    TransferPatternsOutput output = new TransferPatternsOutput(_dir, 2);
+    output.open(false, "inputs");
+    for (String id : new String[] {"a", "b", "c", "d"})
+      output.write(pattern(id));
+    output.close(false);
+
+    int index = output.getPartitionPath(0).length() > 0 ? 0 : 1;
+    Set<String> lost = readOrigins(output, index, index + 1);
+    Set<String> kept = readOrigins(output, 1 - index, 2 - index);
+    assertFalse(lost.isEmpty());
+
+    assertTrue(output.getPartitionPath(index).delete());
+
+    output = new TransferPatternsOutput(_dir, 2);
+    output.open(true, "inputs");
+    assertEquals(kept.size(), output.getCompletedCount());
+    for (String id : lost) {
+      AgencyAndId stopId = AgencyAndIdLibrary.convertFromString(id);
+      assertFalse(output.isCompleted(stopId));
+      output.write(pattern(stopId.getId()));
+    }
+    output.close(true);
+
+    assertEquals(set("a", "b", "c", "d"), readOrigins(output, 2));
+  }
+
+  private MutableTransferPattern pattern(String stopId) {
+    return new MutableTransferPattern(stop(stopId));
+  }
+
+  private Set<String> set(String... stopIds) {
+    Set<String> ids = new HashSet<String>();
+    for (String stopId : stopIds)
+      ids.add("1_" + stopId);
+    return ids;
+  }
+
+  private Set<String> readOrigins(TransferPatternsOutput output,
+      int partitionCount) throws IOException {
+    return readOrigins(output, 0, partitionCount);
+  }
+
+  /**
+   * @return the ids of the origin stops in the given range of partitions
+   */
+  private Set<String> readOrigins(TransferPatternsOutput output, int from,
+      int to) throws IOException {
+
+    Set<String> stopIds = new HashSet<String>();
+
+    for (int i = from; i < to; i++) {
+      if (output.getPartitionPath(i).length() == 0)
+        continue;
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new GZIPInputStream(new FileInputStream(output.getPartitionPath(i))),
+          "UTF-8"));
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        String[] tokens = line.split(",");
+        if (tokens.length == 3)
+          assertTrue(stopIds.add(tokens[1]));
+      }
+      reader.close();
+    }
+
+    return stopIds;
+  }
+}
@@ -16,6 +16,7 @@
  */
 package org.onebusaway.transit_data_federation.bundle.tasks.transit_graph;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -26,6 +27,7 @@ import org.junit.Test;
 import org.mockito.Mockito;
 import org.onebusaway.container.refresh.RefreshService;
 import org.onebusaway.transit_data_federation.impl.RefreshableResources;
+import org.onebusaway.transit_data_federation.impl.transit_graph.ColumnarTransitGraphReader;
 import org.onebusaway.transit_data_federation.impl.transit_graph.TransitGraphImpl;
 import org.onebusaway.transit_data_federation.services.FederatedTransitDataBundle;
 import org.onebusaway.utility.ObjectSerializationLibrary;
@@ -57,8 +59,12 @@ public class TransitGraphTaskTest {
     File path = File.createTempFile("TemporaryBundleDirectory-", "");
     path.delete();
 
+    File columnarPath = File.createTempFile("TemporaryColumnarGraph-", "");
+    columnarPath.delete();
+
     FederatedTransitDataBundle bundle = Mockito.mock(FederatedTransitDataBundle.class);
     Mockito.when(bundle.getTransitGraphPath()).thenReturn(path);
+    Mockito.when(bundle.getColumnarTransitGraphPath()).thenReturn(columnarPath);
 
     task.setBundle(bundle);
 
@@ -81,5 +87,44 @@ public class TransitGraphTaskTest {
 
     TransitGraphImpl graph = ObjectSerializationLibrary.readObject(path);
     assertNotNull(graph);
+
+    assertTrue(ColumnarTransitGraphReader.isColumnarGraph(columnarPath));
+    graph = ColumnarTransitGraphReader.read(columnarPath);
+    assertNotNull(graph);
+  }
+
+  @Test
+  public void testStaleColumnarGraphIsDeleted() throws IOException {
+
+    TransitGraphTask task = new TransitGraphTask();
+    task.setAgencyEntriesFactory(Mockito.mock(AgencyEntriesFactory.class));
+    task.setBlockEntriesFactory(Mockito.mock(BlockEntriesFactory.class));
+    task.setRouteCollectionEntriesFactroy(Mockito.mock(RouteCollectionEntriesFactory.class));
+    task.setRouteEntriesFactory(Mockito.mock(RouteEntriesFactory.class));
+    task.setStopEntriesFactory(Mockito.mock(StopEntriesFactory.class));
+    task.setTripEntriesFactory(Mockito.mock(TripEntriesFactory.class));
+    task.setFrequencyEntriesFactory(Mockito.mock(FrequencyEntriesFactory.class));
+    task.setRefreshService(Mockito.mock(RefreshService.class));
+
+    File path = File.createTempFile("TemporaryBundleDirectory-", "");
+    path.delete();
+
+    File columnarPath = File.createTempFile("TemporaryColumnarGraph-", "");
+    columnarPath.delete();
+
+    FederatedTransitDataBundle bundle = Mockito.mock(FederatedTransitDataBundle.class);
+    Mockito.when(bundle.getTransitGraphPath()).thenReturn(path);
+    Mockito.when(bundle.getColumnarTransitGraphPath()).thenReturn(columnarPath);
+
+    task.setBundle(bundle);
+
+    task.run();
+    assertTrue(ColumnarTransitGraphReader.isColumnarGraph(columnarPath));
+
+    task.setWriteColumnarGraph(false);
+    task.run();
+
+    assertTrue(path.exists());
+    assertFalse(columnarPath.exists());
   }
 }
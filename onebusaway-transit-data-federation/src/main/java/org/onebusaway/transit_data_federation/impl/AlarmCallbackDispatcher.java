@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes the HTTP GET requests for fired alarms. A fixed pool of threads makes
+ * the requests, with at most {@link #getMaxConcurrentCallbacksPerHost()}
+ * requests to any one host at a time, so that a slow or unresponsive host
+ * can't tie up every thread. Callbacks for a host that is already at its limit
+ * wait in a per-host queue, and callbacks beyond the overall queue limit are
+ * dropped. Every request has a connect and read timeout.
+ * 
+ * @author bdferris
+ */
+class AlarmCallbackDispatcher {
+
+  private static Logger _log = LoggerFactory.getLogger(AlarmCallbackDispatcher.class);
+
+  private final ExecutorService _executor;
+
+  private final int _maxConcurrentCallbacksPerHost;
+
+  private final int _maxQueuedCallbacks;
+
+  private final int _connectTimeout;
+
+  private final int _readTimeout;
+
+  /**
+   * Guarded by this
+   */
+  private final Map<String, HostCallbacks> _callbacksByHost = new HashMap<String, HostCallbacks>();
+
+  /**
+   * Guarded by this
+   */
+  private int _queuedCallbacks = 0;
+
+  /**
+   * 
+   * @param threads the number of threads making requests
+   * @param maxConcurrentCallbacksPerHost
+   * @param maxQueuedCallbacks the max number of callbacks waiting on their
+   *          host, across all hosts
+   * @param connectTimeout in ms
+   * @param readTimeout in ms
+   */
+  public AlarmCallbackDispatcher(int threads,
+      int maxConcurrentCallbacksPerHost, int maxQueuedCallbacks,
+      int connectTimeout, int readTimeout) {
+    _executor = new ThreadPoolExecutor(threads, threads, 0,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    _maxConcurrentCallbacksPerHost = maxConcurrentCallbacksPerHost;
+    _maxQueuedCallbacks = maxQueuedCallbacks;
+    _connectTimeout = connectTimeout;
+    _readTimeout = readTimeout;
+  }
+
+  public int getMaxConcurrentCallbacksPerHost() {
+    return _maxConcurrentCallbacksPerHost;
+  }
+
+  /**
+   * 
+   * @return the number of callbacks waiting on their host
+   */
+  public synchronized int getQueuedCallbackCount() {
+    return _queuedCallbacks;
+  }
+
+  /**
+   * 
+   * @param url
+   * @return false if the callback was dropped because too many are queued or
+   *         the dispatcher has been shut down
+   */
+  public synchronized boolean dispatch(URL url) {
+
+    String host = getHostKey(url);
+    HostCallbacks callbacks = _callbacksByHost.get(host);
+    if (callbacks == null) {
+      callbacks = new HostCallbacks();
+      _callbacksByHost.put(host, callbacks);
+    }
+
+    if (callbacks.active < _maxConcurrentCallbacksPerHost) {
+      callbacks.active++;
+      if (execute(host, url))
+        return true;
+      releaseHost(host, callbacks);
+      return false;
+    }
+
+    if (_queuedCallbacks >= _maxQueuedCallbacks) {
+      _log.warn("dropping alarm callback, too many queued: " + url);
+      return false;
+    }
+
+    callbacks.queued.add(url);
+    _queuedCallbacks++;
+    return true;
+  }
+
+  public void shutdown() {
+    _executor.shutdownNow();
+    synchronized (this) {
+      _callbacksByHost.clear();
+      _queuedCallbacks = 0;
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private String getHostKey(URL url) {
+    String host = url.getHost();
+    if (host == null)
+      host = "";
+    return host.toLowerCase() + ":" + url.getPort();
+  }
+
+  /**
+   * Should be called while synchronized on this
+   */
+  private boolean execute(String host, URL url) {
+    try {
+      _executor.execute(new CallbackTask(host, url));
+      return true;
+    } catch (RejectedExecutionException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Starts the next callback queued for the host, if any, in place of the one
+   * that just finished
+   */
+  private synchronized void callbackFinished(String host) {
+
+    HostCallbacks callbacks = _callbacksByHost.get(host);
+    if (callbacks == null)
+      return;
+
+    while (!callbacks.queued.isEmpty()) {
+      URL next = callbacks.queued.removeFirst();
+      _queuedCallbacks--;
+      if (execute(host, next))
+        return;
+    }
+
+    releaseHost(host, callbacks);
+  }
+
+  /**
+   * Should be called while synchronized on this
+   */
+  private void releaseHost(String host, HostCallbacks callbacks) {
+    callbacks.active--;
+    if (callbacks.active == 0 && callbacks.queued.isEmpty())
+      _callbacksByHost.remove(host);
+  }
+
+  private void fetch(URL url) throws Exception {
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(_connectTimeout);
+    connection.setReadTimeout(_readTimeout);
+    InputStream in = connection.getInputStream();
+    in.close();
+  }
+
+  private static class HostCallbacks {
+
+    private int active = 0;
+
+    private final LinkedList<URL> queued = new LinkedList<URL>();
+  }
+
+  private class CallbackTask implements Runnable {
+
+    private final String _host;
+
+    private final URL _url;
+
+    public CallbackTask(String host, URL url) {
+      _host = host;
+      _url = url;
+    }
+
+    @Override
+    public void run() {
+      try {
+        fetch(_url);
+      } catch (Throwable ex) {
+        _log.warn("error firing alarm", ex);
+      } finally {
+        callbackFinished(_host);
+      }
+    }
+  }
+}
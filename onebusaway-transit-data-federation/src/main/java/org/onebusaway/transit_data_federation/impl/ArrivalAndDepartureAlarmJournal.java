@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of arrival and departure alarm registrations and
+ * removals, so that registered alarms survive a restart. Replaying the journal
+ * yields the registrations that were never removed. Once removals make up most
+ * of the journal, the owner calls {@link #rewrite(Collection)} to replace it
+ * with just the live registrations.
+ *
+ * A partially written record at the end of the journal, as left by a crash, is
+ * ignored.
+ */
+class ArrivalAndDepartureAlarmJournal {
+
+  private static final Logger _log = LoggerFactory.getLogger(ArrivalAndDepartureAlarmJournal.class);
+
+  private static final byte RECORD_REGISTER = 1;
+
+  private static final byte RECORD_REMOVE = 2;
+
+  private final File _path;
+
+  private DataOutputStream _out;
+
+  private int _recordCount = 0;
+
+  public ArrivalAndDepartureAlarmJournal(File path) {
+    _path = path;
+  }
+
+  public File getPath() {
+    return _path;
+  }
+
+  /**
+   *
+   * @return the number of records in the journal, including any records
+   *         replayed at startup
+   */
+  public synchronized int getRecordCount() {
+    return _recordCount;
+  }
+
+  /**
+   *
+   * @return the registrations in the journal that haven't been removed, in the
+   *         order they were registered
+   * @throws IOException
+   */
+  public synchronized List<Registration> replay() throws IOException {
+
+    Map<AgencyAndId, Registration> registrations = new LinkedHashMap<AgencyAndId, Registration>();
+
+    if (!_path.exists())
+      return new ArrayList<Registration>();
+
+    int count = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(_path)));
+
+    try {
+      while (true) {
+        int type = in.read();
+        if (type == -1)
+          break;
+        if (type == RECORD_REGISTER) {
+          Registration registration = readRegistration(in);
+          registrations.put(registration.getAlarmId(), registration);
+        } else if (type == RECORD_REMOVE) {
+          registrations.remove(readId(in));
+        } else {
+          _log.warn("unknown record type " + type + " in alarm journal "
+              + _path + " after " + count + " records");
+          break;
+        }
+        count++;
+      }
+    } catch (EOFException ex) {
+      _log.warn("incomplete record at the end of alarm journal " + _path
+          + " after " + count + " records");
+    } finally {
+      in.close();
+    }
+
+    _recordCount += count;
+    return new ArrayList<Registration>(registrations.values());
+  }
+
+  public synchronized void appendRegistration(Registration registration)
+      throws IOException {
+    DataOutputStream out = getOutput();
+    out.writeByte(RECORD_REGISTER);
+    writeRegistration(out, registration);
+    out.flush();
+    _recordCount++;
+  }
+
+  public synchronized void appendRemoval(AgencyAndId alarmId)
+      throws IOException {
+    DataOutputStream out = getOutput();
+    out.writeByte(RECORD_REMOVE);
+    writeId(out, alarmId);
+    out.flush();
+    _recordCount++;
+  }
+
+  /**
+   * Replaces the journal with the specified registrations. The new journal is
+   * written next to the old one and moved into place, so a crash part way
+   * through leaves the old journal intact.
+   *
+   * @param registrations
+   * @throws IOException
+   */
+  public synchronized void rewrite(Collection<Registration> registrations)
+      throws IOException {
+
+    close();
+
+    File tmp = new File(_path.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)));
+    try {
+      for (Registration registration : registrations) {
+        out.writeByte(RECORD_REGISTER);
+        writeRegistration(out, registration);
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(_path)) {
+      _path.delete();
+      if (!tmp.renameTo(_path))
+        throw new IOException("error moving " + tmp + " to " + _path);
+    }
+
+    _recordCount = registrations.size();
+  }
+
+  public synchronized void close() throws IOException {
+    if (_out != null) {
+      try {
+        _out.close();
+      } finally {
+        _out = null;
+      }
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private DataOutputStream getOutput() throws IOException {
+    if (_out == null)
+      _out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(_path, true)));
+    return _out;
+  }
+
+  private static void writeRegistration(DataOutputStream out,
+      Registration registration) throws IOException {
+    writeId(out, registration.getAlarmId());
+    writeId(out, registration.getBlockId());
+    out.writeLong(registration.getServiceDate());
+    out.writeInt(registration.getFrequencyStartTime());
+    out.writeInt(registration.getEffectiveScheduleTime());
+    out.writeUTF(registration.getUrl() == null ? "" : registration.getUrl());
+  }
+
+  private static Registration readRegistration(DataInputStream in)
+      throws IOException {
+    AgencyAndId alarmId = readId(in);
+    AgencyAndId blockId = readId(in);
+    long serviceDate = in.readLong();
+    int frequencyStartTime = in.readInt();
+    int effectiveScheduleTime = in.readInt();
+    String url = in.readUTF();
+    return new Registration(alarmId, blockId, serviceDate, frequencyStartTime,
+        effectiveScheduleTime, url);
+  }
+
+  private static void writeId(DataOutputStream out, AgencyAndId id)
+      throws IOException {
+    out.writeUTF(id.getAgencyId());
+    out.writeUTF(id.getId());
+  }
+
+  private static AgencyAndId readId(DataInputStream in) throws IOException {
+    String agencyId = in.readUTF();
+    String id = in.readUTF();
+    return new AgencyAndId(agencyId, id);
+  }
+
+  /**
+   * Everything needed to re-register an alarm against its block instance
+   */
+  public static class Registration {
+
+    private final AgencyAndId _alarmId;
+
+    private final AgencyAndId _blockId;
+
+    private final long _serviceDate;
+
+    private final int _frequencyStartTime;
+
+    private final int _effectiveScheduleTime;
+
+    private final String _url;
+
+    /**
+     *
+     * @param alarmId
+     * @param blockId
+     * @param serviceDate
+     * @param frequencyStartTime the start time of the block instance's
+     *          frequency, or -1 if the block isn't frequency-based
+     * @param effectiveScheduleTime
+     * @param url
+     */
+    public Registration(AgencyAndId alarmId, AgencyAndId blockId,
+        long serviceDate, int frequencyStartTime, int effectiveScheduleTime,
+        String url) {
+      _alarmId = alarmId;
+      _blockId = blockId;
+      _serviceDate = serviceDate;
+      _frequencyStartTime = frequencyStartTime;
+      _effectiveScheduleTime = effectiveScheduleTime;
+      _url = url;
+    }
+
+    public AgencyAndId getAlarmId() {
+      return _alarmId;
+    }
+
+    public AgencyAndId getBlockId() {
+      return _blockId;
+    }
+
+    public long getServiceDate() {
+      return _serviceDate;
+    }
+
+    public int getFrequencyStartTime() {
+      return _frequencyStartTime;
+    }
+
+    public int getEffectiveScheduleTime() {
+      return _effectiveScheduleTime;
+    }
+
+    public String getUrl() {
+      return _url;
+    }
+  }
+}
@@ -15,17 +15,20 @@
  */
 package org.onebusaway.transit_data_federation.impl;
 
-import java.io.InputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -35,21 +38,41 @@ import javax.annotation.PreDestroy;
 import org.onebusaway.exceptions.ServiceException;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.transit_data.model.RegisterAlarmQueryBean;
+import org.onebusaway.transit_data_federation.impl.ArrivalAndDepartureAlarmJournal.Registration;
+import org.onebusaway.transit_data_federation.impl.HierarchicalTimingWheel.Timeout;
 import org.onebusaway.transit_data_federation.services.AgencyAndIdLibrary;
 import org.onebusaway.transit_data_federation.services.AlarmAction;
 import org.onebusaway.transit_data_federation.services.ArrivalAndDepartureAlarmService;
 import org.onebusaway.transit_data_federation.services.ArrivalAndDepartureQuery;
 import org.onebusaway.transit_data_federation.services.ArrivalAndDepartureService;
+import org.onebusaway.transit_data_federation.services.blocks.BlockCalendarService;
 import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
 import org.onebusaway.transit_data_federation.services.realtime.ArrivalAndDepartureInstance;
 import org.onebusaway.transit_data_federation.services.realtime.BlockLocation;
 import org.onebusaway.transit_data_federation.services.realtime.BlockLocationListener;
+import org.onebusaway.transit_data_federation.services.transit_graph.FrequencyEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+/**
+ * Alarms are grouped by block instance and then by the vehicle serving the
+ * block instance, with each group keeping its alarms in order of effective
+ * schedule time. Each block instance has a single timeout in a
+ * {@link HierarchicalTimingWheel} for its next alarm, so a real-time update for
+ * a vehicle only touches that vehicle's queue and the block instance's
+ * timeout. The wheel is advanced once a second and due alarms are fired
+ * through an {@link AlarmCallbackDispatcher}, which limits the number of
+ * concurrent callbacks to each host.
+ * 
+ * If an alarm journal path is set, registrations are journaled to disk and
+ * re-registered at startup, so that pending alarms survive a restart. The
+ * removal of a fired alarm is journaled by the task that fires it, and journal
+ * compaction runs as a task of its own, so that no journal I/O happens while
+ * the alarms of a block instance are locked.
+ */
 @Component
 class ArrivalAndDepartureAlarmServiceImpl implements
     ArrivalAndDepartureAlarmService, BlockLocationListener {
@@ -58,39 +81,185 @@ class ArrivalAndDepartureAlarmServiceImpl implements
 
   private ArrivalAndDepartureService _arrivalAndDepartureService;
 
+  private BlockCalendarService _blockCalendarService;
+
   private ConcurrentMap<BlockInstance, AlarmsForBlockInstance> _alarmsByBlockInstance = new ConcurrentHashMap<BlockInstance, AlarmsForBlockInstance>();
 
-  private Map<AgencyAndId, AlarmForBlockInstance> _alarmsById = new HashMap<AgencyAndId, AlarmForBlockInstance>();
+  private ConcurrentMap<AgencyAndId, AlarmForBlockInstance> _alarmsById = new ConcurrentHashMap<AgencyAndId, AlarmForBlockInstance>();
+
+  /**
+   * Ticks are seconds since the epoch
+   */
+  private HierarchicalTimingWheel<AlarmsForBlockInstance> _wheel;
+
+  private ScheduledExecutorService _ticker;
 
-  private ScheduledExecutorService _executor;
+  private ExecutorService _executor;
+
+  private AlarmCallbackDispatcher _dispatcher;
 
   private int _threadPoolSize = 5;
 
+  private int _maxConcurrentCallbacksPerHost = 2;
+
+  private int _maxQueuedCallbacks = 1000;
+
+  private int _callbackConnectTimeout = 10;
+
+  private int _callbackReadTimeout = 10;
+
+  private File _alarmJournalPath;
+
+  private ArrivalAndDepartureAlarmJournal _journal;
+
+  /**
+   * Guards the alarm journal, so that a journal rewrite sees a consistent set
+   * of live alarms
+   */
+  private final Object _journalLock = new Object();
+
+  private int _journalCompactionThreshold = 10000;
+
+  /**
+   * Guarded by {@link #_journalLock}
+   */
+  private boolean _journalCompactionPending = false;
+
+  private int _maxReplayedAlarmLateness = 10 * 60;
+
   @Autowired
   public void setArrivalAndDepartureService(
       ArrivalAndDepartureService arrivalAndDepartureService) {
     _arrivalAndDepartureService = arrivalAndDepartureService;
   }
 
+  @Autowired
+  public void setBlockCalendarService(BlockCalendarService blockCalendarService) {
+    _blockCalendarService = blockCalendarService;
+  }
+
+  /**
+   * 
+   * @param threadPoolSize the number of threads making alarm callbacks
+   */
   public void setThreadPoolSize(int threadPoolSize) {
     _threadPoolSize = threadPoolSize;
   }
 
+  public void setMaxConcurrentCallbacksPerHost(
+      int maxConcurrentCallbacksPerHost) {
+    _maxConcurrentCallbacksPerHost = maxConcurrentCallbacksPerHost;
+  }
+
+  /**
+   * Callbacks beyond this many waiting on their host are dropped.
+   * 
+   * @param maxQueuedCallbacks
+   */
+  public void setMaxQueuedCallbacks(int maxQueuedCallbacks) {
+    _maxQueuedCallbacks = maxQueuedCallbacks;
+  }
+
+  /**
+   * 
+   * @param callbackConnectTimeout in seconds
+   */
+  public void setCallbackConnectTimeout(int callbackConnectTimeout) {
+    _callbackConnectTimeout = callbackConnectTimeout;
+  }
+
+  /**
+   * 
+   * @param callbackReadTimeout in seconds
+   */
+  public void setCallbackReadTimeout(int callbackReadTimeout) {
+    _callbackReadTimeout = callbackReadTimeout;
+  }
+
+  /**
+   * If set, alarm registrations are journaled to this path and re-registered
+   * at startup.
+   * 
+   * @param alarmJournalPath
+   */
+  public void setAlarmJournalPath(File alarmJournalPath) {
+    _alarmJournalPath = alarmJournalPath;
+  }
+
+  /**
+   * The journal is rewritten with just the live alarms once it contains this
+   * many more records than twice the number of live alarms.
+   * 
+   * @param journalCompactionThreshold
+   */
+  public void setJournalCompactionThreshold(int journalCompactionThreshold) {
+    _journalCompactionThreshold = journalCompactionThreshold;
+  }
+
+  /**
+   * Journaled alarms that should have fired more than this long before startup
+   * are dropped rather than fired.
+   * 
+   * @param maxReplayedAlarmLateness in seconds
+   */
+  public void setMaxReplayedAlarmLateness(int maxReplayedAlarmLateness) {
+    _maxReplayedAlarmLateness = maxReplayedAlarmLateness;
+  }
+
   /****
    * 
    ****/
 
   @PostConstruct
   public void start() {
-    _executor = Executors.newScheduledThreadPool(_threadPoolSize);
+
+    _wheel = new HierarchicalTimingWheel<AlarmsForBlockInstance>(
+        System.currentTimeMillis() / 1000);
+    _executor = Executors.newSingleThreadExecutor();
+    _dispatcher = new AlarmCallbackDispatcher(_threadPoolSize,
+        _maxConcurrentCallbacksPerHost, _maxQueuedCallbacks,
+        _callbackConnectTimeout * 1000, _callbackReadTimeout * 1000);
+
+    if (_alarmJournalPath != null)
+      replayJournal();
+
+    _ticker = Executors.newSingleThreadScheduledExecutor();
+    _ticker.scheduleAtFixedRate(new TickTask(), 1, 1, TimeUnit.SECONDS);
   }
 
   @PreDestroy
   public void stop() {
+    if (_ticker != null) {
+      _ticker.shutdownNow();
+      _ticker = null;
+    }
     if (_executor != null) {
       _executor.shutdownNow();
       _executor = null;
     }
+    if (_dispatcher != null) {
+      _dispatcher.shutdown();
+      _dispatcher = null;
+    }
+    synchronized (_journalLock) {
+      if (_journal != null) {
+        try {
+          _journal.close();
+        } catch (IOException ex) {
+          _log.error("error closing alarm journal " + _journal.getPath(), ex);
+        }
+        _journal = null;
+      }
+    }
+  }
+
+  /**
+   * 
+   * @return the number of registered alarms that have yet to fire or be
+   *         canceled
+   */
+  public int getAlarmCount() {
+    return _alarmsById.size();
   }
 
   /****
@@ -111,11 +280,6 @@ class ArrivalAndDepartureAlarmServiceImpl implements
      */
     BlockInstance blockInstance = instance.getBlockInstance();
 
-    /**
-     * Retrieve the alarms for the block instance
-     */
-    AlarmsForBlockInstance alarms = getAlarmsForBlockInstance(blockInstance);
-
     /**
      * The effective schedule time is the point in the transit vehicle's
      * schedule run time when the alarm should be fired
@@ -129,10 +293,23 @@ class ArrivalAndDepartureAlarmServiceImpl implements
     AlarmAction action = new AlarmAction();
     action.setUrl(alarmBean.getUrl());
 
-    AlarmForBlockInstance alarm = alarms.registerAlarm(action,
-        effectiveScheduleTime, instance);
+    StopEntry stop = instance.getStop();
+    AgencyAndId stopId = stop.getId();
+    AgencyAndId alarmId = new AgencyAndId(stopId.getAgencyId(),
+        UUID.randomUUID().toString());
 
-    _alarmsById.put(alarm.getId(), alarm);
+    FrequencyEntry frequency = blockInstance.getState().getFrequency();
+    Registration registration = new Registration(alarmId,
+        blockInstance.getBlock().getBlock().getId(),
+        blockInstance.getServiceDate(), frequency == null ? -1
+            : frequency.getStartTime(), effectiveScheduleTime,
+        alarmBean.getUrl());
+
+    AlarmForBlockInstance alarm = new AlarmForBlockInstance(alarmId, action,
+        effectiveScheduleTime, registration);
+
+    addAlarm(alarm);
+    registerAlarm(blockInstance, alarm, instance.getBlockLocation());
 
     _log.debug("alarm created: {}", alarm.getId());
 
@@ -142,7 +319,7 @@ class ArrivalAndDepartureAlarmServiceImpl implements
   @Override
   public void cancelAlarmForArrivalAndDepartureAtStop(AgencyAndId alarmId) {
     _log.debug("cancelling alarm: {}", alarmId);
-    AlarmForBlockInstance alarm = _alarmsById.get(alarmId);
+    AlarmForBlockInstance alarm = removeAlarm(alarmId);
     if (alarm != null)
       alarm.setCanceled();
   }
@@ -223,15 +400,196 @@ class ArrivalAndDepartureAlarmServiceImpl implements
     }
   }
 
+  /**
+   * Adds the alarm to the alarms for its block instance, retrying if those
+   * alarms are canceled while we register.
+   */
+  private void registerAlarm(BlockInstance blockInstance,
+      AlarmForBlockInstance alarm, BlockLocation blockLocation) {
+    while (true) {
+      AlarmsForBlockInstance alarms = getAlarmsForBlockInstance(blockInstance);
+      if (alarms.registerAlarm(alarm, blockLocation))
+        return;
+    }
+  }
+
+  /**
+   * Called while holding the lock of the alarm's block instance, so the
+   * removal is journaled by the task that fires the alarm
+   */
   private void fireAlarm(AlarmForBlockInstance alarm) {
+    if (_alarmsById.remove(alarm.getId()) == null)
+      return;
     _executor.submit(new FireAlarmTask(alarm.getId(), alarm.action));
   }
 
+  private void addAlarm(AlarmForBlockInstance alarm) {
+    if (_journal == null) {
+      _alarmsById.put(alarm.getId(), alarm);
+      return;
+    }
+    synchronized (_journalLock) {
+      _alarmsById.put(alarm.getId(), alarm);
+      if (_journal == null)
+        return;
+      try {
+        _journal.appendRegistration(alarm.getRegistration());
+      } catch (IOException ex) {
+        _log.error("error journaling alarm " + alarm.getId(), ex);
+      }
+      compactJournalIfNeeded();
+    }
+  }
+
+  private AlarmForBlockInstance removeAlarm(AgencyAndId alarmId) {
+    AlarmForBlockInstance alarm = _alarmsById.remove(alarmId);
+    if (alarm != null)
+      journalRemoval(alarmId);
+    return alarm;
+  }
+
+  /**
+   * Journals the removal of an alarm once it's out of {@link #_alarmsById}, so
+   * that a compaction either leaves the alarm out or comes before the removal
+   */
+  private void journalRemoval(AgencyAndId alarmId) {
+    if (_journal == null)
+      return;
+    synchronized (_journalLock) {
+      if (_journal == null)
+        return;
+      try {
+        _journal.appendRemoval(alarmId);
+      } catch (IOException ex) {
+        _log.error("error journaling alarm removal " + alarmId, ex);
+      }
+      compactJournalIfNeeded();
+    }
+  }
+
+  /**
+   * Should be called while holding {@link #_journalLock}. The compaction
+   * itself runs on the executor, so callers don't wait on the rewrite.
+   */
+  private void compactJournalIfNeeded() {
+    if (_journalCompactionPending
+        || _journal.getRecordCount() < 2 * _alarmsById.size()
+            + _journalCompactionThreshold)
+      return;
+    ExecutorService executor = _executor;
+    if (executor == null)
+      return;
+    _journalCompactionPending = true;
+    try {
+      executor.execute(new CompactJournalTask());
+    } catch (RejectedExecutionException ex) {
+      _journalCompactionPending = false;
+    }
+  }
+
+  /**
+   * Should be called while holding {@link #_journalLock}
+   */
+  private void compactJournal() {
+    List<Registration> registrations = new ArrayList<Registration>(
+        _alarmsById.size());
+    for (AlarmForBlockInstance alarm : _alarmsById.values())
+      registrations.add(alarm.getRegistration());
+    try {
+      _journal.rewrite(registrations);
+    } catch (IOException ex) {
+      _log.error("error compacting alarm journal " + _journal.getPath(), ex);
+    }
+  }
+
+  /**
+   * Re-registers the alarms left in the journal by the previous run. Since we
+   * don't know whether a vehicle is serving their block instances yet, they
+   * start out schedule-only until the next real-time update moves them over.
+   */
+  private void replayJournal() {
+
+    ArrivalAndDepartureAlarmJournal journal = new ArrivalAndDepartureAlarmJournal(
+        _alarmJournalPath);
+
+    List<Registration> registrations;
+    try {
+      registrations = journal.replay();
+    } catch (IOException ex) {
+      _log.error("error replaying alarm journal " + _alarmJournalPath, ex);
+      registrations = new ArrayList<Registration>();
+    }
+
+    synchronized (_journalLock) {
+      _journal = journal;
+    }
+
+    long now = System.currentTimeMillis();
+    int restored = 0;
+
+    for (Registration registration : registrations) {
+
+      long alarmTime = registration.getServiceDate()
+          + registration.getEffectiveScheduleTime() * 1000L;
+      if (alarmTime < now - _maxReplayedAlarmLateness * 1000L) {
+        _log.debug("dropping stale alarm: {}", registration.getAlarmId());
+        continue;
+      }
+
+      BlockInstance blockInstance = getBlockInstanceForRegistration(registration);
+      if (blockInstance == null) {
+        _log.warn("no block instance found for alarm "
+            + registration.getAlarmId() + " with block "
+            + registration.getBlockId());
+        continue;
+      }
+
+      AlarmAction action = new AlarmAction();
+      action.setUrl(registration.getUrl());
+      AlarmForBlockInstance alarm = new AlarmForBlockInstance(
+          registration.getAlarmId(), action,
+          registration.getEffectiveScheduleTime(), registration);
+
+      _alarmsById.put(alarm.getId(), alarm);
+      registerAlarm(blockInstance, alarm, null);
+      restored++;
+    }
+
+    _log.info("restored " + restored + " of " + registrations.size()
+        + " journaled alarms");
+
+    synchronized (_journalLock) {
+      compactJournal();
+    }
+  }
+
+  private BlockInstance getBlockInstanceForRegistration(
+      Registration registration) {
+
+    BlockInstance blockInstance = _blockCalendarService.getBlockInstance(
+        registration.getBlockId(), registration.getServiceDate());
+
+    if (blockInstance == null || registration.getFrequencyStartTime() < 0)
+      return blockInstance;
+
+    List<FrequencyEntry> frequencies = blockInstance.getBlock().getFrequencies();
+    if (frequencies == null)
+      return null;
+
+    for (FrequencyEntry frequency : frequencies) {
+      if (frequency.getStartTime() == registration.getFrequencyStartTime())
+        return new BlockInstance(blockInstance.getBlock(),
+            registration.getServiceDate(), frequency);
+    }
+
+    return null;
+  }
+
   /****
    * 
    ****/
 
-  private class AlarmsForBlockInstance implements Runnable {
+  private class AlarmsForBlockInstance {
 
     private final BlockInstance _blockInstance;
 
@@ -249,10 +607,15 @@ class ArrivalAndDepartureAlarmServiceImpl implements
     private Map<AgencyAndId, VehicleInfo> _vehicleInfoByVehicleId = new HashMap<AgencyAndId, VehicleInfo>();
 
     /**
-     * The actual task that will run to check and fire alarms in the future. We
-     * reschedule this task to reflect the next upcoming alarm.
+     * The tick of the next alarm in the no-vehicle queue, or -1 if empty
+     */
+    private long _noVehicleIdNextAlarmTick = -1;
+
+    /**
+     * Our timeout in the timing wheel, which we reschedule to reflect the next
+     * upcoming alarm across all our queues.
      */
-    private Future<?> _alarmTask = null;
+    private Timeout<AlarmsForBlockInstance> _timeout = null;
 
     /**
      * Indicates that this alarms instance has been canceled and no new alarms
@@ -270,30 +633,30 @@ class ArrivalAndDepartureAlarmServiceImpl implements
       return _canceled;
     }
 
-    public synchronized AlarmForBlockInstance registerAlarm(AlarmAction action,
-        int effectiveScheduleTime, ArrivalAndDepartureInstance instance) {
-
-      StopEntry stop = instance.getStop();
-      AgencyAndId stopId = stop.getId();
-      AgencyAndId alarmId = new AgencyAndId(stopId.getAgencyId(),
-          UUID.randomUUID().toString());
+    /**
+     * 
+     * @param alarm
+     * @param blockLocation may be null
+     * @return false if these alarms have been canceled in the meantime, in
+     *         which case the alarm should be registered with a fresh instance
+     */
+    public synchronized boolean registerAlarm(AlarmForBlockInstance alarm,
+        BlockLocation blockLocation) {
 
-      AlarmForBlockInstance alarm = new AlarmForBlockInstance(alarmId, action,
-          effectiveScheduleTime);
+      if (_canceled)
+        return false;
 
       /**
        * We put the alarm in the schedule-only vs real-time queue as appropriate
        */
-      BlockLocation blockLocation = instance.getBlockLocation();
-
       if (blockLocation == null || blockLocation.getVehicleId() == null) {
 
-        _log.debug("schedule only for alarm: {}", instance);
+        _log.debug("schedule only for alarm: {}", alarm.getId());
         _noVehicleIdQueue.add(alarm);
 
       } else {
 
-        _log.debug("real-time for alarm: {}", instance);
+        _log.debug("real-time for alarm: {}", alarm.getId());
         AgencyAndId vehicleId = blockLocation.getVehicleId();
         VehicleInfo vehicleInfo = getVehicleInfoForVehicleId(vehicleId, true);
         if (blockLocation.isScheduleDeviationSet())
@@ -305,8 +668,7 @@ class ArrivalAndDepartureAlarmServiceImpl implements
       }
 
       processQueues();
-
-      return alarm;
+      return true;
     }
 
     public synchronized void updateBlockLocation(BlockLocation blockLocation) {
@@ -337,18 +699,34 @@ class ArrivalAndDepartureAlarmServiceImpl implements
       if (vehicleInfo == null)
         return;
 
-      vehicleInfo.setScheduleDeviation((int) blockLocation.getScheduleDeviation());
+      int scheduleDeviation = (int) blockLocation.getScheduleDeviation();
 
-      moveNoVehicleAlarmsToVehicleAlarms();
-      processQueues();
+      /**
+       * Nothing to do if the vehicle's alarms won't move
+       */
+      if (!create && vehicleInfo.getScheduleDeviation() == scheduleDeviation)
+        return;
+
+      vehicleInfo.setScheduleDeviation(scheduleDeviation);
+
+      /**
+       * Unless alarms moved between queues, only the alarms of this vehicle
+       * are affected, so we leave the other queues alone
+       */
+      if (moveNoVehicleAlarmsToVehicleAlarms()) {
+        processQueues();
+      } else {
+        long now = System.currentTimeMillis();
+        vehicleInfo.setNextAlarmTick(processQueue(vehicleInfo.getQueue(),
+            scheduleDeviation, now));
+        scheduleNextCheck();
+      }
     }
 
     /**
-     * This is called by the scheduler
+     * This is called when our timeout in the timing wheel expires
      */
-    @Override
-    public synchronized void run() {
-      _alarmTask = null;
+    public synchronized void handleTimeout() {
       processQueues();
     }
 
@@ -373,64 +751,83 @@ class ArrivalAndDepartureAlarmServiceImpl implements
      * If we had alarms set for a "scheduled arrival" and we now have real-time
      * tracking for a vehicle serving that arrival, we move the alarms over.
      */
-    private void moveNoVehicleAlarmsToVehicleAlarms() {
+    private boolean moveNoVehicleAlarmsToVehicleAlarms() {
 
       if (_noVehicleIdQueue.isEmpty() || _vehicleInfoByVehicleId.isEmpty())
-        return;
+        return false;
       VehicleInfo first = _vehicleInfoByVehicleId.values().iterator().next();
 
       PriorityQueue<AlarmForBlockInstance> queue = first.getQueue();
 
       queue.addAll(_noVehicleIdQueue);
       _noVehicleIdQueue.clear();
+      return true;
     }
 
     private void processQueues() {
 
-      if (_alarmTask != null)
-        _alarmTask.cancel(false);
-
-      boolean allQueuesAreEmpty = true;
-      int minNextAlarmTime = Integer.MAX_VALUE;
+      long now = System.currentTimeMillis();
 
       for (VehicleInfo vehicleInfo : _vehicleInfoByVehicleId.values()) {
         PriorityQueue<AlarmForBlockInstance> queue = vehicleInfo.getQueue();
         int scheduleDeviation = vehicleInfo.getScheduleDeviation();
-        int nextAlarmTime = processQueue(queue, scheduleDeviation);
-        if (nextAlarmTime > 0) {
-          minNextAlarmTime = Math.min(minNextAlarmTime, nextAlarmTime);
-          allQueuesAreEmpty = false;
-        }
+        vehicleInfo.setNextAlarmTick(processQueue(queue, scheduleDeviation, now));
       }
 
-      int nextAlarmTime = processQueue(_noVehicleIdQueue, 0);
-      if (nextAlarmTime > 0) {
-        minNextAlarmTime = Math.min(minNextAlarmTime, nextAlarmTime);
-        allQueuesAreEmpty = false;
+      _noVehicleIdNextAlarmTick = processQueue(_noVehicleIdQueue, 0, now);
+
+      scheduleNextCheck();
+    }
+
+    /**
+     * Reschedules our timeout for the earliest next alarm across all queues,
+     * as of their last processing, or cleans up if there are none.
+     */
+    private void scheduleNextCheck() {
+
+      long minNextAlarmTick = Long.MAX_VALUE;
+
+      for (VehicleInfo vehicleInfo : _vehicleInfoByVehicleId.values()) {
+        long nextAlarmTick = vehicleInfo.getNextAlarmTick();
+        if (nextAlarmTick >= 0)
+          minNextAlarmTick = Math.min(minNextAlarmTick, nextAlarmTick);
       }
 
-      if (allQueuesAreEmpty) {
+      if (_noVehicleIdNextAlarmTick >= 0)
+        minNextAlarmTick = Math.min(minNextAlarmTick, _noVehicleIdNextAlarmTick);
+
+      if (minNextAlarmTick == Long.MAX_VALUE) {
         _log.debug("all alarm queues are empty, cleaning up: {}",
             _blockInstance);
+        if (_timeout != null) {
+          _wheel.cancel(_timeout);
+          _timeout = null;
+        }
         _vehicleInfoByVehicleId.clear();
         _canceled = true;
-        _alarmsByBlockInstance.remove(_blockInstance);
+        _alarmsByBlockInstance.remove(_blockInstance, this);
 
       } else {
-        _log.debug("scheduling next alarm check in {} secs for {}",
-            minNextAlarmTime, _blockInstance);
+        _log.debug("scheduling next alarm check at {} for {}",
+            minNextAlarmTick, _blockInstance);
         /**
          * Schedule the next alarm
          */
-        _alarmTask = _executor.schedule(this, minNextAlarmTime,
-            TimeUnit.SECONDS);
+        if (_timeout == null || !_wheel.reschedule(_timeout, minNextAlarmTick))
+          _timeout = _wheel.schedule(this, minNextAlarmTick);
       }
     }
 
-    private int processQueue(PriorityQueue<AlarmForBlockInstance> queue,
-        int scheduleDeviation) {
+    /**
+     * Fires the alarms in the queue that are due
+     * 
+     * @return the tick at which the next alarm in the queue is due, or -1 if
+     *         the queue is empty
+     */
+    private long processQueue(PriorityQueue<AlarmForBlockInstance> queue,
+        int scheduleDeviation, long now) {
 
-      int effectiveScheduleTime = (int) ((System.currentTimeMillis() - _blockInstance.getServiceDate()) / 1000 - scheduleDeviation);
+      int effectiveScheduleTime = (int) ((now - _blockInstance.getServiceDate()) / 1000 - scheduleDeviation);
 
       while (!queue.isEmpty()) {
         AlarmForBlockInstance alarm = queue.peek();
@@ -445,7 +842,8 @@ class ArrivalAndDepartureAlarmServiceImpl implements
          * return the time until it should be fired
          */
         if (effectiveScheduleTime < alarm.getEffectiveScheduleTime()) {
-          return alarm.getEffectiveScheduleTime() - effectiveScheduleTime;
+          return now / 1000 + alarm.getEffectiveScheduleTime()
+              - effectiveScheduleTime;
         }
         queue.poll();
         fireAlarm(alarm);
@@ -465,6 +863,8 @@ class ArrivalAndDepartureAlarmServiceImpl implements
 
     private int _scheduleDeviation = 0;
 
+    private long _nextAlarmTick = -1;
+
     public int getScheduleDeviation() {
       return _scheduleDeviation;
     }
@@ -473,6 +873,19 @@ class ArrivalAndDepartureAlarmServiceImpl implements
       _scheduleDeviation = scheduleDeviation;
     }
 
+    /**
+     * 
+     * @return the tick of the next alarm in the queue as of when it was last
+     *         processed, or -1 if it was empty
+     */
+    public long getNextAlarmTick() {
+      return _nextAlarmTick;
+    }
+
+    public void setNextAlarmTick(long nextAlarmTick) {
+      _nextAlarmTick = nextAlarmTick;
+    }
+
     public PriorityQueue<AlarmForBlockInstance> getQueue() {
       return _queue;
     }
@@ -487,13 +900,16 @@ class ArrivalAndDepartureAlarmServiceImpl implements
 
     private final int effectiveScheduleTime;
 
-    private boolean canceled = false;
+    private final Registration registration;
+
+    private volatile boolean canceled = false;
 
     public AlarmForBlockInstance(AgencyAndId id, AlarmAction action,
-        int effectiveScheduleTime) {
+        int effectiveScheduleTime, Registration registration) {
       this.id = id;
       this.action = action;
       this.effectiveScheduleTime = effectiveScheduleTime;
+      this.registration = registration;
     }
 
     public AgencyAndId getId() {
@@ -504,6 +920,10 @@ class ArrivalAndDepartureAlarmServiceImpl implements
       return effectiveScheduleTime;
     }
 
+    public Registration getRegistration() {
+      return registration;
+    }
+
     public void setCanceled() {
       canceled = true;
     }
@@ -518,14 +938,49 @@ class ArrivalAndDepartureAlarmServiceImpl implements
     }
   }
 
+  /**
+   * Advances the timing wheel to the current second and processes the block
+   * instances whose next alarm has come due
+   */
+  private class TickTask implements Runnable {
+
+    private final List<AlarmsForBlockInstance> _expired = new ArrayList<AlarmsForBlockInstance>();
+
+    @Override
+    public void run() {
+      try {
+        _wheel.advance(System.currentTimeMillis() / 1000, _expired);
+        for (AlarmsForBlockInstance alarms : _expired)
+          alarms.handleTimeout();
+      } catch (Throwable ex) {
+        _log.warn("error processing alarms", ex);
+      } finally {
+        _expired.clear();
+      }
+    }
+  }
+
+  private class CompactJournalTask implements Runnable {
+
+    @Override
+    public void run() {
+      synchronized (_journalLock) {
+        _journalCompactionPending = false;
+        if (_journal != null)
+          compactJournal();
+      }
+    }
+  }
+
   /**
    * This task encapsulates the task of actually executing an alarm so that it
-   * can be executed asynchronously
+   * can be executed asynchronously. The alarm's removal is journaled before
+   * its callback is handed to the dispatcher.
    * 
    * @author bdferris
    * 
    */
-  private static class FireAlarmTask implements Runnable {
+  private class FireAlarmTask implements Runnable {
 
     private final AgencyAndId alarmId;
 
@@ -538,14 +993,14 @@ class ArrivalAndDepartureAlarmServiceImpl implements
 
     @Override
     public void run() {
+      journalRemoval(alarmId);
       try {
         String rawUrl = action.getUrl();
         String rawAlarmId = AgencyAndIdLibrary.convertToString(alarmId);
         rawUrl = rawUrl.replace("#ALARM_ID#", rawAlarmId);
-        URL url = new URL(rawUrl);
-        URLConnection connection = url.openConnection();
-        InputStream in = connection.getInputStream();
-        in.close();
+        AlarmCallbackDispatcher dispatcher = _dispatcher;
+        if (dispatcher != null)
+          dispatcher.dispatch(new URL(rawUrl));
       } catch (Throwable ex) {
         _log.warn("error firing alarm", ex);
       }
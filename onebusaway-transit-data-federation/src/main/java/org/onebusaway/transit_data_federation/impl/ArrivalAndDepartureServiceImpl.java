@@ -63,7 +63,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
-class ArrivalAndDepartureServiceImpl implements ArrivalAndDepartureService {
+public class ArrivalAndDepartureServiceImpl implements ArrivalAndDepartureService {
 
   private StopTimeService _stopTimeService;
 
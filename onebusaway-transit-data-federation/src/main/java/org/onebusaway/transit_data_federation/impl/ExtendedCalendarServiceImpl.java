@@ -26,13 +26,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 
 import javax.annotation.PostConstruct;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
 
-import org.onebusaway.collections.CollectionsLibrary;
 import org.onebusaway.container.cache.Cacheable;
 import org.onebusaway.container.refresh.Refreshable;
 import org.onebusaway.gtfs.model.calendar.LocalizedServiceId;
@@ -47,6 +47,14 @@ import org.onebusaway.transit_data_federation.services.transit_graph.TransitGrap
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+/**
+ * The service dates of every {@link ServiceIdActivation} used by a block are
+ * computed once, when the calendar data is loaded, as a
+ * {@link ServiceDateBitSet} over a per-time-zone {@link ServiceDayTable}.
+ * Activity checks are then a bit test and range queries a scan of the set
+ * bits, returning the shared service date instances of the table. Other
+ * activations fall back to the underlying {@link CalendarService}.
+ */
 @Component
 public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
 
@@ -54,7 +62,16 @@ public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
 
   private TransitGraphDao _transitGraphDao;
 
-  private Map<ServiceIdActivation, List<Date>> _serviceDatesByServiceIds = new HashMap<ServiceIdActivation, List<Date>>();
+  /**
+   * All the service dates of each activation
+   */
+  private volatile Map<ServiceIdActivation, ServiceDateBitSet> _serviceDatesByServiceIds = Collections.emptyMap();
+
+  /**
+   * The service dates of each activation within the configured lower and upper
+   * bounds, as used for next and previous service date queries
+   */
+  private volatile Map<ServiceIdActivation, ServiceDateBitSet> _boundedServiceDatesByServiceIds = Collections.emptyMap();
 
   private double _serviceDateRangeCacheInterval = 4 * 60 * 60;
 
@@ -172,6 +189,12 @@ public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
       ServiceIdActivation serviceIds, ServiceInterval interval, Date from,
       Date to) {
 
+    ServiceDateBitSet serviceDates = _serviceDatesByServiceIds.get(serviceIds);
+    if (serviceDates != null)
+      return serviceDates.getServiceDatesWithinRange(from.getTime()
+          - interval.getMaxDeparture() * 1000L, to.getTime()
+          - interval.getMinArrival() * 1000L);
+
     if (_serviceDateRangeCache == null)
       return getServiceDatesWithinRangeExact(serviceIds, interval, from, to);
 
@@ -196,10 +219,13 @@ public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
   }
 
   @Override
-  @Cacheable
   public boolean areServiceIdsActiveOnServiceDate(
       ServiceIdActivation serviceIds, Date serviceDate) {
 
+    ServiceDateBitSet serviceDates = _serviceDatesByServiceIds.get(serviceIds);
+    if (serviceDates != null)
+      return serviceDates.contains(serviceDate.getTime());
+
     List<LocalizedServiceId> activeServiceIds = serviceIds.getActiveServiceIds();
     List<LocalizedServiceId> inactiveServiceIds = serviceIds.getInactiveServiceIds();
 
@@ -239,42 +265,41 @@ public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
   public List<Date> getNextServiceDatesForDepartureInterval(
       ServiceIdActivation serviceIds, ServiceInterval serviceInterval, long time) {
 
-    List<Date> serviceDates = _serviceDatesByServiceIds.get(serviceIds);
+    ServiceDateBitSet serviceDates = _boundedServiceDatesByServiceIds.get(serviceIds);
 
-    if (CollectionsLibrary.isEmpty(serviceDates))
+    if (serviceDates == null || serviceDates.isEmpty())
       return Collections.emptyList();
 
-    int offset = (serviceInterval.getMaxDeparture() - serviceInterval.getMinDeparture()) * 1000;
-    Date offsetDate = new Date(time - offset);
-    int startIndex = Collections.binarySearch(serviceDates, offsetDate);
+    ServiceDayTable days = serviceDates.getDays();
 
-    if (startIndex < 0)
-      startIndex = -(startIndex + 1);
-    startIndex = Math.max(0, startIndex - 1);
+    // Start from the last service date before the offset time, if any
+    int offset = (serviceInterval.getMaxDeparture() - serviceInterval.getMinDeparture()) * 1000;
+    int day = serviceDates.previousSetDay(days.getFirstDayOnOrAfter(time
+        - offset) - 1);
+    if (day == -1)
+      day = serviceDates.nextSetDay(0);
 
     List<Date> serviceDatesToReturn = new ArrayList<Date>();
     boolean directHit = false;
 
-    for (int index = startIndex; index < serviceDates.size(); index++) {
+    for (; day != -1; day = serviceDates.nextSetDay(day + 1)) {
 
-      Date serviceDate = serviceDates.get(index);
+      long serviceDate = days.getTime(day);
 
-      long timeFrom = serviceDate.getTime() + serviceInterval.getMinDeparture()
-          * 1000;
-      long timeTo = serviceDate.getTime() + serviceInterval.getMaxDeparture()
-          * 1000;
+      long timeFrom = serviceDate + serviceInterval.getMinDeparture() * 1000;
+      long timeTo = serviceDate + serviceInterval.getMaxDeparture() * 1000;
 
       if (time < timeFrom) {
 
         if (!directHit) {
-          serviceDatesToReturn.add(serviceDate);
+          serviceDatesToReturn.add(days.getDate(day));
         }
 
         return serviceDatesToReturn;
       }
 
       if (timeFrom <= time && time <= timeTo) {
-        serviceDatesToReturn.add(serviceDate);
+        serviceDatesToReturn.add(days.getDate(day));
         directHit = true;
       }
     }
@@ -286,42 +311,47 @@ public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
   public List<Date> getPreviousServiceDatesForArrivalInterval(
       ServiceIdActivation serviceIds, ServiceInterval serviceInterval, long time) {
 
-    List<Date> serviceDates = _serviceDatesByServiceIds.get(serviceIds);
+    ServiceDateBitSet serviceDates = _boundedServiceDatesByServiceIds.get(serviceIds);
 
-    if (CollectionsLibrary.isEmpty(serviceDates))
+    if (serviceDates == null || serviceDates.isEmpty())
       return Collections.emptyList();
 
-    int offset = (serviceInterval.getMaxDeparture() - serviceInterval.getMinDeparture()) * 1000;
-    Date offsetDate = new Date(time + offset);
-    int endIndex = Collections.binarySearch(serviceDates, offsetDate);
+    ServiceDayTable days = serviceDates.getDays();
 
-    if (endIndex < 0)
-      endIndex = -(endIndex + 1);
-    endIndex = Math.min(serviceDates.size() - 1, endIndex + 1);
+    /**
+     * Start from the first service date after the offset time or, if the
+     * offset time is itself a service date, the one after that. Failing that,
+     * start from the last service date.
+     */
+    int offset = (serviceInterval.getMaxDeparture() - serviceInterval.getMinDeparture()) * 1000;
+    long offsetTime = time + offset;
+    int day = serviceDates.nextSetDay(days.getLastDayOnOrBefore(offsetTime) + 1);
+    if (day != -1 && !serviceDates.contains(offsetTime))
+      day = serviceDates.nextSetDay(day + 1);
+    if (day == -1)
+      day = serviceDates.previousSetDay(days.size() - 1);
 
     List<Date> serviceDatesToReturn = new ArrayList<Date>();
     boolean directHit = false;
 
-    for (int index = endIndex; index >= 0; index--) {
+    for (; day != -1; day = serviceDates.previousSetDay(day - 1)) {
 
-      Date serviceDate = serviceDates.get(index);
+      long serviceDate = days.getTime(day);
 
-      long timeFrom = serviceDate.getTime() + serviceInterval.getMinDeparture()
-          * 1000;
-      long timeTo = serviceDate.getTime() + serviceInterval.getMaxDeparture()
-          * 1000;
+      long timeFrom = serviceDate + serviceInterval.getMinDeparture() * 1000;
+      long timeTo = serviceDate + serviceInterval.getMaxDeparture() * 1000;
 
       if (time > timeTo) {
 
         if (!directHit) {
-          serviceDatesToReturn.add(serviceDate);
+          serviceDatesToReturn.add(days.getDate(day));
         }
 
         return serviceDatesToReturn;
       }
 
       if (timeFrom <= time && time <= timeTo) {
-        serviceDatesToReturn.add(serviceDate);
+        serviceDatesToReturn.add(days.getDate(day));
         directHit = true;
       }
     }
@@ -409,11 +439,19 @@ public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
     if(_serviceDateRangeCache != null) {
       _serviceDateRangeCache.removeAll();
     }
-    
-    _serviceDatesByServiceIds.clear();
-    
+
     Set<ServiceIdActivation> allServiceIds = determineAllServiceIds();
 
+    Map<LocalizedServiceId, List<Date>> datesByServiceId = new HashMap<LocalizedServiceId, List<Date>>();
+    for (ServiceIdActivation serviceIds : allServiceIds) {
+      for (LocalizedServiceId lsid : serviceIds.getActiveServiceIds())
+        getDatesForLocalizedServiceId(lsid, datesByServiceId);
+      for (LocalizedServiceId lsid : serviceIds.getInactiveServiceIds())
+        getDatesForLocalizedServiceId(lsid, datesByServiceId);
+    }
+
+    Map<TimeZone, ServiceDayTable> daysByTimeZone = createDayTables(datesByServiceId);
+
     Date lowerBounds = null;
     if (_serviceDateLowerBoundsInWeeks != -1) {
       Calendar c = Calendar.getInstance();
@@ -428,12 +466,25 @@ public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
       upperBounds = c.getTime();
     }
 
+    Map<ServiceIdActivation, ServiceDateBitSet> serviceDatesByServiceIds = new HashMap<ServiceIdActivation, ServiceDateBitSet>();
+    Map<ServiceIdActivation, ServiceDateBitSet> boundedServiceDatesByServiceIds = new HashMap<ServiceIdActivation, ServiceDateBitSet>();
+
     for (ServiceIdActivation serviceIds : allServiceIds) {
 
-      List<Date> dates = computeServiceDatesForServiceIds(serviceIds,
-          lowerBounds, upperBounds);
-      _serviceDatesByServiceIds.put(serviceIds, dates);
+      // Activations without active service ids are left to the calendar
+      // service
+      if (serviceIds.getActiveServiceIds().isEmpty())
+        continue;
+
+      ServiceDateBitSet dates = computeServiceDatesForServiceIds(serviceIds,
+          datesByServiceId, daysByTimeZone);
+      serviceDatesByServiceIds.put(serviceIds, dates);
+      boundedServiceDatesByServiceIds.put(serviceIds,
+          applyBounds(dates, lowerBounds, upperBounds));
     }
+
+    _serviceDatesByServiceIds = serviceDatesByServiceIds;
+    _boundedServiceDatesByServiceIds = boundedServiceDatesByServiceIds;
   }
 
   private Set<ServiceIdActivation> determineAllServiceIds() {
@@ -448,37 +499,105 @@ public class ExtendedCalendarServiceImpl implements ExtendedCalendarService {
     return allServiceIds;
   }
 
-  private List<Date> computeServiceDatesForServiceIds(
-      ServiceIdActivation serviceIds, Date lowerBounds, Date upperBounds) {
-    Set<Date> serviceDates = null;
-
-    for (LocalizedServiceId lsid : serviceIds.getActiveServiceIds()) {
-      List<Date> dates = _calendarService.getDatesForLocalizedServiceId(lsid);
+  private List<Date> getDatesForLocalizedServiceId(LocalizedServiceId lsid,
+      Map<LocalizedServiceId, List<Date>> datesByServiceId) {
+    List<Date> dates = datesByServiceId.get(lsid);
+    if (dates == null) {
+      dates = _calendarService.getDatesForLocalizedServiceId(lsid);
       if (dates == null)
         dates = Collections.emptyList();
-      if (serviceDates == null)
-        serviceDates = new HashSet<Date>(dates);
-      else
-        serviceDates.retainAll(dates);
+      datesByServiceId.put(lsid, dates);
     }
+    return dates;
+  }
 
-    for (LocalizedServiceId lsid : serviceIds.getInactiveServiceIds()) {
-      List<Date> dates = _calendarService.getDatesForLocalizedServiceId(lsid);
-      if (serviceDates != null)
-        serviceDates.removeAll(dates);
+  /**
+   * Creates one table per time zone, covering all the service dates of the
+   * service ids in that time zone
+   */
+  private Map<TimeZone, ServiceDayTable> createDayTables(
+      Map<LocalizedServiceId, List<Date>> datesByServiceId) {
+
+    Map<TimeZone, Date> fromByTimeZone = new HashMap<TimeZone, Date>();
+    Map<TimeZone, Date> toByTimeZone = new HashMap<TimeZone, Date>();
+
+    for (Map.Entry<LocalizedServiceId, List<Date>> entry : datesByServiceId.entrySet()) {
+      TimeZone timeZone = entry.getKey().getTimeZone();
+      for (Date date : entry.getValue()) {
+        Date from = fromByTimeZone.get(timeZone);
+        if (from == null || date.before(from))
+          fromByTimeZone.put(timeZone, date);
+        Date to = toByTimeZone.get(timeZone);
+        if (to == null || date.after(to))
+          toByTimeZone.put(timeZone, date);
+      }
+    }
+
+    Map<TimeZone, ServiceDayTable> daysByTimeZone = new HashMap<TimeZone, ServiceDayTable>();
+    for (Map.Entry<TimeZone, Date> entry : fromByTimeZone.entrySet()) {
+      TimeZone timeZone = entry.getKey();
+      daysByTimeZone.put(timeZone, new ServiceDayTable(timeZone,
+          entry.getValue(), toByTimeZone.get(timeZone)));
     }
+    return daysByTimeZone;
+  }
+
+  /**
+   * Dates of service ids in another time zone than the first active service
+   * id never match a day of its table, just as they never matched in the
+   * intersection of the date lists
+   */
+  private ServiceDateBitSet computeServiceDatesForServiceIds(
+      ServiceIdActivation serviceIds,
+      Map<LocalizedServiceId, List<Date>> datesByServiceId,
+      Map<TimeZone, ServiceDayTable> daysByTimeZone) {
+
+    List<LocalizedServiceId> activeServiceIds = serviceIds.getActiveServiceIds();
+    ServiceDayTable days = daysByTimeZone.get(activeServiceIds.get(0).getTimeZone());
+    if (days == null)
+      return ServiceDateBitSet.EMPTY;
+
+    long[] bits = null;
 
-    List<Date> dates = new ArrayList<Date>();
-    if (serviceDates != null) {
-      for (Date serviceDate : serviceDates) {
-        if ((lowerBounds == null || lowerBounds.before(serviceDate))
-            && (upperBounds == null || serviceDate.before(upperBounds)))
-          dates.add(serviceDate);
+    for (LocalizedServiceId lsid : activeServiceIds) {
+      long[] active = getBits(days, datesByServiceId.get(lsid));
+      if (bits == null) {
+        bits = active;
+      } else {
+        for (int i = 0; i < bits.length; i++)
+          bits[i] &= active[i];
       }
     }
 
-    Collections.sort(dates);
-    return dates;
+    for (LocalizedServiceId lsid : serviceIds.getInactiveServiceIds()) {
+      long[] inactive = getBits(days, datesByServiceId.get(lsid));
+      for (int i = 0; i < bits.length; i++)
+        bits[i] &= ~inactive[i];
+    }
+
+    return new ServiceDateBitSet(days, bits);
+  }
+
+  private long[] getBits(ServiceDayTable days, List<Date> dates) {
+    long[] bits = ServiceDateBitSet.newBits(days);
+    for (Date date : dates) {
+      int day = days.getDay(date.getTime());
+      if (day != -1)
+        ServiceDateBitSet.set(bits, day);
+    }
+    return bits;
+  }
+
+  private ServiceDateBitSet applyBounds(ServiceDateBitSet dates,
+      Date lowerBounds, Date upperBounds) {
+    if (dates.isEmpty() || (lowerBounds == null && upperBounds == null))
+      return dates;
+    ServiceDayTable days = dates.getDays();
+    int fromDay = lowerBounds == null ? 0
+        : days.getFirstDayOnOrAfter(lowerBounds.getTime() + 1);
+    int toDay = upperBounds == null ? days.size() - 1
+        : days.getLastDayOnOrBefore(upperBounds.getTime() - 1);
+    return dates.subset(fromDay, toDay);
   }
 
   private class ServiceDateRangeKey {
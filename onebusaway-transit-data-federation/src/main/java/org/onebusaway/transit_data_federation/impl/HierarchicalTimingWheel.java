@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, as described by Varghese and Lauck. Timeouts
+ * are filed into one of {@link #LEVELS} wheels of {@link #WHEEL_SIZE} slots
+ * according to how far in the future they are. The wheel at level L covers
+ * WHEEL_SIZE^(L+1) ticks, with each slot covering WHEEL_SIZE^L ticks. As time
+ * advances into a slot of a higher wheel, the timeouts in that slot are
+ * re-filed into the lower wheels, so that every timeout ends up in the bottom
+ * wheel at the tick it expires. Scheduling, rescheduling and canceling a
+ * timeout are all constant time.
+ * 
+ * Ticks are an arbitrary unit of time chosen by the caller. Timeouts further
+ * out than the top wheel covers are parked in its farthest slot and re-filed
+ * until they come within range.
+ * 
+ * All methods are synchronized. Expired items are handed back to the caller
+ * rather than run under the lock.
+ * 
+ * @author bdferris
+ */
+class HierarchicalTimingWheel<T> {
+
+  static final int WHEEL_BITS = 6;
+
+  static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+  static final int LEVELS = 4;
+
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+  private static final long MAX_SPAN = 1L << (WHEEL_BITS * LEVELS);
+
+  /**
+   * Each slot is the head of a doubly-linked list of timeouts
+   */
+  private final Timeout<?>[][] _slots = new Timeout<?>[LEVELS][WHEEL_SIZE];
+
+  /**
+   * Timeouts at or before the current tick have expired or are about to
+   */
+  private long _currentTick;
+
+  private int _size = 0;
+
+  public HierarchicalTimingWheel(long currentTick) {
+    _currentTick = currentTick;
+  }
+
+  public synchronized long getCurrentTick() {
+    return _currentTick;
+  }
+
+  public synchronized int size() {
+    return _size;
+  }
+
+  /**
+   * 
+   * @param item
+   * @param deadline the tick at which the item expires. Deadlines that have
+   *          already passed expire on the next call to
+   *          {@link #advance(long, List)}.
+   * @return a handle for rescheduling or canceling the timeout
+   */
+  public synchronized Timeout<T> schedule(T item, long deadline) {
+    Timeout<T> timeout = new Timeout<T>(item);
+    timeout.deadline = deadline;
+    insert(timeout);
+    _size++;
+    return timeout;
+  }
+
+  /**
+   * 
+   * @param timeout
+   * @param deadline
+   * @return false if the timeout has already expired or been canceled, in
+   *         which case it isn't rescheduled
+   */
+  public synchronized boolean reschedule(Timeout<T> timeout, long deadline) {
+    if (timeout.level < 0)
+      return false;
+    if (timeout.deadline == deadline)
+      return true;
+    unlink(timeout);
+    timeout.deadline = deadline;
+    insert(timeout);
+    return true;
+  }
+
+  /**
+   * 
+   * @param timeout
+   * @return false if the timeout has already expired or been canceled
+   */
+  public synchronized boolean cancel(Timeout<T> timeout) {
+    if (timeout.level < 0)
+      return false;
+    unlink(timeout);
+    _size--;
+    return true;
+  }
+
+  /**
+   * Advances the wheel through the specified tick, inclusive.
+   * 
+   * @param tick
+   * @param expired receives the items of the timeouts that expired, tick by
+   *          tick
+   */
+  public synchronized void advance(long tick, List<T> expired) {
+
+    while (_currentTick <= tick) {
+
+      for (int level = LEVELS - 1; level > 0; level--) {
+        int shift = WHEEL_BITS * level;
+        if ((_currentTick & ((1L << shift) - 1)) == 0)
+          cascade(level, (int) ((_currentTick >>> shift) & WHEEL_MASK));
+      }
+
+      int index = (int) (_currentTick & WHEEL_MASK);
+      Timeout<?> timeout = _slots[0][index];
+      _slots[0][index] = null;
+
+      while (timeout != null) {
+        Timeout<?> next = timeout.next;
+        timeout.clear();
+        _size--;
+        @SuppressWarnings("unchecked")
+        T item = (T) timeout.item;
+        expired.add(item);
+        timeout = next;
+      }
+
+      _currentTick++;
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void cascade(int level, int index) {
+    Timeout<?> timeout = _slots[level][index];
+    _slots[level][index] = null;
+    while (timeout != null) {
+      Timeout<?> next = timeout.next;
+      timeout.clear();
+      insert(timeout);
+      timeout = next;
+    }
+  }
+
+  private void insert(Timeout<?> timeout) {
+
+    long deadline = Math.max(timeout.deadline, _currentTick);
+    long delta = deadline - _currentTick;
+
+    if (delta >= MAX_SPAN) {
+      deadline = _currentTick + MAX_SPAN - 1;
+      delta = MAX_SPAN - 1;
+    }
+
+    int level = 0;
+    while (delta >= (1L << (WHEEL_BITS * (level + 1))))
+      level++;
+
+    int index = (int) ((deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+
+    Timeout<?> head = _slots[level][index];
+    timeout.level = level;
+    timeout.index = index;
+    timeout.prev = null;
+    timeout.next = head;
+    if (head != null)
+      head.prev = timeout;
+    _slots[level][index] = timeout;
+  }
+
+  private void unlink(Timeout<?> timeout) {
+    if (timeout.prev != null)
+      timeout.prev.next = timeout.next;
+    else
+      _slots[timeout.level][timeout.index] = timeout.next;
+    if (timeout.next != null)
+      timeout.next.prev = timeout.prev;
+    timeout.clear();
+  }
+
+  /**
+   * A scheduled timeout. Only the wheel that created it may touch its fields.
+   */
+  public static final class Timeout<T> {
+
+    private final T item;
+
+    private long deadline;
+
+    /**
+     * -1 once the timeout has expired or been canceled
+     */
+    private int level = -1;
+
+    private int index;
+
+    private Timeout<?> prev;
+
+    private Timeout<?> next;
+
+    private Timeout(T item) {
+      this.item = item;
+    }
+
+    public T getItem() {
+      return item;
+    }
+
+    private void clear() {
+      level = -1;
+      prev = null;
+      next = null;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The service dates of a
+ * {@link org.onebusaway.transit_data_federation.services.transit_graph.ServiceIdActivation}
+ * as one bit per day of a {@link ServiceDayTable}. Only the words between the
+ * first and last active day are stored. Instances are immutable, and queries
+ * return the shared {@link Date} instances of the table.
+ */
+final class ServiceDateBitSet {
+
+  private static final long[] NO_WORDS = new long[0];
+
+  public static final ServiceDateBitSet EMPTY = new ServiceDateBitSet(null,
+      NO_WORDS);
+
+  private final ServiceDayTable _days;
+
+  private final int _wordOffset;
+
+  private final long[] _words;
+
+  /**
+   * 
+   * @param days may only be null when there are no bits set
+   * @param bits one bit per day of the table, which is not retained
+   */
+  public ServiceDateBitSet(ServiceDayTable days, long[] bits) {
+    _days = days;
+    int from = 0;
+    while (from < bits.length && bits[from] == 0)
+      from++;
+    int to = bits.length;
+    while (to > from && bits[to - 1] == 0)
+      to--;
+    _wordOffset = from;
+    if (from == to) {
+      _words = NO_WORDS;
+    } else {
+      _words = new long[to - from];
+      System.arraycopy(bits, from, _words, 0, _words.length);
+    }
+  }
+
+  public static long[] newBits(ServiceDayTable days) {
+    return new long[(days.size() + 63) >> 6];
+  }
+
+  public static void set(long[] bits, int day) {
+    bits[day >> 6] |= 1L << day;
+  }
+
+  public ServiceDayTable getDays() {
+    return _days;
+  }
+
+  public boolean isEmpty() {
+    return _words.length == 0;
+  }
+
+  public boolean get(int day) {
+    int word = (day >> 6) - _wordOffset;
+    if (day < 0 || word < 0 || word >= _words.length)
+      return false;
+    return (_words[word] & (1L << day)) != 0;
+  }
+
+  public boolean contains(long serviceDate) {
+    if (isEmpty())
+      return false;
+    int day = _days.getDay(serviceDate);
+    return day >= 0 && get(day);
+  }
+
+  /**
+   * 
+   * @param day
+   * @return the first active day at or after the specified day, or -1
+   */
+  public int nextSetDay(int day) {
+    if (isEmpty())
+      return -1;
+    if (day < 0)
+      day = 0;
+    int word = (day >> 6) - _wordOffset;
+    if (word >= _words.length)
+      return -1;
+    long bits;
+    if (word < 0) {
+      word = 0;
+      bits = _words[0];
+    } else {
+      bits = _words[word] & (-1L << day);
+    }
+    while (bits == 0) {
+      if (++word == _words.length)
+        return -1;
+      bits = _words[word];
+    }
+    return ((word + _wordOffset) << 6) + Long.numberOfTrailingZeros(bits);
+  }
+
+  /**
+   * 
+   * @param day
+   * @return the last active day at or before the specified day, or -1
+   */
+  public int previousSetDay(int day) {
+    if (day < 0)
+      return -1;
+    int word = (day >> 6) - _wordOffset;
+    if (word < 0)
+      return -1;
+    long bits;
+    if (word >= _words.length) {
+      word = _words.length - 1;
+      bits = word < 0 ? 0 : _words[word];
+    } else {
+      bits = _words[word] & (-1L >>> (63 - (day & 63)));
+    }
+    while (bits == 0) {
+      if (--word < 0)
+        return -1;
+      bits = _words[word];
+    }
+    return ((word + _wordOffset) << 6) + 63 - Long.numberOfLeadingZeros(bits);
+  }
+
+  /**
+   * 
+   * @param from
+   * @param to
+   * @return the service dates within the specified times, inclusive
+   */
+  public List<Date> getServiceDatesWithinRange(long from, long to) {
+    if (isEmpty())
+      return Collections.emptyList();
+    int day = nextSetDay(_days.getFirstDayOnOrAfter(from));
+    if (day == -1)
+      return Collections.emptyList();
+    int lastDay = _days.getLastDayOnOrBefore(to);
+    List<Date> dates = null;
+    while (day != -1 && day <= lastDay) {
+      if (dates == null)
+        dates = new ArrayList<Date>(4);
+      dates.add(_days.getDate(day));
+      day = nextSetDay(day + 1);
+    }
+    if (dates == null)
+      return Collections.emptyList();
+    return dates;
+  }
+
+  /**
+   * 
+   * @param fromDay
+   * @param toDay
+   * @return a copy with only the active days from fromDay to toDay inclusive
+   */
+  public ServiceDateBitSet subset(int fromDay, int toDay) {
+    if (isEmpty())
+      return this;
+    long[] bits = newBits(_days);
+    for (int day = nextSetDay(fromDay); day != -1 && day <= toDay; day = nextSetDay(day + 1))
+      set(bits, day);
+    return new ServiceDateBitSet(_days, bits);
+  }
+}
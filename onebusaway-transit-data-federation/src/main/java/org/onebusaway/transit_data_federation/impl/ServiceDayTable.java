@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+/**
+ * The service dates of every day in a contiguous range of days in a particular
+ * time zone, indexed by day. Day indices are shared by all the
+ * {@link ServiceDateBitSet} instances built on the same table, and the
+ * {@link Date} instances are shared by every query result.
+ */
+final class ServiceDayTable {
+
+  private static final long DAY = 24 * 60 * 60 * 1000;
+
+  private static final long NOON = 12 * 60 * 60 * 1000;
+
+  private final TimeZone _timeZone;
+
+  private final int _firstDay;
+
+  private final long[] _times;
+
+  private final Date[] _dates;
+
+  /**
+   * 
+   * @param timeZone
+   * @param from a service date in the time zone
+   * @param to a service date in the time zone, not before from
+   */
+  public ServiceDayTable(TimeZone timeZone, Date from, Date to) {
+    _timeZone = timeZone;
+    _firstDay = getLocalDay(from.getTime());
+    int dayCount = getLocalDay(to.getTime()) - _firstDay + 1;
+    _times = new long[dayCount];
+    _dates = new Date[dayCount];
+
+    Calendar c = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+    for (int i = 0; i < dayCount; i++) {
+      c.setTimeInMillis((_firstDay + i) * DAY);
+      ServiceDate serviceDate = new ServiceDate(c.get(Calendar.YEAR),
+          c.get(Calendar.MONTH) + 1, c.get(Calendar.DAY_OF_MONTH));
+      _dates[i] = serviceDate.getAsDate(timeZone);
+      _times[i] = _dates[i].getTime();
+    }
+  }
+
+  public TimeZone getTimeZone() {
+    return _timeZone;
+  }
+
+  public int size() {
+    return _times.length;
+  }
+
+  public long getTime(int day) {
+    return _times[day];
+  }
+
+  public Date getDate(int day) {
+    return _dates[day];
+  }
+
+  /**
+   * 
+   * @param serviceDate
+   * @return the index of the day with exactly the specified service date, or
+   *         -1 if there is no such day
+   */
+  public int getDay(long serviceDate) {
+    int day = getLocalDay(serviceDate) - _firstDay;
+    if (day < 0 || day >= _times.length || _times[day] != serviceDate)
+      return -1;
+    return day;
+  }
+
+  /**
+   * 
+   * @param time
+   * @return the index of the first day with a service date at or after the
+   *         specified time, which may be {@link #size()}
+   */
+  public int getFirstDayOnOrAfter(long time) {
+    int day = Math.max(0, Math.min(_times.length, getLocalDay(time)
+        - _firstDay));
+    while (day > 0 && _times[day - 1] >= time)
+      day--;
+    while (day < _times.length && _times[day] < time)
+      day++;
+    return day;
+  }
+
+  /**
+   * 
+   * @param time
+   * @return the index of the last day with a service date at or before the
+   *         specified time, which may be -1
+   */
+  public int getLastDayOnOrBefore(long time) {
+    return getFirstDayOnOrAfter(time + 1) - 1;
+  }
+
+  /**
+   * Service dates are midnight, or noon minus twelve hours on days with a
+   * daylight saving time change, so noon is always on the right day.
+   */
+  private int getLocalDay(long serviceDate) {
+    long noon = serviceDate + NOON;
+    long local = noon + _timeZone.getOffset(noon);
+    long day = local / DAY;
+    if (local < 0 && local % DAY != 0)
+      day--;
+    return (int) day;
+  }
+}
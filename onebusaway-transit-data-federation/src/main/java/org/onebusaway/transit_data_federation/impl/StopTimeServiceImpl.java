@@ -54,7 +54,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
-class StopTimeServiceImpl implements StopTimeService {
+public class StopTimeServiceImpl implements StopTimeService {
 
   private static final FirstDepartureTimeComparator _firstDepartureComparator = new FirstDepartureTimeComparator();
 
@@ -25,7 +25,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
-class AgencyBeanServiceImpl implements AgencyBeanService {
+public class AgencyBeanServiceImpl implements AgencyBeanService {
 
   private NarrativeService _narrativeService;
 
@@ -63,7 +63,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
-class RouteBeanServiceImpl implements RouteBeanService {
+public class RouteBeanServiceImpl implements RouteBeanService {
 
   private TransitGraphDao _transitGraphDao;
 
@@ -69,7 +69,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
-class StopScheduleBeanServiceImpl implements StopScheduleBeanService {
+public class StopScheduleBeanServiceImpl implements StopScheduleBeanService {
 
   private static final int DEFAULT_CONTINUES_AS_THRESHOLD = 7 * 60;
 
@@ -55,9 +55,7 @@ import org.onebusaway.transit_data.model.tripplanning.VertexBean;
 import org.onebusaway.transit_data.model.trips.TripBean;
 import org.onebusaway.transit_data_federation.impl.beans.ApplicationBeanLibrary;
 import org.onebusaway.transit_data_federation.impl.beans.FrequencyBeanLibrary;
-import org.onebusaway.transit_data_federation.impl.otp.OBAState;
 import org.onebusaway.transit_data_federation.impl.otp.OBATraverseOptions;
-import org.onebusaway.transit_data_federation.impl.otp.graph.AbstractBlockVertex;
 import org.onebusaway.transit_data_federation.impl.otp.graph.AbstractStopVertex;
 import org.onebusaway.transit_data_federation.impl.otp.graph.ArrivalVertex;
 import org.onebusaway.transit_data_federation.impl.otp.graph.BlockArrivalVertex;
@@ -80,7 +78,6 @@ import org.onebusaway.transit_data_federation.services.blocks.BlockTripInstance;
 import org.onebusaway.transit_data_federation.services.blocks.BlockTripInstanceLibrary;
 import org.onebusaway.transit_data_federation.services.narrative.NarrativeService;
 import org.onebusaway.transit_data_federation.services.otp.OTPConfigurationService;
-import org.onebusaway.transit_data_federation.services.otp.TransitShedPathService;
 import org.onebusaway.transit_data_federation.services.realtime.ArrivalAndDepartureInstance;
 import org.onebusaway.transit_data_federation.services.realtime.BlockLocation;
 import org.onebusaway.transit_data_federation.services.shapes.ShapePointService;
@@ -93,6 +90,7 @@ import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEnt
 import org.onebusaway.transit_data_federation.services.transit_graph.TransitGraphDao;
 import org.onebusaway.transit_data_federation.services.transit_graph.TripEntry;
 import org.onebusaway.transit_data_federation.services.tripplanner.ItinerariesService;
+import org.onebusaway.transit_data_federation.services.tripplanner.TransitShedService;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.EdgeNarrative;
 import org.opentripplanner.routing.core.Graph;
@@ -106,7 +104,6 @@ import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
 import org.opentripplanner.routing.edgetype.StreetVertex;
 import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.services.StreetVertexIndexService;
-import org.opentripplanner.routing.spt.BasicShortestPathTree;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -127,7 +124,7 @@ public class ItinerariesBeanServiceImpl implements ItinerariesBeanService {
 
   private ItinerariesService _itinerariesService;
 
-  private TransitShedPathService _transitShedPathService;
+  private TransitShedService _transitShedService;
 
   private StreetVertexIndexService _streetVertexIndexService;
 
@@ -157,9 +154,8 @@ public class ItinerariesBeanServiceImpl implements ItinerariesBeanService {
   }
 
   @Autowired
-  public void setTransitShedPathService(
-      TransitShedPathService transitShedPathService) {
-    _transitShedPathService = transitShedPathService;
+  public void setTransitShedService(TransitShedService transitShedService) {
+    _transitShedService = transitShedService;
   }
 
   @Autowired
@@ -347,37 +343,8 @@ public class ItinerariesBeanServiceImpl implements ItinerariesBeanService {
     OBATraverseOptions options = createTraverseOptions();
     applyConstraintsToOptions(constraints.getConstraints(), options);
 
-    Coordinate c = new Coordinate(location.getLon(), location.getLat());
-    Vertex origin = _streetVertexIndexService.getClosestVertex(c, options);
-
-    State originState = new OBAState(time, origin, options);
-    BasicShortestPathTree tree = _transitShedPathService.getTransitShed(origin,
-        originState, options);
-
-    Map<StopEntry, Long> results = new HashMap<StopEntry, Long>();
-
-    for (State state : tree.getAllStates()) {
-
-      OBAState obaState = (OBAState) state;
-      Vertex v = state.getVertex();
-
-      if (v instanceof AbstractStopVertex) {
-        AbstractStopVertex stopVertex = (AbstractStopVertex) v;
-        StopEntry stop = stopVertex.getStop();
-        long initialWaitTime = obaState.getInitialWaitTime();
-        long duration = Math.abs(state.getTime() - time) - initialWaitTime;
-        if (!results.containsKey(stop) || results.get(stop) > duration)
-          results.put(stop, duration);
-      } else if (v instanceof AbstractBlockVertex) {
-        AbstractBlockVertex blockVertex = (AbstractBlockVertex) v;
-        ArrivalAndDepartureInstance instance = blockVertex.getInstance();
-        StopEntry stop = instance.getStop();
-        long initialWaitTime = obaState.getInitialWaitTime();
-        long duration = Math.abs(state.getTime() - time) - initialWaitTime;
-        if (!results.containsKey(stop) || results.get(stop) > duration)
-          results.put(stop, duration);
-      }
-    }
+    Map<StopEntry, Long> results = _transitShedService.getMinTravelTimeToStops(
+        location, time, options);
 
     return getStopTravelTimesAsResultsBean(results, options.speed);
   }
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.blocks;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
+
+/**
+ * The active {@link BlockInstance} of every block on each of a handful of
+ * service dates around the present, as resolved by
+ * {@link BlockCalendarServiceImpl}. Blocks and service dates are both
+ * addressed by array index, so that lookups don't allocate. Instances are
+ * immutable and replaced as a whole when the service dates roll forward.
+ */
+final class ActiveBlockInstanceIndex {
+
+  public static final ActiveBlockInstanceIndex EMPTY = new ActiveBlockInstanceIndex(
+      Collections.<AgencyAndId, Integer> emptyMap(), new long[0],
+      new BlockInstance[0][], Long.MAX_VALUE);
+
+  private final Map<AgencyAndId, Integer> _blockIndices;
+
+  private final long[] _serviceDates;
+
+  private final BlockInstance[][] _instances;
+
+  private final long _rollForwardTime;
+
+  /**
+   * 
+   * @param blockIndices the index of each block
+   * @param serviceDates the service dates covered by the index
+   * @param instances the active instance of each block, or null, for each
+   *          service date
+   * @param rollForwardTime the time after which the index should be rebuilt
+   */
+  public ActiveBlockInstanceIndex(Map<AgencyAndId, Integer> blockIndices,
+      long[] serviceDates, BlockInstance[][] instances, long rollForwardTime) {
+    _blockIndices = blockIndices;
+    _serviceDates = serviceDates;
+    _instances = instances;
+    _rollForwardTime = rollForwardTime;
+  }
+
+  public long getRollForwardTime() {
+    return _rollForwardTime;
+  }
+
+  public int getServiceDateCount() {
+    return _serviceDates.length;
+  }
+
+  /**
+   * 
+   * @param blockId
+   * @return the index of the block, or -1 if the block is unknown
+   */
+  public int getBlockIndex(AgencyAndId blockId) {
+    Integer index = _blockIndices.get(blockId);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * 
+   * @param serviceDate
+   * @return the index of the service date, or -1 if the service date is not
+   *         covered
+   */
+  public int getServiceDateIndex(long serviceDate) {
+    for (int i = 0; i < _serviceDates.length; i++) {
+      if (_serviceDates[i] == serviceDate)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * 
+   * @param serviceDateIndex
+   * @param blockIndex
+   * @return the active instance of the block on the service date, or null if
+   *         the block is not active
+   */
+  public BlockInstance getBlockInstance(int serviceDateIndex, int blockIndex) {
+    return _instances[serviceDateIndex][blockIndex];
+  }
+}
@@ -18,17 +18,31 @@ package org.onebusaway.transit_data_federation.impl.blocks;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.onebusaway.collections.Min;
-import org.onebusaway.container.cache.Cacheable;
+import org.onebusaway.container.refresh.Refreshable;
 import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.LocalizedServiceId;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.model.calendar.ServiceInterval;
+import org.onebusaway.transit_data_federation.impl.RefreshableResources;
 import org.onebusaway.transit_data_federation.services.ExtendedCalendarService;
 import org.onebusaway.transit_data_federation.services.blocks.BlockCalendarService;
 import org.onebusaway.transit_data_federation.services.blocks.BlockIndexService;
@@ -45,11 +59,24 @@ import org.onebusaway.transit_data_federation.services.transit_graph.BlockEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.BlockTripEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.FrequencyEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.TransitGraphDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+/**
+ * Block instances for the service dates around the present (by default the
+ * previous, current and next service date in each agency time zone) are
+ * resolved once, when the service starts, into an
+ * {@link ActiveBlockInstanceIndex}. The index is rebuilt in the background
+ * shortly after each local midnight, so that
+ * {@link #getBlockInstance(AgencyAndId, long)} is an array lookup for all but
+ * unusual service dates.
+ */
 @Component
-class BlockCalendarServiceImpl implements BlockCalendarService {
+public class BlockCalendarServiceImpl implements BlockCalendarService {
+
+  private static Logger _log = LoggerFactory.getLogger(BlockCalendarServiceImpl.class);
 
   private ExtendedCalendarService _calendarService;
 
@@ -57,6 +84,16 @@ class BlockCalendarServiceImpl implements BlockCalendarService {
 
   private TransitGraphDao _transitGraphDao;
 
+  private int _serviceDatesBefore = 1;
+
+  private int _serviceDatesAfter = 1;
+
+  private int _rollForwardCheckInterval = 60;
+
+  private volatile ActiveBlockInstanceIndex _activeBlockInstances = ActiveBlockInstanceIndex.EMPTY;
+
+  private ScheduledExecutorService _executor;
+
   @Autowired
   public void setCalendarService(ExtendedCalendarService calendarService) {
     _calendarService = calendarService;
@@ -72,35 +109,95 @@ class BlockCalendarServiceImpl implements BlockCalendarService {
     _transitGraphDao = transitGraphDao;
   }
 
+  /**
+   * 
+   * @param serviceDatesBefore the number of service dates before the current
+   *          one to precompute block instances for
+   */
+  public void setServiceDatesBefore(int serviceDatesBefore) {
+    _serviceDatesBefore = serviceDatesBefore;
+  }
+
+  /**
+   * 
+   * @param serviceDatesAfter the number of service dates after the current one
+   *          to precompute block instances for
+   */
+  public void setServiceDatesAfter(int serviceDatesAfter) {
+    _serviceDatesAfter = serviceDatesAfter;
+  }
+
+  /**
+   * 
+   * @param rollForwardCheckInterval how often to check whether the service
+   *          dates have rolled over, in seconds
+   */
+  public void setRollForwardCheckInterval(int rollForwardCheckInterval) {
+    _rollForwardCheckInterval = rollForwardCheckInterval;
+  }
+
+  @PostConstruct
+  public void start() {
+    buildActiveBlockInstances(System.currentTimeMillis());
+    _executor = Executors.newSingleThreadScheduledExecutor();
+    _executor.scheduleAtFixedRate(new RollForwardTask(),
+        _rollForwardCheckInterval, _rollForwardCheckInterval, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_executor != null) {
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+
+  @Refreshable(dependsOn = {
+      RefreshableResources.TRANSIT_GRAPH, RefreshableResources.CALENDAR_DATA})
+  public void refresh() {
+    buildActiveBlockInstances(System.currentTimeMillis());
+  }
+
   /****
    * {@link BlockCalendarService} Interface
    ****/
 
-  @Cacheable(isValueSerializable = false)
   @Override
   public BlockInstance getBlockInstance(AgencyAndId blockId, long serviceDate) {
 
+    ActiveBlockInstanceIndex index = _activeBlockInstances;
+    int serviceDateIndex = index.getServiceDateIndex(serviceDate);
+    if (serviceDateIndex != -1) {
+      int blockIndex = index.getBlockIndex(blockId);
+      if (blockIndex != -1)
+        return index.getBlockInstance(serviceDateIndex, blockIndex);
+    }
+
+    return computeBlockInstance(blockId, serviceDate);
+  }
+
+  private BlockInstance computeBlockInstance(AgencyAndId blockId,
+      long serviceDate) {
+
     BlockEntry block = _transitGraphDao.getBlockEntryForId(blockId);
 
     if (block == null)
       throw new IllegalArgumentException("unknown block: " + blockId);
 
-    List<BlockConfigurationEntry> configurations = block.getConfigurations();
-    int index = 0;
+    return computeBlockInstance(block, serviceDate, new Date(serviceDate));
+  }
 
-    Date date = new Date(serviceDate);
-    InstanceState state = new InstanceState(serviceDate);
+  private BlockInstance computeBlockInstance(BlockEntry block,
+      long serviceDate, Date date) {
 
     /**
      * See the specific contract for {@link BlockEntry#getConfigurations()}
      * about the sort order of configurations
      */
-    for (BlockConfigurationEntry configuration : configurations) {
+    for (BlockConfigurationEntry configuration : block.getConfigurations()) {
       if (allServiceIdsAreActiveForServiceDate(configuration, date)) {
-        return new BlockInstance(configuration, state);
+        return new BlockInstance(configuration, new InstanceState(serviceDate));
       }
-
-      index++;
     }
 
     return null;
@@ -208,8 +305,74 @@ class BlockCalendarServiceImpl implements BlockCalendarService {
   private boolean allServiceIdsAreActiveForServiceDate(
       BlockConfigurationEntry configuration, Date serviceDate) {
 
-    Set<Date> serviceDates = _calendarService.getDatesForServiceIds(configuration.getServiceIds());
-    return serviceDates.contains(serviceDate);
+    return _calendarService.areServiceIdsActiveOnServiceDate(
+        configuration.getServiceIds(), serviceDate);
+  }
+
+  void buildActiveBlockInstances(long time) {
+
+    List<BlockEntry> blocks = _transitGraphDao.getAllBlocks();
+
+    Map<AgencyAndId, Integer> blockIndices = new HashMap<AgencyAndId, Integer>();
+    Set<TimeZone> timeZones = new HashSet<TimeZone>();
+
+    for (BlockEntry block : blocks) {
+      blockIndices.put(block.getId(), blockIndices.size());
+      for (BlockConfigurationEntry configuration : block.getConfigurations()) {
+        for (LocalizedServiceId lsid : configuration.getServiceIds().getActiveServiceIds())
+          timeZones.add(lsid.getTimeZone());
+      }
+    }
+
+    /**
+     * Agencies in different time zones can share a service date, in which case
+     * they share a table
+     */
+    Set<Long> serviceDates = new TreeSet<Long>();
+    long rollForwardTime = Long.MAX_VALUE;
+
+    for (TimeZone timeZone : timeZones) {
+      for (int day = -_serviceDatesBefore; day <= _serviceDatesAfter; day++)
+        serviceDates.add(getServiceDate(timeZone, time, day));
+      rollForwardTime = Math.min(rollForwardTime,
+          getServiceDate(timeZone, time, 1));
+    }
+
+    long[] serviceDateArray = new long[serviceDates.size()];
+    BlockInstance[][] instances = new BlockInstance[serviceDates.size()][];
+    int serviceDateIndex = 0;
+
+    for (long serviceDate : serviceDates) {
+      Date date = new Date(serviceDate);
+      BlockInstance[] instancesForServiceDate = new BlockInstance[blocks.size()];
+      for (int i = 0; i < blocks.size(); i++)
+        instancesForServiceDate[i] = computeBlockInstance(blocks.get(i),
+            serviceDate, date);
+      serviceDateArray[serviceDateIndex] = serviceDate;
+      instances[serviceDateIndex] = instancesForServiceDate;
+      serviceDateIndex++;
+    }
+
+    _activeBlockInstances = new ActiveBlockInstanceIndex(blockIndices,
+        serviceDateArray, instances, rollForwardTime);
+
+    _log.info("precomputed block instances for " + blocks.size()
+        + " blocks on " + serviceDateArray.length + " service dates");
+  }
+
+  /**
+   * 
+   * @param timeZone
+   * @param time
+   * @param days
+   * @return the service date the specified number of days after the service
+   *         date of the specified time in the time zone
+   */
+  private static long getServiceDate(TimeZone timeZone, long time, int days) {
+    Calendar c = Calendar.getInstance(timeZone);
+    c.setTimeInMillis(time);
+    c.add(Calendar.DAY_OF_YEAR, days);
+    return new ServiceDate(c).getAsDate(timeZone).getTime();
   }
 
   /****
@@ -404,4 +567,17 @@ class BlockCalendarServiceImpl implements BlockCalendarService {
     return index;
   }
 
+  private class RollForwardTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        long now = System.currentTimeMillis();
+        if (now >= _activeBlockInstances.getRollForwardTime())
+          buildActiveBlockInstances(now);
+      } catch (Throwable ex) {
+        _log.error("error rolling active block instances forward", ex);
+      }
+    }
+  }
 }
@@ -194,12 +194,30 @@ public class BlockStatusServiceImpl implements BlockStatusService {
     long timeFrom = time - _runningLateWindow * 1000;
     long timeTo = time + _runningEarlyWindow * 1000;
 
+    TargetTime target = new TargetTime(time, time);
+
+    /**
+     * Vehicles with real-time data are looked up by position directly, so we
+     * don't compute locations for vehicles that are nowhere near the bounds
+     */
+    List<BlockLocation> inRange = _blockLocationService.getLocationsForBounds(
+        bounds, target);
+
+    /**
+     * The remaining blocks passing through the bounds are placed according to
+     * the schedule
+     */
     List<BlockInstance> instances = _blockGeospatialService.getActiveScheduledBlocksPassingThroughBounds(
         bounds, timeFrom, timeTo);
 
-    List<BlockLocation> locations = getAsLocations(instances, time);
-    List<BlockLocation> inRange = new ArrayList<BlockLocation>();
-    for (BlockLocation location : locations) {
+    for (BlockInstance instance : instances) {
+      if (_blockLocationService.isRealTimeAvailableForBlockInstance(instance,
+          target))
+        continue;
+      BlockLocation location = _blockLocationService.getScheduledLocationForBlockInstance(
+          instance, time);
+      if (location == null || !location.isInService())
+        continue;
       CoordinatePoint p = location.getLocation();
       if (p != null && bounds.contains(p))
         inRange.add(location);
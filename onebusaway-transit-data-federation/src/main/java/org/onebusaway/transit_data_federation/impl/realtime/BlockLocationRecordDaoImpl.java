@@ -15,7 +15,10 @@
  */
 package org.onebusaway.transit_data_federation.impl.realtime;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -23,9 +26,18 @@ import org.hibernate.Criteria;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Property;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.IdentityGenerator;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.EntityPersister;
 import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.EVehiclePhase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
@@ -38,6 +50,12 @@ import org.springframework.stereotype.Component;
  * persisting {@link BlockLocationRecord} records to a Hibernate-managed
  * data-store.
  * 
+ * Bulk saves skip the Hibernate session entirely and go straight to JDBC batch
+ * inserts, since block location records are immutable and never read back in
+ * the same session. This requires the database to generate the record id
+ * itself, so we fall back to regular Hibernate saves unless the record id is
+ * mapped to an identity column.
+ * 
  * @author bdferris
  * @see BlockLocationRecordDao
  * @see BlockLocationRecord
@@ -46,15 +64,51 @@ import org.springframework.stereotype.Component;
 @ManagedResource("org.onebusaway.transit_data_federation.impl.realtime:name=BlockLocationRecordDaoImpl")
 public class BlockLocationRecordDaoImpl implements BlockLocationRecordDao {
 
+  private static Logger _log = LoggerFactory.getLogger(BlockLocationRecordDaoImpl.class);
+
+  private static final String INSERT_SQL = "INSERT INTO transit_data_block_location_records ("
+      + "block_agencyId, block_id, trip_agencyId, trip_id, serviceDate, time, "
+      + "scheduleDeviation, distanceAlongBlock, distanceAlongTrip, "
+      + "locationLat, locationLon, orientation, timepoint_agencyId, "
+      + "timepoint_id, timepointScheduledTime, timepointPredictedTime, phase, "
+      + "status, vehicle_agencyId, vehicle_id) "
+      + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  private SessionFactory _sessionFactory;
+
   private HibernateTemplate _template;
 
   private AtomicInteger _savedRecordCount = new AtomicInteger();
 
+  private boolean _useJdbcBatchInserts = true;
+
+  private int _jdbcBatchSize = 500;
+
+  private Boolean _jdbcBatchInsertsSupported = null;
+
   @Autowired
   public void setSessionFactory(SessionFactory sessionFactory) {
+    _sessionFactory = sessionFactory;
     _template = new HibernateTemplate(sessionFactory);
   }
 
+  /**
+   * 
+   * @param useJdbcBatchInserts when false, bulk saves go through Hibernate
+   */
+  public void setUseJdbcBatchInserts(boolean useJdbcBatchInserts) {
+    _useJdbcBatchInserts = useJdbcBatchInserts;
+  }
+
+  /**
+   * 
+   * @param jdbcBatchSize the number of rows sent to the database per JDBC
+   *          batch
+   */
+  public void setJdbcBatchSize(int jdbcBatchSize) {
+    _jdbcBatchSize = jdbcBatchSize;
+  }
+
   @ManagedAttribute
   public int getSavedRecordCount() {
     return _savedRecordCount.intValue();
@@ -72,7 +126,10 @@ public class BlockLocationRecordDaoImpl implements BlockLocationRecordDao {
 
   @Override
   public void saveBlockLocationRecords(List<BlockLocationRecord> records) {
-    _template.saveOrUpdateAll(records);
+    if (isJdbcBatchInsertSupported())
+      saveBlockLocationRecordsWithJdbcBatch(records);
+    else
+      _template.saveOrUpdateAll(records);
     _savedRecordCount.addAndGet(records.size());
   }
 
@@ -133,4 +190,126 @@ public class BlockLocationRecordDaoImpl implements BlockLocationRecordDao {
       }
     });
   }
+
+  /****
+   * Private Methods
+   ****/
+
+  private synchronized boolean isJdbcBatchInsertSupported() {
+
+    if (!_useJdbcBatchInserts)
+      return false;
+
+    if (_jdbcBatchInsertsSupported == null) {
+      boolean supported = false;
+      if (_sessionFactory instanceof SessionFactoryImplementor) {
+        /**
+         * A dialect with identity columns may still generate ids from a
+         * sequence (PostgreSQL with AUTO ids, for example), so it's the
+         * generator that decides whether the INSERT can leave the id out
+         */
+        EntityPersister persister = ((SessionFactoryImplementor) _sessionFactory).getEntityPersister(BlockLocationRecord.class.getName());
+        IdentifierGenerator generator = persister.getIdentifierGenerator();
+        supported = generator instanceof IdentityGenerator;
+        if (!supported)
+          _log.info("block location record ids are generated by "
+              + generator.getClass().getName()
+              + ", so block location records will be saved through Hibernate");
+      }
+      _jdbcBatchInsertsSupported = supported;
+    }
+
+    return _jdbcBatchInsertsSupported;
+  }
+
+  private void saveBlockLocationRecordsWithJdbcBatch(
+      final List<BlockLocationRecord> records) {
+
+    Session session = _sessionFactory.openSession();
+    try {
+      Transaction tx = session.beginTransaction();
+      try {
+        session.doWork(new Work() {
+          @Override
+          public void execute(Connection connection) throws SQLException {
+            insertBlockLocationRecords(connection, records);
+          }
+        });
+        tx.commit();
+      } catch (RuntimeException ex) {
+        tx.rollback();
+        throw ex;
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  private void insertBlockLocationRecords(Connection connection,
+      List<BlockLocationRecord> records) throws SQLException {
+
+    PreparedStatement statement = connection.prepareStatement(INSERT_SQL);
+
+    try {
+      int pending = 0;
+      for (BlockLocationRecord record : records) {
+        bindBlockLocationRecord(statement, record);
+        statement.addBatch();
+        if (++pending == _jdbcBatchSize) {
+          statement.executeBatch();
+          pending = 0;
+        }
+      }
+      if (pending > 0)
+        statement.executeBatch();
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static void bindBlockLocationRecord(PreparedStatement statement,
+      BlockLocationRecord record) throws SQLException {
+
+    int index = 1;
+    index = bindId(statement, index, record.getBlockId());
+    index = bindId(statement, index, record.getTripId());
+    statement.setLong(index++, record.getServiceDate());
+    statement.setLong(index++, record.getTime());
+    bindDouble(statement, index++, record.getScheduleDeviation());
+    bindDouble(statement, index++, record.getDistanceAlongBlock());
+    bindDouble(statement, index++, record.getDistanceAlongTrip());
+    bindDouble(statement, index++, record.getLocationLat());
+    bindDouble(statement, index++, record.getLocationLon());
+    bindDouble(statement, index++, record.getOrientation());
+    index = bindId(statement, index, record.getTimepointId());
+    statement.setLong(index++, record.getTimepointScheduledTime());
+    statement.setLong(index++, record.getTimepointPredictedTime());
+    EVehiclePhase phase = record.getPhase();
+    bindString(statement, index++, phase == null ? null : phase.name());
+    bindString(statement, index++, record.getStatus());
+    bindId(statement, index, record.getVehicleId());
+  }
+
+  private static int bindId(PreparedStatement statement, int index,
+      AgencyAndId id) throws SQLException {
+    bindString(statement, index, id == null ? null : id.getAgencyId());
+    bindString(statement, index + 1, id == null ? null : id.getId());
+    return index + 2;
+  }
+
+  private static void bindDouble(PreparedStatement statement, int index,
+      Double value) throws SQLException {
+    if (value == null)
+      statement.setNull(index, Types.DOUBLE);
+    else
+      statement.setDouble(index, value);
+  }
+
+  private static void bindString(PreparedStatement statement, int index,
+      String value) throws SQLException {
+    if (value == null)
+      statement.setNull(index, Types.VARCHAR);
+    else
+      statement.setString(index, value);
+  }
 }
@@ -0,0 +1,454 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.onebusaway.container.stats.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded queue of {@link BlockLocationRecord} records waiting to be written
+ * to a {@link BlockLocationRecordDao}. Producers never block: when the queue is
+ * full, the configured {@link EPersistenceOverflowPolicy} decides whether the
+ * oldest queued records are dropped or whether the overflow is spilled to a
+ * local {@link BlockLocationRecordSpillFile}. Spilled records are first held in
+ * a second in-memory buffer of the same capacity and written to disk in
+ * batches by the writer thread, so producers never do file I/O.
+ * 
+ * {@link #flush()} is meant to be called from a single writer thread. It
+ * writes the queue out in batches of at most {@link #setBatchSize(int)}
+ * records, and once a write has succeeded, it replays any spilled records. A
+ * batch that fails to write is spilled right away with
+ * {@link EPersistenceOverflowPolicy#SPILL_TO_DISK}. Otherwise it is retried on
+ * the next flushes, up to {@link #setMaxBatchAttempts(int)} attempts, before
+ * it is dropped.
+ */
+public class BlockLocationRecordPersistenceQueue {
+
+  private static Logger _log = LoggerFactory.getLogger(BlockLocationRecordPersistenceQueue.class);
+
+  private final BlockLocationRecordDao _dao;
+
+  private final BlockingQueue<BlockLocationRecord> _queue;
+
+  private final Queue<BlockLocationRecord> _overflow = new ConcurrentLinkedQueue<BlockLocationRecord>();
+
+  private final AtomicInteger _overflowSize = new AtomicInteger();
+
+  private final int _capacity;
+
+  private int _batchSize = 500;
+
+  private int _maxReplayBatchesPerFlush = 10;
+
+  private int _maxBatchAttempts = 3;
+
+  private EPersistenceOverflowPolicy _overflowPolicy = EPersistenceOverflowPolicy.DROP_OLDEST;
+
+  private BlockLocationRecordSpillFile _spillFile;
+
+  private final Histogram _insertDuration = new Histogram();
+
+  private final Histogram _insertThroughput = new Histogram();
+
+  private final AtomicLong _droppedRecordCount = new AtomicLong();
+
+  private final AtomicLong _spilledRecordCount = new AtomicLong();
+
+  private final AtomicLong _replayedRecordCount = new AtomicLong();
+
+  private final AtomicLong _failedBatchCount = new AtomicLong();
+
+  private List<BlockLocationRecord> _retryBatch = null;
+
+  private int _retryBatchAttempts = 0;
+
+  private volatile long _lastInsertDuration = 0;
+
+  private volatile long _lastInsertCount = 0;
+
+  public BlockLocationRecordPersistenceQueue(BlockLocationRecordDao dao,
+      int capacity) {
+    _dao = dao;
+    _capacity = capacity;
+    _queue = new ArrayBlockingQueue<BlockLocationRecord>(capacity);
+  }
+
+  /**
+   * 
+   * @param batchSize the maximum number of records written to the database at
+   *          once
+   */
+  public void setBatchSize(int batchSize) {
+    _batchSize = batchSize;
+  }
+
+  /**
+   * Spilled records are replayed a few batches at a time, so that a large
+   * backlog doesn't starve the live queue.
+   * 
+   * @param maxReplayBatchesPerFlush
+   */
+  public void setMaxReplayBatchesPerFlush(int maxReplayBatchesPerFlush) {
+    _maxReplayBatchesPerFlush = maxReplayBatchesPerFlush;
+  }
+
+  /**
+   * With {@link EPersistenceOverflowPolicy#DROP_OLDEST}, a batch that fails to
+   * write is retried on subsequent flushes until it has been attempted this
+   * many times, and only then dropped.
+   * 
+   * @param maxBatchAttempts
+   */
+  public void setMaxBatchAttempts(int maxBatchAttempts) {
+    _maxBatchAttempts = maxBatchAttempts;
+  }
+
+  public void setOverflowPolicy(EPersistenceOverflowPolicy overflowPolicy) {
+    _overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Required when the overflow policy is
+   * {@link EPersistenceOverflowPolicy#SPILL_TO_DISK}.
+   * 
+   * @param spillFile
+   */
+  public void setSpillFile(BlockLocationRecordSpillFile spillFile) {
+    _spillFile = spillFile;
+  }
+
+  /****
+   * Statistics
+   ****/
+
+  public int getCapacity() {
+    return _capacity;
+  }
+
+  public int getSize() {
+    return _queue.size();
+  }
+
+  /**
+   * @return the number of overflow records waiting to be spilled to disk
+   */
+  public int getOverflowSize() {
+    return _overflowSize.get();
+  }
+
+  /**
+   * @return the number of unreadable spilled records skipped during replay
+   */
+  public long getSkippedSpillRecordCount() {
+    if (_spillFile == null)
+      return 0;
+    return _spillFile.getSkippedRecordCount();
+  }
+
+  /**
+   * @return database insert latency, in milliseconds, per batch
+   */
+  public Histogram getInsertDuration() {
+    return _insertDuration;
+  }
+
+  /**
+   * @return database insert throughput, in records per second, per batch
+   */
+  public Histogram getInsertThroughput() {
+    return _insertThroughput;
+  }
+
+  public long getDroppedRecordCount() {
+    return _droppedRecordCount.get();
+  }
+
+  public long getSpilledRecordCount() {
+    return _spilledRecordCount.get();
+  }
+
+  public long getReplayedRecordCount() {
+    return _replayedRecordCount.get();
+  }
+
+  public long getFailedBatchCount() {
+    return _failedBatchCount.get();
+  }
+
+  public long getLastInsertDuration() {
+    return _lastInsertDuration;
+  }
+
+  public long getLastInsertCount() {
+    return _lastInsertCount;
+  }
+
+  /****
+   * Queue Methods
+   ****/
+
+  public void add(List<BlockLocationRecord> records) {
+    for (BlockLocationRecord record : records) {
+      if (!_queue.offer(record))
+        handleOverflow(record);
+    }
+  }
+
+  /**
+   * @return true if enough records are queued to fill a batch
+   */
+  public boolean isBatchReady() {
+    return _queue.size() >= _batchSize;
+  }
+
+  /**
+   * Writes the queued records to the database in batches. If a write fails,
+   * the batch is handled according to the overflow policy and the rest of the
+   * queue is left for the next flush.
+   */
+  public synchronized void flush() {
+
+    spillOverflow();
+
+    if (_retryBatch != null) {
+      if (!writeBatch(_retryBatch)) {
+        handleFailedBatch(_retryBatch);
+        return;
+      }
+      _retryBatch = null;
+      _retryBatchAttempts = 0;
+    }
+
+    while (true) {
+
+      List<BlockLocationRecord> batch = new ArrayList<BlockLocationRecord>(
+          _batchSize);
+      _queue.drainTo(batch, _batchSize);
+
+      if (batch.isEmpty())
+        break;
+
+      if (!writeBatch(batch)) {
+        handleFailedBatch(batch);
+        return;
+      }
+    }
+
+    replaySpilledRecords();
+  }
+
+  /**
+   * Spills anything still queued to disk when the overflow policy allows it,
+   * and otherwise makes a last attempt to write it to the database, before
+   * releasing the spill file. Synchronized with {@link #flush()}, so an
+   * in-flight flush completes first.
+   */
+  public synchronized void close() {
+
+    spillOverflow();
+
+    List<BlockLocationRecord> remaining = new ArrayList<BlockLocationRecord>();
+    if (_retryBatch != null)
+      remaining.addAll(_retryBatch);
+    _queue.drainTo(remaining);
+
+    if (_overflowPolicy == EPersistenceOverflowPolicy.SPILL_TO_DISK
+        && _spillFile != null) {
+      if (!remaining.isEmpty())
+        spill(remaining);
+    } else {
+      writeRemaining(remaining);
+    }
+    _retryBatch = null;
+    _retryBatchAttempts = 0;
+
+    if (_spillFile != null) {
+      try {
+        _spillFile.close();
+      } catch (IOException ex) {
+        _log.warn("error closing block location record spill file", ex);
+      }
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * Writes the records left over at shutdown in batches, giving up on the rest
+   * at the first failed batch rather than holding up shutdown on a database
+   * that is down.
+   */
+  private void writeRemaining(List<BlockLocationRecord> remaining) {
+    for (int from = 0; from < remaining.size(); from += _batchSize) {
+      int to = Math.min(from + _batchSize, remaining.size());
+      List<BlockLocationRecord> batch = new ArrayList<BlockLocationRecord>(
+          remaining.subList(from, to));
+      if (!writeBatch(batch)) {
+        int dropped = remaining.size() - from;
+        _log.warn("dropping " + dropped
+            + " block location records that could not be written on close");
+        _droppedRecordCount.addAndGet(dropped);
+        return;
+      }
+    }
+  }
+
+  private void handleOverflow(BlockLocationRecord record) {
+    switch (_overflowPolicy) {
+      case SPILL_TO_DISK:
+        if (_overflowSize.incrementAndGet() <= _capacity) {
+          _overflow.add(record);
+        } else {
+          _overflowSize.decrementAndGet();
+          _droppedRecordCount.incrementAndGet();
+        }
+        break;
+      case DROP_OLDEST:
+      default:
+        while (!_queue.offer(record)) {
+          if (_queue.poll() != null)
+            _droppedRecordCount.incrementAndGet();
+        }
+        break;
+    }
+  }
+
+  /**
+   * Spills a failed batch, or keeps it for another attempt on the next flush
+   * until it has used up {@link #_maxBatchAttempts}.
+   */
+  private void handleFailedBatch(List<BlockLocationRecord> batch) {
+
+    if (_overflowPolicy == EPersistenceOverflowPolicy.SPILL_TO_DISK) {
+      spill(batch);
+      _retryBatch = null;
+      _retryBatchAttempts = 0;
+      return;
+    }
+
+    _retryBatchAttempts++;
+
+    if (_retryBatchAttempts < _maxBatchAttempts) {
+      _retryBatch = batch;
+    } else {
+      _log.warn("dropping " + batch.size()
+          + " block location records after " + _retryBatchAttempts
+          + " failed attempts");
+      _droppedRecordCount.addAndGet(batch.size());
+      _retryBatch = null;
+      _retryBatchAttempts = 0;
+    }
+  }
+
+  private void spillOverflow() {
+
+    List<BlockLocationRecord> batch = new ArrayList<BlockLocationRecord>();
+
+    while (true) {
+
+      BlockLocationRecord record = _overflow.poll();
+      if (record != null) {
+        _overflowSize.decrementAndGet();
+        batch.add(record);
+      }
+
+      if (batch.size() >= _batchSize || (record == null && !batch.isEmpty())) {
+        spill(batch);
+        batch = new ArrayList<BlockLocationRecord>();
+      }
+
+      if (record == null)
+        return;
+    }
+  }
+
+  private void spill(List<BlockLocationRecord> records) {
+    if (_spillFile == null) {
+      _droppedRecordCount.addAndGet(records.size());
+      return;
+    }
+    try {
+      _spillFile.append(records);
+      _spilledRecordCount.addAndGet(records.size());
+    } catch (IOException ex) {
+      _log.error("error spilling block location records to "
+          + _spillFile.getPath(), ex);
+      _droppedRecordCount.addAndGet(records.size());
+    }
+  }
+
+  private void replaySpilledRecords() {
+
+    if (_spillFile == null)
+      return;
+
+    try {
+      for (int i = 0; i < _maxReplayBatchesPerFlush; i++) {
+
+        if (!_spillFile.hasPendingRecords())
+          return;
+
+        List<BlockLocationRecord> batch = _spillFile.readReplayBatch(_batchSize);
+        if (batch.isEmpty())
+          continue;
+
+        if (!writeBatch(batch))
+          return;
+
+        _spillFile.commitReplayBatch();
+        _replayedRecordCount.addAndGet(batch.size());
+      }
+    } catch (IOException ex) {
+      _log.error("error replaying block location records from "
+          + _spillFile.getPath(), ex);
+    }
+  }
+
+  private boolean writeBatch(List<BlockLocationRecord> batch) {
+
+    try {
+      long t1 = System.nanoTime();
+      _dao.saveBlockLocationRecords(batch);
+      long t2 = System.nanoTime();
+
+      long durationInMillis = (t2 - t1) / 1000000;
+      _lastInsertDuration = durationInMillis;
+      _lastInsertCount = batch.size();
+      _insertDuration.record(durationInMillis);
+      _insertThroughput.record(batch.size() * 1000000000L
+          / Math.max(t2 - t1, 1));
+      return true;
+
+    } catch (Throwable ex) {
+      _failedBatchCount.incrementAndGet();
+      _log.error("error writing block location records to dao", ex);
+      return false;
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.EVehiclePhase;
+
+/**
+ * An append-only local file of {@link BlockLocationRecord} records that could
+ * not be written to the database, either because the persistence queue
+ * overflowed or because a write failed. Records are replayed in batches once
+ * the database recovers.
+ * 
+ * New records are always appended to the spill file itself. When a replay
+ * starts, the spill file is rotated to a separate replay file, so that records
+ * spilled during the replay don't interfere with it. Each record is length
+ * prefixed, so a record truncated by a crash mid-write is simply ignored, and
+ * a record that can't be decoded is skipped and counted in
+ * {@link #getSkippedRecordCount()} rather than blocking the replay.
+ * 
+ * Replay is at-least-once: if the process dies between a successful database
+ * write and {@link #commitReplayBatch()}, the batch is replayed again on the
+ * next start.
+ */
+public class BlockLocationRecordSpillFile {
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+  private final File _path;
+
+  private final File _replayPath;
+
+  private DataOutputStream _out;
+
+  private long _replayOffset = 0;
+
+  private long _pendingReplayOffset = 0;
+
+  private long _skippedRecordCount = 0;
+
+  private long _pendingSkippedRecordCount = 0;
+
+  public BlockLocationRecordSpillFile(File path) {
+    _path = path;
+    _replayPath = new File(path.getPath() + ".replay");
+  }
+
+  public File getPath() {
+    return _path;
+  }
+
+  public synchronized void append(Collection<BlockLocationRecord> records)
+      throws IOException {
+
+    if (_out == null) {
+      File parent = _path.getAbsoluteFile().getParentFile();
+      if (parent != null && !parent.exists())
+        parent.mkdirs();
+      _out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(_path, true)));
+    }
+
+    for (BlockLocationRecord record : records) {
+      byte[] bytes = serialize(record);
+      _out.writeInt(bytes.length);
+      _out.write(bytes);
+    }
+
+    _out.flush();
+  }
+
+  /**
+   * @return the number of unreadable records skipped during replay
+   */
+  public synchronized long getSkippedRecordCount() {
+    return _skippedRecordCount;
+  }
+
+  public synchronized boolean hasPendingRecords() {
+    return _replayPath.exists() || _path.length() > 0;
+  }
+
+  /**
+   * Reads the next batch of records to replay, without removing them from the
+   * file. Call {@link #commitReplayBatch()} once the batch has been written to
+   * the database.
+   * 
+   * @param maxRecords
+   * @return the next batch of records, or an empty list if there is nothing
+   *         left to replay
+   * @throws IOException
+   */
+  public synchronized List<BlockLocationRecord> readReplayBatch(int maxRecords)
+      throws IOException {
+
+    List<BlockLocationRecord> records = new ArrayList<BlockLocationRecord>();
+
+    if (!_replayPath.exists()) {
+      close();
+      if (_path.length() == 0)
+        return records;
+      if (!_path.renameTo(_replayPath))
+        throw new IOException("error rotating spill file " + _path + " to "
+            + _replayPath);
+      _replayOffset = 0;
+    }
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(_replayPath)));
+
+    try {
+
+      skipFully(in, _replayOffset);
+      long offset = _replayOffset;
+      _pendingSkippedRecordCount = 0;
+
+      while (records.size() < maxRecords) {
+        int length;
+        byte[] bytes;
+        try {
+          length = in.readInt();
+          if (length < 0 || length > MAX_RECORD_LENGTH)
+            break;
+          bytes = new byte[length];
+          in.readFully(bytes);
+        } catch (EOFException ex) {
+          break;
+        }
+        offset += 4 + length;
+        try {
+          records.add(deserialize(bytes));
+        } catch (IOException ex) {
+          _pendingSkippedRecordCount++;
+        } catch (IllegalArgumentException ex) {
+          _pendingSkippedRecordCount++;
+        }
+      }
+
+      _pendingReplayOffset = offset;
+
+    } finally {
+      in.close();
+    }
+
+    if (records.isEmpty()) {
+      _skippedRecordCount += _pendingSkippedRecordCount;
+      _replayPath.delete();
+      _replayOffset = 0;
+    }
+
+    return records;
+  }
+
+  /**
+   * Marks the batch returned by the last call to
+   * {@link #readReplayBatch(int)} as written.
+   */
+  public synchronized void commitReplayBatch() {
+    _replayOffset = _pendingReplayOffset;
+    _skippedRecordCount += _pendingSkippedRecordCount;
+    _pendingSkippedRecordCount = 0;
+    if (_replayOffset >= _replayPath.length()) {
+      _replayPath.delete();
+      _replayOffset = 0;
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    if (_out != null) {
+      _out.close();
+      _out = null;
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static void skipFully(DataInputStream in, long bytes)
+      throws IOException {
+    while (bytes > 0) {
+      long skipped = in.skip(bytes);
+      if (skipped <= 0)
+        throw new EOFException();
+      bytes -= skipped;
+    }
+  }
+
+  private static byte[] serialize(BlockLocationRecord record)
+      throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeByte(FORMAT_VERSION);
+    writeId(out, record.getBlockId());
+    writeId(out, record.getTripId());
+    out.writeLong(record.getServiceDate());
+    out.writeLong(record.getTime());
+    writeDouble(out, record.getScheduleDeviation());
+    writeDouble(out, record.getDistanceAlongBlock());
+    writeDouble(out, record.getDistanceAlongTrip());
+    writeDouble(out, record.getLocationLat());
+    writeDouble(out, record.getLocationLon());
+    writeDouble(out, record.getOrientation());
+    writeId(out, record.getTimepointId());
+    out.writeLong(record.getTimepointScheduledTime());
+    out.writeLong(record.getTimepointPredictedTime());
+    EVehiclePhase phase = record.getPhase();
+    writeString(out, phase == null ? null : phase.name());
+    writeString(out, record.getStatus());
+    writeId(out, record.getVehicleId());
+
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static BlockLocationRecord deserialize(byte[] bytes)
+      throws IOException {
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+    int version = in.readByte();
+    if (version != FORMAT_VERSION)
+      throw new IOException("unknown spill file record version: " + version);
+
+    BlockLocationRecord.Builder builder = BlockLocationRecord.builder();
+    builder.setBlockId(readId(in));
+    builder.setTripId(readId(in));
+    builder.setServiceDate(in.readLong());
+    builder.setTime(in.readLong());
+    builder.setScheduleDeviation(readDouble(in));
+    builder.setDistanceAlongBlock(readDouble(in));
+    builder.setDistanceAlongTrip(readDouble(in));
+    builder.setLocationLat(readDouble(in));
+    builder.setLocationLon(readDouble(in));
+    builder.setOrientation(readDouble(in));
+    builder.setTimepointId(readId(in));
+    builder.setTimepointScheduledTime(in.readLong());
+    builder.setTimepointPredictedTime(in.readLong());
+    String phase = readString(in);
+    if (phase != null)
+      builder.setPhase(EVehiclePhase.valueOf(phase));
+    builder.setStatus(readString(in));
+    builder.setVehicleId(readId(in));
+    return builder.create();
+  }
+
+  private static void writeId(DataOutputStream out, AgencyAndId id)
+      throws IOException {
+    out.writeBoolean(id != null);
+    if (id != null) {
+      writeString(out, id.getAgencyId());
+      writeString(out, id.getId());
+    }
+  }
+
+  private static AgencyAndId readId(DataInputStream in) throws IOException {
+    if (!in.readBoolean())
+      return null;
+    return new AgencyAndId(readString(in), readString(in));
+  }
+
+  private static void writeDouble(DataOutputStream out, Double value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null)
+      out.writeDouble(value);
+  }
+
+  private static Double readDouble(DataInputStream in) throws IOException {
+    if (!in.readBoolean())
+      return null;
+    return in.readDouble();
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null)
+      out.writeUTF(value);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    if (!in.readBoolean())
+      return null;
+    return in.readUTF();
+  }
+}
@@ -17,6 +17,7 @@
  */
 package org.onebusaway.transit_data_federation.impl.realtime;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -26,8 +27,10 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
@@ -38,6 +41,8 @@ import org.onebusaway.collections.FactoryMap;
 import org.onebusaway.collections.Min;
 import org.onebusaway.collections.Range;
 import org.onebusaway.container.ConfigurationParameter;
+import org.onebusaway.container.stats.Histogram;
+import org.onebusaway.geospatial.model.CoordinateBounds;
 import org.onebusaway.geospatial.model.CoordinatePoint;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.realtime.api.TimepointPredictionRecord;
@@ -86,6 +91,8 @@ public class BlockLocationServiceImpl implements BlockLocationService,
 
   private static Logger _log = LoggerFactory.getLogger(BlockLocationServiceImpl.class);
 
+  private static final Histogram EMPTY_HISTOGRAM = new Histogram();
+
   private VehicleLocationRecordCache _cache;
 
   private BlockLocationRecordDao _blockLocationRecordDao;
@@ -109,6 +116,13 @@ public class BlockLocationServiceImpl implements BlockLocationService,
 
   private int _blockInstanceMatchingWindow = 60 * 60 * 1000;
 
+  /**
+   * Vehicles are found by the position of their last record, but may have
+   * moved since, so we widen bounds queries by as far as a vehicle can travel,
+   * at this speed in meters/sec, while its last record is still used
+   */
+  private double _maxVehicleSpeed = 30;
+
   /**
    * When true, we will interpolate the current location of a transit vehicle
    * based on estimated schedule deviation information. If false, we will use
@@ -131,26 +145,49 @@ public class BlockLocationServiceImpl implements BlockLocationService,
   private boolean _persistBlockLocationRecords = false;
 
   /**
-   * We queue up block location records so they can be bulk persisted to the
-   * database
+   * The maximum number of block location records waiting to be persisted
+   * before the overflow policy kicks in
    */
-  private List<BlockLocationRecord> _recordPersistenceQueue = new ArrayList<BlockLocationRecord>();
+  private int _persistenceQueueCapacity = 100000;
 
   /**
-   * Used to schedule periodic flushes to the database of the block location
-   * records queue
+   * The maximum number of block location records written to the database at
+   * once
    */
-  private ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor();
+  private int _persistenceBatchSize = 500;
+
+  /**
+   * How often, in milliseconds, we flush the queue when it hasn't filled a
+   * batch on its own
+   */
+  private int _persistenceFlushInterval = 1000;
+
+  /**
+   * How long, in milliseconds, we wait on shutdown for an in-flight flush to
+   * complete
+   */
+  private int _persistenceShutdownTimeout = 10000;
+
+  private EPersistenceOverflowPolicy _persistenceOverflowPolicy = EPersistenceOverflowPolicy.DROP_OLDEST;
+
+  private File _persistenceSpillPath;
+
+  /**
+   * We queue up block location records so they can be bulk persisted to the
+   * database
+   */
+  private BlockLocationRecordPersistenceQueue _recordPersistenceQueue;
 
   /**
-   * Block location record persistence stats - last record insert duration
+   * Set when a full batch has triggered an early flush that hasn't run yet
    */
-  private volatile long _lastInsertDuration = 0;
+  private AtomicBoolean _batchFlushPending = new AtomicBoolean();
 
   /**
-   * Block location record persistence stats - last record insert count
+   * Used to schedule periodic flushes to the database of the block location
+   * records queue
    */
-  private volatile long _lastInsertCount = 0;
+  private ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor();
 
   /**
    * Records the number of times block location record cache requests fall
@@ -218,6 +255,68 @@ public class BlockLocationServiceImpl implements BlockLocationService,
     _persistBlockLocationRecords = persistBlockLocationRecords;
   }
 
+  /**
+   * 
+   * @param persistenceQueueCapacity the maximum number of block location
+   *          records waiting to be persisted
+   */
+  @ConfigurationParameter
+  public void setPersistenceQueueCapacity(int persistenceQueueCapacity) {
+    _persistenceQueueCapacity = persistenceQueueCapacity;
+  }
+
+  /**
+   * 
+   * @param persistenceBatchSize the maximum number of block location records
+   *          written to the database at once
+   */
+  @ConfigurationParameter
+  public void setPersistenceBatchSize(int persistenceBatchSize) {
+    _persistenceBatchSize = persistenceBatchSize;
+  }
+
+  /**
+   * 
+   * @param persistenceFlushInterval in milliseconds
+   */
+  @ConfigurationParameter
+  public void setPersistenceFlushInterval(int persistenceFlushInterval) {
+    _persistenceFlushInterval = persistenceFlushInterval;
+  }
+
+  /**
+   * 
+   * @param persistenceShutdownTimeout in milliseconds
+   */
+  @ConfigurationParameter
+  public void setPersistenceShutdownTimeout(int persistenceShutdownTimeout) {
+    _persistenceShutdownTimeout = persistenceShutdownTimeout;
+  }
+
+  /**
+   * Determines what happens to block location records when the persistence
+   * queue is full.
+   * 
+   * @param persistenceOverflowPolicy
+   */
+  @ConfigurationParameter
+  public void setPersistenceOverflowPolicy(
+      EPersistenceOverflowPolicy persistenceOverflowPolicy) {
+    _persistenceOverflowPolicy = persistenceOverflowPolicy;
+  }
+
+  /**
+   * The local file that overflow records are spilled to when using
+   * {@link EPersistenceOverflowPolicy#SPILL_TO_DISK}. Defaults to a file in
+   * the system temp directory.
+   * 
+   * @param persistenceSpillPath
+   */
+  @ConfigurationParameter
+  public void setPersistenceSpillPath(File persistenceSpillPath) {
+    _persistenceSpillPath = persistenceSpillPath;
+  }
+
   /**
    * When true, we will interpolate the current location of a transit vehicle
    * based on the last know location of the bus and the schedule deviation of
@@ -231,6 +330,21 @@ public class BlockLocationServiceImpl implements BlockLocationService,
     _locationInterpolation = locationInterpolation;
   }
 
+  /**
+   * When searching for vehicles within bounds, we also consider vehicles whose
+   * last record was outside the bounds, since they may have moved into the
+   * bounds since. A record is used for up to five minutes after its time, so
+   * we search as far from the bounds as a vehicle can travel at this speed in
+   * that time. The default of 30 meters/sec covers buses and most light
+   * rail, and should be raised for faster modes.
+   * 
+   * @param maxVehicleSpeed in meters/sec
+   */
+  @ConfigurationParameter
+  public void setMaxVehicleSpeed(double maxVehicleSpeed) {
+    _maxVehicleSpeed = maxVehicleSpeed;
+  }
+
   /**
    * @param distanceAlongBlockLocationInterpolation
    * 
@@ -250,12 +364,118 @@ public class BlockLocationServiceImpl implements BlockLocationService,
 
   @ManagedAttribute
   public long getLastInsertDuration() {
-    return _lastInsertDuration;
+    if (_recordPersistenceQueue == null)
+      return 0;
+    return _recordPersistenceQueue.getLastInsertDuration();
   }
 
   @ManagedAttribute
   public long getLastInsertCount() {
-    return _lastInsertCount;
+    if (_recordPersistenceQueue == null)
+      return 0;
+    return _recordPersistenceQueue.getLastInsertCount();
+  }
+
+  @ManagedAttribute
+  public int getPersistenceQueueSize() {
+    if (_recordPersistenceQueue == null)
+      return 0;
+    return _recordPersistenceQueue.getSize();
+  }
+
+  @ManagedAttribute
+  public int getPersistenceQueueCapacity() {
+    return _persistenceQueueCapacity;
+  }
+
+  @ManagedAttribute
+  public long getPersistenceDroppedRecordCount() {
+    if (_recordPersistenceQueue == null)
+      return 0;
+    return _recordPersistenceQueue.getDroppedRecordCount();
+  }
+
+  @ManagedAttribute
+  public long getPersistenceSpilledRecordCount() {
+    if (_recordPersistenceQueue == null)
+      return 0;
+    return _recordPersistenceQueue.getSpilledRecordCount();
+  }
+
+  @ManagedAttribute
+  public long getPersistenceReplayedRecordCount() {
+    if (_recordPersistenceQueue == null)
+      return 0;
+    return _recordPersistenceQueue.getReplayedRecordCount();
+  }
+
+  @ManagedAttribute
+  public long getPersistenceFailedBatchCount() {
+    if (_recordPersistenceQueue == null)
+      return 0;
+    return _recordPersistenceQueue.getFailedBatchCount();
+  }
+
+  @ManagedAttribute
+  public long getPersistenceSkippedSpillRecordCount() {
+    if (_recordPersistenceQueue == null)
+      return 0;
+    return _recordPersistenceQueue.getSkippedSpillRecordCount();
+  }
+
+  @ManagedAttribute
+  public long getInsertBatchCount() {
+    return getInsertDurationHistogram().getCount();
+  }
+
+  @ManagedAttribute
+  public double getInsertDurationMean() {
+    return getInsertDurationHistogram().getMean();
+  }
+
+  @ManagedAttribute
+  public long getInsertDurationPercentile50() {
+    return getInsertDurationHistogram().getPercentile(50);
+  }
+
+  @ManagedAttribute
+  public long getInsertDurationPercentile95() {
+    return getInsertDurationHistogram().getPercentile(95);
+  }
+
+  @ManagedAttribute
+  public long getInsertDurationPercentile99() {
+    return getInsertDurationHistogram().getPercentile(99);
+  }
+
+  @ManagedAttribute
+  public long getInsertDurationMax() {
+    return getInsertDurationHistogram().getMax();
+  }
+
+  @ManagedAttribute
+  public double getInsertThroughputMean() {
+    return getInsertThroughputHistogram().getMean();
+  }
+
+  @ManagedAttribute
+  public long getInsertThroughputPercentile5() {
+    return getInsertThroughputHistogram().getPercentile(5);
+  }
+
+  @ManagedAttribute
+  public long getInsertThroughputPercentile50() {
+    return getInsertThroughputHistogram().getPercentile(50);
+  }
+
+  @ManagedAttribute
+  public long getInsertThroughputPercentile95() {
+    return getInsertThroughputHistogram().getPercentile(95);
+  }
+
+  @ManagedAttribute
+  public long getInsertThroughputMax() {
+    return getInsertThroughputHistogram().getMax();
   }
 
   @ManagedAttribute
@@ -269,14 +489,40 @@ public class BlockLocationServiceImpl implements BlockLocationService,
 
   @PostConstruct
   public void start() {
-    if (_persistBlockLocationRecords)
-      _executor.scheduleAtFixedRate(new PredictionWriter(), 0, 1,
-          TimeUnit.SECONDS);
+    if (_persistBlockLocationRecords) {
+
+      _recordPersistenceQueue = new BlockLocationRecordPersistenceQueue(
+          _blockLocationRecordDao, _persistenceQueueCapacity);
+      _recordPersistenceQueue.setBatchSize(_persistenceBatchSize);
+      _recordPersistenceQueue.setOverflowPolicy(_persistenceOverflowPolicy);
+
+      if (_persistenceOverflowPolicy == EPersistenceOverflowPolicy.SPILL_TO_DISK) {
+        File path = _persistenceSpillPath;
+        if (path == null)
+          path = new File(System.getProperty("java.io.tmpdir"),
+              "onebusaway-block-location-records.spill");
+        _recordPersistenceQueue.setSpillFile(new BlockLocationRecordSpillFile(
+            path));
+      }
+
+      _executor.scheduleAtFixedRate(new PredictionWriter(), 0,
+          _persistenceFlushInterval, TimeUnit.MILLISECONDS);
+    }
   }
 
   @PreDestroy
   public void stop() {
+    _executor.shutdown();
+    try {
+      if (!_executor.awaitTermination(_persistenceShutdownTimeout,
+          TimeUnit.MILLISECONDS))
+        _log.warn("timed out waiting for block location record flush to complete");
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
     _executor.shutdownNow();
+    if (_recordPersistenceQueue != null)
+      _recordPersistenceQueue.close();
   }
 
   /****
@@ -377,6 +623,45 @@ public class BlockLocationServiceImpl implements BlockLocationService,
     return locationsByVehicleId;
   }
 
+  @Override
+  public List<BlockLocation> getLocationsForBounds(CoordinateBounds bounds,
+      TargetTime time) {
+
+    /**
+     * Any record we'll use is within the prediction cache offset of the
+     * current time, which bounds how far from the target time it can be. The
+     * cache narrows that down by the age of each vehicle's last position.
+     */
+    long maxAge = _predictionCacheMaxOffset * 1000L
+        + Math.abs(time.getTargetTime() - time.getCurrentTime());
+    double maxDistance = maxAge / 1000.0 * _maxVehicleSpeed;
+
+    List<VehicleLocationCacheElements> records = getRecordsInRange(
+        _cache.getRecordsForBounds(bounds, time.getTargetTime(),
+            _maxVehicleSpeed, maxDistance), time);
+
+    List<BlockLocation> locations = new ArrayList<BlockLocation>();
+    for (VehicleLocationCacheElements cacheRecord : records) {
+      BlockLocation location = getBlockLocation(
+          cacheRecord.getBlockInstance(), cacheRecord, null,
+          time.getTargetTime());
+      if (location == null)
+        continue;
+      CoordinatePoint p = location.getLocation();
+      if (p != null && bounds.contains(p))
+        locations.add(location);
+    }
+
+    return locations;
+  }
+
+  @Override
+  public boolean isRealTimeAvailableForBlockInstance(
+      BlockInstance blockInstance, TargetTime time) {
+    return !getRecordsInRange(_cache.getRecordsForBlockInstance(blockInstance),
+        time).isEmpty();
+  }
+
   @Override
   public BlockLocation getScheduledLocationForBlockInstance(
       BlockInstance blockInstance, long targetTime) {
@@ -755,26 +1040,39 @@ public class BlockLocationServiceImpl implements BlockLocationService,
         vehicleId), time);
   }
 
+  /**
+   * 
+   * @return the cached records with elements close enough to the current time
+   *         to be used
+   */
+  private List<VehicleLocationCacheElements> getRecordsInRange(
+      List<VehicleLocationCacheElements> entries, TargetTime time) {
+
+    if (entries.isEmpty())
+      return entries;
+
+    List<VehicleLocationCacheElements> inRange = new ArrayList<VehicleLocationCacheElements>();
+    long offset = _predictionCacheMaxOffset * 1000;
+    for (VehicleLocationCacheElements elements : entries) {
+      if (elements.isEmpty())
+        continue;
+      Range range = elements.getTimeRange();
+      long tFrom = (long) (range.getMin() - offset);
+      long tTo = (long) (range.getMax() + offset);
+      if (tFrom <= time.getCurrentTime() && time.getCurrentTime() <= tTo)
+        inRange.add(elements);
+    }
+    return inRange;
+  }
+
   private List<VehicleLocationCacheElements> getBlockLocationRecordCollections(
       RecordStrategy strategy, TargetTime time) {
 
-    List<VehicleLocationCacheElements> entries = strategy.getRecordsFromCache();
-
-    if (!entries.isEmpty()) {
-      List<VehicleLocationCacheElements> inRange = new ArrayList<VehicleLocationCacheElements>();
-      long offset = _predictionCacheMaxOffset * 1000;
-      for (VehicleLocationCacheElements elements : entries) {
-        if (elements.isEmpty())
-          continue;
-        Range range = elements.getTimeRange();
-        long tFrom = (long) (range.getMin() - offset);
-        long tTo = (long) (range.getMax() + offset);
-        if (tFrom <= time.getCurrentTime() && time.getCurrentTime() <= tTo)
-          inRange.add(elements);
-      }
-      if (!inRange.isEmpty())
-        return inRange;
-    }
+    List<VehicleLocationCacheElements> inRange = getRecordsInRange(
+        strategy.getRecordsFromCache(), time);
+
+    if (!inRange.isEmpty())
+      return inRange;
 
     long offset = _blockLocationRecordCacheWindowSize * 1000 / 2;
 
@@ -942,36 +1240,43 @@ public class BlockLocationServiceImpl implements BlockLocationService,
   }
 
   private void addPredictionToPersistenceQueue(List<BlockLocationRecord> records) {
-    synchronized (_recordPersistenceQueue) {
-      _recordPersistenceQueue.addAll(records);
+
+    _recordPersistenceQueue.add(records);
+
+    /**
+     * If we've filled a batch, there's no need to wait for the next scheduled
+     * flush. The executor may shut down at any point, in which case the
+     * records are left in the queue for the final flush on close.
+     */
+    if (_recordPersistenceQueue.isBatchReady()
+        && _batchFlushPending.compareAndSet(false, true)) {
+      try {
+        _executor.execute(new PredictionWriter());
+      } catch (RejectedExecutionException ex) {
+        _batchFlushPending.set(false);
+      }
     }
   }
 
-  private List<BlockLocationRecord> getPredictionPersistenceQueue() {
-    synchronized (_recordPersistenceQueue) {
-      List<BlockLocationRecord> queue = new ArrayList<BlockLocationRecord>(
-          _recordPersistenceQueue);
-      _recordPersistenceQueue.clear();
-      return queue;
-    }
+  private Histogram getInsertDurationHistogram() {
+    if (_recordPersistenceQueue == null)
+      return EMPTY_HISTOGRAM;
+    return _recordPersistenceQueue.getInsertDuration();
+  }
+
+  private Histogram getInsertThroughputHistogram() {
+    if (_recordPersistenceQueue == null)
+      return EMPTY_HISTOGRAM;
+    return _recordPersistenceQueue.getInsertThroughput();
   }
 
   private class PredictionWriter implements Runnable {
 
     @Override
     public void run() {
-
+      _batchFlushPending.set(false);
       try {
-        List<BlockLocationRecord> queue = getPredictionPersistenceQueue();
-
-        if (queue.isEmpty())
-          return;
-
-        long t1 = System.currentTimeMillis();
-        _blockLocationRecordDao.saveBlockLocationRecords(queue);
-        long t2 = System.currentTimeMillis();
-        _lastInsertDuration = t2 - t1;
-        _lastInsertCount = queue.size();
+        _recordPersistenceQueue.flush();
       } catch (Throwable ex) {
         _log.error("error writing block location records to dao", ex);
       }
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime;
+
+/**
+ * Determines what happens to {@link BlockLocationRecord} records when the
+ * persistence queue is full, typically because the database has stalled.
+ * 
+ * @see BlockLocationRecordPersistenceQueue
+ */
+public enum EPersistenceOverflowPolicy {
+
+  /**
+   * Discard the oldest queued records to make room for new ones
+   */
+  DROP_OLDEST,
+
+  /**
+   * Append overflow records to a local spill file, which is replayed into the
+   * database once writes succeed again
+   */
+  SPILL_TO_DISK
+}
@@ -16,12 +16,17 @@
 package org.onebusaway.transit_data_federation.impl.realtime;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -30,12 +35,14 @@ import java.util.concurrent.TimeUnit;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
-import org.onebusaway.collections.ConcurrentCollectionsLibrary;
+import org.onebusaway.geospatial.model.CoordinateBounds;
+import org.onebusaway.geospatial.model.CoordinatePoint;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.realtime.api.VehicleLocationRecord;
 import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
 import org.onebusaway.transit_data_federation.services.blocks.ScheduledBlockLocation;
 import org.onebusaway.transit_data_federation.services.realtime.ScheduleDeviationSamples;
+import org.onebusaway.transit_data_federation.services.realtime.VehicleLocationCacheElement;
 import org.onebusaway.transit_data_federation.services.realtime.VehicleLocationCacheElements;
 import org.onebusaway.transit_data_federation.services.realtime.VehicleLocationCacheEntry;
 import org.onebusaway.transit_data_federation.services.realtime.VehicleLocationRecordCache;
@@ -49,16 +56,31 @@ import org.springframework.stereotype.Component;
  * condition issues. If we DO get lots of back to back updates, we'll just have
  * to assume some amount of data loss.
  * 
- * @param record record to add
+ * None of the operations on the cache take a lock. Each vehicle gets a
+ * {@link VehicleLocationCacheEntry} holding a fixed-capacity buffer of recent
+ * records, published as an immutable snapshot. The block instance => entries
+ * index is copy-on-write, so readers always see a consistent array of entries.
+ * 
+ * Rather than sweeping every entry on each eviction pass, entries are filed
+ * into time buckets keyed by the measured update time of their oldest
+ * element. An eviction pass only visits the buckets that have fallen out of
+ * the cache window, and entries that still hold fresh elements after pruning
+ * are re-filed into a later bucket.
+ * 
+ * The last known position of each vehicle is also kept in a
+ * {@link VehiclePositionIndex} grid, so that the vehicles within a bounding box
+ * can be found directly. Entries leave the grid when they leave the cache.
  */
 @Component
-class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
+public class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
 
   private static Logger _log = LoggerFactory.getLogger(VehicleLocationRecordCacheImpl.class);
 
   private ConcurrentMap<AgencyAndId, VehicleLocationCacheEntry> _entriesByVehicleId = new ConcurrentHashMap<AgencyAndId, VehicleLocationCacheEntry>();
 
-  private ConcurrentMap<BlockInstance, Set<AgencyAndId>> _vehicleIdsByBlockInstance = new ConcurrentHashMap<BlockInstance, Set<AgencyAndId>>();
+  private ConcurrentMap<BlockInstance, VehicleLocationCacheEntry[]> _entriesByBlockInstance = new ConcurrentHashMap<BlockInstance, VehicleLocationCacheEntry[]>();
+
+  private ConcurrentNavigableMap<Long, Queue<VehicleLocationCacheEntry>> _evictionBuckets = new ConcurrentSkipListMap<Long, Queue<VehicleLocationCacheEntry>>();
 
   /**
    * By default, we keep around 20 minutes of cache entries
@@ -67,6 +89,12 @@ class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
 
   private int _cacheEvictionFrequency = 1;
 
+  private int _evictionBucketSize = 60;
+
+  private int _recordsPerVehicle = 100;
+
+  private VehiclePositionIndex _positionIndex = new VehiclePositionIndex(0.01);
+
   private ScheduledExecutorService _executor;
 
   private ScheduledFuture<?> _evictionHandler;
@@ -89,6 +117,36 @@ class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
     _cacheEvictionFrequency = cacheEvictionFrequency;
   }
 
+  /**
+   * Controls the granularity of the time buckets used to track entries for
+   * eviction. Should be changed before any records are added.
+   * 
+   * @param evictionBucketSize in seconds
+   */
+  public void setEvictionBucketSize(int evictionBucketSize) {
+    _evictionBucketSize = evictionBucketSize;
+  }
+
+  /**
+   * The maximum number of records kept for any one vehicle. Once the limit is
+   * reached, the oldest record is dropped when a new one is added.
+   * 
+   * @param recordsPerVehicle
+   */
+  public void setRecordsPerVehicle(int recordsPerVehicle) {
+    _recordsPerVehicle = recordsPerVehicle;
+  }
+
+  /**
+   * Controls the size of the cells of the grid used to find vehicles by
+   * location. Should be changed before any records are added.
+   * 
+   * @param positionIndexCellSize in degrees
+   */
+  public void setPositionIndexCellSize(double positionIndexCellSize) {
+    _positionIndex = new VehiclePositionIndex(positionIndexCellSize);
+  }
+
   @PostConstruct
   public void start() {
     _executor = Executors.newScheduledThreadPool(1);
@@ -122,16 +180,44 @@ class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
   public List<VehicleLocationCacheElements> getRecordsForBlockInstance(
       BlockInstance blockInstance) {
 
-    Set<AgencyAndId> vehicleIds = _vehicleIdsByBlockInstance.get(blockInstance);
+    VehicleLocationCacheEntry[] entries = _entriesByBlockInstance.get(blockInstance);
 
-    List<VehicleLocationCacheElements> records = new ArrayList<VehicleLocationCacheElements>();
-    if (vehicleIds != null) {
-      for (AgencyAndId vehicleId : vehicleIds) {
-        VehicleLocationCacheEntry record = _entriesByVehicleId.get(vehicleId);
+    if (entries == null)
+      return Collections.emptyList();
 
-        if (record != null && record.getBlockInstance().equals(blockInstance))
-          records.add(record.getElements());
-      }
+    List<VehicleLocationCacheElements> records = new ArrayList<VehicleLocationCacheElements>(
+        entries.length);
+    for (VehicleLocationCacheEntry entry : entries) {
+      if (!entry.isClosed())
+        records.add(entry.getElements());
+    }
+
+    return records;
+  }
+
+  @Override
+  public List<VehicleLocationCacheElements> getRecordsForBounds(
+      CoordinateBounds bounds) {
+    return getRecordsForBounds(bounds, 0, 0, 0);
+  }
+
+  @Override
+  public List<VehicleLocationCacheElements> getRecordsForBounds(
+      CoordinateBounds bounds, long targetTime, double maxSpeed,
+      double maxDistance) {
+
+    List<VehicleLocationCacheEntry> entries = _positionIndex.getEntriesInBounds(
+        bounds, targetTime, maxSpeed, maxDistance);
+
+    if (entries.isEmpty())
+      return Collections.emptyList();
+
+    List<VehicleLocationCacheElements> records = new ArrayList<VehicleLocationCacheElements>(
+        entries.size());
+    Set<VehicleLocationCacheEntry> seen = new HashSet<VehicleLocationCacheEntry>();
+    for (VehicleLocationCacheEntry entry : entries) {
+      if (!entry.isClosed() && seen.add(entry))
+        records.add(entry.getElements());
     }
 
     return records;
@@ -144,39 +230,38 @@ class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
       ScheduleDeviationSamples samples) {
 
     AgencyAndId vehicleId = record.getVehicleId();
+    VehicleLocationCacheEntry createdEntry = null;
 
     while (true) {
 
-      VehicleLocationCacheEntry newCacheEntry = new VehicleLocationCacheEntry(
-          blockInstance);
-
-      VehicleLocationCacheEntry cacheEntry = _entriesByVehicleId.putIfAbsent(
-          vehicleId, newCacheEntry);
+      VehicleLocationCacheEntry cacheEntry = _entriesByVehicleId.get(vehicleId);
 
       if (cacheEntry == null) {
 
-        cacheEntry = newCacheEntry;
+        VehicleLocationCacheEntry newCacheEntry = new VehicleLocationCacheEntry(
+            vehicleId, blockInstance, _recordsPerVehicle);
+
+        cacheEntry = _entriesByVehicleId.putIfAbsent(vehicleId, newCacheEntry);
 
-        /**
-         * Since we're adding a new entry, we indicate the connection between
-         * this block instance and vehicleId
-         */
-        ConcurrentCollectionsLibrary.addToMapValueSet(
-            _vehicleIdsByBlockInstance, blockInstance, vehicleId);
+        if (cacheEntry == null) {
+
+          cacheEntry = newCacheEntry;
+          createdEntry = newCacheEntry;
+
+          /**
+           * Since we're adding a new entry, we indicate the connection between
+           * this block instance and the entry
+           */
+          addEntryForBlockInstance(blockInstance, cacheEntry);
+        }
       }
 
       /**
-       * If the block instance of a vehicle has changed mid-stream, we close off
-       * the cache entry and remove the block=>vid mapping
+       * If the block instance of a vehicle has changed mid-stream, or the entry
+       * was closed out from under us, we remove the entry and try again
        */
       if (cacheEntry.isClosedBecauseBlockInstanceChanged(blockInstance)) {
-
-        _entriesByVehicleId.remove(vehicleId);
-
-        ConcurrentCollectionsLibrary.removeFromMapValueSet(
-            _vehicleIdsByBlockInstance, cacheEntry.getBlockInstance(),
-            vehicleId);
-
+        removeEntry(cacheEntry);
         continue;
       }
 
@@ -188,15 +273,19 @@ class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
       if (!cacheEntry.addElement(record, scheduledBlockLocation, samples))
         continue;
 
-      BlockInstance existingBlockInstance = cacheEntry.getBlockInstance();
-      if (!blockInstance.equals(existingBlockInstance))
-        ConcurrentCollectionsLibrary.removeFromMapValueSet(
-            _vehicleIdsByBlockInstance, existingBlockInstance, vehicleId);
+      VehicleLocationCacheElements elements = cacheEntry.getElements();
 
-      // Ensure the block => vehicle mapping is set
+      /**
+       * A new entry is filed for eviction by the update time of its first
+       * element, the same time that clearStaleRecords later prunes by
+       */
+      if (cacheEntry == createdEntry && !elements.isEmpty())
+        addEntryToEvictionBucket(cacheEntry,
+            elements.getElements().get(0).getMeasuredLastUpdateTime());
 
-      return cacheEntry.getElements();
+      updatePosition(cacheEntry, record, scheduledBlockLocation);
 
+      return elements;
     }
   }
 
@@ -206,30 +295,47 @@ class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
     VehicleLocationCacheEntry record = _entriesByVehicleId.remove(vehicleId);
 
     if (record != null) {
-      ConcurrentCollectionsLibrary.removeFromMapValueSet(
-          _vehicleIdsByBlockInstance, record.getBlockInstance(), vehicleId);
+      record.close();
+      removeEntryForBlockInstance(record.getBlockInstance(), record);
+      _positionIndex.remove(record);
     }
   }
 
   public void clearStaleRecords(long time) {
 
-    Iterator<Entry<AgencyAndId, VehicleLocationCacheEntry>> it = _entriesByVehicleId.entrySet().iterator();
+    long bucket = getEvictionBucket(time);
+
+    ConcurrentNavigableMap<Long, Queue<VehicleLocationCacheEntry>> expired = _evictionBuckets.headMap(
+        bucket, true);
+
+    /**
+     * We copy the keys before draining, since entries that are still live get
+     * re-filed, possibly into the last of the buckets we are visiting
+     */
+    for (Long key : new ArrayList<Long>(expired.keySet())) {
+
+      Queue<VehicleLocationCacheEntry> entries = _evictionBuckets.remove(key);
+      if (entries == null)
+        continue;
+
+      for (VehicleLocationCacheEntry cacheEntry : entries) {
+
+        if (cacheEntry.closeIfStale(time)) {
 
-    while (it.hasNext()) {
+          if (_log.isDebugEnabled())
+            _log.debug("pruning block location record cache for vehicle="
+                + cacheEntry.getVehicleId() + " block="
+                + cacheEntry.getBlockInstance());
 
-      Entry<AgencyAndId, VehicleLocationCacheEntry> entry = it.next();
-      AgencyAndId vehicleId = entry.getKey();
-      VehicleLocationCacheEntry cacheEntry = entry.getValue();
+          removeEntry(cacheEntry);
 
-      if (cacheEntry.closeIfStale(time)) {
+        } else {
 
-        if (_log.isDebugEnabled())
-          _log.debug("pruning block location record cache for vehicle="
-              + vehicleId + " block=" + cacheEntry.getBlockInstance());
-        it.remove();
-        ConcurrentCollectionsLibrary.removeFromMapValueSet(
-            _vehicleIdsByBlockInstance, cacheEntry.getBlockInstance(),
-            vehicleId);
+          VehicleLocationCacheElements elements = cacheEntry.getElements();
+          VehicleLocationCacheElement oldest = elements.getElements().get(0);
+          addEntryToEvictionBucket(cacheEntry,
+              oldest.getMeasuredLastUpdateTime());
+        }
       }
     }
   }
@@ -238,6 +344,127 @@ class VehicleLocationRecordCacheImpl implements VehicleLocationRecordCache {
    * Private Methods
    ****/
 
+  private void removeEntry(VehicleLocationCacheEntry cacheEntry) {
+    _entriesByVehicleId.remove(cacheEntry.getVehicleId(), cacheEntry);
+    removeEntryForBlockInstance(cacheEntry.getBlockInstance(), cacheEntry);
+    _positionIndex.remove(cacheEntry);
+  }
+
+  /**
+   * We index the position along the block at the time of the record when we
+   * have it, since that's what block locations are interpolated from, and
+   * fall back to the reported position otherwise
+   */
+  private void updatePosition(VehicleLocationCacheEntry cacheEntry,
+      VehicleLocationRecord record,
+      ScheduledBlockLocation scheduledBlockLocation) {
+
+    CoordinatePoint location = null;
+    if (scheduledBlockLocation != null)
+      location = scheduledBlockLocation.getLocation();
+    if (location == null && record.isCurrentLocationSet())
+      location = new CoordinatePoint(record.getCurrentLocationLat(),
+          record.getCurrentLocationLon());
+    if (location == null)
+      return;
+
+    _positionIndex.put(cacheEntry, location, record.getTimeOfRecord());
+
+    /**
+     * If the entry was evicted while we were indexing it, we take it back out
+     */
+    if (cacheEntry.isClosed())
+      _positionIndex.remove(cacheEntry);
+  }
+
+  private void addEntryForBlockInstance(BlockInstance blockInstance,
+      VehicleLocationCacheEntry cacheEntry) {
+
+    while (true) {
+
+      VehicleLocationCacheEntry[] existing = _entriesByBlockInstance.get(blockInstance);
+
+      if (existing == null) {
+        VehicleLocationCacheEntry[] updated = {cacheEntry};
+        if (_entriesByBlockInstance.putIfAbsent(blockInstance, updated) == null)
+          return;
+      } else {
+        VehicleLocationCacheEntry[] updated = Arrays.copyOf(existing,
+            existing.length + 1);
+        updated[existing.length] = cacheEntry;
+        if (_entriesByBlockInstance.replace(blockInstance, existing, updated))
+          return;
+      }
+    }
+  }
+
+  private void removeEntryForBlockInstance(BlockInstance blockInstance,
+      VehicleLocationCacheEntry cacheEntry) {
+
+    while (true) {
+
+      VehicleLocationCacheEntry[] existing = _entriesByBlockInstance.get(blockInstance);
+
+      if (existing == null)
+        return;
+
+      int index = -1;
+      for (int i = 0; i < existing.length; i++) {
+        if (existing[i] == cacheEntry) {
+          index = i;
+          break;
+        }
+      }
+
+      if (index == -1)
+        return;
+
+      if (existing.length == 1) {
+        if (_entriesByBlockInstance.remove(blockInstance, existing))
+          return;
+      } else {
+        VehicleLocationCacheEntry[] updated = new VehicleLocationCacheEntry[existing.length - 1];
+        System.arraycopy(existing, 0, updated, 0, index);
+        System.arraycopy(existing, index + 1, updated, index, updated.length
+            - index);
+        if (_entriesByBlockInstance.replace(blockInstance, existing, updated))
+          return;
+      }
+    }
+  }
+
+  private void addEntryToEvictionBucket(VehicleLocationCacheEntry cacheEntry,
+      long time) {
+
+    Long bucket = getEvictionBucket(time);
+
+    while (true) {
+
+      Queue<VehicleLocationCacheEntry> entries = _evictionBuckets.get(bucket);
+
+      if (entries == null) {
+        Queue<VehicleLocationCacheEntry> newEntries = new ConcurrentLinkedQueue<VehicleLocationCacheEntry>();
+        entries = _evictionBuckets.putIfAbsent(bucket, newEntries);
+        if (entries == null)
+          entries = newEntries;
+      }
+
+      entries.add(cacheEntry);
+
+      /**
+       * If an eviction pass claimed the bucket while we were adding to it, we
+       * can't be sure our entry was seen, so we file it again. Visiting an
+       * entry twice is harmless.
+       */
+      if (_evictionBuckets.get(bucket) == entries)
+        return;
+    }
+  }
+
+  private long getEvictionBucket(long time) {
+    return time / (_evictionBucketSize * 1000L);
+  }
+
   private class CacheEvictionHandler implements Runnable {
 
     @Override
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.onebusaway.geospatial.model.CoordinateBounds;
+import org.onebusaway.geospatial.model.CoordinatePoint;
+import org.onebusaway.geospatial.services.SphericalGeometryLibrary;
+import org.onebusaway.transit_data_federation.services.realtime.VehicleLocationCacheEntry;
+
+/**
+ * A uniform lat-lon grid of the last known position of each vehicle in the
+ * {@link VehicleLocationRecordCacheImpl}, so that the vehicles within a
+ * bounding box can be found without looking at every vehicle.
+ * 
+ * Cells are created as vehicles move into them and are never removed, which
+ * keeps updates lock-free. The number of cells is bounded by the area the
+ * vehicles cover.
+ * 
+ * Each position is stored along with the time it was recorded, so that a
+ * search for where vehicles might be at some other time can widen the bounds
+ * for each vehicle by how far it could have travelled since.
+ */
+class VehiclePositionIndex {
+
+  private final double _cellSize;
+
+  private final ConcurrentMap<Long, ConcurrentMap<VehicleLocationCacheEntry, Position>> _cells = new ConcurrentHashMap<Long, ConcurrentMap<VehicleLocationCacheEntry, Position>>();
+
+  private final ConcurrentMap<VehicleLocationCacheEntry, Long> _cellsByEntry = new ConcurrentHashMap<VehicleLocationCacheEntry, Long>();
+
+  /**
+   * 
+   * @param cellSize the size of each grid cell, in degrees
+   */
+  public VehiclePositionIndex(double cellSize) {
+    _cellSize = cellSize;
+  }
+
+  public int size() {
+    return _cellsByEntry.size();
+  }
+
+  public void put(VehicleLocationCacheEntry entry, CoordinatePoint location,
+      long time) {
+
+    Long cell = getCell(location.getLat(), location.getLon());
+    Long prevCell = _cellsByEntry.put(entry, cell);
+
+    getOrCreateCell(cell).put(entry, new Position(location, time));
+
+    if (prevCell != null && !prevCell.equals(cell)) {
+      ConcurrentMap<VehicleLocationCacheEntry, Position> prev = _cells.get(prevCell);
+      if (prev != null)
+        prev.remove(entry);
+    }
+  }
+
+  public void remove(VehicleLocationCacheEntry entry) {
+    Long cell = _cellsByEntry.remove(entry);
+    if (cell == null)
+      return;
+    ConcurrentMap<VehicleLocationCacheEntry, Position> entries = _cells.get(cell);
+    if (entries != null)
+      entries.remove(entry);
+  }
+
+  /**
+   * 
+   * @param bounds
+   * @return the entries whose last known position is within the bounds
+   */
+  public List<VehicleLocationCacheEntry> getEntriesInBounds(
+      CoordinateBounds bounds) {
+    return getEntriesInBounds(bounds, 0, 0, 0);
+  }
+
+  /**
+   * 
+   * @param bounds
+   * @param targetTime the time we want to find vehicles at (Unix-time)
+   * @param maxSpeed the fastest a vehicle might travel, in meters per second
+   * @param maxDistance the furthest, in meters, a vehicle might have travelled
+   *          between its last known position and the target time
+   * @return the entries whose last known position is close enough to the
+   *         bounds that the vehicle could be within them at the target time
+   */
+  public List<VehicleLocationCacheEntry> getEntriesInBounds(
+      CoordinateBounds bounds, long targetTime, double maxSpeed,
+      double maxDistance) {
+
+    List<VehicleLocationCacheEntry> entries = new ArrayList<VehicleLocationCacheEntry>();
+
+    CoordinateBounds searchBounds = bounds;
+    if (maxDistance > 0)
+      searchBounds = SphericalGeometryLibrary.bounds(bounds, maxDistance);
+
+    long latFrom = getIndex(searchBounds.getMinLat());
+    long latTo = getIndex(searchBounds.getMaxLat());
+    long lonFrom = getIndex(searchBounds.getMinLon());
+    long lonTo = getIndex(searchBounds.getMaxLon());
+
+    long cellsInBounds = (latTo - latFrom + 1) * (lonTo - lonFrom + 1);
+
+    if (cellsInBounds <= _cells.size()) {
+      for (long latIndex = latFrom; latIndex <= latTo; latIndex++) {
+        for (long lonIndex = lonFrom; lonIndex <= lonTo; lonIndex++) {
+          ConcurrentMap<VehicleLocationCacheEntry, Position> cell = _cells.get(getCell(
+              latIndex, lonIndex));
+          if (cell != null)
+            addEntriesInBounds(cell, bounds, searchBounds, targetTime,
+                maxSpeed, maxDistance, entries);
+        }
+      }
+    } else {
+      /**
+       * The bounds cover more cells than there are, so we check every cell
+       */
+      for (ConcurrentMap<VehicleLocationCacheEntry, Position> cell : _cells.values())
+        addEntriesInBounds(cell, bounds, searchBounds, targetTime, maxSpeed,
+            maxDistance, entries);
+    }
+
+    return entries;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private ConcurrentMap<VehicleLocationCacheEntry, Position> getOrCreateCell(
+      Long cell) {
+    ConcurrentMap<VehicleLocationCacheEntry, Position> entries = _cells.get(cell);
+    if (entries == null) {
+      ConcurrentMap<VehicleLocationCacheEntry, Position> newEntries = new ConcurrentHashMap<VehicleLocationCacheEntry, Position>();
+      entries = _cells.putIfAbsent(cell, newEntries);
+      if (entries == null)
+        entries = newEntries;
+    }
+    return entries;
+  }
+
+  private void addEntriesInBounds(
+      ConcurrentMap<VehicleLocationCacheEntry, Position> cell,
+      CoordinateBounds bounds, CoordinateBounds searchBounds, long targetTime,
+      double maxSpeed, double maxDistance,
+      List<VehicleLocationCacheEntry> entries) {
+
+    for (Map.Entry<VehicleLocationCacheEntry, Position> entry : cell.entrySet()) {
+
+      Position position = entry.getValue();
+      CoordinatePoint location = position.location;
+
+      if (!searchBounds.contains(location))
+        continue;
+
+      if (!bounds.contains(location)) {
+        /**
+         * The vehicle was outside the bounds, so we check that it could have
+         * travelled into them in the time between its position and the target
+         */
+        double age = Math.abs(targetTime - position.time) / 1000.0;
+        double distance = Math.min(age * maxSpeed, maxDistance);
+        if (distance <= 0
+            || !SphericalGeometryLibrary.bounds(bounds, distance).contains(
+                location))
+          continue;
+      }
+
+      entries.add(entry.getKey());
+    }
+  }
+
+  private long getIndex(double value) {
+    return (long) Math.floor(value / _cellSize);
+  }
+
+  private Long getCell(double lat, double lon) {
+    return getCell(getIndex(lat), getIndex(lon));
+  }
+
+  private static Long getCell(long latIndex, long lonIndex) {
+    return (latIndex << 32) | (lonIndex & 0xffffffffL);
+  }
+
+  private static class Position {
+
+    private final CoordinatePoint location;
+
+    private final long time;
+
+    public Position(CoordinatePoint location, long time) {
+      this.location = location;
+      this.time = time;
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime.gtfs_realtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Fetches a single GTFS-realtime feed, doing as little work as possible when
+ * the feed hasn't changed since the last fetch.
+ * 
+ * For HTTP feeds, the ETag and Last-Modified headers of the previous response
+ * are sent back as If-None-Match and If-Modified-Since, so that a server that
+ * supports conditional requests can answer with a bodyless 304. For other
+ * URLs, such as local files, the last-modified time of the resource is
+ * compared directly. Finally, if a feed is downloaded and parsed but its
+ * {@link FeedHeader} timestamp has not advanced, it is treated as unchanged.
+ * 
+ * The validators of a newly fetched feed are only remembered once the caller
+ * has applied the feed and calls {@link #commit()}. If applying the feed
+ * fails, the next fetch downloads it again rather than getting a 304 for a
+ * version that was never applied.
+ */
+class GtfsRealtimeFeedFetcher {
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeFeedFetcher.class);
+
+  private final URL _url;
+
+  private final ExtensionRegistry _registry;
+
+  private int _connectTimeout = 10 * 1000;
+
+  private int _readTimeout = 30 * 1000;
+
+  private String _etag = null;
+
+  private long _lastModified = 0;
+
+  private long _lastHeaderTimestamp = 0;
+
+  private FeedMessage _lastFeed = null;
+
+  private FeedMessage _pendingFeed = null;
+
+  private String _pendingEtag = null;
+
+  private long _pendingLastModified = 0;
+
+  private long _pendingHeaderTimestamp = 0;
+
+  private long _fetchCount = 0;
+
+  private long _notModifiedCount = 0;
+
+  private long _unchangedTimestampCount = 0;
+
+  public GtfsRealtimeFeedFetcher(URL url, ExtensionRegistry registry) {
+    _url = url;
+    _registry = registry;
+  }
+
+  public URL getUrl() {
+    return _url;
+  }
+
+  /**
+   * 
+   * @param connectTimeout in milliseconds
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    _connectTimeout = connectTimeout;
+  }
+
+  /**
+   * 
+   * @param readTimeout in milliseconds
+   */
+  public void setReadTimeout(int readTimeout) {
+    _readTimeout = readTimeout;
+  }
+
+  /**
+   * @return the most recent feed returned by {@link #fetch()} and committed
+   *         with {@link #commit()}, or null if there is no such feed
+   */
+  public synchronized FeedMessage getLastFeed() {
+    return _lastFeed;
+  }
+
+  public synchronized long getFetchCount() {
+    return _fetchCount;
+  }
+
+  public synchronized long getNotModifiedCount() {
+    return _notModifiedCount;
+  }
+
+  public synchronized long getUnchangedTimestampCount() {
+    return _unchangedTimestampCount;
+  }
+
+  /**
+   * 
+   * @return the newly fetched feed, or null if the feed has not changed since
+   *         the last committed fetch
+   * @throws IOException
+   */
+  public synchronized FeedMessage fetch() throws IOException {
+
+    _fetchCount++;
+    _pendingFeed = null;
+
+    URLConnection connection = _url.openConnection();
+    connection.setConnectTimeout(_connectTimeout);
+    connection.setReadTimeout(_readTimeout);
+
+    if (connection instanceof HttpURLConnection) {
+
+      HttpURLConnection http = (HttpURLConnection) connection;
+      if (_etag != null)
+        http.setRequestProperty("If-None-Match", _etag);
+      if (_lastModified > 0)
+        http.setIfModifiedSince(_lastModified);
+
+      int responseCode = http.getResponseCode();
+
+      if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        _notModifiedCount++;
+        closeQuietly(http.getInputStream());
+        return null;
+      }
+
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        closeQuietly(http.getErrorStream());
+        throw new IOException("unexpected response code " + responseCode
+            + " fetching " + _url);
+      }
+
+    } else {
+
+      long lastModified = connection.getLastModified();
+      if (_lastFeed != null && lastModified > 0
+          && lastModified == _lastModified) {
+        _notModifiedCount++;
+        return null;
+      }
+    }
+
+    FeedMessage feed = null;
+    InputStream in = connection.getInputStream();
+    try {
+      feed = FeedMessage.parseFrom(in, _registry);
+    } finally {
+      closeQuietly(in);
+    }
+
+    String etag = connection.getHeaderField("ETag");
+    long lastModified = connection.getLastModified();
+    long headerTimestamp = _lastHeaderTimestamp;
+
+    FeedHeader header = feed.getHeader();
+    if (header.hasTimestamp()) {
+      long timestamp = header.getTimestamp();
+      if (_lastFeed != null && timestamp <= _lastHeaderTimestamp) {
+        /**
+         * We've already applied this version of the feed, so it's safe to
+         * remember its validators right away
+         */
+        _etag = etag;
+        _lastModified = lastModified;
+        _unchangedTimestampCount++;
+        return null;
+      }
+      headerTimestamp = timestamp;
+    }
+
+    _pendingFeed = feed;
+    _pendingEtag = etag;
+    _pendingLastModified = lastModified;
+    _pendingHeaderTimestamp = headerTimestamp;
+    return feed;
+  }
+
+  /**
+   * Marks the feed returned by the last call to {@link #fetch()} as applied,
+   * so that subsequent fetches are made relative to it. Does nothing if the
+   * last fetch didn't return a feed.
+   */
+  public synchronized void commit() {
+    if (_pendingFeed == null)
+      return;
+    _lastFeed = _pendingFeed;
+    _etag = _pendingEtag;
+    _lastModified = _pendingLastModified;
+    _lastHeaderTimestamp = _pendingHeaderTimestamp;
+    _pendingFeed = null;
+  }
+
+  private void closeQuietly(InputStream in) {
+    if (in == null)
+      return;
+    try {
+      in.close();
+    } catch (IOException ex) {
+      _log.error("error closing url stream " + _url);
+    }
+  }
+}
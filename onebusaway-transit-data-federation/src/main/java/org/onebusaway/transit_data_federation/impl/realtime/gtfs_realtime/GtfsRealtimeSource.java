@@ -16,17 +16,23 @@
 package org.onebusaway.transit_data_federation.impl.realtime.gtfs_realtime;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -88,6 +94,12 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
   private URL _alertsUrl;
 
   private int _refreshInterval = 30;
+
+  private int _processingThreads = Runtime.getRuntime().availableProcessors();
+
+  private int _connectTimeout = 30 * 1000;
+
+  private int _readTimeout = 60 * 1000;
   
   private Map _alertAgencyIdMap;
 
@@ -100,7 +112,7 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
    * poll the GTFS-realtime feeds. We keep track of the timestamp of last update
    * for each vehicle id.
    */
-  private Map<AgencyAndId, Date> _lastVehicleUpdate = new HashMap<AgencyAndId, Date>();
+  private ConcurrentMap<AgencyAndId, Date> _lastVehicleUpdate = new ConcurrentHashMap<AgencyAndId, Date>();
 
   /**
    * We keep track of alerts, only pushing them to the underlying
@@ -116,7 +128,22 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
   private GtfsRealtimeAlertLibrary _alertLibrary;
   
   private MonitoredResult _monitoredResult = new MonitoredResult();
-  
+
+  private GtfsRealtimeFeedFetcher _tripUpdatesFetcher;
+
+  private GtfsRealtimeFeedFetcher _vehiclePositionsFetcher;
+
+  private GtfsRealtimeFeedFetcher _alertsFetcher;
+
+  private ExecutorService _fetchExecutor;
+
+  private ExecutorService _processingExecutor;
+
+  private volatile long _skippedRefreshCount = 0;
+
+  private boolean _suppressUnchangedUpdates = true;
+
+  private GtfsRealtimeVehicleDiff _vehicleDiff = new GtfsRealtimeVehicleDiff();
 
   @Autowired
   public void setAgencyService(AgencyService agencyService) {
@@ -166,6 +193,80 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
     _refreshInterval = refreshInterval;
   }
   
+  /**
+   * The number of threads used to turn trip updates and vehicle positions into
+   * {@link VehicleLocationRecord} objects. Updates are partitioned by block, so
+   * records for a particular block are always processed in order. A value of 1
+   * processes all updates on the refresh thread.
+   * 
+   * @param processingThreads
+   */
+  public void setProcessingThreads(int processingThreads) {
+    _processingThreads = processingThreads;
+  }
+
+  /**
+   * 
+   * @param connectTimeout connection timeout for feed requests, in ms
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    _connectTimeout = connectTimeout;
+  }
+
+  /**
+   * 
+   * @param readTimeout read timeout for feed requests, in ms
+   */
+  public void setReadTimeout(int readTimeout) {
+    _readTimeout = readTimeout;
+  }
+
+  /**
+   * 
+   * @return the number of refreshes where neither the trip updates nor the
+   *         vehicle positions feed had changed, and processing was skipped
+   */
+  public long getSkippedRefreshCount() {
+    return _skippedRefreshCount;
+  }
+
+  /**
+   * When true (the default), a vehicle whose trip updates and vehicle position
+   * have not changed since the previous refresh is not passed along to the
+   * {@link VehicleLocationListener}.
+   * 
+   * @param suppressUnchangedUpdates
+   */
+  public void setSuppressUnchangedUpdates(boolean suppressUnchangedUpdates) {
+    _suppressUnchangedUpdates = suppressUnchangedUpdates;
+  }
+
+  /**
+   * An unchanged vehicle update is passed along anyway if it has been at least
+   * this long since it was last passed along.
+   * 
+   * @param maxSuppressionInterval in seconds
+   */
+  public void setMaxSuppressionInterval(int maxSuppressionInterval) {
+    _vehicleDiff.setMaxSuppressionInterval(maxSuppressionInterval * 1000L);
+  }
+
+  /**
+   * 
+   * @return the number of vehicle updates passed along because they changed
+   */
+  public long getForwardedUpdateCount() {
+    return _vehicleDiff.getForwardedCount();
+  }
+
+  /**
+   * 
+   * @return the number of vehicle updates dropped because they had not changed
+   */
+  public long getSuppressedUpdateCount() {
+    return _vehicleDiff.getSuppressedCount();
+  }
+
   public void setAlertAgencyIdMap(Map alertAgencyIdMap) {
 	_alertAgencyIdMap = alertAgencyIdMap;
   }
@@ -214,6 +315,17 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
     _alertLibrary = new GtfsRealtimeAlertLibrary();
     _alertLibrary.setEntitySource(_entitySource);
 
+    _tripUpdatesFetcher = createFetcher(_tripUpdatesUrl);
+    _vehiclePositionsFetcher = createFetcher(_vehiclePositionsUrl);
+    _alertsFetcher = createFetcher(_alertsUrl);
+    _fetchExecutor = Executors.newFixedThreadPool(3);
+
+    if (_processingThreads > 1) {
+      _processingExecutor = Executors.newFixedThreadPool(_processingThreads);
+      _tripsLibrary.setExecutor(_processingExecutor);
+      _tripsLibrary.setParallelism(_processingThreads);
+    }
+
     if (_refreshInterval > 0) {
       _refreshTask = _scheduledExecutorService.scheduleAtFixedRate(
           new RefreshTask(), 0, _refreshInterval, TimeUnit.SECONDS);
@@ -226,17 +338,55 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
       _refreshTask.cancel(true);
       _refreshTask = null;
     }
+    if (_fetchExecutor != null) {
+      _fetchExecutor.shutdownNow();
+      _fetchExecutor = null;
+    }
+    if (_processingExecutor != null) {
+      _processingExecutor.shutdownNow();
+      _processingExecutor = null;
+    }
   }
 
+  /**
+   * Fetches the trip updates, vehicle positions and alerts feeds in parallel
+   * and processes whatever has changed since the last refresh. If neither the
+   * trip updates nor the vehicle positions feed has changed, the previous
+   * {@link MonitoredResult} is kept and no vehicle location records are
+   * produced. A fetched feed is only committed once it has been processed, so
+   * a failed refresh is retried in full on the next one.
+   * 
+   * @throws IOException
+   */
   public void refresh() throws IOException {
-    FeedMessage tripUpdates = readOrReturnDefault(_tripUpdatesUrl);
-    FeedMessage vehiclePositions = readOrReturnDefault(_vehiclePositionsUrl);
-    FeedMessage alerts = readOrReturnDefault(_alertsUrl);
-    MonitoredResult result = new MonitoredResult();
-    result.setAgencyIds(_agencyIds);
-    handeUpdates(result, tripUpdates, vehiclePositions, alerts);
-    // update reference in a thread safe manner
-    _monitoredResult = result;
+
+    Future<FeedMessage> tripUpdatesFuture = submitFetch(_tripUpdatesFetcher);
+    Future<FeedMessage> vehiclePositionsFuture = submitFetch(_vehiclePositionsFetcher);
+    Future<FeedMessage> alertsFuture = submitFetch(_alertsFetcher);
+
+    FeedMessage tripUpdates = getFetchResult(tripUpdatesFuture);
+    FeedMessage vehiclePositions = getFetchResult(vehiclePositionsFuture);
+    FeedMessage alerts = getFetchResult(alertsFuture);
+
+    if (tripUpdates != null || vehiclePositions != null) {
+      tripUpdates = getFeedOrLast(tripUpdates, _tripUpdatesFetcher);
+      vehiclePositions = getFeedOrLast(vehiclePositions,
+          _vehiclePositionsFetcher);
+      MonitoredResult result = new MonitoredResult();
+      result.setAgencyIds(_agencyIds);
+      handeUpdates(result, tripUpdates, vehiclePositions);
+      // update reference in a thread safe manner
+      _monitoredResult = result;
+      commit(_tripUpdatesFetcher);
+      commit(_vehiclePositionsFetcher);
+    } else {
+      _skippedRefreshCount++;
+    }
+
+    if (alerts != null) {
+      handleAlerts(alerts);
+      commit(_alertsFetcher);
+    }
   }
 
   /****
@@ -247,40 +397,32 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
    * 
    * @param tripUpdates
    * @param vehiclePositions
-   * @param alerts
    */
   private synchronized void handeUpdates(MonitoredResult result, FeedMessage tripUpdates,
-      FeedMessage vehiclePositions, FeedMessage alerts) {
+      FeedMessage vehiclePositions) {
 
     List<CombinedTripUpdatesAndVehiclePosition> combinedUpdates = _tripsLibrary.groupTripUpdatesAndVehiclePositions(result,
         tripUpdates, vehiclePositions);
     result.setRecordsTotal(combinedUpdates.size());
     handleCombinedUpdates(result, combinedUpdates);
-    handleAlerts(alerts);
   }
 
   private void handleCombinedUpdates(MonitoredResult result,
       List<CombinedTripUpdatesAndVehiclePosition> updates) {
 
-    Set<AgencyAndId> seenVehicles = new HashSet<AgencyAndId>();
+    Set<AgencyAndId> seenVehicles = Collections.newSetFromMap(new ConcurrentHashMap<AgencyAndId, Boolean>());
 
-    for (CombinedTripUpdatesAndVehiclePosition update : updates) {
-      VehicleLocationRecord record = _tripsLibrary.createVehicleLocationRecordForUpdate(result, update);
-      if (record != null) {
-        if (record.getTripId() != null) {
-          result.addUnmatchedTripId(record.getTripId().toString());
-        }
-        AgencyAndId vehicleId = record.getVehicleId();
-        seenVehicles.add(vehicleId);
-        Date timestamp = new Date(record.getTimeOfRecord());
-        Date prev = _lastVehicleUpdate.get(vehicleId);
-        if (prev == null || prev.before(timestamp)) {
-          _vehicleLocationListener.handleVehicleLocationRecord(record);
-          _lastVehicleUpdate.put(vehicleId, timestamp);
-        }
-      }
+    if (_suppressUnchangedUpdates) {
+      List<CombinedTripUpdatesAndVehiclePosition> suppressed = new ArrayList<CombinedTripUpdatesAndVehiclePosition>();
+      updates = _vehicleDiff.filterChangedUpdates(updates, suppressed,
+          System.currentTimeMillis());
+      for (CombinedTripUpdatesAndVehiclePosition update : suppressed)
+        handleSuppressedUpdate(result, update, seenVehicles);
     }
 
+    _tripsLibrary.createVehicleLocationRecordsForUpdates(result, updates,
+        new RecordHandler(result, seenVehicles));
+
     Calendar c = Calendar.getInstance();
     c.add(Calendar.MINUTE, -15);
     Date staleRecordThreshold = c.getTime();
@@ -297,7 +439,35 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
     }
   }
 
+  /**
+   * Reports a suppressed vehicle update in the {@link MonitoredResult} just as
+   * if a record had been created for it.
+   */
+  private void handleSuppressedUpdate(MonitoredResult result,
+      CombinedTripUpdatesAndVehiclePosition update,
+      Set<AgencyAndId> seenVehicles) {
+    AgencyAndId vehicleId = GtfsRealtimeVehicleDiff.getVehicleId(update);
+    seenVehicles.add(vehicleId);
+    AgencyAndId tripId = _vehicleDiff.getLastTripId(vehicleId);
+    if (tripId != null) {
+      result.addMatchedTripId(tripId.toString());
+      result.addUnmatchedTripId(tripId.toString());
+    } else {
+      result.addMatchedTripId(update.block.getBlockEntry().getId().toString());
+    }
+  }
+
   private void handleAlerts(FeedMessage alerts) {
+    synchronized (_alertsById) {
+      handleAlertsLocked(alerts);
+    }
+  }
+
+  private void handleAlertsLocked(FeedMessage alerts) {
+
+    List<ServiceAlert.Builder> serviceAlertsToUpdate = new ArrayList<ServiceAlert.Builder>();
+    List<AgencyAndId> serviceAlertIdsToRemove = new ArrayList<AgencyAndId>();
+
     for (FeedEntity entity : alerts.getEntityList()) {
       Alert alert = entity.getAlert();
       if (alert == null) {
@@ -309,7 +479,7 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
 
       if (entity.getIsDeleted()) {
         _alertsById.remove(id);
-        _serviceAlertService.removeServiceAlert(id);
+        serviceAlertIdsToRemove.add(id);
       } else {
         ServiceAlert.Builder serviceAlertBuilder = _alertLibrary.getAlertAsServiceAlert(
             id, alert, _alertAgencyIdMap);
@@ -317,52 +487,106 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
         ServiceAlert existingAlert = _alertsById.get(id);
         if (existingAlert == null || !existingAlert.equals(serviceAlert)) {
           _alertsById.put(id, serviceAlert);
-          _serviceAlertService.createOrUpdateServiceAlert(serviceAlertBuilder,
-              _agencyIds.get(0));
+          serviceAlertsToUpdate.add(serviceAlertBuilder);
         }
       }
     }
+
+    if (!serviceAlertsToUpdate.isEmpty() || !serviceAlertIdsToRemove.isEmpty()) {
+      _serviceAlertService.updateServiceAlerts(serviceAlertsToUpdate,
+          serviceAlertIdsToRemove, _agencyIds.get(0));
+    }
   }
 
   private AgencyAndId createId(String id) {
     return new AgencyAndId(_agencyIds.get(0), id);
   }
 
+  private GtfsRealtimeFeedFetcher createFetcher(URL url) {
+    if (url == null)
+      return null;
+    GtfsRealtimeFeedFetcher fetcher = new GtfsRealtimeFeedFetcher(url,
+        _registry);
+    fetcher.setConnectTimeout(_connectTimeout);
+    fetcher.setReadTimeout(_readTimeout);
+    return fetcher;
+  }
+
+  private void commit(GtfsRealtimeFeedFetcher fetcher) {
+    if (fetcher != null)
+      fetcher.commit();
+  }
+
+  private Future<FeedMessage> submitFetch(GtfsRealtimeFeedFetcher fetcher) {
+    if (fetcher == null)
+      return null;
+    return _fetchExecutor.submit(new FetchTask(fetcher));
+  }
+
   /**
    * 
-   * @param url
-   * @return a {@link FeedMessage} constructed from the protocol buffer conent
-   *         of the specified url, or a default empty {@link FeedMessage} if the
-   *         url is null
+   * @param future
+   * @return the fetched {@link FeedMessage}, or null if there was no feed to
+   *         fetch or the feed has not changed
    * @throws IOException
    */
-  private FeedMessage readOrReturnDefault(URL url) throws IOException {
-    if (url == null) {
-      FeedMessage.Builder builder = FeedMessage.newBuilder();
-      FeedHeader.Builder header = FeedHeader.newBuilder();
-      header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
-      builder.setHeader(header);
-      return builder.build();
+  private FeedMessage getFetchResult(Future<FeedMessage> future)
+      throws IOException {
+    if (future == null)
+      return null;
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while fetching GTFS-realtime feed",
+          ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      throw new IOException("error fetching GTFS-realtime feed", cause);
     }
-    return readFeedFromUrl(url);
   }
 
   /**
    * 
-   * @param url the {@link URL} to read from
-   * @return a {@link FeedMessage} constructed from the protocol buffer content
-   *         of the specified url
-   * @throws IOException
+   * @param feed
+   * @param fetcher
+   * @return the specified feed if not null, otherwise the last feed fetched by
+   *         the fetcher, or a default empty {@link FeedMessage} if there is no
+   *         such feed
    */
-  private FeedMessage readFeedFromUrl(URL url) throws IOException {
-    InputStream in = url.openStream();
-    try {
-      return FeedMessage.parseFrom(in, _registry);
-    } finally {
-      try {
-        in.close();
-      } catch (IOException ex) {
-        _log.error("error closing url stream " + url);
+  private FeedMessage getFeedOrLast(FeedMessage feed,
+      GtfsRealtimeFeedFetcher fetcher) {
+    if (feed != null)
+      return feed;
+    if (fetcher != null) {
+      FeedMessage last = fetcher.getLastFeed();
+      if (last != null)
+        return last;
+    }
+    FeedMessage.Builder builder = FeedMessage.newBuilder();
+    FeedHeader.Builder header = FeedHeader.newBuilder();
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+    builder.setHeader(header);
+    return builder.build();
+  }
+
+  /**
+   * Returns true if the record's timestamp is newer than the last timestamp we
+   * have seen for the vehicle, atomically recording the new timestamp as the
+   * latest if so.
+   */
+  private boolean updateLastVehicleUpdate(AgencyAndId vehicleId, Date timestamp) {
+    while (true) {
+      Date prev = _lastVehicleUpdate.get(vehicleId);
+      if (prev == null) {
+        if (_lastVehicleUpdate.putIfAbsent(vehicleId, timestamp) == null)
+          return true;
+      } else if (!prev.before(timestamp)) {
+        return false;
+      } else if (_lastVehicleUpdate.replace(vehicleId, prev, timestamp)) {
+        return true;
       }
     }
   }
@@ -371,6 +595,61 @@ public class GtfsRealtimeSource implements MonitoredDataSource {
    *
    ****/
 
+  private static class FetchTask implements Callable<FeedMessage> {
+
+    private final GtfsRealtimeFeedFetcher _fetcher;
+
+    public FetchTask(GtfsRealtimeFeedFetcher fetcher) {
+      _fetcher = fetcher;
+    }
+
+    @Override
+    public FeedMessage call() throws IOException {
+      return _fetcher.fetch();
+    }
+  }
+
+  /**
+   * Receives records from {@link GtfsRealtimeTripLibrary}, potentially from
+   * multiple threads at once, and passes along those that are newer than the
+   * last record we've seen for the vehicle.
+   */
+  private class RecordHandler implements VehicleLocationListener {
+
+    private final MonitoredResult _result;
+
+    private final Set<AgencyAndId> _seenVehicles;
+
+    public RecordHandler(MonitoredResult result, Set<AgencyAndId> seenVehicles) {
+      _result = result;
+      _seenVehicles = seenVehicles;
+    }
+
+    @Override
+    public void handleVehicleLocationRecord(VehicleLocationRecord record) {
+      if (record.getTripId() != null) {
+        _result.addUnmatchedTripId(record.getTripId().toString());
+      }
+      AgencyAndId vehicleId = record.getVehicleId();
+      _seenVehicles.add(vehicleId);
+      _vehicleDiff.handleRecordCreated(vehicleId, record.getTripId());
+      Date timestamp = new Date(record.getTimeOfRecord());
+      if (updateLastVehicleUpdate(vehicleId, timestamp))
+        _vehicleLocationListener.handleVehicleLocationRecord(record);
+    }
+
+    @Override
+    public void handleVehicleLocationRecords(List<VehicleLocationRecord> records) {
+      for (VehicleLocationRecord record : records)
+        handleVehicleLocationRecord(record);
+    }
+
+    @Override
+    public void resetVehicleLocation(AgencyAndId vehicleId) {
+      _vehicleLocationListener.resetVehicleLocation(vehicleId);
+    }
+  }
+
   private class RefreshTask implements Runnable {
 
     @Override
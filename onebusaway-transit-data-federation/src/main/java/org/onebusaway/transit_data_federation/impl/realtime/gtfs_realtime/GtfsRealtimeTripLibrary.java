@@ -20,11 +20,16 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.onebusaway.collections.FactoryMap;
 import org.onebusaway.collections.MappingLibrary;
 import org.onebusaway.collections.Min;
 import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.VehicleLocationListener;
 import org.onebusaway.realtime.api.VehicleLocationRecord;
 import org.onebusaway.transit_data_federation.services.blocks.BlockCalendarService;
 import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
@@ -57,6 +62,10 @@ class GtfsRealtimeTripLibrary {
 
   private BlockCalendarService _blockCalendarService;
 
+  private ExecutorService _executor;
+
+  private int _parallelism = 1;
+
   /**
    * This is primarily here to assist with unit testing.
    */
@@ -70,6 +79,25 @@ class GtfsRealtimeTripLibrary {
     _blockCalendarService = blockCalendarService;
   }
 
+  /**
+   * When set, along with a parallelism greater than one,
+   * {@link #createVehicleLocationRecordsForUpdates(MonitoredResult, List, VehicleLocationListener)}
+   * processes updates on the executor.
+   * 
+   * @param executor
+   */
+  public void setExecutor(ExecutorService executor) {
+    _executor = executor;
+  }
+
+  /**
+   * 
+   * @param parallelism the number of partitions updates are split into
+   */
+  public void setParallelism(int parallelism) {
+    _parallelism = parallelism;
+  }
+
   public long getCurrentTime() {
     return _currentTime;
   }
@@ -181,10 +209,91 @@ class GtfsRealtimeTripLibrary {
     return record;
   }
 
+  /**
+   * Creates a {@link VehicleLocationRecord} for each update and hands it to the
+   * specified listener. If an executor has been configured, updates are
+   * partitioned by block and the records for each partition are created in
+   * parallel. The listener is only ever called from the calling thread, with
+   * all the records for a particular block in order.
+   * 
+   * If any partition fails, the records from the other partitions are still
+   * handed to the listener, and then the failure is rethrown so that the
+   * caller knows the updates were only partially processed.
+   * 
+   * @param result
+   * @param updates
+   * @param listener
+   */
+  public void createVehicleLocationRecordsForUpdates(MonitoredResult result,
+      List<CombinedTripUpdatesAndVehiclePosition> updates,
+      VehicleLocationListener listener) {
+
+    if (_executor == null || _parallelism < 2 || updates.size() < 2) {
+      for (VehicleLocationRecord record : createVehicleLocationRecordsForPartition(
+          result, updates))
+        listener.handleVehicleLocationRecord(record);
+      return;
+    }
+
+    List<List<CombinedTripUpdatesAndVehiclePosition>> partitions = new ArrayList<List<CombinedTripUpdatesAndVehiclePosition>>(
+        _parallelism);
+    for (int i = 0; i < _parallelism; i++)
+      partitions.add(new ArrayList<CombinedTripUpdatesAndVehiclePosition>());
+
+    for (CombinedTripUpdatesAndVehiclePosition update : updates) {
+      AgencyAndId blockId = update.block.getBlockEntry().getId();
+      int index = (blockId.hashCode() & Integer.MAX_VALUE) % _parallelism;
+      partitions.get(index).add(update);
+    }
+
+    List<Future<List<VehicleLocationRecord>>> futures = new ArrayList<Future<List<VehicleLocationRecord>>>(
+        _parallelism);
+    for (List<CombinedTripUpdatesAndVehiclePosition> partition : partitions) {
+      if (!partition.isEmpty())
+        futures.add(_executor.submit(new PartitionTask(result, partition)));
+    }
+
+    RuntimeException failure = null;
+
+    for (Future<List<VehicleLocationRecord>> future : futures) {
+      try {
+        for (VehicleLocationRecord record : future.get())
+          listener.handleVehicleLocationRecord(record);
+      } catch (ExecutionException ex) {
+        if (failure == null)
+          failure = new IllegalStateException(
+              "error processing GTFS-realtime updates", ex.getCause());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        for (Future<List<VehicleLocationRecord>> f : futures)
+          f.cancel(true);
+        throw new IllegalStateException(
+            "interrupted processing GTFS-realtime updates", ex);
+      }
+    }
+
+    if (failure != null)
+      throw failure;
+  }
+
   /****
    * 
    ****/
 
+  private List<VehicleLocationRecord> createVehicleLocationRecordsForPartition(
+      MonitoredResult result,
+      List<CombinedTripUpdatesAndVehiclePosition> updates) {
+    List<VehicleLocationRecord> records = new ArrayList<VehicleLocationRecord>(
+        updates.size());
+    for (CombinedTripUpdatesAndVehiclePosition update : updates) {
+      VehicleLocationRecord record = createVehicleLocationRecordForUpdate(
+          result, update);
+      if (record != null)
+        records.add(record);
+    }
+    return records;
+  }
+
   private boolean determineIfTripUpdatesIncludeVehicleIds(
       Collection<BlockDescriptor> blockDescriptors) {
 
@@ -553,6 +662,25 @@ class GtfsRealtimeTripLibrary {
     return System.currentTimeMillis();
   }
 
+  private class PartitionTask implements
+      Callable<List<VehicleLocationRecord>> {
+
+    private final MonitoredResult _result;
+
+    private final List<CombinedTripUpdatesAndVehiclePosition> _updates;
+
+    public PartitionTask(MonitoredResult result,
+        List<CombinedTripUpdatesAndVehiclePosition> updates) {
+      _result = result;
+      _updates = updates;
+    }
+
+    @Override
+    public List<VehicleLocationRecord> call() {
+      return createVehicleLocationRecordsForPartition(_result, _updates);
+    }
+  }
+
   private static class BestScheduleDeviation {
     public int delta = Integer.MAX_VALUE;
     public int scheduleDeviation = 0;
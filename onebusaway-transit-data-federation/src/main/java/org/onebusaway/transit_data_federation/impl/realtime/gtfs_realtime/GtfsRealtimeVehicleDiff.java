@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime.gtfs_realtime;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway.OneBusAwayTripUpdate;
+
+/**
+ * Remembers a compact 64-bit fingerprint of the trip updates and vehicle
+ * position last seen for each vehicle, so that vehicles whose feed data has not
+ * changed since the previous refresh can be dropped before we build a
+ * {@link org.onebusaway.realtime.api.VehicleLocationRecord} and push it
+ * through the rest of the real-time pipeline.
+ *
+ * The fingerprint covers the trip descriptors, timestamps, delays, stop time
+ * updates and position of the update. The fingerprint of a forwarded update
+ * only replaces the previous one once a record has actually been created for
+ * it, so that an update that failed to produce a record is forwarded again on
+ * the next refresh rather than suppressed. An unchanged update is still forwarded
+ * once the max suppression interval has elapsed since it was last forwarded,
+ * so that downstream caches keyed on the time of the last record don't expire
+ * a vehicle that is simply standing still.
+ *
+ * The record built from an update also depends on the current time: without a
+ * trip update timestamp, the time of the record is the current time, and
+ * without a trip level delay, the schedule deviation is taken from the stop
+ * time update closest to the current time. Such updates are never suppressed.
+ * The block instance an update is matched to depends on the current time too,
+ * which the max suppression interval bounds.
+ */
+class GtfsRealtimeVehicleDiff {
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final long ABSENT = 0x9e3779b97f4a7c15L;
+
+  private final ConcurrentMap<AgencyAndId, Fingerprint> _fingerprints = new ConcurrentHashMap<AgencyAndId, Fingerprint>();
+
+  /**
+   * Fingerprints of the updates forwarded by the last call to
+   * {@link #filterChangedUpdates(List, List, long)} that no record has been
+   * created for yet
+   */
+  private final ConcurrentMap<AgencyAndId, Fingerprint> _pendingFingerprints = new ConcurrentHashMap<AgencyAndId, Fingerprint>();
+
+  private final AtomicLong _forwardedCount = new AtomicLong();
+
+  private final AtomicLong _suppressedCount = new AtomicLong();
+
+  private long _maxSuppressionInterval = 60 * 1000;
+
+  /**
+   *
+   * @param maxSuppressionInterval in ms
+   */
+  public void setMaxSuppressionInterval(long maxSuppressionInterval) {
+    _maxSuppressionInterval = maxSuppressionInterval;
+  }
+
+  public long getForwardedCount() {
+    return _forwardedCount.get();
+  }
+
+  public long getSuppressedCount() {
+    return _suppressedCount.get();
+  }
+
+  public int size() {
+    return _fingerprints.size();
+  }
+
+  /**
+   * Returns the updates that have changed since the last update a record was
+   * created for. Vehicles that do not appear in the specified updates are
+   * forgotten, so that a vehicle that drops out of the feed and comes back is
+   * always forwarded. Call {@link #handleRecordCreated(AgencyAndId, AgencyAndId)}
+   * for each record created from the changed updates.
+   *
+   * @param updates
+   * @param suppressed receives the updates that were suppressed
+   * @param time the current time
+   * @return the changed updates
+   */
+  public List<CombinedTripUpdatesAndVehiclePosition> filterChangedUpdates(
+      List<CombinedTripUpdatesAndVehiclePosition> updates,
+      List<CombinedTripUpdatesAndVehiclePosition> suppressed, long time) {
+
+    List<CombinedTripUpdatesAndVehiclePosition> changed = new ArrayList<CombinedTripUpdatesAndVehiclePosition>(
+        updates.size());
+    Set<AgencyAndId> seen = new HashSet<AgencyAndId>();
+
+    _pendingFingerprints.clear();
+
+    for (CombinedTripUpdatesAndVehiclePosition update : updates) {
+
+      AgencyAndId vehicleId = getVehicleId(update);
+      seen.add(vehicleId);
+      long fingerprint = computeFingerprint(update);
+
+      Fingerprint prev = _fingerprints.get(vehicleId);
+      if (prev != null && prev.value == fingerprint
+          && time - prev.forwardedAt < _maxSuppressionInterval
+          && isIndependentOfCurrentTime(update)) {
+        suppressed.add(update);
+        _suppressedCount.incrementAndGet();
+        continue;
+      }
+
+      _pendingFingerprints.put(vehicleId, new Fingerprint(fingerprint, time));
+      _forwardedCount.incrementAndGet();
+      changed.add(update);
+    }
+
+    Iterator<AgencyAndId> it = _fingerprints.keySet().iterator();
+    while (it.hasNext()) {
+      if (!seen.contains(it.next()))
+        it.remove();
+    }
+
+    return changed;
+  }
+
+  /**
+   * Remembers the fingerprint of the forwarded update a record was created
+   * for, so that the vehicle's updates are suppressed until they change, along
+   * with the trip id of the record, so that the trip can still be reported as
+   * matched while they are.
+   *
+   * @param vehicleId
+   * @param tripId may be null
+   */
+  public void handleRecordCreated(AgencyAndId vehicleId, AgencyAndId tripId) {
+    Fingerprint fingerprint = _pendingFingerprints.remove(vehicleId);
+    if (fingerprint == null)
+      fingerprint = _fingerprints.get(vehicleId);
+    if (fingerprint == null)
+      return;
+    fingerprint.tripId = tripId;
+    _fingerprints.put(vehicleId, fingerprint);
+  }
+
+  public AgencyAndId getLastTripId(AgencyAndId vehicleId) {
+    Fingerprint fingerprint = _fingerprints.get(vehicleId);
+    return fingerprint == null ? null : fingerprint.tripId;
+  }
+
+  public void clear() {
+    _fingerprints.clear();
+    _pendingFingerprints.clear();
+  }
+
+  /**
+   * Mirrors the vehicle id assigned by
+   * {@link GtfsRealtimeTripLibrary#createVehicleLocationRecordForUpdate(MonitoredResult, CombinedTripUpdatesAndVehiclePosition)}
+   */
+  static AgencyAndId getVehicleId(CombinedTripUpdatesAndVehiclePosition update) {
+    BlockDescriptor block = update.block;
+    AgencyAndId blockId = block.getBlockEntry().getId();
+    if (block.getVehicleId() != null)
+      return new AgencyAndId(blockId.getAgencyId(), block.getVehicleId());
+    return blockId;
+  }
+
+  /**
+   * 
+   * @param update
+   * @return true if the update carries both a timestamp and a trip level
+   *         delay, such that the record built from it doesn't depend on the
+   *         current time
+   */
+  static boolean isIndependentOfCurrentTime(
+      CombinedTripUpdatesAndVehiclePosition update) {
+    boolean hasTimestamp = false;
+    boolean hasDelay = false;
+    for (TripUpdate tripUpdate : update.tripUpdates) {
+      if (tripUpdate.hasTimestamp())
+        hasTimestamp = true;
+      if (tripUpdate.hasDelay())
+        hasDelay = true;
+      if (tripUpdate.hasExtension(GtfsRealtimeOneBusAway.obaTripUpdate)) {
+        OneBusAwayTripUpdate obaTripUpdate = tripUpdate.getExtension(GtfsRealtimeOneBusAway.obaTripUpdate);
+        if (obaTripUpdate.hasTimestamp())
+          hasTimestamp = true;
+        if (obaTripUpdate.hasDelay())
+          hasDelay = true;
+      }
+    }
+    return hasTimestamp && hasDelay;
+  }
+
+  static long computeFingerprint(CombinedTripUpdatesAndVehiclePosition update) {
+    long h = FNV_OFFSET;
+    h = mix(h, update.block.getBlockEntry().getId().hashCode());
+    h = mix(h, update.block.getStartDate());
+    h = mix(h, update.block.getStartTime());
+    for (TripUpdate tripUpdate : update.tripUpdates)
+      h = mixTripUpdate(h, tripUpdate);
+    if (update.vehiclePosition != null)
+      h = mixVehiclePosition(h, update.vehiclePosition);
+    else
+      h = mix(h, ABSENT);
+    return h;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static long mixTripUpdate(long h, TripUpdate tripUpdate) {
+    h = mixTrip(h, tripUpdate.getTrip());
+    h = tripUpdate.hasTimestamp() ? mix(h, tripUpdate.getTimestamp()) : mix(
+        h, ABSENT);
+    h = tripUpdate.hasDelay() ? mix(h, tripUpdate.getDelay()) : mix(h, ABSENT);
+    if (tripUpdate.hasExtension(GtfsRealtimeOneBusAway.obaTripUpdate)) {
+      OneBusAwayTripUpdate obaTripUpdate = tripUpdate.getExtension(GtfsRealtimeOneBusAway.obaTripUpdate);
+      h = obaTripUpdate.hasDelay() ? mix(h, obaTripUpdate.getDelay()) : mix(
+          h, ABSENT);
+      h = obaTripUpdate.hasTimestamp() ? mix(h, obaTripUpdate.getTimestamp())
+          : mix(h, ABSENT);
+    }
+    h = mix(h, tripUpdate.getStopTimeUpdateCount());
+    for (StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+      h = stopTimeUpdate.hasStopSequence() ? mix(h,
+          stopTimeUpdate.getStopSequence()) : mix(h, ABSENT);
+      h = stopTimeUpdate.hasStopId() ? mix(h,
+          stopTimeUpdate.getStopId().hashCode()) : mix(h, ABSENT);
+      h = mix(h, stopTimeUpdate.getScheduleRelationship().getNumber());
+      h = stopTimeUpdate.hasArrival() ? mixStopTimeEvent(h,
+          stopTimeUpdate.getArrival()) : mix(h, ABSENT);
+      h = stopTimeUpdate.hasDeparture() ? mixStopTimeEvent(h,
+          stopTimeUpdate.getDeparture()) : mix(h, ABSENT);
+    }
+    return h;
+  }
+
+  private static long mixStopTimeEvent(long h, StopTimeEvent event) {
+    h = event.hasDelay() ? mix(h, event.getDelay()) : mix(h, ABSENT);
+    h = event.hasTime() ? mix(h, event.getTime()) : mix(h, ABSENT);
+    return h;
+  }
+
+  private static long mixVehiclePosition(long h, VehiclePosition vehiclePosition) {
+    h = vehiclePosition.hasTrip() ? mixTrip(h, vehiclePosition.getTrip())
+        : mix(h, ABSENT);
+    h = vehiclePosition.hasTimestamp() ? mix(h,
+        vehiclePosition.getTimestamp()) : mix(h, ABSENT);
+    if (vehiclePosition.hasPosition()) {
+      Position position = vehiclePosition.getPosition();
+      h = mix(h, Float.floatToIntBits(position.getLatitude()));
+      h = mix(h, Float.floatToIntBits(position.getLongitude()));
+      h = position.hasBearing() ? mix(h,
+          Float.floatToIntBits(position.getBearing())) : mix(h, ABSENT);
+    } else {
+      h = mix(h, ABSENT);
+    }
+    return h;
+  }
+
+  private static long mixTrip(long h, TripDescriptor trip) {
+    h = mix(h, trip.getTripId());
+    h = mix(h, trip.getStartDate());
+    h = mix(h, trip.getStartTime());
+    h = mix(h, trip.getScheduleRelationship().getNumber());
+    return h;
+  }
+
+  private static long mix(long h, String value) {
+    return mix(h, value == null ? ABSENT : value.hashCode());
+  }
+
+  private static long mix(long h, long value) {
+    h ^= value;
+    h *= FNV_PRIME;
+    h ^= h >>> 29;
+    return h;
+  }
+
+  private static class Fingerprint {
+
+    private final long value;
+
+    private final long forwardedAt;
+
+    private volatile AgencyAndId tripId;
+
+    public Fingerprint(long value, long forwardedAt) {
+      this.value = value;
+      this.forwardedAt = forwardedAt;
+    }
+  }
+}
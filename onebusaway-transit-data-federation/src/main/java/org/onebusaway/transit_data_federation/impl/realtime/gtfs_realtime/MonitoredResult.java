@@ -16,9 +16,10 @@
 package org.onebusaway.transit_data_federation.impl.realtime.gtfs_realtime;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.onebusaway.geospatial.model.CoordinateBounds;
 import org.onebusaway.geospatial.model.CoordinatePoint;
@@ -27,15 +28,23 @@ import org.onebusaway.gtfs.model.AgencyAndId;
 public class MonitoredResult {
 
   private List<String> _agencyIds = new ArrayList<String>();
-  private Set<String> _unmatchedTripIds = new HashSet<String>();
-  private Set<String> _matchedTripIds = new HashSet<String>();
-  private Set<String> _unmatchedStopIds = new HashSet<String>();
-  private Set<String> _matchedStopIds = new HashSet<String>();
-  private Set<AgencyAndId> _unmatchedBlockIds = new HashSet<AgencyAndId>();
-  private Set<CoordinatePoint> _allCoordinates = new HashSet<CoordinatePoint>();
-  private int _recordsTotal = 0;
+  private Set<String> _unmatchedTripIds = newSet();
+  private Set<String> _matchedTripIds = newSet();
+  private Set<String> _unmatchedStopIds = newSet();
+  private Set<String> _matchedStopIds = newSet();
+  private Set<AgencyAndId> _unmatchedBlockIds = newSet();
+  private Set<CoordinatePoint> _allCoordinates = newSet();
+  private volatile int _recordsTotal = 0;
   private long _lastUpdate = 0; // we want the default to be very very old, to catch stale updates
   
+  /**
+   * Results may be populated from multiple processing threads at once, so all
+   * sets are backed by concurrent maps.
+   */
+  private static <T> Set<T> newSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+  }
+
   public void addUnmatchedTripId(String tripId) {
     _unmatchedTripIds.add(tripId);
   }
@@ -76,7 +85,7 @@ public class MonitoredResult {
     return _recordsTotal;
   }
 
-  public void addRecordTotal() {
+  public synchronized void addRecordTotal() {
     _recordsTotal = _recordsTotal + 1;
     
   }
@@ -0,0 +1,509 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime.history;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.EVehiclePhase;
+import org.onebusaway.transit_data_federation.services.AgencyAndIdLibrary;
+
+/**
+ * Reads and writes the columnar block location archive: one file per service
+ * date and block, holding every {@link BlockLocationArchiveRecord} for the
+ * block on that date. Records are stored sorted by trip, service date and
+ * distance along block, with a small per-trip index of row offsets at the
+ * front of the file. Each field is stored as its own fixed-width column and
+ * ids, phases and status strings are dictionary encoded, so a trip's history
+ * can be read with a handful of positional reads that touch only the header,
+ * the string table and the rows that belong to the trip, with no text parsing.
+ * We read into heap buffers rather than memory-mapping the file, since a
+ * mapping can't be released explicitly and the history service opens a file
+ * per block and service date on every query.
+ *
+ * Layout, all values big-endian:
+ * 
+ * <pre>
+ * int magic, int version, int recordCount, int tripCount, int stringCount
+ * tripCount x (int tripIdString, int firstRow, int rowCount)
+ * (stringCount + 1) x int offset into the string data
+ * string data, UTF-8
+ * one column per field, recordCount values each
+ * </pre>
+ */
+public class BlockLocationArchiveFile {
+
+  public static final String FILE_EXTENSION = ".bla";
+
+  private static final int MAGIC = 0x4f42414c;
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 5 * 4;
+
+  private static final int TRIP_INDEX_ENTRY_SIZE = 3 * 4;
+
+  private static final int NULL_STRING = -1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The fixed widths of the columns, in the order they are written
+   */
+  private static final int[] COLUMN_WIDTHS = {
+      8, // time
+      8, // service date
+      8, // schedule deviation
+      8, // distance along block
+      8, // distance along trip
+      8, // location lat
+      8, // location lon
+      8, // orientation
+      8, // timepoint scheduled time
+      8, // timepoint predicted time
+      4, // block id
+      4, // vehicle id
+      4, // timepoint id
+      4, // phase
+      4, // status
+      4 // record id
+  };
+
+  private static final int COLUMN_TIME = 0;
+
+  private static final int COLUMN_SERVICE_DATE = 1;
+
+  private static final int COLUMN_SCHEDULE_DEVIATION = 2;
+
+  private static final int COLUMN_DISTANCE_ALONG_BLOCK = 3;
+
+  private static final int COLUMN_DISTANCE_ALONG_TRIP = 4;
+
+  private static final int COLUMN_LOCATION_LAT = 5;
+
+  private static final int COLUMN_LOCATION_LON = 6;
+
+  private static final int COLUMN_ORIENTATION = 7;
+
+  private static final int COLUMN_TIMEPOINT_SCHEDULED_TIME = 8;
+
+  private static final int COLUMN_TIMEPOINT_PREDICTED_TIME = 9;
+
+  private static final int COLUMN_BLOCK_ID = 10;
+
+  private static final int COLUMN_VEHICLE_ID = 11;
+
+  private static final int COLUMN_TIMEPOINT_ID = 12;
+
+  private static final int COLUMN_PHASE = 13;
+
+  private static final int COLUMN_STATUS = 14;
+
+  private static final int COLUMN_ID = 15;
+
+  /**
+   * The date directory is named for the service date in the agency's time
+   * zone, where a service date is midnight, so that the layout of the archive
+   * doesn't depend on the time zone of the machine that wrote it.
+   * 
+   * @param dataDir the root of the archive
+   * @param serviceDate
+   * @param blockId
+   * @param timeZone the time zone of the agency running the block
+   * @return the path of the archive file for the specified block and service
+   *         date
+   */
+  public static File getPath(File dataDir, long serviceDate,
+      AgencyAndId blockId, TimeZone timeZone) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+    format.setTimeZone(timeZone);
+    File dateDir = new File(dataDir, format.format(new Date(serviceDate)));
+    return new File(dateDir, AgencyAndIdLibrary.convertToString(blockId)
+        + FILE_EXTENSION);
+  }
+
+  /**
+   * Writes the specified records to a new archive file, replacing any
+   * existing file at the path only once the new file is complete.
+   * 
+   * @param path
+   * @param records
+   * @throws IOException
+   */
+  public static void write(File path, Collection<BlockLocationArchiveRecord> records)
+      throws IOException {
+
+    List<BlockLocationArchiveRecord> sorted = new ArrayList<BlockLocationArchiveRecord>(
+        records);
+    Collections.sort(sorted, new RecordComparator());
+
+    StringTable strings = new StringTable();
+    List<int[]> tripIndex = new ArrayList<int[]>();
+
+    int n = sorted.size();
+    int[] stringColumns = new int[n * 6];
+
+    String currentTripId = null;
+    int[] currentTrip = null;
+
+    for (int i = 0; i < n; i++) {
+      BlockLocationArchiveRecord record = sorted.get(i);
+      String tripId = toString(record.getTripId());
+      if (currentTrip == null || !equals(tripId, currentTripId)) {
+        currentTripId = tripId;
+        currentTrip = new int[] {strings.get(tripId), i, 0};
+        tripIndex.add(currentTrip);
+      }
+      currentTrip[2]++;
+
+      int offset = i * 6;
+      stringColumns[offset] = strings.get(toString(record.getBlockId()));
+      stringColumns[offset + 1] = strings.get(toString(record.getVehicleId()));
+      stringColumns[offset + 2] = strings.get(toString(record.getTimepointId()));
+      EVehiclePhase phase = record.getPhase();
+      stringColumns[offset + 3] = strings.get(phase == null ? null
+          : phase.name());
+      stringColumns[offset + 4] = strings.get(record.getStatus());
+      stringColumns[offset + 5] = strings.get(record.getId());
+    }
+
+    File dir = path.getParentFile();
+    if (dir != null && !dir.exists())
+      dir.mkdirs();
+
+    File tmp = new File(path.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(n);
+      out.writeInt(tripIndex.size());
+      out.writeInt(strings.size());
+
+      for (int[] trip : tripIndex) {
+        out.writeInt(trip[0]);
+        out.writeInt(trip[1]);
+        out.writeInt(trip[2]);
+      }
+
+      List<byte[]> encoded = strings.encode();
+      int stringOffset = 0;
+      out.writeInt(stringOffset);
+      for (byte[] bytes : encoded) {
+        stringOffset += bytes.length;
+        out.writeInt(stringOffset);
+      }
+      for (byte[] bytes : encoded)
+        out.write(bytes);
+
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeLong(record.getTime());
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeLong(record.getServiceDate());
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeDouble(toDouble(record.getScheduleDeviation()));
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeDouble(toDouble(record.getDistanceAlongBlock()));
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeDouble(toDouble(record.getDistanceAlongTrip()));
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeDouble(toDouble(record.getLocationLat()));
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeDouble(toDouble(record.getLocationLon()));
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeDouble(toDouble(record.getOrientation()));
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeLong(record.getTimepointScheduledTime());
+      for (BlockLocationArchiveRecord record : sorted)
+        out.writeLong(record.getTimepointPredictedTime());
+      for (int column = 0; column < 6; column++) {
+        for (int i = 0; i < n; i++)
+          out.writeInt(stringColumns[i * 6 + column]);
+      }
+    } finally {
+      out.close();
+    }
+
+    if (path.exists() && !path.delete())
+      throw new IOException("unable to replace " + path);
+    if (!tmp.renameTo(path))
+      throw new IOException("unable to rename " + tmp + " to " + path);
+  }
+
+  /**
+   * Reads the records for a single trip, in the order they were written: by
+   * service date and then by distance along block.
+   * 
+   * @param path
+   * @param tripId
+   * @return the records for the trip, or an empty list if the file holds no
+   *         records for it
+   * @throws IOException
+   */
+  public static List<BlockLocationArchiveRecord> readRecordsForTrip(
+      File path, AgencyAndId tripId) throws IOException {
+
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      return readRecordsForTrip(path, file.getChannel(), tripId);
+    } finally {
+      file.close();
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static List<BlockLocationArchiveRecord> readRecordsForTrip(
+      File path, FileChannel channel, AgencyAndId tripId) throws IOException {
+
+    ByteBuffer header = read(channel, 0, HEADER_SIZE);
+
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+      throw new IOException("not a block location archive: " + path);
+
+    int n = header.getInt(8);
+    int tripCount = header.getInt(12);
+    int stringCount = header.getInt(16);
+
+    int stringOffsetsStart = HEADER_SIZE + tripCount * TRIP_INDEX_ENTRY_SIZE;
+    int stringDataStart = stringOffsetsStart + (stringCount + 1) * 4;
+
+    ByteBuffer index = read(channel, 0, stringDataStart);
+    int stringDataLength = index.getInt(stringOffsetsStart + stringCount * 4);
+    int columnsStart = stringDataStart + stringDataLength;
+
+    ByteBuffer stringData = read(channel, stringDataStart, stringDataLength);
+    Strings strings = new Strings(index, stringOffsetsStart, stringData);
+    String tripIdAsString = toString(tripId);
+
+    int firstRow = -1;
+    int rowCount = 0;
+    for (int i = 0; i < tripCount; i++) {
+      int entry = HEADER_SIZE + i * TRIP_INDEX_ENTRY_SIZE;
+      if (equals(tripIdAsString, strings.get(index.getInt(entry)))) {
+        firstRow = index.getInt(entry + 4);
+        rowCount = index.getInt(entry + 8);
+        break;
+      }
+    }
+
+    if (firstRow == -1)
+      return Collections.emptyList();
+
+    /**
+     * Read just the trip's rows out of each column
+     */
+    ByteBuffer[] columns = new ByteBuffer[COLUMN_WIDTHS.length];
+    long columnStart = columnsStart;
+    for (int i = 0; i < COLUMN_WIDTHS.length; i++) {
+      int width = COLUMN_WIDTHS[i];
+      columns[i] = read(channel, columnStart + (long) firstRow * width,
+          rowCount * width);
+      columnStart += (long) width * n;
+    }
+
+    AgencyAndId resolvedTripId = toAgencyAndId(tripIdAsString);
+    List<BlockLocationArchiveRecord> records = new ArrayList<BlockLocationArchiveRecord>(
+        rowCount);
+
+    for (int row = 0; row < rowCount; row++) {
+      int r8 = row * 8;
+      int r4 = row * 4;
+      BlockLocationArchiveRecord record = new BlockLocationArchiveRecord();
+      record.setTripId(resolvedTripId);
+      record.setTime(columns[COLUMN_TIME].getLong(r8));
+      record.setServiceDate(columns[COLUMN_SERVICE_DATE].getLong(r8));
+      record.setScheduleDeviation(toDouble(columns[COLUMN_SCHEDULE_DEVIATION].getDouble(r8)));
+      record.setDistanceAlongBlock(toDouble(columns[COLUMN_DISTANCE_ALONG_BLOCK].getDouble(r8)));
+      record.setDistanceAlongTrip(toDouble(columns[COLUMN_DISTANCE_ALONG_TRIP].getDouble(r8)));
+      record.setLocationLat(toDouble(columns[COLUMN_LOCATION_LAT].getDouble(r8)));
+      record.setLocationLon(toDouble(columns[COLUMN_LOCATION_LON].getDouble(r8)));
+      record.setOrientation(toDouble(columns[COLUMN_ORIENTATION].getDouble(r8)));
+      record.setTimepointScheduledTime(columns[COLUMN_TIMEPOINT_SCHEDULED_TIME].getLong(r8));
+      record.setTimepointPredictedTime(columns[COLUMN_TIMEPOINT_PREDICTED_TIME].getLong(r8));
+      record.setBlockId(toAgencyAndId(strings.get(columns[COLUMN_BLOCK_ID].getInt(r4))));
+      record.setVehicleId(toAgencyAndId(strings.get(columns[COLUMN_VEHICLE_ID].getInt(r4))));
+      record.setTimepointId(toAgencyAndId(strings.get(columns[COLUMN_TIMEPOINT_ID].getInt(r4))));
+      String phase = strings.get(columns[COLUMN_PHASE].getInt(r4));
+      if (phase != null)
+        record.setPhase(EVehiclePhase.valueOf(phase));
+      record.setStatus(strings.get(columns[COLUMN_STATUS].getInt(r4)));
+      record.setId(strings.get(columns[COLUMN_ID].getInt(r4)));
+      records.add(record);
+    }
+
+    return records;
+  }
+
+  /**
+   * Reads a range of the file into a new heap buffer
+   */
+  private static ByteBuffer read(FileChannel channel, long position,
+      int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0)
+        throw new EOFException();
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static String toString(AgencyAndId id) {
+    return id == null ? null : AgencyAndIdLibrary.convertToString(id);
+  }
+
+  private static AgencyAndId toAgencyAndId(String value) {
+    return value == null ? null : AgencyAndIdLibrary.convertFromString(value);
+  }
+
+  private static double toDouble(Double value) {
+    return value == null ? Double.NaN : value.doubleValue();
+  }
+
+  private static Double toDouble(double value) {
+    return Double.isNaN(value) ? null : Double.valueOf(value);
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private static class StringTable {
+
+    private final Map<String, Integer> _indices = new LinkedHashMap<String, Integer>();
+
+    public int get(String value) {
+      if (value == null)
+        return NULL_STRING;
+      Integer index = _indices.get(value);
+      if (index == null) {
+        index = _indices.size();
+        _indices.put(value, index);
+      }
+      return index;
+    }
+
+    public int size() {
+      return _indices.size();
+    }
+
+    public List<byte[]> encode() {
+      List<byte[]> encoded = new ArrayList<byte[]>(_indices.size());
+      for (String value : _indices.keySet())
+        encoded.add(value.getBytes(UTF8));
+      return encoded;
+    }
+  }
+
+  /**
+   * Decodes strings from the string table on demand, remembering the ones
+   * already decoded
+   */
+  private static class Strings {
+
+    private final ByteBuffer _offsets;
+
+    private final int _offsetsStart;
+
+    private final ByteBuffer _data;
+
+    private final Map<Integer, String> _decoded = new HashMap<Integer, String>();
+
+    public Strings(ByteBuffer offsets, int offsetsStart, ByteBuffer data) {
+      _offsets = offsets;
+      _offsetsStart = offsetsStart;
+      _data = data;
+    }
+
+    public String get(int index) {
+      if (index == NULL_STRING)
+        return null;
+      String value = _decoded.get(index);
+      if (value == null) {
+        int from = _offsets.getInt(_offsetsStart + index * 4);
+        int to = _offsets.getInt(_offsetsStart + (index + 1) * 4);
+        byte[] bytes = new byte[to - from];
+        ByteBuffer slice = _data.duplicate();
+        slice.position(from);
+        slice.get(bytes);
+        value = new String(bytes, UTF8);
+        _decoded.put(index, value);
+      }
+      return value;
+    }
+  }
+
+  private static class RecordComparator implements
+      Comparator<BlockLocationArchiveRecord> {
+
+    @Override
+    public int compare(BlockLocationArchiveRecord o1,
+        BlockLocationArchiveRecord o2) {
+
+      String t1 = BlockLocationArchiveFile.toString(o1.getTripId());
+      String t2 = BlockLocationArchiveFile.toString(o2.getTripId());
+      if (t1 == null || t2 == null) {
+        if (t1 != t2)
+          return t1 == null ? -1 : 1;
+      } else {
+        int c = t1.compareTo(t2);
+        if (c != 0)
+          return c;
+      }
+
+      int c = compareLongs(o1.getServiceDate(), o2.getServiceDate());
+      if (c != 0)
+        return c;
+
+      c = Double.compare(toDouble(o1.getDistanceAlongBlock()),
+          toDouble(o2.getDistanceAlongBlock()));
+      if (c != 0)
+        return c;
+
+      return compareLongs(o1.getTime(), o2.getTime());
+    }
+
+    private static int compareLongs(long a, long b) {
+      return a < b ? -1 : (a == b ? 0 : 1);
+    }
+  }
+}
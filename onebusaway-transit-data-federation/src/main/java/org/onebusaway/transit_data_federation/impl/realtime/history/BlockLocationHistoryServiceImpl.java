@@ -78,9 +78,15 @@ public class BlockLocationHistoryServiceImpl implements
 
     try {
       for (File file : files) {
-        InputStream in = openFileForInput(file);
-        reader.readEntities(BlockLocationArchiveRecord.class, in);
-        in.close();
+        if (file.getName().endsWith(BlockLocationArchiveFile.FILE_EXTENSION)) {
+          for (BlockLocationArchiveRecord record : BlockLocationArchiveFile.readRecordsForTrip(
+              file, tripId))
+            handler.handleEntity(record);
+        } else {
+          InputStream in = openFileForInput(file);
+          reader.readEntities(BlockLocationArchiveRecord.class, in);
+          in.close();
+        }
       }
     } catch (IOException ex) {
       throw new IllegalStateException(ex);
@@ -101,13 +107,25 @@ public class BlockLocationHistoryServiceImpl implements
     return in;
   }
 
+  /**
+   * Prefers the columnar archive written by the bundle builder for each date,
+   * falling back to the older gzipped tab-separated files.
+   */
   private List<File> getFilesForBlockId(AgencyAndId blockId) {
 
     List<File> files = new ArrayList<File>();
-    for (File dateDir : _dataDir.listFiles()) {
-      File dataFile = new File(dateDir,
-          AgencyAndIdLibrary.convertToString(blockId) + ".gz");
-      if (dataFile.exists())
+    File[] dateDirs = _dataDir.listFiles();
+    if (dateDirs == null)
+      return files;
+
+    String name = AgencyAndIdLibrary.convertToString(blockId);
+    for (File dateDir : dateDirs) {
+      File archiveFile = new File(dateDir, name
+          + BlockLocationArchiveFile.FILE_EXTENSION);
+      File dataFile = new File(dateDir, name + ".gz");
+      if (archiveFile.exists())
+        files.add(archiveFile);
+      else if (dataFile.exists())
         files.add(dataFile);
     }
     return files;
@@ -309,10 +309,8 @@ public class SiriService {
     if (!CollectionsLibrary.isEmpty(endpointDetails.getDefaultAgencyIds()))
       defaultAgencyId = endpointDetails.getDefaultAgencyIds().get(0);
 
-    for (ServiceAlert.Builder serviceAlert : serviceAlertsToUpdate)
-      _serviceAlertsService.createOrUpdateServiceAlert(serviceAlert,
-          defaultAgencyId);
-    _serviceAlertsService.removeServiceAlerts(serviceAlertIdsToRemove);
+    _serviceAlertsService.updateServiceAlerts(serviceAlertsToUpdate,
+        serviceAlertIdsToRemove, defaultAgencyId);
   }
 
   private ServiceAlert.Builder getPtSituationAsServiceAlert(
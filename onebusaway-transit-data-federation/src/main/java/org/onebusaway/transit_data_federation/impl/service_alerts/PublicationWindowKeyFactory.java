@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.service_alerts;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.onebusaway.transit_data_federation.services.service_alerts.ServiceAlerts.ServiceAlert;
+import org.onebusaway.transit_data_federation.services.service_alerts.ServiceAlerts.TimeRange;
+
+/**
+ * Maps a service alert to the fixed-size time buckets covered by its
+ * publication windows, so that the alerts that might be published at a given
+ * time can be found without looking at every alert. Alerts without a
+ * publication window, or with a window that is open-ended or spans more than
+ * {@link #MAX_BUCKETS_PER_WINDOW} buckets, are assigned to the
+ * {@link #ALWAYS} key instead and are considered at every time.
+ */
+class PublicationWindowKeyFactory implements AffectsKeyFactory<Long> {
+
+  public static final PublicationWindowKeyFactory INSTANCE = new PublicationWindowKeyFactory();
+
+  public static final Long ALWAYS = Long.MIN_VALUE;
+
+  public static final long BUCKET_SIZE = 60 * 60 * 1000;
+
+  public static final int MAX_BUCKETS_PER_WINDOW = 14 * 24;
+
+  public static Long getBucketForTime(long time) {
+    return time / BUCKET_SIZE;
+  }
+
+  @Override
+  public Set<Long> getKeysForAffects(ServiceAlert serviceAlert) {
+
+    Set<Long> buckets = new HashSet<Long>();
+
+    if (serviceAlert.getPublicationWindowCount() == 0) {
+      buckets.add(ALWAYS);
+      return buckets;
+    }
+
+    for (TimeRange window : serviceAlert.getPublicationWindowList()) {
+
+      if (!window.hasStart() || !window.hasEnd()) {
+        buckets.add(ALWAYS);
+        continue;
+      }
+
+      long from = getBucketForTime(window.getStart());
+      long to = getBucketForTime(window.getEnd());
+
+      if (to - from >= MAX_BUCKETS_PER_WINDOW) {
+        buckets.add(ALWAYS);
+        continue;
+      }
+
+      for (long bucket = from; bucket <= to; bucket++)
+        buckets.add(bucket);
+    }
+
+    return buckets;
+  }
+}
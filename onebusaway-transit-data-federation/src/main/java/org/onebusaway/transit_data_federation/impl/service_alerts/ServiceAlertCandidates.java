@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.service_alerts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+
+/**
+ * Collects the id sets matched by the affects keys of a query without copying
+ * them, and then resolves the ids that might be published at the query time.
+ * When the alerts in the current publication time bucket are fewer than the
+ * alerts matched by the keys, we walk the time bucket instead of the key sets,
+ * so that a stop or agency with a long history of alerts costs no more to
+ * query than the number of alerts that are actually active. The ids returned
+ * are still candidates: publication windows must be checked exactly by the
+ * caller.
+ */
+class ServiceAlertCandidates {
+
+  private final List<Set<AgencyAndId>> _sets = new ArrayList<Set<AgencyAndId>>(
+      4);
+
+  private int _size = 0;
+
+  public void add(Set<AgencyAndId> ids) {
+    if (ids == null || ids.isEmpty())
+      return;
+    _sets.add(ids);
+    _size += ids.size();
+  }
+
+  /**
+   *
+   * @return the total size of the matched sets, which may count an id more
+   *         than once
+   */
+  public int size() {
+    return _size;
+  }
+
+  /**
+   *
+   * @param index
+   * @param time the query time, or -1 to return every matched id
+   * @return the matched ids that might be published at the specified time
+   */
+  public Set<AgencyAndId> getIds(ServiceAlertsIndex index, long time) {
+
+    if (_sets.isEmpty())
+      return Collections.emptySet();
+
+    if (time == -1)
+      return getAllIds();
+
+    ServiceAlertsIndex.KeyIndex<Long> buckets = index.getServiceAlertIdsByPublicationBucket();
+    Set<AgencyAndId> always = buckets.get(PublicationWindowKeyFactory.ALWAYS);
+    Set<AgencyAndId> current = buckets.get(PublicationWindowKeyFactory.getBucketForTime(time));
+
+    int activeSize = (always == null ? 0 : always.size())
+        + (current == null ? 0 : current.size());
+
+    Set<AgencyAndId> ids = new HashSet<AgencyAndId>();
+
+    if (activeSize < _size) {
+      addIfMatched(always, ids);
+      addIfMatched(current, ids);
+    } else {
+      for (Set<AgencyAndId> set : _sets) {
+        for (AgencyAndId id : set) {
+          if ((always != null && always.contains(id))
+              || (current != null && current.contains(id)))
+            ids.add(id);
+        }
+      }
+    }
+
+    return ids;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private Set<AgencyAndId> getAllIds() {
+    if (_sets.size() == 1)
+      return _sets.get(0);
+    Set<AgencyAndId> ids = new HashSet<AgencyAndId>();
+    for (Set<AgencyAndId> set : _sets)
+      ids.addAll(set);
+    return ids;
+  }
+
+  private void addIfMatched(Set<AgencyAndId> activeIds, Set<AgencyAndId> ids) {
+    if (activeIds == null)
+      return;
+    for (AgencyAndId id : activeIds) {
+      for (Set<AgencyAndId> set : _sets) {
+        if (set.contains(id)) {
+          ids.add(id);
+          break;
+        }
+      }
+    }
+  }
+}
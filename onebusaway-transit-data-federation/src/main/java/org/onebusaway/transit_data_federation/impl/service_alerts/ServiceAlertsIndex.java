@@ -0,0 +1,446 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.service_alerts;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.services.service_alerts.ServiceAlerts.Affects;
+import org.onebusaway.transit_data_federation.services.service_alerts.ServiceAlerts.ServiceAlert;
+
+/**
+ * An immutable, versioned snapshot of all service alerts along with the
+ * indices used to look them up by agency, route, stop, trip and so on.
+ * Readers grab the current snapshot once and use it for the duration of a
+ * query, so they never see an alert that is only partially indexed.
+ *
+ * A new snapshot is produced from the previous one with a {@link Builder}.
+ * A batch of changes copies the alert map once, and the outer map of each
+ * index it touches once, so its cost grows with the number of alerts and
+ * index keys, but is paid once per batch rather than once per changed alert.
+ * Within a touched index, only the id sets of the affected keys are copied,
+ * and untouched indices are shared with the previous snapshot.
+ */
+final class ServiceAlertsIndex {
+
+  public static final ServiceAlertsIndex EMPTY = new ServiceAlertsIndex();
+
+  private final long _version;
+
+  private final Map<AgencyAndId, ServiceAlert> _serviceAlerts;
+
+  /**
+   * Groups service alert ids by the agency id in their
+   * {@link ServiceAlert#getId()} id.
+   */
+  private final KeyIndex<String> _serviceAlertIdsByServiceAlertAgencyId;
+
+  /**
+   * Groups service alert ids by any agency id mentioned in
+   * {@link Affects#getAgencyId()}.
+   */
+  private final KeyIndex<String> _serviceAlertIdsByAgencyId;
+
+  private final KeyIndex<AgencyAndId> _serviceAlertIdsByStopId;
+
+  private final KeyIndex<AgencyAndId> _serviceAlertIdsByRouteId;
+
+  private final KeyIndex<RouteAndDirectionRef> _serviceAlertIdsByRouteAndDirectionId;
+
+  private final KeyIndex<RouteAndStopCallRef> _serviceAlertIdsByRouteAndStop;
+
+  private final KeyIndex<RouteDirectionAndStopCallRef> _serviceAlertIdsByRouteDirectionAndStopCall;
+
+  private final KeyIndex<AgencyAndId> _serviceAlertIdsByTripId;
+
+  private final KeyIndex<TripAndStopCallRef> _serviceAlertIdsByTripAndStopId;
+
+  /**
+   * Groups service alert ids by the time buckets covered by their publication
+   * windows. See {@link PublicationWindowKeyFactory}.
+   */
+  private final KeyIndex<Long> _serviceAlertIdsByPublicationBucket;
+
+  private ServiceAlertsIndex() {
+    _version = 0;
+    _serviceAlerts = Collections.emptyMap();
+    _serviceAlertIdsByServiceAlertAgencyId = new KeyIndex<String>(
+        AffectsServiceAlertAgencyKeyFactory.INSTANCE);
+    _serviceAlertIdsByAgencyId = new KeyIndex<String>(
+        AffectsAgencyKeyFactory.INSTANCE);
+    _serviceAlertIdsByStopId = new KeyIndex<AgencyAndId>(
+        AffectsStopKeyFactory.INSTANCE);
+    _serviceAlertIdsByRouteId = new KeyIndex<AgencyAndId>(
+        AffectsRouteKeyFactory.INSTANCE);
+    _serviceAlertIdsByRouteAndDirectionId = new KeyIndex<RouteAndDirectionRef>(
+        AffectsRouteAndDirectionKeyFactory.INSTANCE);
+    _serviceAlertIdsByRouteAndStop = new KeyIndex<RouteAndStopCallRef>(
+        AffectsRouteAndStopKeyFactory.INSTANCE);
+    _serviceAlertIdsByRouteDirectionAndStopCall = new KeyIndex<RouteDirectionAndStopCallRef>(
+        AffectsRouteDirectionAndStopCallKeyFactory.INSTANCE);
+    _serviceAlertIdsByTripId = new KeyIndex<AgencyAndId>(
+        AffectsTripKeyFactory.INSTANCE);
+    _serviceAlertIdsByTripAndStopId = new KeyIndex<TripAndStopCallRef>(
+        AffectsTripAndStopKeyFactory.INSTANCE);
+    _serviceAlertIdsByPublicationBucket = new KeyIndex<Long>(
+        PublicationWindowKeyFactory.INSTANCE);
+  }
+
+  private ServiceAlertsIndex(Builder builder) {
+    _version = builder._base._version + 1;
+    _serviceAlerts = builder._serviceAlerts.build();
+    _serviceAlertIdsByServiceAlertAgencyId = builder._serviceAlertIdsByServiceAlertAgencyId.build();
+    _serviceAlertIdsByAgencyId = builder._serviceAlertIdsByAgencyId.build();
+    _serviceAlertIdsByStopId = builder._serviceAlertIdsByStopId.build();
+    _serviceAlertIdsByRouteId = builder._serviceAlertIdsByRouteId.build();
+    _serviceAlertIdsByRouteAndDirectionId = builder._serviceAlertIdsByRouteAndDirectionId.build();
+    _serviceAlertIdsByRouteAndStop = builder._serviceAlertIdsByRouteAndStop.build();
+    _serviceAlertIdsByRouteDirectionAndStopCall = builder._serviceAlertIdsByRouteDirectionAndStopCall.build();
+    _serviceAlertIdsByTripId = builder._serviceAlertIdsByTripId.build();
+    _serviceAlertIdsByTripAndStopId = builder._serviceAlertIdsByTripAndStopId.build();
+    _serviceAlertIdsByPublicationBucket = builder._serviceAlertIdsByPublicationBucket.build();
+  }
+
+  /**
+   *
+   * @return a version number that increases with every published change
+   */
+  public long getVersion() {
+    return _version;
+  }
+
+  public int size() {
+    return _serviceAlerts.size();
+  }
+
+  public ServiceAlert getServiceAlert(AgencyAndId serviceAlertId) {
+    return _serviceAlerts.get(serviceAlertId);
+  }
+
+  public Collection<ServiceAlert> getServiceAlerts() {
+    return _serviceAlerts.values();
+  }
+
+  public KeyIndex<String> getServiceAlertIdsByServiceAlertAgencyId() {
+    return _serviceAlertIdsByServiceAlertAgencyId;
+  }
+
+  public KeyIndex<String> getServiceAlertIdsByAgencyId() {
+    return _serviceAlertIdsByAgencyId;
+  }
+
+  public KeyIndex<AgencyAndId> getServiceAlertIdsByStopId() {
+    return _serviceAlertIdsByStopId;
+  }
+
+  public KeyIndex<AgencyAndId> getServiceAlertIdsByRouteId() {
+    return _serviceAlertIdsByRouteId;
+  }
+
+  public KeyIndex<RouteAndDirectionRef> getServiceAlertIdsByRouteAndDirectionId() {
+    return _serviceAlertIdsByRouteAndDirectionId;
+  }
+
+  public KeyIndex<RouteAndStopCallRef> getServiceAlertIdsByRouteAndStop() {
+    return _serviceAlertIdsByRouteAndStop;
+  }
+
+  public KeyIndex<RouteDirectionAndStopCallRef> getServiceAlertIdsByRouteDirectionAndStopCall() {
+    return _serviceAlertIdsByRouteDirectionAndStopCall;
+  }
+
+  public KeyIndex<AgencyAndId> getServiceAlertIdsByTripId() {
+    return _serviceAlertIdsByTripId;
+  }
+
+  public KeyIndex<TripAndStopCallRef> getServiceAlertIdsByTripAndStopId() {
+    return _serviceAlertIdsByTripAndStopId;
+  }
+
+  public KeyIndex<Long> getServiceAlertIdsByPublicationBucket() {
+    return _serviceAlertIdsByPublicationBucket;
+  }
+
+  public Builder builder() {
+    return new Builder(this);
+  }
+
+  /**
+   * Accumulates a batch of changes against a base snapshot. A builder is not
+   * thread-safe and the base snapshot is never modified.
+   */
+  public static class Builder {
+
+    private final ServiceAlertsIndex _base;
+
+    private final CopyOnWriteMap<AgencyAndId, ServiceAlert> _serviceAlerts;
+
+    private final KeyIndex.Builder<String> _serviceAlertIdsByServiceAlertAgencyId;
+
+    private final KeyIndex.Builder<String> _serviceAlertIdsByAgencyId;
+
+    private final KeyIndex.Builder<AgencyAndId> _serviceAlertIdsByStopId;
+
+    private final KeyIndex.Builder<AgencyAndId> _serviceAlertIdsByRouteId;
+
+    private final KeyIndex.Builder<RouteAndDirectionRef> _serviceAlertIdsByRouteAndDirectionId;
+
+    private final KeyIndex.Builder<RouteAndStopCallRef> _serviceAlertIdsByRouteAndStop;
+
+    private final KeyIndex.Builder<RouteDirectionAndStopCallRef> _serviceAlertIdsByRouteDirectionAndStopCall;
+
+    private final KeyIndex.Builder<AgencyAndId> _serviceAlertIdsByTripId;
+
+    private final KeyIndex.Builder<TripAndStopCallRef> _serviceAlertIdsByTripAndStopId;
+
+    private final KeyIndex.Builder<Long> _serviceAlertIdsByPublicationBucket;
+
+    private int _changes = 0;
+
+    private Builder(ServiceAlertsIndex base) {
+      _base = base;
+      _serviceAlerts = new CopyOnWriteMap<AgencyAndId, ServiceAlert>(
+          base._serviceAlerts);
+      _serviceAlertIdsByServiceAlertAgencyId = base._serviceAlertIdsByServiceAlertAgencyId.builder();
+      _serviceAlertIdsByAgencyId = base._serviceAlertIdsByAgencyId.builder();
+      _serviceAlertIdsByStopId = base._serviceAlertIdsByStopId.builder();
+      _serviceAlertIdsByRouteId = base._serviceAlertIdsByRouteId.builder();
+      _serviceAlertIdsByRouteAndDirectionId = base._serviceAlertIdsByRouteAndDirectionId.builder();
+      _serviceAlertIdsByRouteAndStop = base._serviceAlertIdsByRouteAndStop.builder();
+      _serviceAlertIdsByRouteDirectionAndStopCall = base._serviceAlertIdsByRouteDirectionAndStopCall.builder();
+      _serviceAlertIdsByTripId = base._serviceAlertIdsByTripId.builder();
+      _serviceAlertIdsByTripAndStopId = base._serviceAlertIdsByTripAndStopId.builder();
+      _serviceAlertIdsByPublicationBucket = base._serviceAlertIdsByPublicationBucket.builder();
+    }
+
+    public ServiceAlert get(AgencyAndId serviceAlertId) {
+      return _serviceAlerts.get(serviceAlertId);
+    }
+
+    public void put(ServiceAlert serviceAlert) {
+      AgencyAndId id = ServiceAlertLibrary.agencyAndId(serviceAlert.getId());
+      ServiceAlert existingServiceAlert = _serviceAlerts.put(id, serviceAlert);
+      updateReferences(existingServiceAlert, serviceAlert);
+      _changes++;
+    }
+
+    /**
+     *
+     * @param serviceAlertId
+     * @return the removed service alert, or null if there was no such alert
+     */
+    public ServiceAlert remove(AgencyAndId serviceAlertId) {
+      ServiceAlert existingServiceAlert = _serviceAlerts.remove(serviceAlertId);
+      if (existingServiceAlert != null) {
+        updateReferences(existingServiceAlert, null);
+        _changes++;
+      }
+      return existingServiceAlert;
+    }
+
+    public boolean hasChanges() {
+      return _changes > 0;
+    }
+
+    /**
+     *
+     * @return a new snapshot with the accumulated changes applied, or the base
+     *         snapshot if there were no changes
+     */
+    public ServiceAlertsIndex build() {
+      if (_changes == 0)
+        return _base;
+      return new ServiceAlertsIndex(this);
+    }
+
+    private void updateReferences(ServiceAlert existingServiceAlert,
+        ServiceAlert serviceAlert) {
+      _serviceAlertIdsByServiceAlertAgencyId.update(existingServiceAlert,
+          serviceAlert);
+      _serviceAlertIdsByAgencyId.update(existingServiceAlert, serviceAlert);
+      _serviceAlertIdsByStopId.update(existingServiceAlert, serviceAlert);
+      _serviceAlertIdsByRouteId.update(existingServiceAlert, serviceAlert);
+      _serviceAlertIdsByRouteAndDirectionId.update(existingServiceAlert,
+          serviceAlert);
+      _serviceAlertIdsByRouteAndStop.update(existingServiceAlert, serviceAlert);
+      _serviceAlertIdsByRouteDirectionAndStopCall.update(existingServiceAlert,
+          serviceAlert);
+      _serviceAlertIdsByTripId.update(existingServiceAlert, serviceAlert);
+      _serviceAlertIdsByTripAndStopId.update(existingServiceAlert,
+          serviceAlert);
+      _serviceAlertIdsByPublicationBucket.update(existingServiceAlert,
+          serviceAlert);
+    }
+  }
+
+  /**
+   * An immutable map from an index key to the ids of the service alerts that
+   * affect it.
+   */
+  public static final class KeyIndex<T> {
+
+    private final AffectsKeyFactory<T> _keyFactory;
+
+    private final Map<T, Set<AgencyAndId>> _idsByKey;
+
+    private KeyIndex(AffectsKeyFactory<T> keyFactory) {
+      this(keyFactory, Collections.<T, Set<AgencyAndId>> emptyMap());
+    }
+
+    private KeyIndex(AffectsKeyFactory<T> keyFactory,
+        Map<T, Set<AgencyAndId>> idsByKey) {
+      _keyFactory = keyFactory;
+      _idsByKey = idsByKey;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the service alert ids for the key, or null if there are none.
+     *         The returned set must not be modified.
+     */
+    public Set<AgencyAndId> get(T key) {
+      return _idsByKey.get(key);
+    }
+
+    public void getServiceAlertIdsForKey(T key,
+        ServiceAlertCandidates candidates) {
+      candidates.add(_idsByKey.get(key));
+    }
+
+    private Builder<T> builder() {
+      return new Builder<T>(this);
+    }
+
+    private static class Builder<T> {
+
+      private final KeyIndex<T> _base;
+
+      private final CopyOnWriteMap<T, Set<AgencyAndId>> _idsByKey;
+
+      /**
+       * The keys whose id sets have already been copied in this batch, and so
+       * may be modified in place
+       */
+      private final Set<T> _copiedKeys = new HashSet<T>();
+
+      public Builder(KeyIndex<T> base) {
+        _base = base;
+        _idsByKey = new CopyOnWriteMap<T, Set<AgencyAndId>>(base._idsByKey);
+      }
+
+      public void update(ServiceAlert existingServiceAlert,
+          ServiceAlert serviceAlert) {
+
+        AffectsKeyFactory<T> keyFactory = _base._keyFactory;
+
+        Set<T> existingEffects = Collections.emptySet();
+        if (existingServiceAlert != null)
+          existingEffects = keyFactory.getKeysForAffects(existingServiceAlert);
+
+        Set<T> newEffects = Collections.emptySet();
+        if (serviceAlert != null)
+          newEffects = keyFactory.getKeysForAffects(serviceAlert);
+
+        for (T existingEffect : existingEffects) {
+          if (newEffects.contains(existingEffect))
+            continue;
+          AgencyAndId id = ServiceAlertLibrary.agencyAndId(existingServiceAlert.getId());
+          Set<AgencyAndId> ids = getMutableIds(existingEffect);
+          ids.remove(id);
+          if (ids.isEmpty()) {
+            _idsByKey.remove(existingEffect);
+            _copiedKeys.remove(existingEffect);
+          }
+        }
+
+        for (T newEffect : newEffects) {
+          if (existingEffects.contains(newEffect))
+            continue;
+          AgencyAndId id = ServiceAlertLibrary.agencyAndId(serviceAlert.getId());
+          getMutableIds(newEffect).add(id);
+        }
+      }
+
+      public KeyIndex<T> build() {
+        if (!_idsByKey.isCopied())
+          return _base;
+        return new KeyIndex<T>(_base._keyFactory, _idsByKey.build());
+      }
+
+      private Set<AgencyAndId> getMutableIds(T key) {
+        Set<AgencyAndId> ids = _idsByKey.get(key);
+        if (_copiedKeys.add(key)) {
+          ids = ids == null ? new HashSet<AgencyAndId>()
+              : new HashSet<AgencyAndId>(ids);
+          _idsByKey.put(key, ids);
+        }
+        return ids;
+      }
+    }
+  }
+
+  /**
+   * Reads through to a base map until the first write, at which point the
+   * base map is copied.
+   */
+  private static class CopyOnWriteMap<K, V> {
+
+    private Map<K, V> _map;
+
+    private boolean _copied = false;
+
+    public CopyOnWriteMap(Map<K, V> base) {
+      _map = base;
+    }
+
+    public V get(K key) {
+      return _map.get(key);
+    }
+
+    public V put(K key, V value) {
+      copy();
+      return _map.put(key, value);
+    }
+
+    public V remove(K key) {
+      if (!_map.containsKey(key))
+        return null;
+      copy();
+      return _map.remove(key);
+    }
+
+    public boolean isCopied() {
+      return _copied;
+    }
+
+    public Map<K, V> build() {
+      return _map;
+    }
+
+    private void copy() {
+      if (!_copied) {
+        _map = new HashMap<K, V>(_map);
+        _copied = true;
+      }
+    }
+  }
+}
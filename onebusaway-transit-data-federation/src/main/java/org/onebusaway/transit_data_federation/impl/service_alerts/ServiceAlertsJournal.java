@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.service_alerts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data_federation.services.service_alerts.ServiceAlerts.ServiceAlert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of service alert changes, kept next to the service alerts
+ * snapshot file. Each batch of changes is appended and flushed as a unit, and
+ * the journal is replayed on top of the snapshot at startup. Periodically the
+ * owner writes a fresh snapshot and calls {@link #truncate()}.
+ *
+ * Replaying a journal on top of a snapshot that already includes some of its
+ * records is harmless, since every record carries the full state of the alert
+ * it touches. A partially written record at the end of the journal, as left
+ * by a crash, is ignored.
+ */
+class ServiceAlertsJournal {
+
+  private static final Logger _log = LoggerFactory.getLogger(ServiceAlertsJournal.class);
+
+  private static final byte RECORD_PUT = 1;
+
+  private static final byte RECORD_REMOVE = 2;
+
+  private final File _path;
+
+  private DataOutputStream _out;
+
+  private int _recordCount = 0;
+
+  public ServiceAlertsJournal(File path) {
+    _path = path;
+  }
+
+  public File getPath() {
+    return _path;
+  }
+
+  /**
+   *
+   * @return the number of records appended since the journal was last
+   *         truncated, including any records replayed at startup
+   */
+  public int getRecordCount() {
+    return _recordCount;
+  }
+
+  /**
+   * Applies every complete record in the journal to the specified builder.
+   *
+   * @param builder
+   * @return the number of records replayed
+   * @throws IOException
+   */
+  public int replay(ServiceAlertsIndex.Builder builder) throws IOException {
+
+    if (!_path.exists())
+      return 0;
+
+    int count = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(_path)));
+
+    try {
+      while (true) {
+        int type = in.read();
+        if (type == -1)
+          break;
+        if (type == RECORD_PUT) {
+          byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          builder.put(ServiceAlert.parseFrom(bytes));
+        } else if (type == RECORD_REMOVE) {
+          String agencyId = in.readUTF();
+          String id = in.readUTF();
+          builder.remove(new AgencyAndId(agencyId, id));
+        } else {
+          _log.warn("unknown record type " + type + " in service alerts journal "
+              + _path + " after " + count + " records");
+          break;
+        }
+        count++;
+      }
+    } catch (EOFException ex) {
+      _log.warn("incomplete record at the end of service alerts journal "
+          + _path + " after " + count + " records");
+    } finally {
+      in.close();
+    }
+
+    _recordCount += count;
+    return count;
+  }
+
+  /**
+   * Appends a batch of changes and flushes it to disk.
+   *
+   * @param updated
+   * @param removed
+   * @throws IOException
+   */
+  public void append(List<ServiceAlert> updated, List<AgencyAndId> removed)
+      throws IOException {
+
+    if (updated.isEmpty() && removed.isEmpty())
+      return;
+
+    if (_out == null)
+      _out = open(true);
+
+    for (ServiceAlert serviceAlert : updated) {
+      byte[] bytes = serviceAlert.toByteArray();
+      _out.writeByte(RECORD_PUT);
+      _out.writeInt(bytes.length);
+      _out.write(bytes);
+    }
+
+    for (AgencyAndId id : removed) {
+      _out.writeByte(RECORD_REMOVE);
+      _out.writeUTF(id.getAgencyId());
+      _out.writeUTF(id.getId());
+    }
+
+    _out.flush();
+    _recordCount += updated.size() + removed.size();
+  }
+
+  /**
+   * Discards all records. Call only once the current state has been written
+   * to a snapshot.
+   *
+   * @throws IOException
+   */
+  public void truncate() throws IOException {
+    close();
+    open(false).close();
+    _recordCount = 0;
+  }
+
+  public void close() throws IOException {
+    if (_out != null) {
+      try {
+        _out.close();
+      } finally {
+        _out = null;
+      }
+    }
+  }
+
+  private DataOutputStream open(boolean append) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+        _path, append)));
+  }
+}
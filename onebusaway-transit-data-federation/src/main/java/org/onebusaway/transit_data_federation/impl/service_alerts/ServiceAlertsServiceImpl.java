@@ -28,12 +28,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -60,7 +57,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
-class ServiceAlertsServiceImpl implements ServiceAlertsService {
+public class ServiceAlertsServiceImpl implements ServiceAlertsService {
 
   private static Logger _log = LoggerFactory.getLogger(ServiceAlertsServiceImpl.class);
 
@@ -75,38 +72,22 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
     AGENCY, ROUTE, ROUTE_DIRECTION, ROUTE_STOP, ROUTE_DIRECTION_STOP, TRIP, TRIP_STOP, STOP, UNSUPPORTED
   }
 
-  private ConcurrentMap<AgencyAndId, ServiceAlert> _serviceAlerts = new ConcurrentHashMap<AgencyAndId, ServiceAlert>();
-
-  /**
-   * This map groups service alert ids by the agency id in their
-   * {@link ServiceAlert#getId()} id.
-   */
-  private ConcurrentMap<String, Set<AgencyAndId>> _serviceAlertIdsByServiceAlertAgencyId = new ConcurrentHashMap<String, Set<AgencyAndId>>();
-
   /**
-   * This map groups service alert ids by any agency id mentioned in
-   * {@link Affects#getAgencyId()}.
+   * The current snapshot of all service alerts and their indices. Readers
+   * grab the reference once per query. Writers build a new snapshot from the
+   * current one and publish it with a single volatile write, holding the
+   * instance lock only to serialize writers against one another.
    */
-  private ConcurrentMap<String, Set<AgencyAndId>> _serviceAlertIdsByAgencyId = new ConcurrentHashMap<String, Set<AgencyAndId>>();
-
-  private ConcurrentMap<AgencyAndId, Set<AgencyAndId>> _serviceAlertIdsByStopId = new ConcurrentHashMap<AgencyAndId, Set<AgencyAndId>>();
-
-  private ConcurrentMap<AgencyAndId, Set<AgencyAndId>> _serviceAlertIdsByRouteId = new ConcurrentHashMap<AgencyAndId, Set<AgencyAndId>>();
-
-  private ConcurrentMap<RouteAndDirectionRef, Set<AgencyAndId>> _serviceAlertIdsByRouteAndDirectionId = new ConcurrentHashMap<RouteAndDirectionRef, Set<AgencyAndId>>();
-
-  private ConcurrentMap<RouteAndStopCallRef, Set<AgencyAndId>> _serviceAlertIdsByRouteAndStop = new ConcurrentHashMap<RouteAndStopCallRef, Set<AgencyAndId>>();
-
-  private ConcurrentMap<RouteDirectionAndStopCallRef, Set<AgencyAndId>> _serviceAlertIdsByRouteDirectionAndStopCall = new ConcurrentHashMap<RouteDirectionAndStopCallRef, Set<AgencyAndId>>();
-
-  private ConcurrentMap<AgencyAndId, Set<AgencyAndId>> _serviceAlertIdsByTripId = new ConcurrentHashMap<AgencyAndId, Set<AgencyAndId>>();
-
-  private ConcurrentMap<TripAndStopCallRef, Set<AgencyAndId>> _serviceAlertIdsByTripAndStopId = new ConcurrentHashMap<TripAndStopCallRef, Set<AgencyAndId>>();
+  private volatile ServiceAlertsIndex _index = ServiceAlertsIndex.EMPTY;
 
   private FederatedTransitDataBundle _bundle;
 
   private File _serviceAlertsPath;
 
+  private ServiceAlertsJournal _journal;
+
+  private int _journalCompactionThreshold = 1000;
+
   @Autowired
   public void setBundle(FederatedTransitDataBundle bundle) {
     _bundle = bundle;
@@ -116,14 +97,35 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
     _serviceAlertsPath = path;
   }
 
+  /**
+   * Changes are appended to a journal next to the service alerts file, which
+   * is folded back into the service alerts file once it contains this many
+   * records.
+   * 
+   * @param journalCompactionThreshold
+   */
+  public void setJournalCompactionThreshold(int journalCompactionThreshold) {
+    _journalCompactionThreshold = journalCompactionThreshold;
+  }
+
+  /**
+   * 
+   * @return a version number that increases with every change to the set of
+   *         service alerts
+   */
+  public long getServiceAlertsVersion() {
+    return _index.getVersion();
+  }
+
   @PostConstruct
   public void start() {
     loadServiceAlerts();
   }
 
   @PreDestroy
-  public void stop() {
-    saveServiceAlerts();
+  public synchronized void stop() {
+    compactServiceAlerts();
+    closeJournal();
   }
 
   /****
@@ -131,87 +133,117 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
    ****/
 
   @Override
-  public synchronized ServiceAlert createOrUpdateServiceAlert(
-      ServiceAlert.Builder builder, String defaultAgencyId) {
-
-    if (!builder.hasId()) {
-      UUID uuid = UUID.randomUUID();
-      Id id = ServiceAlertLibrary.id(defaultAgencyId, uuid.toString());
-      builder.setId(id);
-    }
-
-    if (!builder.hasCreationTime())
-      builder.setCreationTime(System.currentTimeMillis());
-    builder.setModifiedTime(System.currentTimeMillis());
-
-    ServiceAlert serviceAlert = builder.build();
-    updateReferences(serviceAlert);
-    saveServiceAlerts();
-    return serviceAlert;
+  public ServiceAlert createOrUpdateServiceAlert(ServiceAlert.Builder builder,
+      String defaultAgencyId) {
+    List<ServiceAlert> serviceAlerts = updateServiceAlerts(
+        Arrays.asList(builder), Collections.<AgencyAndId> emptyList(),
+        defaultAgencyId);
+    return serviceAlerts.get(0);
   }
 
   @Override
-  public synchronized void removeServiceAlert(AgencyAndId serviceAlertId) {
-    removeServiceAlerts(Arrays.asList(serviceAlertId));
+  public List<ServiceAlert> createOrUpdateServiceAlerts(
+      List<ServiceAlert.Builder> builders, String defaultAgencyId) {
+    return updateServiceAlerts(builders,
+        Collections.<AgencyAndId> emptyList(), defaultAgencyId);
   }
 
   @Override
-  public synchronized void removeServiceAlerts(List<AgencyAndId> serviceAlertIds) {
+  public synchronized List<ServiceAlert> updateServiceAlerts(
+      List<ServiceAlert.Builder> builders, List<AgencyAndId> serviceAlertIds,
+      String defaultAgencyId) {
 
-    for (AgencyAndId serviceAlertId : serviceAlertIds) {
+    ServiceAlertsIndex.Builder index = _index.builder();
+    long now = System.currentTimeMillis();
 
-      ServiceAlert existingServiceAlert = _serviceAlerts.remove(serviceAlertId);
+    List<ServiceAlert> serviceAlerts = new ArrayList<ServiceAlert>(
+        builders.size());
+    for (ServiceAlert.Builder builder : builders) {
 
-      if (existingServiceAlert != null) {
-        updateReferences(existingServiceAlert, null);
+      if (!builder.hasId()) {
+        UUID uuid = UUID.randomUUID();
+        Id id = ServiceAlertLibrary.id(defaultAgencyId, uuid.toString());
+        builder.setId(id);
       }
+
+      if (!builder.hasCreationTime())
+        builder.setCreationTime(now);
+      builder.setModifiedTime(now);
+
+      ServiceAlert serviceAlert = builder.build();
+      index.put(serviceAlert);
+      serviceAlerts.add(serviceAlert);
     }
 
-    saveServiceAlerts();
+    List<AgencyAndId> removedIds = new ArrayList<AgencyAndId>();
+    for (AgencyAndId serviceAlertId : serviceAlertIds) {
+      if (index.remove(serviceAlertId) != null)
+        removedIds.add(serviceAlertId);
+    }
+
+    publish(index, serviceAlerts, removedIds);
+    return serviceAlerts;
+  }
+
+  @Override
+  public void removeServiceAlert(AgencyAndId serviceAlertId) {
+    removeServiceAlerts(Arrays.asList(serviceAlertId));
+  }
+
+  @Override
+  public void removeServiceAlerts(List<AgencyAndId> serviceAlertIds) {
+    updateServiceAlerts(Collections.<ServiceAlert.Builder> emptyList(),
+        serviceAlertIds, null);
   }
 
   @Override
   public synchronized void removeAllServiceAlertsForFederatedAgencyId(
       String agencyId) {
-    Set<AgencyAndId> ids = _serviceAlertIdsByServiceAlertAgencyId.get(agencyId);
+    Set<AgencyAndId> ids = _index.getServiceAlertIdsByServiceAlertAgencyId().get(
+        agencyId);
     if (ids != null)
       removeServiceAlerts(new ArrayList<AgencyAndId>(ids));
   }
 
   @Override
   public ServiceAlert getServiceAlertForId(AgencyAndId serviceAlertId) {
-    return _serviceAlerts.get(serviceAlertId);
+    return _index.getServiceAlert(serviceAlertId);
   }
 
   @Override
   public List<ServiceAlert> getAllServiceAlerts() {
-    return new ArrayList<ServiceAlert>(_serviceAlerts.values());
+    return new ArrayList<ServiceAlert>(_index.getServiceAlerts());
   }
 
   @Override
   public List<ServiceAlert> getServiceAlertsForFederatedAgencyId(String agencyId) {
-    Set<AgencyAndId> serviceAlertIds = _serviceAlertIdsByServiceAlertAgencyId.get(agencyId);
-    return getServiceAlertIdsAsObjects(serviceAlertIds);
+    ServiceAlertsIndex index = _index;
+    Set<AgencyAndId> serviceAlertIds = index.getServiceAlertIdsByServiceAlertAgencyId().get(
+        agencyId);
+    return getServiceAlertIdsAsObjects(index, serviceAlertIds);
   }
 
   @Override
   public List<ServiceAlert> getServiceAlertsForAgencyId(long time,
       String agencyId) {
-    Set<AgencyAndId> serviceAlertIds = new HashSet<AgencyAndId>();
-    getServiceAlertIdsForKey(_serviceAlertIdsByAgencyId, agencyId,
+    ServiceAlertsIndex index = _index;
+    ServiceAlertCandidates serviceAlertIds = new ServiceAlertCandidates();
+    index.getServiceAlertIdsByAgencyId().getServiceAlertIdsForKey(agencyId,
         serviceAlertIds);
-    return getServiceAlertIdsAsObjects(serviceAlertIds, time);
+    return getServiceAlertIdsAsObjects(index, serviceAlertIds, time);
   }
 
   @Override
   public List<ServiceAlert> getServiceAlertsForStopId(long time,
       AgencyAndId stopId) {
 
-    Set<AgencyAndId> serviceAlertIds = new HashSet<AgencyAndId>();
-    getServiceAlertIdsForKey(_serviceAlertIdsByAgencyId, stopId.getAgencyId(),
+    ServiceAlertsIndex index = _index;
+    ServiceAlertCandidates serviceAlertIds = new ServiceAlertCandidates();
+    index.getServiceAlertIdsByAgencyId().getServiceAlertIdsForKey(
+        stopId.getAgencyId(), serviceAlertIds);
+    index.getServiceAlertIdsByStopId().getServiceAlertIdsForKey(stopId,
         serviceAlertIds);
-    getServiceAlertIdsForKey(_serviceAlertIdsByStopId, stopId, serviceAlertIds);
-    return getServiceAlertIdsAsObjects(serviceAlertIds, time);
+    return getServiceAlertIdsAsObjects(index, serviceAlertIds, time);
   }
 
   @Override
@@ -228,7 +260,8 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
     StopEntry stop = stopTime.getStop();
     AgencyAndId stopId = stop.getId();
 
-    Set<AgencyAndId> serviceAlertIds = new HashSet<AgencyAndId>();
+    ServiceAlertsIndex index = _index;
+    ServiceAlertCandidates serviceAlertIds = new ServiceAlertCandidates();
     /*
      * TODO: Temporarily disable
      */
@@ -236,10 +269,11 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
      * getServiceAlertIdsForKey(_serviceAlertsIdsByAgencyId,
      * lineId.getAgencyId(), serviceAlertIds);
      */
-    getServiceAlertIdsForKey(_serviceAlertIdsByRouteId, lineId, serviceAlertIds);
+    index.getServiceAlertIdsByRouteId().getServiceAlertIdsForKey(lineId,
+        serviceAlertIds);
     RouteAndStopCallRef routeAndStopCallRef = new RouteAndStopCallRef(lineId,
         stopId);
-    getServiceAlertIdsForKey(_serviceAlertIdsByRouteAndStop,
+    index.getServiceAlertIdsByRouteAndStop().getServiceAlertIdsForKey(
         routeAndStopCallRef, serviceAlertIds);
 
     /**
@@ -251,20 +285,20 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
       RouteDirectionAndStopCallRef lineDirectionAndStopCallRef = new RouteDirectionAndStopCallRef(
           lineId, directionId, stopId);
 
-      getServiceAlertIdsForKey(_serviceAlertIdsByRouteAndDirectionId,
+      index.getServiceAlertIdsByRouteAndDirectionId().getServiceAlertIdsForKey(
           lineAndDirectionRef, serviceAlertIds);
-      getServiceAlertIdsForKey(_serviceAlertIdsByRouteDirectionAndStopCall,
+      index.getServiceAlertIdsByRouteDirectionAndStopCall().getServiceAlertIdsForKey(
           lineDirectionAndStopCallRef, serviceAlertIds);
     }
 
-    getServiceAlertIdsForKey(_serviceAlertIdsByTripId, trip.getId(),
+    index.getServiceAlertIdsByTripId().getServiceAlertIdsForKey(trip.getId(),
         serviceAlertIds);
     TripAndStopCallRef tripAndStopCallRef = new TripAndStopCallRef(tripId,
         stopId);
-    getServiceAlertIdsForKey(_serviceAlertIdsByTripAndStopId,
+    index.getServiceAlertIdsByTripAndStopId().getServiceAlertIdsForKey(
         tripAndStopCallRef, serviceAlertIds);
 
-    return getServiceAlertIdsAsObjects(serviceAlertIds, time);
+    return getServiceAlertIdsAsObjects(index, serviceAlertIds, time);
   }
 
   @Override
@@ -277,20 +311,23 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
     RouteAndDirectionRef lineAndDirectionRef = new RouteAndDirectionRef(lineId,
         trip.getDirectionId());
 
-    Set<AgencyAndId> serviceAlertIds = new HashSet<AgencyAndId>();
-    getServiceAlertIdsForKey(_serviceAlertIdsByAgencyId, lineId.getAgencyId(),
+    ServiceAlertsIndex index = _index;
+    ServiceAlertCandidates serviceAlertIds = new ServiceAlertCandidates();
+    index.getServiceAlertIdsByAgencyId().getServiceAlertIdsForKey(
+        lineId.getAgencyId(), serviceAlertIds);
+    index.getServiceAlertIdsByRouteId().getServiceAlertIdsForKey(lineId,
         serviceAlertIds);
-    getServiceAlertIdsForKey(_serviceAlertIdsByRouteId, lineId, serviceAlertIds);
-    getServiceAlertIdsForKey(_serviceAlertIdsByRouteAndDirectionId,
+    index.getServiceAlertIdsByRouteAndDirectionId().getServiceAlertIdsForKey(
         lineAndDirectionRef, serviceAlertIds);
-    getServiceAlertIdsForKey(_serviceAlertIdsByTripId, trip.getId(),
+    index.getServiceAlertIdsByTripId().getServiceAlertIdsForKey(trip.getId(),
         serviceAlertIds);
-    return getServiceAlertIdsAsObjects(serviceAlertIds, time);
+    return getServiceAlertIdsAsObjects(index, serviceAlertIds, time);
   }
 
   @Override
   public List<ServiceAlert> getServiceAlerts(SituationQueryBean query) {
-    Set<AgencyAndId> serviceAlertIds = new HashSet<AgencyAndId>();
+    ServiceAlertsIndex index = _index;
+    ServiceAlertCandidates serviceAlertIds = new ServiceAlertCandidates();
 
     for (SituationQueryBean.AffectsBean affects : query.getAffects()) {
 
@@ -307,50 +344,46 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
            * Note we are treating the query's agency ID as that of what the
            * service alert affects, not the alert's federated agency ID.
            */
-          getServiceAlertIdsForKey(_serviceAlertIdsByAgencyId,
-              affects.getAgencyId(), serviceAlertIds);
+          index.getServiceAlertIdsByAgencyId().getServiceAlertIdsForKey(affects.getAgencyId(), serviceAlertIds);
           break;
         }
         case ROUTE: {
 
-          getServiceAlertIdsForKey(_serviceAlertIdsByRouteId, routeId,
+          index.getServiceAlertIdsByRouteId().getServiceAlertIdsForKey(routeId,
               serviceAlertIds);
           break;
         }
         case TRIP: {
-          getServiceAlertIdsForKey(_serviceAlertIdsByTripId, tripId,
+          index.getServiceAlertIdsByTripId().getServiceAlertIdsForKey(tripId,
               serviceAlertIds);
           break;
         }
         case STOP: {
-          getServiceAlertIdsForKey(_serviceAlertIdsByStopId, stopId,
+          index.getServiceAlertIdsByStopId().getServiceAlertIdsForKey(stopId,
               serviceAlertIds);
           break;
         }
         case ROUTE_DIRECTION: {
           RouteAndDirectionRef routeAndDirectionRef = new RouteAndDirectionRef(
               routeId, affects.getDirectionId());
-          getServiceAlertIdsForKey(_serviceAlertIdsByRouteAndDirectionId,
-              routeAndDirectionRef, serviceAlertIds);
+          index.getServiceAlertIdsByRouteAndDirectionId().getServiceAlertIdsForKey(routeAndDirectionRef, serviceAlertIds);
           break;
         }
         case ROUTE_DIRECTION_STOP: {
           RouteDirectionAndStopCallRef ref = new RouteDirectionAndStopCallRef(
               routeId, affects.getDirectionId(), stopId);
-          getServiceAlertIdsForKey(_serviceAlertIdsByRouteDirectionAndStopCall,
-              ref, serviceAlertIds);
+          index.getServiceAlertIdsByRouteDirectionAndStopCall().getServiceAlertIdsForKey(ref, serviceAlertIds);
           break;
         }
         case ROUTE_STOP: {
           RouteAndStopCallRef routeAndStopRef = new RouteAndStopCallRef(
               routeId, stopId);
-          getServiceAlertIdsForKey(_serviceAlertIdsByRouteAndStop,
-              routeAndStopRef, serviceAlertIds);
+          index.getServiceAlertIdsByRouteAndStop().getServiceAlertIdsForKey(routeAndStopRef, serviceAlertIds);
           break;
         }
         case TRIP_STOP: {
           TripAndStopCallRef ref = new TripAndStopCallRef(tripId, stopId);
-          getServiceAlertIdsForKey(_serviceAlertIdsByTripAndStopId, ref,
+          index.getServiceAlertIdsByTripAndStopId().getServiceAlertIdsForKey(ref,
               serviceAlertIds);
           break;
         }
@@ -360,7 +393,8 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
       }
     }
     
-    List<ServiceAlert> alerts = getServiceAlertIdsAsObjects(serviceAlertIds);
+    List<ServiceAlert> alerts = getServiceAlertIdsAsObjects(index,
+        serviceAlertIds, -1);
     
     // SituationQueryBean no longer supports filtering by time, but it might return, so leaving this code here
     // for future reference.
@@ -405,104 +439,55 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
 //    }
 //  }
 //
-  private void updateReferences(ServiceAlert serviceAlert) {
-    AgencyAndId id = ServiceAlertLibrary.agencyAndId(serviceAlert.getId());
-    ServiceAlert existingServiceAlert = _serviceAlerts.put(id, serviceAlert);
-    updateReferences(existingServiceAlert, serviceAlert);
-  }
-
-  private void updateReferences(ServiceAlert existingServiceAlert,
-      ServiceAlert serviceAlert) {
-
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByServiceAlertAgencyId,
-        AffectsServiceAlertAgencyKeyFactory.INSTANCE);
-
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByAgencyId, AffectsAgencyKeyFactory.INSTANCE);
-
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByStopId, AffectsStopKeyFactory.INSTANCE);
-
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByRouteId, AffectsRouteKeyFactory.INSTANCE);
-
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByRouteAndDirectionId,
-        AffectsRouteAndDirectionKeyFactory.INSTANCE);
-
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByRouteAndStop, AffectsRouteAndStopKeyFactory.INSTANCE);
-
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByRouteDirectionAndStopCall,
-        AffectsRouteDirectionAndStopCallKeyFactory.INSTANCE);
-
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByTripId, AffectsTripKeyFactory.INSTANCE);
-    updateReferences(existingServiceAlert, serviceAlert,
-        _serviceAlertIdsByTripAndStopId, AffectsTripAndStopKeyFactory.INSTANCE);
-
-  }
+  /**
+   * Publishes a new snapshot and records the changes that produced it in the
+   * journal. Must be called with the instance lock held.
+   */
+  private void publish(ServiceAlertsIndex.Builder index,
+      List<ServiceAlert> updated, List<AgencyAndId> removed) {
 
-  private <T> void updateReferences(ServiceAlert existingServiceAlert,
-      ServiceAlert serviceAlert, ConcurrentMap<T, Set<AgencyAndId>> map,
-      AffectsKeyFactory<T> affectsKeyFactory) {
+    if (!index.hasChanges())
+      return;
 
-    Set<T> existingEffects = Collections.emptySet();
-    if (existingServiceAlert != null) {
-      existingEffects = affectsKeyFactory.getKeysForAffects(existingServiceAlert);
-    }
+    _index = index.build();
 
-    Set<T> newEffects = Collections.emptySet();
-    if (serviceAlert != null) {
-      newEffects = affectsKeyFactory.getKeysForAffects(serviceAlert);
-    }
+    ServiceAlertsJournal journal = getJournal();
+    if (journal == null)
+      return;
 
-    for (T existingEffect : existingEffects) {
-      if (newEffects.contains(existingEffect))
-        continue;
-      AgencyAndId id = ServiceAlertLibrary.agencyAndId(existingServiceAlert.getId());
-      Set<AgencyAndId> ids = map.get(existingEffect);
-      ids.remove(id);
-      if (ids.isEmpty())
-        map.remove(existingEffect);
+    try {
+      journal.append(updated, removed);
+    } catch (IOException ex) {
+      _log.error("error appending to service alerts journal "
+          + journal.getPath(), ex);
+      compactServiceAlerts();
+      return;
     }
 
-    for (T newEffect : newEffects) {
-      if (existingEffects.contains(newEffect))
-        continue;
-      AgencyAndId id = ServiceAlertLibrary.agencyAndId(serviceAlert.getId());
-      Set<AgencyAndId> ids = map.get(newEffect);
-      if (ids == null) {
-        ids = new HashSet<AgencyAndId>();
-        map.put(newEffect, ids);
-      }
-      ids.add(id);
-    }
+    if (journal.getRecordCount() >= _journalCompactionThreshold)
+      compactServiceAlerts();
   }
 
-  private <T> void getServiceAlertIdsForKey(
-      ConcurrentMap<T, Set<AgencyAndId>> serviceAlertIdsByKey, T key,
-      Collection<AgencyAndId> matches) {
-    Set<AgencyAndId> ids = serviceAlertIdsByKey.get(key);
-    if (ids != null)
-      matches.addAll(ids);
+  private List<ServiceAlert> getServiceAlertIdsAsObjects(
+      ServiceAlertsIndex index, Collection<AgencyAndId> serviceAlertIds) {
+    return getServiceAlertIdsAsObjects(index, serviceAlertIds, -1);
   }
 
   private List<ServiceAlert> getServiceAlertIdsAsObjects(
-      Collection<AgencyAndId> serviceAlertIds) {
-    return getServiceAlertIdsAsObjects(serviceAlertIds, -1);
+      ServiceAlertsIndex index, ServiceAlertCandidates candidates, long time) {
+    return getServiceAlertIdsAsObjects(index, candidates.getIds(index, time),
+        time);
   }
 
   private List<ServiceAlert> getServiceAlertIdsAsObjects(
-      Collection<AgencyAndId> serviceAlertIds, long time) {
+      ServiceAlertsIndex index, Collection<AgencyAndId> serviceAlertIds,
+      long time) {
     if (serviceAlertIds == null || serviceAlertIds.isEmpty())
       return Collections.emptyList();
     List<ServiceAlert> serviceAlerts = new ArrayList<ServiceAlert>(
         serviceAlertIds.size());
     for (AgencyAndId serviceAlertId : serviceAlertIds) {
-      ServiceAlert serviceAlert = _serviceAlerts.get(serviceAlertId);
+      ServiceAlert serviceAlert = index.getServiceAlert(serviceAlertId);
       if (serviceAlert != null && filterByTime(serviceAlert, time))
         serviceAlerts.add(serviceAlert);
     }
@@ -588,32 +573,61 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
     _log.info("Loading service alerts from bundle");
     File path = getServiceAlertsPath();
 
-    if (path == null || !path.exists())
+    if (path == null)
       return;
 
-    InputStream in = null;
+    ServiceAlertsIndex.Builder index = _index.builder();
 
-    try {
+    if (path.exists()) {
 
-      in = new BufferedInputStream(new FileInputStream(path));
-      ServiceAlertsCollection collection = ServiceAlertsCollection.parseFrom(in);
-      for (ServiceAlert serviceAlert : collection.getServiceAlertsList())
-        updateReferences(serviceAlert);
+      InputStream in = null;
 
-    } catch (Exception ex) {
-      _log.error("error loading service alerts from path " + path, ex);
-    } finally {
-      if (in != null) {
-        try {
-          in.close();
-        } catch (IOException ex) {
-          _log.error("error closing service alerts path " + path, ex);
+      try {
+
+        in = new BufferedInputStream(new FileInputStream(path));
+        ServiceAlertsCollection collection = ServiceAlertsCollection.parseFrom(in);
+        for (ServiceAlert serviceAlert : collection.getServiceAlertsList())
+          index.put(serviceAlert);
+
+      } catch (Exception ex) {
+        _log.error("error loading service alerts from path " + path, ex);
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException ex) {
+            _log.error("error closing service alerts path " + path, ex);
+          }
         }
       }
     }
+
+    ServiceAlertsJournal journal = getJournal();
+    int replayed = 0;
+    try {
+      replayed = journal.replay(index);
+    } catch (Exception ex) {
+      _log.error("error replaying service alerts journal " + journal.getPath(),
+          ex);
+    }
+
+    _index = index.build();
+
+    /**
+     * Fold the journal into the snapshot right away, which also discards any
+     * partially written record at the end of the journal
+     */
+    if (replayed > 0 || journal.getPath().length() > 0)
+      compactServiceAlerts();
   }
 
-  private synchronized void saveServiceAlerts() {
+  /**
+   * Writes the current snapshot to the service alerts file and empties the
+   * journal. The snapshot is written to a temporary file first and then
+   * renamed into place, so a crash part way through leaves the previous
+   * snapshot and the journal intact.
+   */
+  private synchronized void compactServiceAlerts() {
 
     File path = getServiceAlertsPath();
 
@@ -621,14 +635,24 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
       return;
 
     ServiceAlertsCollection.Builder builder = ServiceAlertsCollection.newBuilder();
-    builder.addAllServiceAlerts(_serviceAlerts.values());
+    builder.addAllServiceAlerts(_index.getServiceAlerts());
     ServiceAlertsCollection collection = builder.build();
 
+    File tmpPath = new File(path.getParentFile(), path.getName() + ".tmp");
+
     OutputStream out = null;
     try {
-      out = new BufferedOutputStream(new FileOutputStream(path));
+      out = new BufferedOutputStream(new FileOutputStream(tmpPath));
       collection.writeTo(out);
       out.close();
+      out = null;
+      if (!tmpPath.renameTo(path)) {
+        // Windows won't rename over an existing file
+        path.delete();
+        if (!tmpPath.renameTo(path))
+          throw new IOException("error renaming " + tmpPath + " to " + path);
+      }
+      getJournal().truncate();
     } catch (Exception ex) {
       _log.error("error saving service alerts to path " + path, ex);
     } finally {
@@ -642,6 +666,28 @@ class ServiceAlertsServiceImpl implements ServiceAlertsService {
     }
   }
 
+  private ServiceAlertsJournal getJournal() {
+    if (_journal == null) {
+      File path = getServiceAlertsPath();
+      if (path == null)
+        return null;
+      _journal = new ServiceAlertsJournal(new File(path.getParentFile(),
+          path.getName() + ".journal"));
+    }
+    return _journal;
+  }
+
+  private void closeJournal() {
+    if (_journal == null)
+      return;
+    try {
+      _journal.close();
+    } catch (IOException ex) {
+      _log.error("error closing service alerts journal " + _journal.getPath(),
+          ex);
+    }
+  }
+
   private File getServiceAlertsPath() {
     if (_serviceAlertsPath != null)
       return _serviceAlertsPath;
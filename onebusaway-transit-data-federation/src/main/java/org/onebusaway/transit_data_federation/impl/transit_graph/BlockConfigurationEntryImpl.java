@@ -107,16 +107,30 @@ public class BlockConfigurationEntryImpl implements BlockConfigurationEntry,
     return totalBlockDistance;
   }
 
+  /**
+   * The index methods below are consulted in the inner loop of most schedule
+   * searches. When the trip's stop times have been compacted into a
+   * {@link StopTimeEntriesImpl}, we read its arrays directly rather than
+   * creating a stop time view for every lookup.
+   */
   @Override
   public int getArrivalTimeForIndex(int index) {
-    StopTimeEntry stopTime = getStopTimeForIndex(index);
-    return stopTime.getArrivalTime();
+    int tripIndex = tripIndices[index];
+    List<StopTimeEntry> stopTimes = trips.get(tripIndex).getTrip().getStopTimes();
+    int stopTimeIndex = index - accumulatedStopTimeIndices[tripIndex];
+    if (stopTimes instanceof StopTimeEntriesImpl)
+      return ((StopTimeEntriesImpl) stopTimes).getArrivalTime(stopTimeIndex);
+    return stopTimes.get(stopTimeIndex).getArrivalTime();
   }
 
   @Override
   public int getDepartureTimeForIndex(int index) {
-    StopTimeEntry stopTime = getStopTimeForIndex(index);
-    return stopTime.getDepartureTime();
+    int tripIndex = tripIndices[index];
+    List<StopTimeEntry> stopTimes = trips.get(tripIndex).getTrip().getStopTimes();
+    int stopTimeIndex = index - accumulatedStopTimeIndices[tripIndex];
+    if (stopTimes instanceof StopTimeEntriesImpl)
+      return ((StopTimeEntriesImpl) stopTimes).getDepartureTime(stopTimeIndex);
+    return stopTimes.get(stopTimeIndex).getDepartureTime();
   }
 
   @Override
@@ -125,13 +139,16 @@ public class BlockConfigurationEntryImpl implements BlockConfigurationEntry,
     int tripIndex = tripIndices[index];
 
     BlockTripEntry blockTrip = trips.get(tripIndex);
-    TripEntry trip = blockTrip.getTrip();
-
-    List<StopTimeEntry> stopTimes = trip.getStopTimes();
+    List<StopTimeEntry> stopTimes = blockTrip.getTrip().getStopTimes();
     int stopTimeIndex = index - accumulatedStopTimeIndices[tripIndex];
-    StopTimeEntry stopTime = stopTimes.get(stopTimeIndex);
 
-    return blockTrip.getDistanceAlongBlock() + stopTime.getShapeDistTraveled();
+    double shapeDistTraveled;
+    if (stopTimes instanceof StopTimeEntriesImpl)
+      shapeDistTraveled = ((StopTimeEntriesImpl) stopTimes).getShapeDistTraveled(stopTimeIndex);
+    else
+      shapeDistTraveled = stopTimes.get(stopTimeIndex).getShapeDistTraveled();
+
+    return blockTrip.getDistanceAlongBlock() + shapeDistTraveled;
   }
 
   @Override
@@ -325,22 +342,6 @@ public class BlockConfigurationEntryImpl implements BlockConfigurationEntry,
     }
   }
 
-  /*****
-   * Private Methods
-   ****/
-
-  private StopTimeEntry getStopTimeForIndex(int index) {
-    int tripIndex = tripIndices[index];
-
-    BlockTripEntry blockTrip = trips.get(tripIndex);
-    TripEntry trip = blockTrip.getTrip();
-
-    List<StopTimeEntry> stopTimes = trip.getStopTimes();
-    int stopTimeIndex = index - accumulatedStopTimeIndices[tripIndex];
-    StopTimeEntry stopTime = stopTimes.get(stopTimeIndex);
-    return stopTime;
-  }
-
   private class BlockStopTimeList extends AbstractList<BlockStopTimeEntry>
       implements Serializable {
 
@@ -60,7 +60,8 @@ public class BlockStopTimeEntryImpl implements BlockStopTimeEntry {
 
   @Override
   public double getDistanceAlongBlock() {
-    return trip.getDistanceAlongBlock() + stopTime.getShapeDistTraveled();
+    return trip.getBlockConfiguration().getDistanceAlongBlockForIndex(
+        blockSequence);
   }
 
   @Override
@@ -137,18 +137,20 @@ public class BlockTripEntryImpl implements BlockTripEntry, Serializable {
 
   @Override
   public int getArrivalTimeForIndex(int stopIndex) {
-    return trip.getStopTimes().get(stopIndex).getArrivalTime();
+    return blockConfiguration.getArrivalTimeForIndex(accumulatedStopTimeIndex
+        + stopIndex);
   }
 
   @Override
   public int getDepartureTimeForIndex(int stopIndex) {
-    return trip.getStopTimes().get(stopIndex).getDepartureTime();
+    return blockConfiguration.getDepartureTimeForIndex(accumulatedStopTimeIndex
+        + stopIndex);
   }
 
   @Override
   public double getDistanceAlongBlockForIndex(int stopIndex) {
-    return distanceAlongBlock
-        + trip.getStopTimes().get(stopIndex).getShapeDistTraveled();
+    return blockConfiguration.getDistanceAlongBlockForIndex(accumulatedStopTimeIndex
+        + stopIndex);
   }
 
   @Override
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.transit_graph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Shared constants and low-level file support for the columnar transit graph
+ * bundle format written by {@link ColumnarTransitGraphWriter} and read by
+ * {@link ColumnarTransitGraphReader}.
+ *
+ * Each table file starts with a header of magic number, format version and row
+ * count, followed by a sequence of columns. Every column is written as an int
+ * element count followed by the big-endian values themselves. Entities refer to
+ * one another by integer row index into the appropriate table, with -1 standing
+ * in for a null reference. Variable-length lists are written as a column of
+ * list lengths (-1 for a null list) followed by a column of concatenated
+ * values.
+ *
+ * Stop times are by far the largest table, so each of their columns lives in a
+ * separate file. That keeps every individual mapping under the 2GB limit of a
+ * {@link java.nio.MappedByteBuffer}.
+ */
+final class ColumnarTransitGraphFormat {
+
+  static final int MAGIC = 0x4f424147;
+
+  static final int VERSION = 1;
+
+  static final String STRINGS = "strings.bin";
+
+  static final String SERVICE_IDS = "service_ids.bin";
+
+  static final String SERVICE_ID_ACTIVATIONS = "service_id_activations.bin";
+
+  static final String FREQUENCIES = "frequencies.bin";
+
+  static final String AGENCIES = "agencies.bin";
+
+  static final String STOPS = "stops.bin";
+
+  static final String ROUTE_COLLECTIONS = "route_collections.bin";
+
+  static final String ROUTES = "routes.bin";
+
+  static final String TRIPS = "trips.bin";
+
+  static final String BLOCKS = "blocks.bin";
+
+  static final String BLOCK_CONFIGURATIONS = "block_configurations.bin";
+
+  static final String STOP_TIMES_ID = "stop_times-id.bin";
+
+  static final String STOP_TIMES_STOP = "stop_times-stop.bin";
+
+  static final String STOP_TIMES_ARRIVAL = "stop_times-arrival.bin";
+
+  static final String STOP_TIMES_DEPARTURE = "stop_times-departure.bin";
+
+  static final String STOP_TIMES_SEQUENCE = "stop_times-sequence.bin";
+
+  static final String STOP_TIMES_PICKUP_TYPE = "stop_times-pickup_type.bin";
+
+  static final String STOP_TIMES_DROP_OFF_TYPE = "stop_times-drop_off_type.bin";
+
+  static final String STOP_TIMES_SHAPE_POINT_INDEX = "stop_times-shape_point_index.bin";
+
+  static final String STOP_TIMES_SHAPE_DIST_TRAVELED = "stop_times-shape_dist_traveled.bin";
+
+  static final String STOP_TIMES_ACCUMULATED_SLACK_TIME = "stop_times-accumulated_slack_time.bin";
+
+  private ColumnarTransitGraphFormat() {
+
+  }
+
+  /**
+   * Sequential writer for a single columnar table file.
+   */
+  static class ColumnarOutput {
+
+    private final DataOutputStream _out;
+
+    public ColumnarOutput(File path, int rows) throws IOException {
+      _out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(path), 1 << 16));
+      _out.writeInt(MAGIC);
+      _out.writeInt(VERSION);
+      _out.writeInt(rows);
+    }
+
+    public void writeInts(int[] values) throws IOException {
+      _out.writeInt(values.length);
+      for (int value : values)
+        _out.writeInt(value);
+    }
+
+    public void writeDoubles(double[] values) throws IOException {
+      _out.writeInt(values.length);
+      for (double value : values)
+        _out.writeDouble(value);
+    }
+
+    public void writeBytes(byte[] values) throws IOException {
+      _out.writeInt(values.length);
+      _out.write(values);
+    }
+
+    public void writeIndexLists(int[][] lists) throws IOException {
+      int[] lengths = new int[lists.length];
+      int total = 0;
+      for (int i = 0; i < lists.length; i++) {
+        if (lists[i] == null) {
+          lengths[i] = -1;
+        } else {
+          lengths[i] = lists[i].length;
+          total += lists[i].length;
+        }
+      }
+      int[] values = new int[total];
+      int index = 0;
+      for (int[] list : lists) {
+        if (list == null)
+          continue;
+        System.arraycopy(list, 0, values, index, list.length);
+        index += list.length;
+      }
+      writeInts(lengths);
+      writeInts(values);
+    }
+
+    public void close() throws IOException {
+      _out.close();
+    }
+  }
+
+  /**
+   * Sequential reader over a memory-mapped columnar table file. Columns can
+   * either be copied onto the heap or returned as read-only views that remain
+   * backed by the mapped file.
+   */
+  static class ColumnarInput {
+
+    private final ByteBuffer _buffer;
+
+    private final int _rows;
+
+    public ColumnarInput(File path) throws IOException {
+      RandomAccessFile file = new RandomAccessFile(path, "r");
+      try {
+        FileChannel channel = file.getChannel();
+        /**
+         * The mapping remains valid after the channel has been closed
+         */
+        _buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        file.close();
+      }
+
+      int magic = _buffer.getInt();
+      if (magic != MAGIC)
+        throw new IllegalStateException("unexpected columnar graph file: "
+            + path);
+      int version = _buffer.getInt();
+      if (version != VERSION)
+        throw new IllegalStateException("unsupported columnar graph version "
+            + version + " (expected " + VERSION + "): " + path);
+      _rows = _buffer.getInt();
+    }
+
+    public int getRows() {
+      return _rows;
+    }
+
+    public IntBuffer intColumn() {
+      int n = _buffer.getInt();
+      ByteBuffer slice = _buffer.slice();
+      slice.limit(n * 4);
+      _buffer.position(_buffer.position() + n * 4);
+      return slice.asIntBuffer();
+    }
+
+    public DoubleBuffer doubleColumn() {
+      int n = _buffer.getInt();
+      ByteBuffer slice = _buffer.slice();
+      slice.limit(n * 8);
+      _buffer.position(_buffer.position() + n * 8);
+      return slice.asDoubleBuffer();
+    }
+
+    public int[] readInts() {
+      IntBuffer column = intColumn();
+      int[] values = new int[column.remaining()];
+      column.get(values);
+      return values;
+    }
+
+    public double[] readDoubles() {
+      DoubleBuffer column = doubleColumn();
+      double[] values = new double[column.remaining()];
+      column.get(values);
+      return values;
+    }
+
+    public byte[] readBytes() {
+      int n = _buffer.getInt();
+      byte[] values = new byte[n];
+      _buffer.get(values);
+      return values;
+    }
+
+    public IndexLists readIndexLists() {
+      int[] lengths = readInts();
+      int[] values = readInts();
+      return new IndexLists(lengths, values);
+    }
+  }
+
+  /**
+   * The in-memory form of a column of variable-length index lists.
+   */
+  static class IndexLists {
+
+    private final int[] _lengths;
+
+    private final int[] _offsets;
+
+    private final int[] _values;
+
+    public IndexLists(int[] lengths, int[] values) {
+      _lengths = lengths;
+      _values = values;
+      _offsets = new int[lengths.length];
+      int offset = 0;
+      for (int i = 0; i < lengths.length; i++) {
+        _offsets[i] = offset;
+        if (lengths[i] > 0)
+          offset += lengths[i];
+      }
+    }
+
+    public boolean isNull(int row) {
+      return _lengths[row] == -1;
+    }
+
+    public int getLength(int row) {
+      return Math.max(_lengths[row], 0);
+    }
+
+    public int getOffset(int row) {
+      return _offsets[row];
+    }
+
+    public int getValue(int row, int index) {
+      return _values[_offsets[row] + index];
+    }
+  }
+}
@@ -0,0 +1,450 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.transit_graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.LocalizedServiceId;
+import org.onebusaway.transit_data.model.EAccessibility;
+import org.onebusaway.transit_data_federation.impl.transit_graph.ColumnarTransitGraphFormat.ColumnarInput;
+import org.onebusaway.transit_data_federation.impl.transit_graph.ColumnarTransitGraphFormat.IndexLists;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.FrequencyEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.RouteCollectionEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.RouteEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.ServiceIdActivation;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.TripEntry;
+
+import static org.onebusaway.transit_data_federation.impl.transit_graph.ColumnarTransitGraphFormat.*;
+
+/**
+ * Loads a {@link TransitGraphImpl} from the columnar bundle format written by
+ * {@link ColumnarTransitGraphWriter}.
+ *
+ * Agencies, stops, routes, trips and blocks are comparatively few in number
+ * and are materialized on the heap directly from primitive columns, with no
+ * Java object serialization involved. Stop times, which dominate the size of
+ * the graph, are never copied onto the heap at all: each trip's stop time list
+ * is a view over {@link MappedStopTimeColumns}, so resident heap stays roughly
+ * flat as the size of the underlying GTFS grows.
+ */
+public class ColumnarTransitGraphReader {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File _path;
+
+  private String[] _strings;
+
+  private List<LocalizedServiceId> _serviceIds;
+
+  private List<ServiceIdActivation> _activations;
+
+  private List<FrequencyEntry> _frequencies;
+
+  private List<AgencyEntryImpl> _agencies;
+
+  private List<StopEntryImpl> _stops;
+
+  private List<RouteCollectionEntryImpl> _routeCollections;
+
+  private List<RouteEntryImpl> _routes;
+
+  private List<TripEntryImpl> _trips;
+
+  private List<BlockEntryImpl> _blocks;
+
+  /**
+   * Cross-references that can only be resolved once all the entities they
+   * point to have been created
+   */
+  private IndexLists _agencyStops;
+
+  private IndexLists _agencyRouteCollections;
+
+  private IndexLists _routeCollectionChildren;
+
+  private IndexLists _routeTrips;
+
+  private IndexLists _blockConfigurations;
+
+  private int[] _tripBlocks;
+
+  public static boolean isColumnarGraph(File path) {
+    return new File(path, STRINGS).exists();
+  }
+
+  /**
+   * The strings table is the last shared table written, so its timestamp marks
+   * when the columnar graph was completed.
+   * 
+   * @param path the columnar graph directory
+   * @return the time the columnar graph was last written, or 0 if it doesn't
+   *         exist
+   */
+  public static long getLastModified(File path) {
+    return new File(path, STRINGS).lastModified();
+  }
+
+  public static TransitGraphImpl read(File path) throws IOException {
+    ColumnarTransitGraphReader reader = new ColumnarTransitGraphReader(path);
+    return reader.read();
+  }
+
+  private ColumnarTransitGraphReader(File path) {
+    _path = path;
+  }
+
+  private TransitGraphImpl read() throws IOException {
+
+    readStrings();
+    readServiceIds();
+    readFrequencies();
+
+    /**
+     * Create all the entities first, so that cross-references can be resolved
+     * by index as the relationships are read
+     */
+    readAgencies();
+    readStops();
+    readRouteCollections();
+    readRoutes();
+    readTrips();
+    readBlocks();
+    readBlockConfigurations();
+
+    linkEntries();
+
+    TransitGraphImpl graph = new TransitGraphImpl();
+    for (AgencyEntryImpl agency : _agencies)
+      graph.putAgencyEntry(agency);
+    for (StopEntryImpl stop : _stops)
+      graph.putStopEntry(stop);
+    for (RouteCollectionEntryImpl routeCollection : _routeCollections)
+      graph.putRouteCollectionEntry(routeCollection);
+    for (RouteEntryImpl route : _routes)
+      graph.putRouteEntry(route);
+    for (TripEntryImpl trip : _trips)
+      graph.putTripEntry(trip);
+    for (BlockEntryImpl block : _blocks)
+      graph.putBlockEntry(block);
+
+    return graph;
+  }
+
+  private void readStrings() throws IOException {
+    ColumnarInput in = input(STRINGS);
+    int[] lengths = in.readInts();
+    byte[] bytes = in.readBytes();
+    _strings = new String[lengths.length];
+    int offset = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      _strings[i] = new String(bytes, offset, lengths[i], UTF8);
+      offset += lengths[i];
+    }
+  }
+
+  private void readServiceIds() throws IOException {
+    ColumnarInput in = input(SERVICE_IDS);
+    int n = in.getRows();
+    int[] agencyIds = in.readInts();
+    int[] ids = in.readInts();
+    int[] timeZones = in.readInts();
+    _serviceIds = new ArrayList<LocalizedServiceId>(n);
+    for (int i = 0; i < n; i++) {
+      TimeZone timeZone = TimeZone.getTimeZone(string(timeZones[i]));
+      _serviceIds.add(new LocalizedServiceId(id(agencyIds[i], ids[i]),
+          timeZone));
+    }
+
+    in = input(SERVICE_ID_ACTIVATIONS);
+    int m = in.getRows();
+    IndexLists active = in.readIndexLists();
+    IndexLists inactive = in.readIndexLists();
+    _activations = new ArrayList<ServiceIdActivation>(m);
+    for (int i = 0; i < m; i++) {
+      _activations.add(new ServiceIdActivation(resolve(active, i, _serviceIds),
+          resolve(inactive, i, _serviceIds)));
+    }
+  }
+
+  private void readFrequencies() throws IOException {
+    ColumnarInput in = input(FREQUENCIES);
+    int n = in.getRows();
+    int[] startTimes = in.readInts();
+    int[] endTimes = in.readInts();
+    int[] headways = in.readInts();
+    _frequencies = new ArrayList<FrequencyEntry>(n);
+    for (int i = 0; i < n; i++)
+      _frequencies.add(new FrequencyEntryImpl(startTimes[i], endTimes[i],
+          headways[i]));
+  }
+
+  private void readAgencies() throws IOException {
+    ColumnarInput in = input(AGENCIES);
+    int n = in.getRows();
+    int[] ids = in.readInts();
+    _agencyStops = in.readIndexLists();
+    _agencyRouteCollections = in.readIndexLists();
+    _agencies = new ArrayList<AgencyEntryImpl>(n);
+    for (int i = 0; i < n; i++) {
+      AgencyEntryImpl agency = new AgencyEntryImpl();
+      agency.setId(string(ids[i]));
+      _agencies.add(agency);
+    }
+  }
+
+  private void readStops() throws IOException {
+    ColumnarInput in = input(STOPS);
+    int n = in.getRows();
+    int[] agencyIds = in.readInts();
+    int[] ids = in.readInts();
+    double[] lats = in.readDoubles();
+    double[] lons = in.readDoubles();
+    int[] wheelchairBoarding = in.readInts();
+
+    EAccessibility[] accessibility = EAccessibility.values();
+    _stops = new ArrayList<StopEntryImpl>(n);
+    for (int i = 0; i < n; i++) {
+      StopEntryImpl stop = new StopEntryImpl(id(agencyIds[i], ids[i]),
+          lats[i], lons[i]);
+      stop.setWheelchairBoarding(accessibility[wheelchairBoarding[i]]);
+      _stops.add(stop);
+    }
+  }
+
+  private void readRouteCollections() throws IOException {
+    ColumnarInput in = input(ROUTE_COLLECTIONS);
+    int n = in.getRows();
+    int[] agencyIds = in.readInts();
+    int[] ids = in.readInts();
+    _routeCollectionChildren = in.readIndexLists();
+    _routeCollections = new ArrayList<RouteCollectionEntryImpl>(n);
+    for (int i = 0; i < n; i++) {
+      RouteCollectionEntryImpl routeCollection = new RouteCollectionEntryImpl();
+      routeCollection.setId(id(agencyIds[i], ids[i]));
+      _routeCollections.add(routeCollection);
+    }
+  }
+
+  private void readRoutes() throws IOException {
+    ColumnarInput in = input(ROUTES);
+    int n = in.getRows();
+    int[] agencyIds = in.readInts();
+    int[] ids = in.readInts();
+    int[] parents = in.readInts();
+    _routeTrips = in.readIndexLists();
+    _routes = new ArrayList<RouteEntryImpl>(n);
+    for (int i = 0; i < n; i++) {
+      RouteEntryImpl route = new RouteEntryImpl();
+      route.setId(id(agencyIds[i], ids[i]));
+      if (parents[i] != -1)
+        route.setParent(_routeCollections.get(parents[i]));
+      _routes.add(route);
+    }
+  }
+
+  private void readTrips() throws IOException {
+    ColumnarInput in = input(TRIPS);
+    int n = in.getRows();
+    int[] agencyIds = in.readInts();
+    int[] ids = in.readInts();
+    int[] routes = in.readInts();
+    int[] directionIds = in.readInts();
+    int[] blocks = in.readInts();
+    int[] serviceIds = in.readInts();
+    int[] shapeAgencyIds = in.readInts();
+    int[] shapeIds = in.readInts();
+    double[] totalTripDistances = in.readDoubles();
+    int[] frequencyLabels = in.readInts();
+    int[] stopTimeCounts = in.readInts();
+
+    /**
+     * We hang on to the block references until the blocks themselves have been
+     * read
+     */
+    _tripBlocks = blocks;
+
+    MappedStopTimeColumns stopTimes = readStopTimes();
+
+    _trips = new ArrayList<TripEntryImpl>(n);
+    int stopTimeOffset = 0;
+
+    for (int i = 0; i < n; i++) {
+      TripEntryImpl trip = new TripEntryImpl();
+      trip.setId(id(agencyIds[i], ids[i]));
+      if (routes[i] != -1)
+        trip.setRoute(_routes.get(routes[i]));
+      trip.setDirectionId(string(directionIds[i]));
+      if (serviceIds[i] != -1)
+        trip.setServiceId(_serviceIds.get(serviceIds[i]));
+      if (shapeIds[i] != -1)
+        trip.setShapeId(id(shapeAgencyIds[i], shapeIds[i]));
+      trip.setTotalTripDistance(totalTripDistances[i]);
+      if (frequencyLabels[i] != -1)
+        trip.setFrequencyLabel(_frequencies.get(frequencyLabels[i]));
+
+      int stopTimeCount = stopTimeCounts[i];
+      if (stopTimeCount != -1) {
+        trip.setStopTimes(stopTimes.getStopTimesForTrip(trip, stopTimeOffset,
+            stopTimeCount));
+        stopTimeOffset += stopTimeCount;
+      }
+
+      _trips.add(trip);
+    }
+
+    if (stopTimeOffset != stopTimes.size())
+      throw new IllegalStateException("expected " + stopTimes.size()
+          + " stop times in columnar graph but trips referenced "
+          + stopTimeOffset);
+  }
+
+  private MappedStopTimeColumns readStopTimes() throws IOException {
+    return new MappedStopTimeColumns(input(STOP_TIMES_ID).intColumn(), input(
+        STOP_TIMES_STOP).intColumn(), input(STOP_TIMES_ARRIVAL).intColumn(),
+        input(STOP_TIMES_DEPARTURE).intColumn(),
+        input(STOP_TIMES_SEQUENCE).intColumn(),
+        input(STOP_TIMES_PICKUP_TYPE).intColumn(),
+        input(STOP_TIMES_DROP_OFF_TYPE).intColumn(),
+        input(STOP_TIMES_SHAPE_POINT_INDEX).intColumn(),
+        input(STOP_TIMES_SHAPE_DIST_TRAVELED).doubleColumn(),
+        input(STOP_TIMES_ACCUMULATED_SLACK_TIME).intColumn(), _stops);
+  }
+
+  private void readBlocks() throws IOException {
+    ColumnarInput in = input(BLOCKS);
+    int n = in.getRows();
+    int[] agencyIds = in.readInts();
+    int[] ids = in.readInts();
+    _blockConfigurations = in.readIndexLists();
+
+    _blocks = new ArrayList<BlockEntryImpl>(n);
+    for (int i = 0; i < n; i++) {
+      BlockEntryImpl block = new BlockEntryImpl();
+      block.setId(id(agencyIds[i], ids[i]));
+      _blocks.add(block);
+    }
+
+    for (int i = 0; i < _trips.size(); i++) {
+      int blockIndex = _tripBlocks[i];
+      if (blockIndex != -1)
+        _trips.get(i).setBlock(_blocks.get(blockIndex));
+    }
+  }
+
+  private void readBlockConfigurations() throws IOException {
+    ColumnarInput in = input(BLOCK_CONFIGURATIONS);
+    int n = in.getRows();
+    int[] blocks = in.readInts();
+    int[] activations = in.readInts();
+    IndexLists trips = in.readIndexLists();
+    double[] tripGapDistances = in.readDoubles();
+    IndexLists frequencies = in.readIndexLists();
+
+    List<BlockConfigurationEntry> blockConfigs = new ArrayList<BlockConfigurationEntry>(
+        n);
+
+    for (int i = 0; i < n; i++) {
+
+      int tripCount = trips.getLength(i);
+      List<TripEntry> tripsInBlock = new ArrayList<TripEntry>(tripCount);
+      for (int j = 0; j < tripCount; j++)
+        tripsInBlock.add(_trips.get(trips.getValue(i, j)));
+      double[] gaps = new double[tripCount];
+      System.arraycopy(tripGapDistances, trips.getOffset(i), gaps, 0,
+          tripCount);
+
+      BlockConfigurationEntryImpl.Builder builder = BlockConfigurationEntryImpl.builder();
+      builder.setBlock(_blocks.get(blocks[i]));
+      builder.setServiceIds(_activations.get(activations[i]));
+      builder.setTrips(tripsInBlock);
+      builder.setTripGapDistances(gaps);
+      builder.setFrequencies(resolve(frequencies, i, _frequencies));
+      blockConfigs.add(builder.create());
+    }
+
+    for (int i = 0; i < _blocks.size(); i++) {
+      BlockEntryImpl block = _blocks.get(i);
+      ArrayList<BlockConfigurationEntry> configs = resolve(
+          _blockConfigurations, i, blockConfigs);
+      if (configs != null)
+        configs.trimToSize();
+      block.setConfigurations(configs);
+    }
+  }
+
+  private void linkEntries() {
+
+    for (int i = 0; i < _agencies.size(); i++) {
+      AgencyEntryImpl agency = _agencies.get(i);
+      List<StopEntry> stops = ColumnarTransitGraphReader.<StopEntry> resolve(
+          _agencyStops, i, _stops);
+      if (stops != null)
+        agency.setStops(stops);
+      List<RouteCollectionEntry> routeCollections = ColumnarTransitGraphReader.<RouteCollectionEntry> resolve(
+          _agencyRouteCollections, i, _routeCollections);
+      if (routeCollections != null)
+        agency.setRouteCollections(routeCollections);
+    }
+
+    for (int i = 0; i < _routeCollections.size(); i++) {
+      List<RouteEntry> children = ColumnarTransitGraphReader.<RouteEntry> resolve(
+          _routeCollectionChildren, i, _routes);
+      _routeCollections.get(i).setChildren(children);
+    }
+
+    for (int i = 0; i < _routes.size(); i++) {
+      List<TripEntry> trips = ColumnarTransitGraphReader.<TripEntry> resolve(
+          _routeTrips, i, _trips);
+      _routes.get(i).setTrips(trips);
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private ColumnarInput input(String name) throws IOException {
+    return new ColumnarInput(new File(_path, name));
+  }
+
+  private String string(int index) {
+    return index == -1 ? null : _strings[index];
+  }
+
+  private AgencyAndId id(int agencyId, int id) {
+    return new AgencyAndId(string(agencyId), string(id));
+  }
+
+  private static <T> ArrayList<T> resolve(IndexLists lists, int row,
+      List<? extends T> entries) {
+    if (lists.isNull(row))
+      return null;
+    int n = lists.getLength(row);
+    ArrayList<T> values = new ArrayList<T>(n);
+    for (int i = 0; i < n; i++)
+      values.add(entries.get(lists.getValue(row, i)));
+    return values;
+  }
+}
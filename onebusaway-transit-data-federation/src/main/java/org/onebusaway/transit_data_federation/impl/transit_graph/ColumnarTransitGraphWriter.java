@@ -0,0 +1,636 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.transit_graph;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.LocalizedServiceId;
+import org.onebusaway.transit_data_federation.impl.transit_graph.ColumnarTransitGraphFormat.ColumnarOutput;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockTripEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.FrequencyEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.ServiceIdActivation;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEntry;
+
+import static org.onebusaway.transit_data_federation.impl.transit_graph.ColumnarTransitGraphFormat.*;
+
+/**
+ * Writes a {@link TransitGraphImpl} as a directory of flat, columnar files that
+ * can be loaded with {@link ColumnarTransitGraphReader} without going through
+ * Java object serialization.
+ *
+ * @see ColumnarTransitGraphFormat
+ */
+public class ColumnarTransitGraphWriter {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final TransitGraphImpl _graph;
+
+  private final File _path;
+
+  private final Map<String, Integer> _stringIndices = new HashMap<String, Integer>();
+
+  private final List<String> _strings = new ArrayList<String>();
+
+  private final Map<LocalizedServiceId, Integer> _serviceIdIndices = new HashMap<LocalizedServiceId, Integer>();
+
+  private final Map<ServiceIdActivation, Integer> _activationIndices = new HashMap<ServiceIdActivation, Integer>();
+
+  private final Map<FrequencyEntry, Integer> _frequencyIndices = new HashMap<FrequencyEntry, Integer>();
+
+  private final List<FrequencyEntry> _frequencies = new ArrayList<FrequencyEntry>();
+
+  private final List<ServiceIdActivation> _activations = new ArrayList<ServiceIdActivation>();
+
+  private final List<LocalizedServiceId> _serviceIds = new ArrayList<LocalizedServiceId>();
+
+  private Map<Object, Integer> _stopIndices;
+
+  private Map<Object, Integer> _routeCollectionIndices;
+
+  private Map<Object, Integer> _routeIndices;
+
+  private Map<Object, Integer> _tripIndices;
+
+  private Map<Object, Integer> _blockIndices;
+
+  private Map<Object, Integer> _blockConfigIndices;
+
+  private List<BlockConfigurationEntry> _blockConfigs;
+
+  public static void write(TransitGraphImpl graph, File path)
+      throws IOException {
+    ColumnarTransitGraphWriter writer = new ColumnarTransitGraphWriter(graph,
+        path);
+    writer.write();
+  }
+
+  /**
+   * Removes a columnar graph previously written to the specified directory, so
+   * that it can't be loaded in place of a newer serialized graph.
+   * 
+   * @param path the columnar graph directory
+   * @throws IOException if the directory could not be removed
+   */
+  public static void delete(File path) throws IOException {
+    if (!path.exists())
+      return;
+    deleteFiles(path);
+    if (!path.delete())
+      throw new IOException("unable to delete directory " + path);
+  }
+
+  private static void deleteFiles(File path) {
+    File[] existing = path.listFiles();
+    if (existing != null) {
+      for (File file : existing)
+        file.delete();
+    }
+  }
+
+  private ColumnarTransitGraphWriter(TransitGraphImpl graph, File path) {
+    _graph = graph;
+    _path = path;
+  }
+
+  private void write() throws IOException {
+
+    if (_path.exists()) {
+      deleteFiles(_path);
+    } else if (!_path.mkdirs()) {
+      throw new IOException("unable to create directory " + _path);
+    }
+
+    _stopIndices = index(_graph.getStops());
+    _routeCollectionIndices = index(_graph.getRouteCollections());
+    _routeIndices = index(_graph.getRoutes());
+    _tripIndices = index(_graph.getTrips());
+    _blockIndices = index(_graph.getBlocks());
+
+    _blockConfigs = new ArrayList<BlockConfigurationEntry>();
+    for (BlockEntryImpl block : _graph.getBlocks()) {
+      List<BlockConfigurationEntry> configs = block.getConfigurations();
+      if (configs != null)
+        _blockConfigs.addAll(configs);
+    }
+    _blockConfigIndices = index(_blockConfigs);
+
+    /**
+     * Strings, service ids and frequencies are interned as we go, so the
+     * tables that share them have to be written last
+     */
+    writeAgencies();
+    writeStops();
+    writeRouteCollections();
+    writeRoutes();
+    writeTrips();
+    writeStopTimes();
+    writeBlocks();
+    writeBlockConfigurations();
+    writeFrequencies();
+    writeServiceIds();
+    writeStrings();
+  }
+
+  private void writeAgencies() throws IOException {
+    List<AgencyEntryImpl> agencies = _graph.getAgencies();
+    int n = agencies.size();
+    int[] ids = new int[n];
+    int[][] stops = new int[n][];
+    int[][] routeCollections = new int[n][];
+
+    for (int i = 0; i < n; i++) {
+      AgencyEntryImpl agency = agencies.get(i);
+      ids[i] = string(agency.getId());
+      stops[i] = indices(agency.getStops(), _stopIndices);
+      routeCollections[i] = indices(agency.getRouteCollections(),
+          _routeCollectionIndices);
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, AGENCIES), n);
+    try {
+      out.writeInts(ids);
+      out.writeIndexLists(stops);
+      out.writeIndexLists(routeCollections);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeStops() throws IOException {
+    List<StopEntryImpl> stops = _graph.getStops();
+    int n = stops.size();
+    int[] agencyIds = new int[n];
+    int[] ids = new int[n];
+    double[] lats = new double[n];
+    double[] lons = new double[n];
+    int[] wheelchairBoarding = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      StopEntryImpl stop = stops.get(i);
+      agencyIds[i] = string(stop.getId().getAgencyId());
+      ids[i] = string(stop.getId().getId());
+      lats[i] = stop.getStopLat();
+      lons[i] = stop.getStopLon();
+      wheelchairBoarding[i] = stop.getWheelchairBoarding().ordinal();
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, STOPS), n);
+    try {
+      out.writeInts(agencyIds);
+      out.writeInts(ids);
+      out.writeDoubles(lats);
+      out.writeDoubles(lons);
+      out.writeInts(wheelchairBoarding);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeRouteCollections() throws IOException {
+    List<RouteCollectionEntryImpl> routeCollections = _graph.getRouteCollections();
+    int n = routeCollections.size();
+    int[] agencyIds = new int[n];
+    int[] ids = new int[n];
+    int[][] children = new int[n][];
+
+    for (int i = 0; i < n; i++) {
+      RouteCollectionEntryImpl routeCollection = routeCollections.get(i);
+      agencyIds[i] = string(routeCollection.getId().getAgencyId());
+      ids[i] = string(routeCollection.getId().getId());
+      children[i] = indices(routeCollection.getChildren(), _routeIndices);
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, ROUTE_COLLECTIONS),
+        n);
+    try {
+      out.writeInts(agencyIds);
+      out.writeInts(ids);
+      out.writeIndexLists(children);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeRoutes() throws IOException {
+    List<RouteEntryImpl> routes = _graph.getRoutes();
+    int n = routes.size();
+    int[] agencyIds = new int[n];
+    int[] ids = new int[n];
+    int[] parents = new int[n];
+    int[][] trips = new int[n][];
+
+    for (int i = 0; i < n; i++) {
+      RouteEntryImpl route = routes.get(i);
+      agencyIds[i] = string(route.getId().getAgencyId());
+      ids[i] = string(route.getId().getId());
+      parents[i] = index(route.getParent(), _routeCollectionIndices);
+      trips[i] = indices(route.getTrips(), _tripIndices);
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, ROUTES), n);
+    try {
+      out.writeInts(agencyIds);
+      out.writeInts(ids);
+      out.writeInts(parents);
+      out.writeIndexLists(trips);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeTrips() throws IOException {
+    List<TripEntryImpl> trips = _graph.getTrips();
+    int n = trips.size();
+    int[] agencyIds = new int[n];
+    int[] ids = new int[n];
+    int[] routes = new int[n];
+    int[] directionIds = new int[n];
+    int[] blocks = new int[n];
+    int[] serviceIds = new int[n];
+    int[] shapeAgencyIds = new int[n];
+    int[] shapeIds = new int[n];
+    double[] totalTripDistances = new double[n];
+    int[] frequencyLabels = new int[n];
+    int[] stopTimeCounts = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      TripEntryImpl trip = trips.get(i);
+      agencyIds[i] = string(trip.getId().getAgencyId());
+      ids[i] = string(trip.getId().getId());
+      routes[i] = index(trip.getRoute(), _routeIndices);
+      directionIds[i] = string(trip.getDirectionId());
+      blocks[i] = index(trip.getBlock(), _blockIndices);
+      serviceIds[i] = serviceId(trip.getServiceId());
+      AgencyAndId shapeId = trip.getShapeId();
+      shapeAgencyIds[i] = shapeId == null ? -1
+          : string(shapeId.getAgencyId());
+      shapeIds[i] = shapeId == null ? -1 : string(shapeId.getId());
+      totalTripDistances[i] = trip.getTotalTripDistance();
+      frequencyLabels[i] = frequency(trip.getFrequencyLabel());
+      List<StopTimeEntry> stopTimes = trip.getStopTimes();
+      stopTimeCounts[i] = stopTimes == null ? -1 : stopTimes.size();
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, TRIPS), n);
+    try {
+      out.writeInts(agencyIds);
+      out.writeInts(ids);
+      out.writeInts(routes);
+      out.writeInts(directionIds);
+      out.writeInts(blocks);
+      out.writeInts(serviceIds);
+      out.writeInts(shapeAgencyIds);
+      out.writeInts(shapeIds);
+      out.writeDoubles(totalTripDistances);
+      out.writeInts(frequencyLabels);
+      out.writeInts(stopTimeCounts);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeStopTimes() throws IOException {
+
+    int n = 0;
+    for (TripEntryImpl trip : _graph.getTrips()) {
+      List<StopTimeEntry> stopTimes = trip.getStopTimes();
+      if (stopTimes != null)
+        n += stopTimes.size();
+    }
+
+    int[] ids = new int[n];
+    int[] stops = new int[n];
+    int[] arrivalTimes = new int[n];
+    int[] departureTimes = new int[n];
+    int[] sequences = new int[n];
+    int[] pickupTypes = new int[n];
+    int[] dropOffTypes = new int[n];
+    int[] shapePointIndices = new int[n];
+    double[] shapeDistTraveled = new double[n];
+    int[] accumulatedSlackTimes = new int[n];
+
+    int index = 0;
+    for (TripEntryImpl trip : _graph.getTrips()) {
+      List<StopTimeEntry> stopTimes = trip.getStopTimes();
+      if (stopTimes == null)
+        continue;
+      for (StopTimeEntry stopTime : stopTimes) {
+        ids[index] = stopTime.getId();
+        stops[index] = index(stopTime.getStop(), _stopIndices);
+        arrivalTimes[index] = stopTime.getArrivalTime();
+        departureTimes[index] = stopTime.getDepartureTime();
+        sequences[index] = stopTime.getSequence();
+        pickupTypes[index] = stopTime.getPickupType();
+        dropOffTypes[index] = stopTime.getDropOffType();
+        shapePointIndices[index] = stopTime.getShapePointIndex();
+        shapeDistTraveled[index] = stopTime.getShapeDistTraveled();
+        accumulatedSlackTimes[index] = stopTime.getAccumulatedSlackTime();
+        index++;
+      }
+    }
+
+    writeIntColumn(STOP_TIMES_ID, ids);
+    writeIntColumn(STOP_TIMES_STOP, stops);
+    writeIntColumn(STOP_TIMES_ARRIVAL, arrivalTimes);
+    writeIntColumn(STOP_TIMES_DEPARTURE, departureTimes);
+    writeIntColumn(STOP_TIMES_SEQUENCE, sequences);
+    writeIntColumn(STOP_TIMES_PICKUP_TYPE, pickupTypes);
+    writeIntColumn(STOP_TIMES_DROP_OFF_TYPE, dropOffTypes);
+    writeIntColumn(STOP_TIMES_SHAPE_POINT_INDEX, shapePointIndices);
+    writeIntColumn(STOP_TIMES_ACCUMULATED_SLACK_TIME, accumulatedSlackTimes);
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path,
+        STOP_TIMES_SHAPE_DIST_TRAVELED), n);
+    try {
+      out.writeDoubles(shapeDistTraveled);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeBlocks() throws IOException {
+    List<BlockEntryImpl> blocks = _graph.getBlocks();
+    int n = blocks.size();
+    int[] agencyIds = new int[n];
+    int[] ids = new int[n];
+    int[][] configurations = new int[n][];
+
+    for (int i = 0; i < n; i++) {
+      BlockEntryImpl block = blocks.get(i);
+      agencyIds[i] = string(block.getId().getAgencyId());
+      ids[i] = string(block.getId().getId());
+      configurations[i] = indices(block.getConfigurations(),
+          _blockConfigIndices);
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, BLOCKS), n);
+    try {
+      out.writeInts(agencyIds);
+      out.writeInts(ids);
+      out.writeIndexLists(configurations);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeBlockConfigurations() throws IOException {
+    int n = _blockConfigs.size();
+    int[] blocks = new int[n];
+    int[] activations = new int[n];
+    int[][] trips = new int[n][];
+    int[][] frequencies = new int[n][];
+
+    int tripCount = 0;
+    for (BlockConfigurationEntry blockConfig : _blockConfigs)
+      tripCount += blockConfig.getTrips().size();
+    double[] tripGapDistances = new double[tripCount];
+    int gapIndex = 0;
+
+    for (int i = 0; i < n; i++) {
+      BlockConfigurationEntry blockConfig = _blockConfigs.get(i);
+      blocks[i] = index(blockConfig.getBlock(), _blockIndices);
+      activations[i] = activation(blockConfig.getServiceIds());
+
+      List<BlockTripEntry> blockTrips = blockConfig.getTrips();
+      int[] tripIndices = new int[blockTrips.size()];
+      for (int j = 0; j < blockTrips.size(); j++) {
+        BlockTripEntry blockTrip = blockTrips.get(j);
+        tripIndices[j] = index(blockTrip.getTrip(), _tripIndices);
+
+        /**
+         * The gap distances aren't stored directly on the block configuration,
+         * but we can recover them from the distance along the block of
+         * consecutive trips
+         */
+        double nextDistanceAlongBlock = j + 1 < blockTrips.size()
+            ? blockTrips.get(j + 1).getDistanceAlongBlock()
+            : blockConfig.getTotalBlockDistance();
+        tripGapDistances[gapIndex++] = nextDistanceAlongBlock
+            - blockTrip.getDistanceAlongBlock()
+            - blockTrip.getTrip().getTotalTripDistance();
+      }
+      trips[i] = tripIndices;
+
+      List<FrequencyEntry> blockFrequencies = blockConfig.getFrequencies();
+      if (blockFrequencies != null) {
+        int[] frequencyIndices = new int[blockFrequencies.size()];
+        for (int j = 0; j < blockFrequencies.size(); j++)
+          frequencyIndices[j] = frequency(blockFrequencies.get(j));
+        frequencies[i] = frequencyIndices;
+      }
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path,
+        BLOCK_CONFIGURATIONS), n);
+    try {
+      out.writeInts(blocks);
+      out.writeInts(activations);
+      out.writeIndexLists(trips);
+      out.writeDoubles(tripGapDistances);
+      out.writeIndexLists(frequencies);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeFrequencies() throws IOException {
+    int n = _frequencies.size();
+    int[] startTimes = new int[n];
+    int[] endTimes = new int[n];
+    int[] headways = new int[n];
+    for (int i = 0; i < n; i++) {
+      FrequencyEntry frequency = _frequencies.get(i);
+      startTimes[i] = frequency.getStartTime();
+      endTimes[i] = frequency.getEndTime();
+      headways[i] = frequency.getHeadwaySecs();
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, FREQUENCIES), n);
+    try {
+      out.writeInts(startTimes);
+      out.writeInts(endTimes);
+      out.writeInts(headways);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeServiceIds() throws IOException {
+
+    /**
+     * Service id activations reference service ids, so we intern those first
+     */
+    int m = _activations.size();
+    int[][] active = new int[m][];
+    int[][] inactive = new int[m][];
+    for (int i = 0; i < m; i++) {
+      ServiceIdActivation activation = _activations.get(i);
+      active[i] = serviceIds(activation.getActiveServiceIds());
+      inactive[i] = serviceIds(activation.getInactiveServiceIds());
+    }
+
+    int n = _serviceIds.size();
+    int[] agencyIds = new int[n];
+    int[] ids = new int[n];
+    int[] timeZones = new int[n];
+    for (int i = 0; i < n; i++) {
+      LocalizedServiceId serviceId = _serviceIds.get(i);
+      agencyIds[i] = string(serviceId.getId().getAgencyId());
+      ids[i] = string(serviceId.getId().getId());
+      timeZones[i] = string(serviceId.getTimeZone().getID());
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, SERVICE_IDS), n);
+    try {
+      out.writeInts(agencyIds);
+      out.writeInts(ids);
+      out.writeInts(timeZones);
+    } finally {
+      out.close();
+    }
+
+    out = new ColumnarOutput(new File(_path, SERVICE_ID_ACTIVATIONS), m);
+    try {
+      out.writeIndexLists(active);
+      out.writeIndexLists(inactive);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeStrings() throws IOException {
+    int n = _strings.size();
+    int[] lengths = new int[n];
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (int i = 0; i < n; i++) {
+      byte[] encoded = _strings.get(i).getBytes(UTF8);
+      lengths[i] = encoded.length;
+      bytes.write(encoded, 0, encoded.length);
+    }
+
+    ColumnarOutput out = new ColumnarOutput(new File(_path, STRINGS), n);
+    try {
+      out.writeInts(lengths);
+      out.writeBytes(bytes.toByteArray());
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeIntColumn(String name, int[] values) throws IOException {
+    ColumnarOutput out = new ColumnarOutput(new File(_path, name),
+        values.length);
+    try {
+      out.writeInts(values);
+    } finally {
+      out.close();
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private int string(String value) {
+    if (value == null)
+      return -1;
+    Integer index = _stringIndices.get(value);
+    if (index == null) {
+      index = _strings.size();
+      _strings.add(value);
+      _stringIndices.put(value, index);
+    }
+    return index;
+  }
+
+  private int serviceId(LocalizedServiceId serviceId) {
+    if (serviceId == null)
+      return -1;
+    Integer index = _serviceIdIndices.get(serviceId);
+    if (index == null) {
+      index = _serviceIds.size();
+      _serviceIds.add(serviceId);
+      _serviceIdIndices.put(serviceId, index);
+    }
+    return index;
+  }
+
+  private int[] serviceIds(List<LocalizedServiceId> serviceIds) {
+    int[] indices = new int[serviceIds.size()];
+    for (int i = 0; i < indices.length; i++)
+      indices[i] = serviceId(serviceIds.get(i));
+    return indices;
+  }
+
+  private int activation(ServiceIdActivation activation) {
+    Integer index = _activationIndices.get(activation);
+    if (index == null) {
+      index = _activations.size();
+      _activations.add(activation);
+      _activationIndices.put(activation, index);
+    }
+    return index;
+  }
+
+  private int frequency(FrequencyEntry frequency) {
+    if (frequency == null)
+      return -1;
+    Integer index = _frequencyIndices.get(frequency);
+    if (index == null) {
+      index = _frequencies.size();
+      _frequencies.add(frequency);
+      _frequencyIndices.put(frequency, index);
+    }
+    return index;
+  }
+
+  private static Map<Object, Integer> index(List<?> entries) {
+    Map<Object, Integer> indices = new IdentityHashMap<Object, Integer>();
+    for (int i = 0; i < entries.size(); i++)
+      indices.put(entries.get(i), i);
+    return indices;
+  }
+
+  private static int index(Object entry, Map<Object, Integer> indices) {
+    if (entry == null)
+      return -1;
+    Integer index = indices.get(entry);
+    if (index == null)
+      throw new IllegalStateException("entry not found in transit graph: "
+          + entry);
+    return index;
+  }
+
+  private static int[] indices(List<?> entries, Map<Object, Integer> indices) {
+    if (entries == null)
+      return null;
+    int[] values = new int[entries.size()];
+    for (int i = 0; i < values.length; i++)
+      values[i] = index(entries.get(i), indices);
+    return values;
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.transit_graph;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEntry;
+
+/**
+ * Read-only views over the stop time columns of a columnar transit graph
+ * bundle. The column buffers are backed directly by memory-mapped files, so
+ * stop times cost no heap until they are actually accessed, and several JVMs
+ * loading the same bundle share the underlying page cache.
+ *
+ * All access goes through absolute buffer reads, which are safe to perform
+ * concurrently from multiple threads.
+ *
+ * @see ColumnarTransitGraphReader
+ */
+final class MappedStopTimeColumns {
+
+  private final IntBuffer _ids;
+
+  private final IntBuffer _stops;
+
+  private final IntBuffer _arrivalTimes;
+
+  private final IntBuffer _departureTimes;
+
+  private final IntBuffer _sequences;
+
+  private final IntBuffer _pickupTypes;
+
+  private final IntBuffer _dropOffTypes;
+
+  private final IntBuffer _shapePointIndices;
+
+  private final DoubleBuffer _shapeDistTraveled;
+
+  private final IntBuffer _accumulatedSlackTimes;
+
+  private final List<StopEntryImpl> _stopEntries;
+
+  public MappedStopTimeColumns(IntBuffer ids, IntBuffer stops,
+      IntBuffer arrivalTimes, IntBuffer departureTimes, IntBuffer sequences,
+      IntBuffer pickupTypes, IntBuffer dropOffTypes,
+      IntBuffer shapePointIndices, DoubleBuffer shapeDistTraveled,
+      IntBuffer accumulatedSlackTimes, List<StopEntryImpl> stopEntries) {
+    _ids = ids;
+    _stops = stops;
+    _arrivalTimes = arrivalTimes;
+    _departureTimes = departureTimes;
+    _sequences = sequences;
+    _pickupTypes = pickupTypes;
+    _dropOffTypes = dropOffTypes;
+    _shapePointIndices = shapePointIndices;
+    _shapeDistTraveled = shapeDistTraveled;
+    _accumulatedSlackTimes = accumulatedSlackTimes;
+    _stopEntries = stopEntries;
+  }
+
+  public int size() {
+    return _ids.limit();
+  }
+
+  public List<StopTimeEntry> getStopTimesForTrip(TripEntryImpl trip,
+      int offset, int length) {
+    return new StopTimeList(trip, offset, length);
+  }
+
+  public int getId(int row) {
+    return _ids.get(row);
+  }
+
+  public StopEntryImpl getStop(int row) {
+    return _stopEntries.get(_stops.get(row));
+  }
+
+  public int getArrivalTime(int row) {
+    return _arrivalTimes.get(row);
+  }
+
+  public int getDepartureTime(int row) {
+    return _departureTimes.get(row);
+  }
+
+  public int getSequence(int row) {
+    return _sequences.get(row);
+  }
+
+  public int getPickupType(int row) {
+    return _pickupTypes.get(row);
+  }
+
+  public int getDropOffType(int row) {
+    return _dropOffTypes.get(row);
+  }
+
+  public int getShapePointIndex(int row) {
+    return _shapePointIndices.get(row);
+  }
+
+  public double getShapeDistTraveled(int row) {
+    return _shapeDistTraveled.get(row);
+  }
+
+  public int getAccumulatedSlackTime(int row) {
+    return _accumulatedSlackTimes.get(row);
+  }
+
+  private class StopTimeList extends AbstractList<StopTimeEntry> implements
+      RandomAccess {
+
+    private final TripEntryImpl _trip;
+
+    private final int _offset;
+
+    private final int _length;
+
+    public StopTimeList(TripEntryImpl trip, int offset, int length) {
+      _trip = trip;
+      _offset = offset;
+      _length = length;
+    }
+
+    @Override
+    public StopTimeEntry get(int index) {
+      if (index < 0 || index >= _length)
+        throw new IndexOutOfBoundsException("index=" + index + " size="
+            + _length);
+      return new MappedStopTimeEntryImpl(MappedStopTimeColumns.this, _offset
+          + index, _trip);
+    }
+
+    @Override
+    public int size() {
+      return _length;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.transit_graph;
+
+import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEntry;
+
+/**
+ * A lightweight {@link StopTimeEntry} view over a single row of
+ * {@link MappedStopTimeColumns}. Instances are created on access and carry no
+ * state of their own beyond the row index, so two views of the same row are
+ * considered equal.
+ */
+final class MappedStopTimeEntryImpl implements StopTimeEntry {
+
+  private final MappedStopTimeColumns _columns;
+
+  private final int _row;
+
+  private final TripEntryImpl _trip;
+
+  public MappedStopTimeEntryImpl(MappedStopTimeColumns columns, int row,
+      TripEntryImpl trip) {
+    _columns = columns;
+    _row = row;
+    _trip = trip;
+  }
+
+  /****
+   * {@link StopTimeEntry} Interface
+   ****/
+
+  @Override
+  public int getId() {
+    return _columns.getId(_row);
+  }
+
+  @Override
+  public TripEntryImpl getTrip() {
+    return _trip;
+  }
+
+  @Override
+  public int getSequence() {
+    return _columns.getSequence(_row);
+  }
+
+  @Override
+  public StopEntryImpl getStop() {
+    return _columns.getStop(_row);
+  }
+
+  @Override
+  public int getArrivalTime() {
+    return _columns.getArrivalTime(_row);
+  }
+
+  @Override
+  public int getDepartureTime() {
+    return _columns.getDepartureTime(_row);
+  }
+
+  @Override
+  public int getPickupType() {
+    return _columns.getPickupType(_row);
+  }
+
+  @Override
+  public int getDropOffType() {
+    return _columns.getDropOffType(_row);
+  }
+
+  @Override
+  public int getShapePointIndex() {
+    return _columns.getShapePointIndex(_row);
+  }
+
+  @Override
+  public double getShapeDistTraveled() {
+    return _columns.getShapeDistTraveled(_row);
+  }
+
+  @Override
+  public int getSlackTime() {
+    return getDepartureTime() - getArrivalTime();
+  }
+
+  @Override
+  public int getAccumulatedSlackTime() {
+    return _columns.getAccumulatedSlackTime(_row);
+  }
+
+  /****
+   * {@link Object} Interface
+   ****/
+
+  @Override
+  public int hashCode() {
+    return _columns.hashCode() * 31 + _row;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null || getClass() != obj.getClass())
+      return false;
+    MappedStopTimeEntryImpl other = (MappedStopTimeEntryImpl) obj;
+    return _columns == other._columns && _row == other._row;
+  }
+
+  @Override
+  public String toString() {
+    return "StopTimeEntryImpl(stop=" + getStop().getId() + " trip=" + _trip
+        + " arrival=" + getArrivalTime() + " departure=" + getDepartureTime()
+        + ")";
+  }
+}
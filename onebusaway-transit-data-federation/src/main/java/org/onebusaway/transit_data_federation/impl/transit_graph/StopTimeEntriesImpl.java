@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.transit_graph;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEntry;
+
+/**
+ * A compact, struct-of-arrays representation of the stop times for a single
+ * trip. Rather than keeping a separate {@link StopTimeEntryImpl} object on the
+ * heap for every stop time, the fields of all the stop times for a trip are
+ * stored in a handful of primitive arrays, and {@link StopTimeEntry} instances
+ * are handed out as lightweight views on demand. On large feeds, this reduces
+ * the number of long-lived objects in the transit graph by more than an order
+ * of magnitude, which has a direct impact on GC pause times.
+ *
+ * {@link StopTimeEntryImpl} remains the mutable representation used while the
+ * transit graph is being built. See {@link TransitGraphImpl#compactStopTimes()}.
+ */
+public final class StopTimeEntriesImpl extends AbstractList<StopTimeEntry>
+    implements RandomAccess, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final TripEntryImpl trip;
+
+  private final int[] ids;
+
+  private final StopEntryImpl[] stops;
+
+  private final int[] arrivalTimes;
+
+  private final int[] departureTimes;
+
+  private final int[] sequences;
+
+  private final byte[] pickupTypes;
+
+  private final byte[] dropOffTypes;
+
+  private final int[] shapePointIndices;
+
+  private final double[] shapeDistTraveled;
+
+  private final int[] accumulatedSlackTimes;
+
+  public StopTimeEntriesImpl(TripEntryImpl trip, List<StopTimeEntry> stopTimes) {
+
+    this.trip = trip;
+
+    int n = stopTimes.size();
+    this.ids = new int[n];
+    this.stops = new StopEntryImpl[n];
+    this.arrivalTimes = new int[n];
+    this.departureTimes = new int[n];
+    this.sequences = new int[n];
+    this.pickupTypes = new byte[n];
+    this.dropOffTypes = new byte[n];
+    this.shapePointIndices = new int[n];
+    this.shapeDistTraveled = new double[n];
+    this.accumulatedSlackTimes = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      StopTimeEntry stopTime = stopTimes.get(i);
+      ids[i] = stopTime.getId();
+      stops[i] = (StopEntryImpl) stopTime.getStop();
+      arrivalTimes[i] = stopTime.getArrivalTime();
+      departureTimes[i] = stopTime.getDepartureTime();
+      sequences[i] = stopTime.getSequence();
+      pickupTypes[i] = (byte) stopTime.getPickupType();
+      dropOffTypes[i] = (byte) stopTime.getDropOffType();
+      shapePointIndices[i] = stopTime.getShapePointIndex();
+      shapeDistTraveled[i] = stopTime.getShapeDistTraveled();
+      accumulatedSlackTimes[i] = stopTime.getAccumulatedSlackTime();
+    }
+  }
+
+  public int getArrivalTime(int index) {
+    return arrivalTimes[index];
+  }
+
+  public int getDepartureTime(int index) {
+    return departureTimes[index];
+  }
+
+  public double getShapeDistTraveled(int index) {
+    return shapeDistTraveled[index];
+  }
+
+  /****
+   * {@link List} Interface
+   ****/
+
+  @Override
+  public StopTimeEntry get(int index) {
+    if (index < 0 || index >= ids.length)
+      throw new IndexOutOfBoundsException("index=" + index + " size="
+          + ids.length);
+    return new StopTimeEntryView(index);
+  }
+
+  @Override
+  public int size() {
+    return ids.length;
+  }
+
+  /****
+   * Private Classes
+   ****/
+
+  private final class StopTimeEntryView implements StopTimeEntry {
+
+    private final int index;
+
+    public StopTimeEntryView(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public int getId() {
+      return ids[index];
+    }
+
+    @Override
+    public TripEntryImpl getTrip() {
+      return trip;
+    }
+
+    @Override
+    public int getSequence() {
+      return sequences[index];
+    }
+
+    @Override
+    public StopEntryImpl getStop() {
+      return stops[index];
+    }
+
+    @Override
+    public int getArrivalTime() {
+      return arrivalTimes[index];
+    }
+
+    @Override
+    public int getDepartureTime() {
+      return departureTimes[index];
+    }
+
+    @Override
+    public int getPickupType() {
+      return pickupTypes[index];
+    }
+
+    @Override
+    public int getDropOffType() {
+      return dropOffTypes[index];
+    }
+
+    @Override
+    public int getShapePointIndex() {
+      return shapePointIndices[index];
+    }
+
+    @Override
+    public double getShapeDistTraveled() {
+      return shapeDistTraveled[index];
+    }
+
+    @Override
+    public int getSlackTime() {
+      return departureTimes[index] - arrivalTimes[index];
+    }
+
+    @Override
+    public int getAccumulatedSlackTime() {
+      return accumulatedSlackTimes[index];
+    }
+
+    private StopTimeEntriesImpl getEntries() {
+      return StopTimeEntriesImpl.this;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(StopTimeEntriesImpl.this) * 31 + index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null || getClass() != obj.getClass())
+        return false;
+      StopTimeEntryView other = (StopTimeEntryView) obj;
+      return getEntries() == other.getEntries() && index == other.index;
+    }
+
+    @Override
+    public String toString() {
+      return "StopTimeEntryImpl(stop=" + stops[index].getId() + " trip="
+          + trip + " arrival=" + arrivalTimes[index] + " departure="
+          + departureTimes[index] + ")";
+    }
+  }
+}
@@ -38,16 +38,22 @@ import org.onebusaway.transit_data_federation.services.transit_graph.TransitGrap
 import org.onebusaway.transit_data_federation.services.transit_graph.TripEntry;
 import org.onebusaway.transit_data_federation.services.tripplanner.TripPlannerGraph;
 import org.onebusaway.utility.ObjectSerializationLibrary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
 public class TransitGraphDaoImpl implements TransitGraphDao {
 
+  private static Logger _log = LoggerFactory.getLogger(TransitGraphDaoImpl.class);
+
   private FederatedTransitDataBundle _bundle;
 
   private TripPlannerGraph _graph;
 
+  private boolean _preferColumnarGraph = true;
+
   @Autowired
   public void setBundle(FederatedTransitDataBundle bundle) {
     _bundle = bundle;
@@ -57,10 +63,23 @@ public class TransitGraphDaoImpl implements TransitGraphDao {
     _graph = graph;
   }
 
+  /**
+   * When a bundle contains both the serialized and the columnar form of the
+   * transit graph, should we load the memory-mapped columnar form? Defaults to
+   * true. A columnar graph older than the serialized graph is left over from a
+   * previous build and is always ignored.
+   * 
+   * @param preferColumnarGraph
+   */
+  public void setPreferColumnarGraph(boolean preferColumnarGraph) {
+    _preferColumnarGraph = preferColumnarGraph;
+  }
+
   @PostConstruct
   @Refreshable(dependsOn = RefreshableResources.TRANSIT_GRAPH)
   public void setup() throws IOException, ClassNotFoundException {
     File path = _bundle.getTransitGraphPath();
+    File columnarPath = _bundle.getColumnarTransitGraphPath();
 
     if(_graph != null) {
       TransitGraphImpl graph = (TransitGraphImpl)_graph;
@@ -68,8 +87,13 @@ public class TransitGraphDaoImpl implements TransitGraphDao {
       _graph = null;
     }
     
-    if (path.exists()) {
+    if (_preferColumnarGraph && isCurrentColumnarGraph(columnarPath, path)) {
+      TransitGraphImpl graph = ColumnarTransitGraphReader.read(columnarPath);
+      graph.initialize();
+      _graph = graph;
+    } else if (path.exists()) {
       TransitGraphImpl graph = ObjectSerializationLibrary.readObject(path);
+      graph.compactStopTimes();
       graph.initialize();
       _graph = graph;
     } else {
@@ -155,4 +179,21 @@ public class TransitGraphDaoImpl implements TransitGraphDao {
   public RouteEntry getRouteForId(AgencyAndId id) {
     return _graph.getRouteForId(id);
   }
+
+  /****
+   * Private Methods
+   ****/
+
+  private boolean isCurrentColumnarGraph(File columnarPath, File path) {
+    if (columnarPath == null
+        || !ColumnarTransitGraphReader.isColumnarGraph(columnarPath))
+      return false;
+    long columnarLastModified = ColumnarTransitGraphReader.getLastModified(columnarPath);
+    if (path.exists() && columnarLastModified < path.lastModified()) {
+      _log.warn("ignoring columnar transit graph " + columnarPath
+          + " older than " + path);
+      return false;
+    }
+    return true;
+  }
 }
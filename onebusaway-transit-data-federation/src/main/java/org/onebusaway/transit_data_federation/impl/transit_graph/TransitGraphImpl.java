@@ -36,6 +36,7 @@ import org.onebusaway.transit_data_federation.services.transit_graph.BlockEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.RouteCollectionEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.RouteEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.TripEntry;
 import org.onebusaway.transit_data_federation.services.tripplanner.TripPlannerGraph;
 import org.slf4j.Logger;
@@ -168,6 +169,21 @@ public class TransitGraphImpl implements Serializable, TripPlannerGraph {
       stop.setIndex(i++);
   }
 
+  /**
+   * Replaces the per-object stop time lists of each trip, as produced during
+   * graph construction, with a compact {@link StopTimeEntriesImpl}
+   * representation. Should be called once the stop times of the graph will no
+   * longer be modified.
+   */
+  public void compactStopTimes() {
+    for (TripEntryImpl trip : _trips) {
+      List<StopTimeEntry> stopTimes = trip.getStopTimes();
+      if (stopTimes == null || stopTimes instanceof StopTimeEntriesImpl)
+        continue;
+      trip.setStopTimes(new StopTimeEntriesImpl(trip, stopTimes));
+    }
+  }
+
   public void initializeFromExistinGraph(TransitGraphImpl graph) {
     _agencies.addAll(graph._agencies);
     _stops.addAll(graph._stops);
@@ -182,6 +198,10 @@ public class TransitGraphImpl implements Serializable, TripPlannerGraph {
     _agencies.add(agencyEntry);
   }
 
+  public List<AgencyEntryImpl> getAgencies() {
+    return _agencies;
+  }
+
   public void putStopEntry(StopEntryImpl stopEntry) {
     _stops.add(stopEntry);
   }
@@ -218,6 +238,10 @@ public class TransitGraphImpl implements Serializable, TripPlannerGraph {
     _routeCollections.add(routeCollection);
   }
 
+  public List<RouteCollectionEntryImpl> getRouteCollections() {
+    return _routeCollections;
+  }
+
   public void refreshAgencyMapping() {
     _agencyEntriesById = new HashMap<String, AgencyEntryImpl>();
     for (AgencyEntryImpl entry : _agencies)
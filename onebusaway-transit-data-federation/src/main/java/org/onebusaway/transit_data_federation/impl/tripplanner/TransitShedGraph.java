@@ -0,0 +1,421 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.tripplanner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.calendar.ServiceInterval;
+import org.onebusaway.transit_data_federation.impl.blocks.BlockSequence;
+import org.onebusaway.transit_data_federation.services.blocks.BlockSequenceIndex;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockStopTimeEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.ServiceIdActivation;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+import org.onebusaway.transit_data_federation.services.tripplanner.StopTransfer;
+import org.onebusaway.transit_data_federation.services.tripplanner.StopTransferService;
+
+/**
+ * A compact, array-based view of the scheduled transit network, as searched by
+ * {@link TransitShedSearch}. Stops are identified by their
+ * {@link StopEntry#getIndex()}. Each {@link BlockSequenceIndex} becomes a
+ * pattern: a fixed sequence of stops visited by a set of non-overtaking trips,
+ * whose arrival and departure times are stored trip-major, in seconds since
+ * the service date. Walking transfers from {@link StopTransferService} and the
+ * patterns serving each stop are stored as offsets into flat arrays.
+ *
+ * Instances are immutable once built.
+ */
+final class TransitShedGraph {
+
+  private final StopEntry[] _stops;
+
+  private final int[] _transferOffsets;
+
+  private final int[] _transferStops;
+
+  private final int[] _transferMinTimes;
+
+  private final double[] _transferDistances;
+
+  private final int[] _stopPatternOffsets;
+
+  private final int[] _stopPatterns;
+
+  private final int[] _stopPatternPositions;
+
+  private final int[] _patternStopOffsets;
+
+  private final int[] _patternStops;
+
+  private final int[] _patternTimeOffsets;
+
+  private final int[] _patternTripCounts;
+
+  private final int[] _arrivalTimes;
+
+  private final int[] _departureTimes;
+
+  private final int[] _patternActivations;
+
+  private final ServiceIdActivation[] _activations;
+
+  private final ServiceInterval[] _activationIntervals;
+
+  private TransitShedGraph(Builder builder) {
+    _stops = builder.stops;
+    _transferOffsets = builder.transferOffsets;
+    _transferStops = builder.transferStops;
+    _transferMinTimes = builder.transferMinTimes;
+    _transferDistances = builder.transferDistances;
+    _stopPatternOffsets = builder.stopPatternOffsets;
+    _stopPatterns = builder.stopPatterns;
+    _stopPatternPositions = builder.stopPatternPositions;
+    _patternStopOffsets = builder.patternStopOffsets;
+    _patternStops = builder.patternStops;
+    _patternTimeOffsets = builder.patternTimeOffsets;
+    _patternTripCounts = builder.patternTripCounts;
+    _arrivalTimes = builder.arrivalTimes;
+    _departureTimes = builder.departureTimes;
+    _patternActivations = builder.patternActivations;
+    _activations = builder.activations;
+    _activationIntervals = builder.activationIntervals;
+  }
+
+  public static TransitShedGraph create(List<StopEntry> stops,
+      List<BlockSequenceIndex> indices, StopTransferService stopTransferService) {
+    Builder builder = new Builder(stops.size());
+    for (StopEntry stop : stops)
+      builder.addStop(stop, stopTransferService.getTransfersFromStop(stop));
+    for (BlockSequenceIndex index : indices) {
+      if (!index.isPrivateService())
+        builder.addPattern(index);
+    }
+    return builder.build();
+  }
+
+  public int getStopCount() {
+    return _stops.length;
+  }
+
+  public StopEntry getStop(int stopIndex) {
+    return _stops[stopIndex];
+  }
+
+  public int getTransferStart(int stopIndex) {
+    return _transferOffsets[stopIndex];
+  }
+
+  public int getTransferEnd(int stopIndex) {
+    return _transferOffsets[stopIndex + 1];
+  }
+
+  public int getTransferStop(int transferIndex) {
+    return _transferStops[transferIndex];
+  }
+
+  /**
+   * Mirrors {@link org.onebusaway.transit_data_federation.impl.otp.ItineraryWeightingLibrary#computeTransferTime(StopTransfer, org.opentripplanner.routing.core.TraverseOptions)}
+   * 
+   * @param transferIndex
+   * @param walkingVelocity in meters/sec
+   * @return the transfer time, in seconds
+   */
+  public int getTransferTime(int transferIndex, double walkingVelocity) {
+    int transferTime = _transferMinTimes[transferIndex];
+    if (transferTime > 0)
+      return transferTime;
+    return (int) (_transferDistances[transferIndex] / walkingVelocity);
+  }
+
+  public int getStopPatternStart(int stopIndex) {
+    return _stopPatternOffsets[stopIndex];
+  }
+
+  public int getStopPatternEnd(int stopIndex) {
+    return _stopPatternOffsets[stopIndex + 1];
+  }
+
+  public int getStopPattern(int stopPatternIndex) {
+    return _stopPatterns[stopPatternIndex];
+  }
+
+  public int getStopPatternPosition(int stopPatternIndex) {
+    return _stopPatternPositions[stopPatternIndex];
+  }
+
+  public int getPatternCount() {
+    return _patternTripCounts.length;
+  }
+
+  public int getPatternStopCount(int pattern) {
+    return _patternStopOffsets[pattern + 1] - _patternStopOffsets[pattern];
+  }
+
+  public int getPatternStop(int pattern, int position) {
+    return _patternStops[_patternStopOffsets[pattern] + position];
+  }
+
+  public int getPatternTripCount(int pattern) {
+    return _patternTripCounts[pattern];
+  }
+
+  public int getArrivalTime(int pattern, int trip, int position) {
+    return _arrivalTimes[getTimeIndex(pattern, trip, position)];
+  }
+
+  public int getDepartureTime(int pattern, int trip, int position) {
+    return _departureTimes[getTimeIndex(pattern, trip, position)];
+  }
+
+  /**
+   * Trips within a pattern don't overtake one another, so departures at any
+   * one position are sorted by trip.
+   * 
+   * @return the first trip departing the specified position at or after the
+   *         specified time, or the trip count if there is none
+   */
+  public int getFirstTripDepartingAtOrAfter(int pattern, int position,
+      int time) {
+    int stride = getPatternStopCount(pattern);
+    int base = _patternTimeOffsets[pattern] + position;
+    int low = 0;
+    int high = _patternTripCounts[pattern];
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (_departureTimes[base + mid * stride] < time)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  public int getPatternActivation(int pattern) {
+    return _patternActivations[pattern];
+  }
+
+  public int getActivationCount() {
+    return _activations.length;
+  }
+
+  public ServiceIdActivation getActivation(int activation) {
+    return _activations[activation];
+  }
+
+  /**
+   * @return the union of the service intervals of every pattern with the
+   *         specified service ids
+   */
+  public ServiceInterval getActivationInterval(int activation) {
+    return _activationIntervals[activation];
+  }
+
+  private int getTimeIndex(int pattern, int trip, int position) {
+    return _patternTimeOffsets[pattern] + trip * getPatternStopCount(pattern)
+        + position;
+  }
+
+  private static class Builder {
+
+    private StopEntry[] stops;
+
+    private int[] transferOffsets;
+
+    private int[] transferStops;
+
+    private int[] transferMinTimes;
+
+    private double[] transferDistances;
+
+    private int[] stopPatternOffsets;
+
+    private int[] stopPatterns;
+
+    private int[] stopPatternPositions;
+
+    private int[] patternStopOffsets;
+
+    private int[] patternStops;
+
+    private int[] patternTimeOffsets;
+
+    private int[] patternTripCounts;
+
+    private int[] arrivalTimes;
+
+    private int[] departureTimes;
+
+    private int[] patternActivations;
+
+    private ServiceIdActivation[] activations;
+
+    private ServiceInterval[] activationIntervals;
+
+    private final List<List<StopTransfer>> transfersByStop;
+
+    private final List<BlockSequenceIndex> patterns = new ArrayList<BlockSequenceIndex>();
+
+    public Builder(int stopCount) {
+      stops = new StopEntry[stopCount];
+      transfersByStop = new ArrayList<List<StopTransfer>>(stopCount);
+      for (int i = 0; i < stopCount; i++)
+        transfersByStop.add(null);
+    }
+
+    public void addStop(StopEntry stop, List<StopTransfer> transfers) {
+      stops[stop.getIndex()] = stop;
+      transfersByStop.set(stop.getIndex(), transfers);
+    }
+
+    public void addPattern(BlockSequenceIndex index) {
+      patterns.add(index);
+    }
+
+    public TransitShedGraph build() {
+      buildTransfers();
+      buildPatterns();
+      buildStopPatterns();
+      return new TransitShedGraph(this);
+    }
+
+    private void buildTransfers() {
+
+      int n = stops.length;
+      transferOffsets = new int[n + 1];
+
+      for (int i = 0; i < n; i++) {
+        List<StopTransfer> transfers = transfersByStop.get(i);
+        int count = transfers == null ? 0 : transfers.size();
+        transferOffsets[i + 1] = transferOffsets[i] + count;
+      }
+
+      int total = transferOffsets[n];
+      transferStops = new int[total];
+      transferMinTimes = new int[total];
+      transferDistances = new double[total];
+
+      for (int i = 0; i < n; i++) {
+        List<StopTransfer> transfers = transfersByStop.get(i);
+        if (transfers == null)
+          continue;
+        int offset = transferOffsets[i];
+        for (StopTransfer transfer : transfers) {
+          transferStops[offset] = transfer.getStop().getIndex();
+          transferMinTimes[offset] = transfer.getMinTransferTime();
+          transferDistances[offset] = transfer.getDistance();
+          offset++;
+        }
+      }
+    }
+
+    private void buildPatterns() {
+
+      int patternCount = patterns.size();
+      patternStopOffsets = new int[patternCount + 1];
+      patternTimeOffsets = new int[patternCount];
+      patternTripCounts = new int[patternCount];
+      patternActivations = new int[patternCount];
+
+      int totalTimes = 0;
+      for (int p = 0; p < patternCount; p++) {
+        BlockSequenceIndex index = patterns.get(p);
+        int stopCount = index.getSequences().get(0).getStopTimes().size();
+        patternStopOffsets[p + 1] = patternStopOffsets[p] + stopCount;
+        patternTimeOffsets[p] = totalTimes;
+        patternTripCounts[p] = index.size();
+        totalTimes += stopCount * index.size();
+      }
+
+      patternStops = new int[patternStopOffsets[patternCount]];
+      arrivalTimes = new int[totalTimes];
+      departureTimes = new int[totalTimes];
+
+      Map<ServiceIdActivation, Integer> activationIndices = new HashMap<ServiceIdActivation, Integer>();
+      List<ServiceIdActivation> activationList = new ArrayList<ServiceIdActivation>();
+      List<ServiceInterval> intervalList = new ArrayList<ServiceInterval>();
+
+      for (int p = 0; p < patternCount; p++) {
+
+        BlockSequenceIndex index = patterns.get(p);
+        List<BlockSequence> sequences = index.getSequences();
+        List<BlockStopTimeEntry> stopTimes = sequences.get(0).getStopTimes();
+        int stopCount = stopTimes.size();
+
+        int offset = patternStopOffsets[p];
+        for (BlockStopTimeEntry bst : stopTimes)
+          patternStops[offset++] = bst.getStopTime().getStop().getIndex();
+
+        offset = patternTimeOffsets[p];
+        for (BlockSequence sequence : sequences) {
+          for (int i = 0; i < stopCount; i++) {
+            arrivalTimes[offset] = sequence.getArrivalTimeForIndex(i);
+            departureTimes[offset] = sequence.getDepartureTimeForIndex(i);
+            offset++;
+          }
+        }
+
+        ServiceInterval interval = index.getServiceIntervalBlock().getRange();
+
+        ServiceIdActivation serviceIds = index.getServiceIds();
+        Integer activation = activationIndices.get(serviceIds);
+        if (activation == null) {
+          activation = activationList.size();
+          activationIndices.put(serviceIds, activation);
+          activationList.add(serviceIds);
+          intervalList.add(interval);
+        } else {
+          ServiceInterval existing = intervalList.get(activation);
+          intervalList.set(activation, new ServiceInterval(Math.min(
+              existing.getMinArrival(), interval.getMinArrival()), Math.min(
+              existing.getMinDeparture(), interval.getMinDeparture()),
+              Math.max(existing.getMaxArrival(), interval.getMaxArrival()),
+              Math.max(existing.getMaxDeparture(), interval.getMaxDeparture())));
+        }
+        patternActivations[p] = activation;
+      }
+
+      activations = activationList.toArray(new ServiceIdActivation[activationList.size()]);
+      activationIntervals = intervalList.toArray(new ServiceInterval[intervalList.size()]);
+    }
+
+    private void buildStopPatterns() {
+
+      int n = stops.length;
+      stopPatternOffsets = new int[n + 1];
+
+      for (int i = 0; i < patternStops.length; i++)
+        stopPatternOffsets[patternStops[i] + 1]++;
+      for (int i = 0; i < n; i++)
+        stopPatternOffsets[i + 1] += stopPatternOffsets[i];
+
+      stopPatterns = new int[patternStops.length];
+      stopPatternPositions = new int[patternStops.length];
+      int[] next = new int[n];
+      System.arraycopy(stopPatternOffsets, 0, next, 0, n);
+
+      for (int p = 0; p < patternTripCounts.length; p++) {
+        for (int i = patternStopOffsets[p]; i < patternStopOffsets[p + 1]; i++) {
+          int stop = patternStops[i];
+          int slot = next[stop]++;
+          stopPatterns[slot] = p;
+          stopPatternPositions[slot] = i - patternStopOffsets[p];
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,533 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.tripplanner;
+
+import java.util.Arrays;
+
+/**
+ * A round-based (RAPTOR-style) search over a {@link TransitShedGraph} for the
+ * min travel time to every stop, where travel time doesn't count the initial
+ * wait: the time spent at the first stop before the first boarding. Round k
+ * finds every stop that can be reached with at most k boardings: each pattern
+ * serving a stop improved in the previous round is scanned once from its
+ * earliest improved stop, and the stops improved by riding are then relaxed
+ * along their walking transfers.
+ * 
+ * Since the initial wait is free, a later arrival can still mean a shorter
+ * travel time, so a stop keeps a label for every (arrival, initial wait) pair
+ * that isn't dominated by another, where a label dominates another if it
+ * arrives no later with no less initial wait. Along with those labels, a stop
+ * reached by walking from the origin keeps its walk time, from which any trip
+ * departing within the max initial wait can be boarded.
+ * 
+ * Every boarding after the first is a transfer, whether at the stop the
+ * vehicle arrived at or at one walked to from there, so boarding from a label
+ * requires the min transfer time on top of its arrival. Labels still record
+ * when the stop was actually reached.
+ * 
+ * Times are in seconds relative to the start of the search. All state lives
+ * in arrays sized to the graph, which are reset in time proportional to the
+ * number of stops reached, so that a single instance can be reused for every
+ * search made by a thread. Instances are not thread-safe.
+ */
+final class TransitShedSearch {
+
+  static final int UNREACHED = Integer.MAX_VALUE;
+
+  private static final int NO_LABEL = -1;
+
+  private static final int NOT_DOMINATED = Integer.MAX_VALUE;
+
+  private static final int MAX_SERVICE_DATES_PER_ACTIVATION = 8;
+
+  private final TransitShedGraph _graph;
+
+  /**
+   * The walk time from the origin to each stop
+   */
+  private final int[] _accessTimes;
+
+  private final int[] _arrivals;
+
+  private final int[] _travelTimes;
+
+  /**
+   * The first label of each stop, with the labels of a stop linked through
+   * {@link #_labelNext}
+   */
+  private final int[] _stopLabels;
+
+  private int[] _labelArrivals;
+
+  private int[] _labelInitialWaits;
+
+  private int[] _labelRounds;
+
+  /**
+   * The round a label was dominated in, or {@link #NOT_DOMINATED}
+   */
+  private int[] _labelDominatedRounds;
+
+  private int[] _labelNext;
+
+  private int _labelCount = 0;
+
+  private final int[] _reachedStops;
+
+  private int _reachedStopCount = 0;
+
+  private final int[] _markedStops;
+
+  private int _markedStopCount = 0;
+
+  private final boolean[] _stopIsMarked;
+
+  private final int[] _patternBoardPositions;
+
+  private final int[] _markedPatterns;
+
+  private int _markedPatternCount = 0;
+
+  /**
+   * The trips boarded while scanning a pattern, none of which arrives no
+   * earlier with no more initial wait than another
+   */
+  private int[] _boardedTrips = new int[16];
+
+  private int[] _boardedServiceDateOffsets = new int[16];
+
+  private int[] _boardedInitialWaits = new int[16];
+
+  private int _boardedCount = 0;
+
+  private final int[] _serviceDateOffsets;
+
+  private final int[] _serviceDateCounts;
+
+  private int _maxInitialWait = UNREACHED;
+
+  private int _maxTripDuration = UNREACHED;
+
+  private int _minTransferTime = 0;
+
+  private int _round = 0;
+
+  public TransitShedSearch(TransitShedGraph graph) {
+    _graph = graph;
+
+    int stopCount = graph.getStopCount();
+    _accessTimes = new int[stopCount];
+    _arrivals = new int[stopCount];
+    _travelTimes = new int[stopCount];
+    _stopLabels = new int[stopCount];
+    _reachedStops = new int[stopCount];
+    _markedStops = new int[stopCount];
+    _stopIsMarked = new boolean[stopCount];
+    Arrays.fill(_accessTimes, UNREACHED);
+    Arrays.fill(_arrivals, UNREACHED);
+    Arrays.fill(_travelTimes, UNREACHED);
+    Arrays.fill(_stopLabels, NO_LABEL);
+
+    int labelCapacity = Math.max(16, stopCount);
+    _labelArrivals = new int[labelCapacity];
+    _labelInitialWaits = new int[labelCapacity];
+    _labelRounds = new int[labelCapacity];
+    _labelDominatedRounds = new int[labelCapacity];
+    _labelNext = new int[labelCapacity];
+
+    int patternCount = graph.getPatternCount();
+    _patternBoardPositions = new int[patternCount];
+    _markedPatterns = new int[patternCount];
+    Arrays.fill(_patternBoardPositions, -1);
+
+    int activationCount = graph.getActivationCount();
+    _serviceDateOffsets = new int[activationCount
+        * MAX_SERVICE_DATES_PER_ACTIVATION];
+    _serviceDateCounts = new int[activationCount];
+  }
+
+  public TransitShedGraph getGraph() {
+    return _graph;
+  }
+
+  /**
+   * Clears the results of the previous search.
+   */
+  public void reset() {
+    for (int i = 0; i < _reachedStopCount; i++) {
+      int stop = _reachedStops[i];
+      _accessTimes[stop] = UNREACHED;
+      _arrivals[stop] = UNREACHED;
+      _travelTimes[stop] = UNREACHED;
+      _stopLabels[stop] = NO_LABEL;
+    }
+    _reachedStopCount = 0;
+    _labelCount = 0;
+
+    for (int i = 0; i < _markedStopCount; i++)
+      _stopIsMarked[_markedStops[i]] = false;
+    _markedStopCount = 0;
+
+    _round = 0;
+
+    Arrays.fill(_serviceDateCounts, 0);
+  }
+
+  /**
+   * 
+   * @param maxInitialWait in seconds
+   * @param maxTripDuration in seconds, not counting the initial wait
+   */
+  public void setLimits(int maxInitialWait, int maxTripDuration) {
+    _maxInitialWait = maxInitialWait;
+    _maxTripDuration = maxTripDuration;
+  }
+
+  /**
+   * Makes the trips of patterns with the specified service ids available on
+   * a service date.
+   * 
+   * @param activation see {@link TransitShedGraph#getActivation(int)}
+   * @param offset the service date, in seconds relative to the start of the
+   *          search
+   */
+  public void addServiceDate(int activation, int offset) {
+    int count = _serviceDateCounts[activation];
+    if (count == MAX_SERVICE_DATES_PER_ACTIVATION)
+      return;
+    _serviceDateOffsets[activation * MAX_SERVICE_DATES_PER_ACTIVATION + count] = offset;
+    _serviceDateCounts[activation] = count + 1;
+  }
+
+  /**
+   * Adds a stop reachable by walking from the origin.
+   * 
+   * @param stop
+   * @param walkTime in seconds
+   */
+  public void addAccessStop(int stop, int walkTime) {
+    if (walkTime > _maxTripDuration || walkTime >= _accessTimes[stop])
+      return;
+    reach(stop);
+    _accessTimes[stop] = walkTime;
+    _arrivals[stop] = Math.min(_arrivals[stop], walkTime);
+    _travelTimes[stop] = Math.min(_travelTimes[stop], walkTime);
+    mark(stop);
+  }
+
+  /**
+   * 
+   * @param maxRounds the max number of boardings
+   * @param walkingVelocity in meters/sec, for transfers without a min
+   *          transfer time
+   * @param minTransferTime in seconds, the buffer needed to board a vehicle
+   *          after getting off another
+   */
+  public void run(int maxRounds, double walkingVelocity, int minTransferTime) {
+
+    _minTransferTime = minTransferTime;
+
+    for (_round = 1; _round <= maxRounds && _markedStopCount > 0; _round++) {
+
+      collectMarkedPatterns();
+
+      for (int i = 0; i < _markedPatternCount; i++) {
+        int pattern = _markedPatterns[i];
+        scanPattern(pattern, _patternBoardPositions[pattern]);
+        _patternBoardPositions[pattern] = -1;
+      }
+      _markedPatternCount = 0;
+
+      int riddenStops = _markedStopCount;
+      int riddenLabels = _labelCount;
+      for (int i = 0; i < riddenStops; i++)
+        relaxTransfers(_markedStops[i], riddenLabels, walkingVelocity);
+    }
+  }
+
+  public int getReachedStopCount() {
+    return _reachedStopCount;
+  }
+
+  public int getReachedStop(int index) {
+    return _reachedStops[index];
+  }
+
+  /**
+   * @return the earliest arrival at the stop, in seconds relative to the start
+   *         of the search, or {@link #UNREACHED}
+   */
+  public int getArrival(int stop) {
+    return _arrivals[stop];
+  }
+
+  /**
+   * @return the min travel time to the stop, in seconds, not counting the
+   *         initial wait, or {@link #UNREACHED}
+   */
+  public int getTravelTime(int stop) {
+    return _travelTimes[stop];
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * Collects the patterns serving the stops improved in the previous round,
+   * along with the earliest position of such a stop in each pattern.
+   */
+  private void collectMarkedPatterns() {
+
+    for (int i = 0; i < _markedStopCount; i++) {
+
+      int stop = _markedStops[i];
+      _stopIsMarked[stop] = false;
+
+      int end = _graph.getStopPatternEnd(stop);
+      for (int j = _graph.getStopPatternStart(stop); j < end; j++) {
+        int pattern = _graph.getStopPattern(j);
+        int position = _graph.getStopPatternPosition(j);
+        int existing = _patternBoardPositions[pattern];
+        if (existing == -1)
+          _markedPatterns[_markedPatternCount++] = pattern;
+        if (existing == -1 || position < existing)
+          _patternBoardPositions[pattern] = position;
+      }
+    }
+
+    _markedStopCount = 0;
+  }
+
+  private void scanPattern(int pattern, int fromPosition) {
+
+    int activation = _graph.getPatternActivation(pattern);
+    if (_serviceDateCounts[activation] == 0)
+      return;
+
+    int stopCount = _graph.getPatternStopCount(pattern);
+    _boardedCount = 0;
+
+    for (int position = fromPosition; position < stopCount; position++) {
+
+      int stop = _graph.getPatternStop(pattern, position);
+
+      for (int i = 0; i < _boardedCount; i++) {
+        int arrival = _boardedServiceDateOffsets[i]
+            + _graph.getArrivalTime(pattern, _boardedTrips[i], position);
+        addLabel(stop, arrival, _boardedInitialWaits[i]);
+      }
+
+      /**
+       * Only labels from the previous round can be boarded, so that round k
+       * sees at most k boardings. A label dominated in this round still
+       * counts, as it was reachable at the start of the round.
+       */
+      for (int label = _stopLabels[stop]; label != NO_LABEL; label = _labelNext[label]) {
+        if (_labelRounds[label] == _round - 1
+            && _labelDominatedRounds[label] >= _round)
+          boardEarliestTrip(pattern, activation, position,
+              _labelArrivals[label] + _minTransferTime,
+              _labelInitialWaits[label]);
+      }
+
+      if (_round == 1 && _accessTimes[stop] != UNREACHED)
+        boardTripsWithinInitialWait(pattern, activation, position,
+            _accessTimes[stop]);
+    }
+  }
+
+  /**
+   * Boards the earliest trip departing at or after the specified time, having
+   * already waited initially.
+   */
+  private void boardEarliestTrip(int pattern, int activation, int position,
+      int ready, int initialWait) {
+
+    int serviceDateBase = activation * MAX_SERVICE_DATES_PER_ACTIVATION;
+    int serviceDateCount = _serviceDateCounts[activation];
+    int tripCount = _graph.getPatternTripCount(pattern);
+
+    int bestTrip = -1;
+    int bestOffset = 0;
+    int bestDeparture = UNREACHED;
+
+    for (int i = 0; i < serviceDateCount; i++) {
+      int offset = _serviceDateOffsets[serviceDateBase + i];
+      int t = _graph.getFirstTripDepartingAtOrAfter(pattern, position, ready
+          - offset);
+      if (t == tripCount)
+        continue;
+      int departure = offset + _graph.getDepartureTime(pattern, t, position);
+      if (departure < bestDeparture) {
+        bestTrip = t;
+        bestOffset = offset;
+        bestDeparture = departure;
+      }
+    }
+
+    if (bestTrip != -1)
+      board(pattern, position, bestTrip, bestOffset, initialWait);
+  }
+
+  /**
+   * From a stop reached by walking, the wait for the first trip is free, so
+   * every trip departing within the max initial wait is worth boarding: a
+   * later one may still get somewhere sooner after boarding.
+   */
+  private void boardTripsWithinInitialWait(int pattern, int activation,
+      int position, int ready) {
+
+    int serviceDateBase = activation * MAX_SERVICE_DATES_PER_ACTIVATION;
+    int serviceDateCount = _serviceDateCounts[activation];
+    int tripCount = _graph.getPatternTripCount(pattern);
+
+    for (int i = 0; i < serviceDateCount; i++) {
+      int offset = _serviceDateOffsets[serviceDateBase + i];
+      int t = _graph.getFirstTripDepartingAtOrAfter(pattern, position, ready
+          - offset);
+      for (; t < tripCount; t++) {
+        int initialWait = offset
+            + _graph.getDepartureTime(pattern, t, position) - ready;
+        if (initialWait > _maxInitialWait)
+          break;
+        board(pattern, position, t, offset, initialWait);
+      }
+    }
+  }
+
+  /**
+   * Adds a trip to the trips boarded along the pattern, unless one of them
+   * departs no later with no less initial wait, and drops the ones the new
+   * trip is at least as good as.
+   */
+  private void board(int pattern, int position, int trip,
+      int serviceDateOffset, int initialWait) {
+
+    int departure = serviceDateOffset
+        + _graph.getDepartureTime(pattern, trip, position);
+
+    int n = 0;
+    for (int i = 0; i < _boardedCount; i++) {
+      int d = _boardedServiceDateOffsets[i]
+          + _graph.getDepartureTime(pattern, _boardedTrips[i], position);
+      int w = _boardedInitialWaits[i];
+      if (d <= departure && w >= initialWait)
+        return;
+      if (departure <= d && initialWait >= w)
+        continue;
+      _boardedTrips[n] = _boardedTrips[i];
+      _boardedServiceDateOffsets[n] = _boardedServiceDateOffsets[i];
+      _boardedInitialWaits[n] = w;
+      n++;
+    }
+
+    if (n == _boardedTrips.length) {
+      _boardedTrips = Arrays.copyOf(_boardedTrips, n * 2);
+      _boardedServiceDateOffsets = Arrays.copyOf(_boardedServiceDateOffsets,
+          n * 2);
+      _boardedInitialWaits = Arrays.copyOf(_boardedInitialWaits, n * 2);
+    }
+
+    _boardedTrips[n] = trip;
+    _boardedServiceDateOffsets[n] = serviceDateOffset;
+    _boardedInitialWaits[n] = initialWait;
+    _boardedCount = n + 1;
+  }
+
+  /**
+   * Walks from the labels a stop got by riding in this round, but not from the
+   * ones it got by walking, the first of which is at or after the specified
+   * label.
+   */
+  private void relaxTransfers(int stop, int firstWalkedLabel,
+      double walkingVelocity) {
+
+    int end = _graph.getTransferEnd(stop);
+    if (_graph.getTransferStart(stop) == end)
+      return;
+
+    for (int label = _stopLabels[stop]; label != NO_LABEL; label = _labelNext[label]) {
+
+      if (label >= firstWalkedLabel || _labelRounds[label] != _round
+          || _labelDominatedRounds[label] != NOT_DOMINATED)
+        continue;
+
+      int arrival = _labelArrivals[label];
+      int initialWait = _labelInitialWaits[label];
+
+      for (int i = _graph.getTransferStart(stop); i < end; i++)
+        addLabel(_graph.getTransferStop(i),
+            arrival + _graph.getTransferTime(i, walkingVelocity), initialWait);
+    }
+  }
+
+  /**
+   * Adds a label to a stop in the current round, unless another label of the
+   * stop arrives no later with no less initial wait, and marks the labels the
+   * new one is at least as good as as dominated.
+   */
+  private void addLabel(int stop, int arrival, int initialWait) {
+
+    if (arrival - initialWait > _maxTripDuration)
+      return;
+
+    for (int label = _stopLabels[stop]; label != NO_LABEL; label = _labelNext[label]) {
+      if (_labelDominatedRounds[label] != NOT_DOMINATED)
+        continue;
+      if (_labelArrivals[label] <= arrival
+          && _labelInitialWaits[label] >= initialWait)
+        return;
+      if (arrival <= _labelArrivals[label]
+          && initialWait >= _labelInitialWaits[label])
+        _labelDominatedRounds[label] = _round;
+    }
+
+    if (_labelCount == _labelArrivals.length) {
+      int capacity = _labelCount * 2;
+      _labelArrivals = Arrays.copyOf(_labelArrivals, capacity);
+      _labelInitialWaits = Arrays.copyOf(_labelInitialWaits, capacity);
+      _labelRounds = Arrays.copyOf(_labelRounds, capacity);
+      _labelDominatedRounds = Arrays.copyOf(_labelDominatedRounds, capacity);
+      _labelNext = Arrays.copyOf(_labelNext, capacity);
+    }
+
+    int label = _labelCount++;
+    _labelArrivals[label] = arrival;
+    _labelInitialWaits[label] = initialWait;
+    _labelRounds[label] = _round;
+    _labelDominatedRounds[label] = NOT_DOMINATED;
+    _labelNext[label] = _stopLabels[stop];
+
+    reach(stop);
+    _stopLabels[stop] = label;
+    _arrivals[stop] = Math.min(_arrivals[stop], arrival);
+    _travelTimes[stop] = Math.min(_travelTimes[stop], arrival - initialWait);
+    mark(stop);
+  }
+
+  private void reach(int stop) {
+    if (_arrivals[stop] == UNREACHED)
+      _reachedStops[_reachedStopCount++] = stop;
+  }
+
+  private void mark(int stop) {
+    if (!_stopIsMarked[stop]) {
+      _stopIsMarked[stop] = true;
+      _markedStops[_markedStopCount++] = stop;
+    }
+  }
+}
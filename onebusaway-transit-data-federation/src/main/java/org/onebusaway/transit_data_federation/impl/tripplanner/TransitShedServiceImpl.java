@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.tripplanner;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.onebusaway.container.refresh.Refreshable;
+import org.onebusaway.geospatial.model.CoordinateBounds;
+import org.onebusaway.geospatial.model.CoordinatePoint;
+import org.onebusaway.geospatial.services.SphericalGeometryLibrary;
+import org.onebusaway.transit_data_federation.impl.RefreshableResources;
+import org.onebusaway.transit_data_federation.impl.otp.OBATraverseOptions;
+import org.onebusaway.transit_data_federation.services.ExtendedCalendarService;
+import org.onebusaway.transit_data_federation.services.blocks.BlockIndexService;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.TransitGraphDao;
+import org.onebusaway.transit_data_federation.services.tripplanner.StopTransferService;
+import org.onebusaway.transit_data_federation.services.tripplanner.TransitShedService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Answers transit shed queries with a {@link TransitShedSearch} over a
+ * {@link TransitShedGraph} built from the transit graph, block sequence
+ * indices and stop transfers at startup. Each thread reuses its own search
+ * buffers, so concurrent queries don't contend with one another.
+ * 
+ * Walking from the origin to the first stop is approximated by the straight
+ * line distance, and only scheduled times are considered.
+ */
+@Component
+public class TransitShedServiceImpl implements TransitShedService {
+
+  private static Logger _log = LoggerFactory.getLogger(TransitShedServiceImpl.class);
+
+  private static final int DEFAULT_MAX_TRIP_DURATION = 20 * 60;
+
+  private static final int DEFAULT_MAX_INITIAL_WAIT_TIME = 30 * 60;
+
+  private TransitGraphDao _transitGraphDao;
+
+  private BlockIndexService _blockIndexService;
+
+  private StopTransferService _stopTransferService;
+
+  private ExtendedCalendarService _calendarService;
+
+  private volatile TransitShedGraph _graph;
+
+  private final ThreadLocal<TransitShedSearch> _searches = new ThreadLocal<TransitShedSearch>();
+
+  @Autowired
+  public void setTransitGraphDao(TransitGraphDao transitGraphDao) {
+    _transitGraphDao = transitGraphDao;
+  }
+
+  @Autowired
+  public void setBlockIndexService(BlockIndexService blockIndexService) {
+    _blockIndexService = blockIndexService;
+  }
+
+  @Autowired
+  public void setStopTransferService(StopTransferService stopTransferService) {
+    _stopTransferService = stopTransferService;
+  }
+
+  @Autowired
+  public void setCalendarService(ExtendedCalendarService calendarService) {
+    _calendarService = calendarService;
+  }
+
+  @PostConstruct
+  @Refreshable(dependsOn = {
+      RefreshableResources.TRANSIT_GRAPH,
+      RefreshableResources.BLOCK_INDEX_DATA,
+      RefreshableResources.STOP_TRANSFER_DATA})
+  public void setup() {
+    TransitShedGraph graph = TransitShedGraph.create(
+        _transitGraphDao.getAllStops(),
+        _blockIndexService.getAllBlockSequenceIndices(), _stopTransferService);
+    _log.info("transit shed graph: stops=" + graph.getStopCount()
+        + " patterns=" + graph.getPatternCount());
+    _graph = graph;
+  }
+
+  @Override
+  public Map<StopEntry, Long> getMinTravelTimeToStops(CoordinatePoint location,
+      long time, OBATraverseOptions options) {
+
+    TransitShedGraph graph = _graph;
+    TransitShedSearch search = _searches.get();
+    if (search == null || search.getGraph() != graph) {
+      search = new TransitShedSearch(graph);
+      _searches.set(search);
+    }
+
+    int maxTripDuration = DEFAULT_MAX_TRIP_DURATION;
+    if (options.maxTripDuration != -1)
+      maxTripDuration = (int) (options.maxTripDuration / 1000);
+
+    int maxInitialWait = DEFAULT_MAX_INITIAL_WAIT_TIME;
+    if (options.maxInitialWaitTime != -1)
+      maxInitialWait = (int) (options.maxInitialWaitTime / 1000);
+
+    double walkingVelocity = options.speed;
+
+    search.reset();
+    search.setLimits(maxInitialWait, maxTripDuration);
+
+    addAccessStops(search, location, walkingVelocity,
+        Math.min(options.maxWalkDistance, walkingVelocity * maxTripDuration));
+
+    if (options.getModes().getTransit()) {
+      addServiceDates(search, time, maxInitialWait + maxTripDuration);
+      search.run(options.maxTransfers + 1, walkingVelocity,
+          options.minTransferTime);
+    }
+
+    Map<StopEntry, Long> results = new HashMap<StopEntry, Long>();
+    int n = search.getReachedStopCount();
+    for (int i = 0; i < n; i++) {
+      int stop = search.getReachedStop(i);
+      results.put(graph.getStop(stop), search.getTravelTime(stop) * 1000L);
+    }
+    return results;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void addAccessStops(TransitShedSearch search,
+      CoordinatePoint location, double walkingVelocity, double maxWalkDistance) {
+
+    CoordinateBounds bounds = SphericalGeometryLibrary.bounds(location,
+        maxWalkDistance);
+    List<StopEntry> stops = _transitGraphDao.getStopsByLocation(bounds);
+
+    for (StopEntry stop : stops) {
+      double distance = SphericalGeometryLibrary.distance(location.getLat(),
+          location.getLon(), stop.getStopLat(), stop.getStopLon());
+      if (distance <= maxWalkDistance)
+        search.addAccessStop(stop.getIndex(),
+            (int) (distance / walkingVelocity));
+    }
+  }
+
+  private void addServiceDates(TransitShedSearch search, long time,
+      int horizon) {
+
+    TransitShedGraph graph = search.getGraph();
+    Date from = new Date(time);
+    Date to = new Date(time + horizon * 1000L);
+
+    for (int activation = 0; activation < graph.getActivationCount(); activation++) {
+      Collection<Date> serviceDates = _calendarService.getServiceDatesWithinRange(
+          graph.getActivation(activation),
+          graph.getActivationInterval(activation), from, to);
+      for (Date serviceDate : serviceDates)
+        search.addServiceDate(activation,
+            (int) ((serviceDate.getTime() - time) / 1000));
+    }
+  }
+}
@@ -76,6 +76,14 @@ public class FederatedTransitDataBundle {
     return new File(_path, "TransitGraph.obj");
   }
 
+  /**
+   * @return the directory holding the memory-mappable columnar form of the
+   *         transit graph
+   */
+  public File getColumnarTransitGraphPath() {
+    return new File(_path, "TransitGraph");
+  }
+
   public File getGraphPath() {
     return new File(_path, "Graph.obj");
   }
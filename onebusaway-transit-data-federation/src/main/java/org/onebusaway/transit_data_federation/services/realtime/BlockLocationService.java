@@ -19,6 +19,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import org.onebusaway.geospatial.model.CoordinateBounds;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.transit_data_federation.model.TargetTime;
 import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
@@ -65,6 +66,29 @@ public interface BlockLocationService {
   public List<BlockLocation> getLocationsForBlockInstance(
       BlockInstance blockInstance, TargetTime time);
 
+  /**
+   * Determines the real-time locations of the vehicles within the specified
+   * bounds at the target time. Vehicles are looked up by the position of their
+   * most recent record, so the cost depends on the number of vehicles near the
+   * bounds rather than on the number of blocks passing through them.
+   * 
+   * @param bounds
+   * @param time
+   * @return the real-time block locations within the bounds
+   */
+  public List<BlockLocation> getLocationsForBounds(CoordinateBounds bounds,
+      TargetTime time);
+
+  /**
+   * 
+   * @param blockInstance
+   * @param time
+   * @return true if recent real-time records are available for the block
+   *         instance at the current time
+   */
+  public boolean isRealTimeAvailableForBlockInstance(
+      BlockInstance blockInstance, TargetTime time);
+
   /**
    * Determines the scheduled vehicle location of a given block instance at the
    * specified time.
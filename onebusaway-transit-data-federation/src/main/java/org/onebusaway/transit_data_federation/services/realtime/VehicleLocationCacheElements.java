@@ -15,11 +15,11 @@
  */
 package org.onebusaway.transit_data_federation.services.realtime;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.onebusaway.collections.Range;
 import org.onebusaway.realtime.api.VehicleLocationRecord;
@@ -27,35 +27,69 @@ import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * An immutable snapshot of the most recent {@link VehicleLocationCacheElement}
+ * entries for a vehicle. Snapshots share an append-only backing array: the
+ * snapshot at the head of the array extends it in place, and only when the
+ * array is full, or when an older snapshot is extended, are the retained
+ * elements copied into a fresh array with room to spare. With a bounded
+ * capacity c, the array holds 2c slots, so a copy of at most c elements
+ * happens once every c additions, and each addition is amortized O(1).
+ * 
+ * Slots are written once and never overwritten, so a reader holding any
+ * snapshot always sees a consistent set of elements.
+ */
 public class VehicleLocationCacheElements {
 
   private static Logger _log = LoggerFactory.getLogger(VehicleLocationCacheElements.class);
 
+  private static final int MIN_BUFFER_SIZE = 8;
+
   private final BlockInstance _blockInstance;
 
-  private final List<VehicleLocationCacheElement> _elements;
+  private final Buffer _buffer;
+
+  private final int _from;
+
+  private final int _to;
 
   public VehicleLocationCacheElements(BlockInstance blockInstance) {
-    _blockInstance = blockInstance;
-    _elements = Collections.emptyList();
+    this(blockInstance, null, 0, 0);
   }
 
   public VehicleLocationCacheElements(BlockInstance blockInstance,
       VehicleLocationCacheElement element) {
-    _blockInstance = blockInstance;
-    _elements = Arrays.asList(element);
+    this(blockInstance, new Buffer(MIN_BUFFER_SIZE), 0, 1);
+    _buffer.elements[0] = element;
+    _buffer.used.set(1);
   }
 
   private VehicleLocationCacheElements(BlockInstance blockInstance,
-      List<VehicleLocationCacheElement> elements) {
+      Buffer buffer, int from, int to) {
     _blockInstance = blockInstance;
-    _elements = elements;
+    _buffer = buffer;
+    _from = from;
+    _to = to;
   }
 
   public VehicleLocationCacheElements extend(VehicleLocationCacheElement element) {
-    
-    if (!_elements.isEmpty()) {
-      VehicleLocationCacheElement lastElement = _elements.get(_elements.size() - 1);
+    return extend(element, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Extends the collection with the specified element, dropping the oldest
+   * elements as necessary so that the resulting collection holds no more than
+   * the specified number of elements.
+   * 
+   * @param element the element to add
+   * @param capacity the maximum number of elements to keep
+   * @return the extended collection
+   */
+  public VehicleLocationCacheElements extend(
+      VehicleLocationCacheElement element, int capacity) {
+
+    if (!isEmpty()) {
+      VehicleLocationCacheElement lastElement = getLastElement();
       if (lastElement.getRecord().getTimeOfRecord() > element.getRecord().getTimeOfRecord()) {
         _log.warn("ignoring vehicle location record with decreasing timestamp: "
             + lastElement.getRecord() + " => " + element.getRecord());
@@ -63,11 +97,29 @@ public class VehicleLocationCacheElements {
       }
     }
 
-    List<VehicleLocationCacheElement> elements = new ArrayList<VehicleLocationCacheElement>(
-        _elements.size() + 1);
-    elements.addAll(_elements);
-    elements.add(element);
-    return new VehicleLocationCacheElements(_blockInstance, elements);
+    int from = Math.max(_from, _to + 1 - capacity);
+
+    /**
+     * If we're the latest snapshot on the buffer and there is room, we claim
+     * the next slot and extend in place
+     */
+    if (_buffer != null && _to < _buffer.elements.length
+        && _buffer.used.compareAndSet(_to, _to + 1)) {
+      _buffer.elements[_to] = element;
+      return new VehicleLocationCacheElements(_blockInstance, _buffer, from,
+          _to + 1);
+    }
+
+    int retained = _to - from;
+    long size = Math.max(MIN_BUFFER_SIZE, 2L * (retained + 1));
+    size = Math.min(size, 2L * capacity);
+    Buffer buffer = new Buffer((int) Math.min(size, Integer.MAX_VALUE - 8));
+    if (retained > 0)
+      System.arraycopy(_buffer.elements, from, buffer.elements, 0, retained);
+    buffer.elements[retained] = element;
+    buffer.used.set(retained + 1);
+    return new VehicleLocationCacheElements(_blockInstance, buffer, 0,
+        retained + 1);
   }
 
   public VehicleLocationCacheElements pruneOlderThanTime(long time) {
@@ -75,16 +127,15 @@ public class VehicleLocationCacheElements {
     /**
      * If we don't need to prune, don't do anything
      */
-    if (isEmpty() || _elements.get(0).getMeasuredLastUpdateTime() >= time)
+    if (isEmpty() || _buffer.elements[_from].getMeasuredLastUpdateTime() >= time)
       return this;
 
-    List<VehicleLocationCacheElement> elements = new ArrayList<VehicleLocationCacheElement>();
-    for (VehicleLocationCacheElement element : _elements) {
-      if (element.getMeasuredLastUpdateTime() >= time)
-        elements.add(element);
-    }
+    int from = _from;
+    while (from < _to
+        && _buffer.elements[from].getMeasuredLastUpdateTime() < time)
+      from++;
 
-    return new VehicleLocationCacheElements(_blockInstance, elements);
+    return new VehicleLocationCacheElements(_blockInstance, _buffer, from, _to);
   }
 
   public BlockInstance getBlockInstance() {
@@ -92,40 +143,58 @@ public class VehicleLocationCacheElements {
   }
 
   public boolean isEmpty() {
-    return _elements.isEmpty();
+    return _from == _to;
   }
 
   public Range getTimeRange() {
-    if (_elements.isEmpty())
+    if (isEmpty())
       throw new NoSuchElementException();
-    VehicleLocationCacheElement first = _elements.get(0);
-    VehicleLocationCacheElement last = _elements.get(_elements.size() - 1);
+    VehicleLocationCacheElement first = _buffer.elements[_from];
+    VehicleLocationCacheElement last = _buffer.elements[_to - 1];
     return new Range(first.getRecord().getTimeOfRecord(),
         last.getRecord().getTimeOfRecord());
   }
 
   public List<VehicleLocationCacheElement> getElements() {
-    return Collections.unmodifiableList(_elements);
+    if (isEmpty())
+      return Collections.emptyList();
+    return Collections.unmodifiableList(Arrays.asList(_buffer.elements).subList(
+        _from, _to));
   }
 
   public VehicleLocationCacheElement getElementForTimestamp(long targetTime) {
 
-    if (_elements.isEmpty())
+    if (isEmpty())
       return null;
 
-    for (int i = _elements.size() - 1; i > 0; i--) {
-      VehicleLocationCacheElement element = _elements.get(i);
+    for (int i = _to - 1; i > _from; i--) {
+      VehicleLocationCacheElement element = _buffer.elements[i];
       VehicleLocationRecord record = element.getRecord();
       if (record.getTimeOfRecord() <= targetTime)
         return element;
     }
 
-    return _elements.get(0);
+    return _buffer.elements[_from];
   }
   
   public VehicleLocationCacheElement getLastElement() {
-    if( _elements.isEmpty() )
+    if( isEmpty() )
       throw new NoSuchElementException();
-    return _elements.get(_elements.size() - 1);
+    return _buffer.elements[_to - 1];
+  }
+
+  /**
+   * An append-only array of elements shared by successive snapshots.
+   * {@link #used} is the number of slots claimed so far.
+   */
+  private static final class Buffer {
+
+    private final VehicleLocationCacheElement[] elements;
+
+    private final AtomicInteger used = new AtomicInteger();
+
+    public Buffer(int size) {
+      elements = new VehicleLocationCacheElement[size];
+    }
   }
 }
@@ -15,29 +15,61 @@
  */
 package org.onebusaway.transit_data_federation.services.realtime;
 
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.realtime.api.VehicleLocationRecord;
 import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
 import org.onebusaway.transit_data_federation.services.blocks.ScheduledBlockLocation;
 
+/**
+ * Holds the most recent {@link VehicleLocationCacheElement} entries for a
+ * single vehicle serving a single block instance. The elements are kept in a
+ * fixed-capacity buffer: once the buffer is full, adding a new element drops
+ * the oldest one.
+ * 
+ * The entry never takes a lock. Its state is an immutable
+ * {@link VehicleLocationCacheElements} snapshot, along with a closed flag,
+ * which is swapped atomically by writers. In the common case, there is a
+ * single writer per vehicle and the swap succeeds on the first attempt.
+ * Readers simply grab the current snapshot, which is guaranteed to be
+ * internally consistent.
+ */
 public class VehicleLocationCacheEntry {
 
+  private final AgencyAndId _vehicleId;
+
   private final BlockInstance _blockInstance;
 
-  private VehicleLocationCacheElements _elements;
+  private final int _capacity;
 
-  private boolean _closed = false;
+  private final AtomicReference<State> _state;
 
-  public VehicleLocationCacheEntry(BlockInstance blockInstance) {
+  public VehicleLocationCacheEntry(AgencyAndId vehicleId,
+      BlockInstance blockInstance, int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity must be positive");
+    _vehicleId = vehicleId;
     _blockInstance = blockInstance;
-    _elements = new VehicleLocationCacheElements(blockInstance);
+    _capacity = capacity;
+    _state = new AtomicReference<State>(new State(
+        new VehicleLocationCacheElements(blockInstance), false));
+  }
+
+  public AgencyAndId getVehicleId() {
+    return _vehicleId;
   }
 
   public BlockInstance getBlockInstance() {
     return _blockInstance;
   }
 
-  public synchronized boolean isClosed() {
-    return _closed;
+  public int getCapacity() {
+    return _capacity;
+  }
+
+  public boolean isClosed() {
+    return _state.get().closed;
   }
 
   /**
@@ -48,19 +80,30 @@ public class VehicleLocationCacheEntry {
    * @return true if the element was successfully added, or false if the entry
    *         is closed to new elements
    */
-  public synchronized boolean addElement(VehicleLocationRecord record,
+  public boolean addElement(VehicleLocationRecord record,
       ScheduledBlockLocation scheduledBlockLocation,
       ScheduleDeviationSamples samples) {
 
-    if (_closed)
-      return false;
-
     VehicleLocationCacheElement element = new VehicleLocationCacheElement(
         record, scheduledBlockLocation, samples);
 
-    _elements = _elements.extend(element);
+    while (true) {
 
-    return true;
+      State state = _state.get();
+
+      if (state.closed)
+        return false;
+
+      VehicleLocationCacheElements elements = state.elements.extend(element,
+          _capacity);
+
+      // The element was rejected (out of order), so there is nothing to swap
+      if (elements == state.elements)
+        return true;
+
+      if (_state.compareAndSet(state, new State(elements, false)))
+        return true;
+    }
   }
 
   /**
@@ -68,18 +111,13 @@ public class VehicleLocationCacheEntry {
    * @param blockInstance
    * @return true if closed
    */
-  public synchronized boolean isClosedBecauseBlockInstanceChanged(
-      BlockInstance blockInstance) {
+  public boolean isClosedBecauseBlockInstanceChanged(BlockInstance blockInstance) {
 
-    if (_closed)
-      return true;
+    if (_blockInstance.equals(blockInstance))
+      return isClosed();
 
-    if (!_blockInstance.equals(blockInstance)) {
-      _closed = true;
-      return true;
-    }
-
-    return false;
+    close();
+    return true;
   }
 
   /**
@@ -87,23 +125,58 @@ public class VehicleLocationCacheEntry {
    * @param time
    * @return true if closed
    */
-  public synchronized boolean closeIfStale(long time) {
+  public boolean closeIfStale(long time) {
+
+    while (true) {
+
+      State state = _state.get();
 
-    if( _closed )
-      return true;
-    
-    _elements = _elements.pruneOlderThanTime(time);
+      if (state.closed)
+        return true;
 
-    if (_elements.isEmpty()) {
-      _closed = true;
-      return true;
+      VehicleLocationCacheElements elements = state.elements.pruneOlderThanTime(time);
+
+      if (elements.isEmpty()) {
+        if (_state.compareAndSet(state, new State(state.elements, true)))
+          return true;
+      } else if (elements == state.elements) {
+        return false;
+      } else if (_state.compareAndSet(state, new State(elements, false))) {
+        return false;
+      }
     }
+  }
 
-    return false;
+  /**
+   * Closes the entry to new elements. The last snapshot of elements remains
+   * available to readers.
+   */
+  public void close() {
+    while (true) {
+      State state = _state.get();
+      if (state.closed
+          || _state.compareAndSet(state, new State(state.elements, true)))
+        return;
+    }
   }
 
-  public synchronized VehicleLocationCacheElements getElements() {
-    return _elements;
+  public VehicleLocationCacheElements getElements() {
+    return _state.get().elements;
   }
 
-}
\ No newline at end of file
+  /****
+   * Private Methods
+   ****/
+
+  private static final class State {
+
+    private final VehicleLocationCacheElements elements;
+
+    private final boolean closed;
+
+    public State(VehicleLocationCacheElements elements, boolean closed) {
+      this.elements = elements;
+      this.closed = closed;
+    }
+  }
+}
@@ -17,6 +17,7 @@ package org.onebusaway.transit_data_federation.services.realtime;
 
 import java.util.List;
 
+import org.onebusaway.geospatial.model.CoordinateBounds;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.realtime.api.VehicleLocationRecord;
 import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
@@ -29,6 +30,29 @@ public interface VehicleLocationRecordCache {
   public List<VehicleLocationCacheElements> getRecordsForBlockInstance(
       BlockInstance blockInstance);
 
+  /**
+   * 
+   * @param bounds
+   * @return the records of vehicles whose last known position is within the
+   *         specified bounds
+   */
+  public List<VehicleLocationCacheElements> getRecordsForBounds(
+      CoordinateBounds bounds);
+
+  /**
+   * 
+   * @param bounds
+   * @param targetTime the time we want to find vehicles at (Unix-time)
+   * @param maxSpeed the fastest a vehicle might travel, in meters per second
+   * @param maxDistance the furthest, in meters, a vehicle might have travelled
+   *          between its last known position and the target time
+   * @return the records of vehicles that could be within the specified bounds
+   *         at the target time, given the age of their last known position
+   */
+  public List<VehicleLocationCacheElements> getRecordsForBounds(
+      CoordinateBounds bounds, long targetTime, double maxSpeed,
+      double maxDistance);
+
   public VehicleLocationCacheElements addRecord(BlockInstance blockInstance, VehicleLocationRecord record, ScheduledBlockLocation scheduledBlockLocation, ScheduleDeviationSamples samples);
 
   public void clearRecordsForVehicleId(AgencyAndId vehicleId);
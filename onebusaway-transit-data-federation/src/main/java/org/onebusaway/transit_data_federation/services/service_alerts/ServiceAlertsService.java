@@ -48,6 +48,34 @@ public interface ServiceAlertsService {
   public ServiceAlert createOrUpdateServiceAlert(ServiceAlert.Builder builder,
       String defaultAgencyId);
 
+  /**
+   * Create or update a batch of service alerts. The whole batch becomes
+   * visible to readers at once.
+   * 
+   * @param builders the filled-in service alert builders
+   * @param defaultAgencyId the agency to assign service alerts without an id
+   *          to
+   * @return the built service alerts, in the same order as the builders
+   * @see #createOrUpdateServiceAlert(ServiceAlert.Builder, String)
+   */
+  public List<ServiceAlert> createOrUpdateServiceAlerts(
+      List<ServiceAlert.Builder> builders, String defaultAgencyId);
+
+  /**
+   * Create or update one batch of service alerts and remove another, as when
+   * applying a complete feed. All the changes become visible to readers at
+   * once.
+   * 
+   * @param builders the filled-in service alert builders
+   * @param serviceAlertIds the ids of the service alerts to remove
+   * @param defaultAgencyId the agency to assign service alerts without an id
+   *          to
+   * @return the built service alerts, in the same order as the builders
+   */
+  public List<ServiceAlert> updateServiceAlerts(
+      List<ServiceAlert.Builder> builders, List<AgencyAndId> serviceAlertIds,
+      String defaultAgencyId);
+
   public void removeServiceAlert(AgencyAndId serviceAlertId);
 
   public void removeServiceAlerts(List<AgencyAndId> serviceAlertIds);
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.services.tripplanner;
+
+import java.util.Map;
+
+import org.onebusaway.geospatial.model.CoordinatePoint;
+import org.onebusaway.transit_data_federation.impl.otp.OBATraverseOptions;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+
+/**
+ * Computes a transit shed: the min travel time from a location to every stop
+ * reachable within the trip duration limits of a set of traverse options.
+ */
+public interface TransitShedService {
+
+  /**
+   * 
+   * @param location the origin
+   * @param time the departure time
+   * @param options
+   * @return the min travel time, in ms, to each reachable stop, not counting
+   *         any time spent waiting at the first stop for the first vehicle
+   */
+  public Map<StopEntry, Long> getMinTravelTimeToStops(CoordinatePoint location,
+      long time, OBATraverseOptions options);
+}
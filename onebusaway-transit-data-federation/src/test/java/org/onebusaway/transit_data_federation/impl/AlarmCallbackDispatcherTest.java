@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class AlarmCallbackDispatcherTest {
+
+  private ExecutorService _serverExecutor = Executors.newCachedThreadPool();
+
+  private HttpServer _slowServer;
+
+  private HttpServer _fastServer;
+
+  private BlockingQueue<String> _slowRequests = new LinkedBlockingQueue<String>();
+
+  private BlockingQueue<String> _fastRequests = new LinkedBlockingQueue<String>();
+
+  private CountDownLatch _slowResponses = new CountDownLatch(1);
+
+  private AlarmCallbackDispatcher _dispatcher;
+
+  @Before
+  public void setup() throws IOException {
+    _slowServer = createServer(_slowRequests, _slowResponses);
+    _fastServer = createServer(_fastRequests, new CountDownLatch(0));
+  }
+
+  @After
+  public void teardown() {
+    _slowResponses.countDown();
+    if (_dispatcher != null)
+      _dispatcher.shutdown();
+    _slowServer.stop(0);
+    _fastServer.stop(0);
+    _serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testMaxConcurrentCallbacksPerHost() throws Exception {
+
+    _dispatcher = new AlarmCallbackDispatcher(4, 1, 2, 5000, 5000);
+
+    assertTrue(_dispatcher.dispatch(url(_slowServer, "a")));
+    assertEquals("a", _slowRequests.poll(5, TimeUnit.SECONDS));
+
+    // The slow host is at its limit, so these wait their turn
+    assertTrue(_dispatcher.dispatch(url(_slowServer, "b")));
+    assertTrue(_dispatcher.dispatch(url(_slowServer, "c")));
+    assertEquals(2, _dispatcher.getQueuedCallbackCount());
+
+    // ...and there's no room for another
+    assertFalse(_dispatcher.dispatch(url(_slowServer, "d")));
+
+    // Other hosts aren't held up by the slow one
+    assertTrue(_dispatcher.dispatch(url(_fastServer, "e")));
+    assertEquals("e", _fastRequests.poll(5, TimeUnit.SECONDS));
+    assertNull(_slowRequests.poll(100, TimeUnit.MILLISECONDS));
+
+    _slowResponses.countDown();
+    assertEquals("b", _slowRequests.poll(5, TimeUnit.SECONDS));
+    assertEquals("c", _slowRequests.poll(5, TimeUnit.SECONDS));
+    assertNull(_slowRequests.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(0, _dispatcher.getQueuedCallbackCount());
+  }
+
+  @Test
+  public void testReadTimeout() throws Exception {
+
+    _dispatcher = new AlarmCallbackDispatcher(1, 1, 10, 5000, 200);
+
+    assertTrue(_dispatcher.dispatch(url(_slowServer, "a")));
+    assertTrue(_dispatcher.dispatch(url(_slowServer, "b")));
+    assertEquals("a", _slowRequests.poll(5, TimeUnit.SECONDS));
+
+    // The first callback never gets a response, but times out
+    assertNotNull(_slowRequests.poll(5, TimeUnit.SECONDS));
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private HttpServer createServer(final BlockingQueue<String> requests,
+      final CountDownLatch responses) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0),
+        0);
+    server.createContext("/alarm", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.add(exchange.getRequestURI().getQuery());
+        try {
+          responses.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(200, -1);
+        OutputStream out = exchange.getResponseBody();
+        out.close();
+      }
+    });
+    server.setExecutor(_serverExecutor);
+    server.start();
+    return server;
+  }
+
+  private URL url(HttpServer server, String id) throws IOException {
+    return new URL("http://localhost:" + server.getAddress().getPort()
+        + "/alarm?" + id);
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.aid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.onebusaway.transit_data_federation.impl.ArrivalAndDepartureAlarmJournal.Registration;
+
+public class ArrivalAndDepartureAlarmJournalTest {
+
+  @Test
+  public void testReplay() throws IOException {
+
+    File path = File.createTempFile("ArrivalAndDepartureAlarmJournalTest-",
+        ".journal");
+    path.delete();
+    path.deleteOnExit();
+
+    ArrivalAndDepartureAlarmJournal journal = new ArrivalAndDepartureAlarmJournal(
+        path);
+    assertEquals(0, journal.replay().size());
+
+    journal.appendRegistration(new Registration(aid("alarmA"), aid("blockA"),
+        1000L, -1, 3600, "http://localhost/?id=#ALARM_ID#"));
+    journal.appendRegistration(new Registration(aid("alarmB"), aid("blockB"),
+        2000L, 7200, 7500, "http://localhost/b"));
+    journal.appendRegistration(new Registration(aid("alarmC"), aid("blockA"),
+        1000L, -1, 4000, null));
+    journal.appendRemoval(aid("alarmA"));
+    journal.close();
+
+    /**
+     * A partially written record at the end should be ignored
+     */
+    FileOutputStream out = new FileOutputStream(path, true);
+    out.write(new byte[] {1, 0, 3});
+    out.close();
+
+    journal = new ArrivalAndDepartureAlarmJournal(path);
+    List<Registration> registrations = journal.replay();
+    assertEquals(2, registrations.size());
+    assertEquals(4, journal.getRecordCount());
+
+    Registration b = registrations.get(0);
+    assertEquals(aid("alarmB"), b.getAlarmId());
+    assertEquals(aid("blockB"), b.getBlockId());
+    assertEquals(2000L, b.getServiceDate());
+    assertEquals(7200, b.getFrequencyStartTime());
+    assertEquals(7500, b.getEffectiveScheduleTime());
+    assertEquals("http://localhost/b", b.getUrl());
+
+    Registration c = registrations.get(1);
+    assertEquals(aid("alarmC"), c.getAlarmId());
+    assertEquals("", c.getUrl());
+
+    journal.rewrite(Arrays.asList(c));
+    assertEquals(1, journal.getRecordCount());
+    journal.appendRemoval(aid("alarmC"));
+    journal.appendRegistration(b);
+    journal.close();
+
+    journal = new ArrivalAndDepartureAlarmJournal(path);
+    registrations = journal.replay();
+    assertEquals(1, registrations.size());
+    assertEquals(aid("alarmB"), registrations.get(0).getAlarmId());
+    journal.close();
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.aid;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.block;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.linkBlockTrips;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stop;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stopTime;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.transit_data.model.RegisterAlarmQueryBean;
+import org.onebusaway.transit_data_federation.impl.ArrivalAndDepartureAlarmJournal.Registration;
+import org.onebusaway.transit_data_federation.impl.transit_graph.BlockEntryImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.StopEntryImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.TripEntryImpl;
+import org.onebusaway.transit_data_federation.services.AgencyAndIdLibrary;
+import org.onebusaway.transit_data_federation.services.ArrivalAndDepartureQuery;
+import org.onebusaway.transit_data_federation.services.ArrivalAndDepartureService;
+import org.onebusaway.transit_data_federation.services.blocks.BlockCalendarService;
+import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
+import org.onebusaway.transit_data_federation.services.realtime.ArrivalAndDepartureInstance;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
+import org.onebusaway.transit_data_federation.services.tripplanner.StopTimeInstance;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ArrivalAndDepartureAlarmServiceImplTest {
+
+  private File _journalPath;
+
+  private HttpServer _server;
+
+  private BlockingQueue<String> _firedAlarmIds = new LinkedBlockingQueue<String>();
+
+  private ArrivalAndDepartureService _arrivalAndDepartureService;
+
+  private BlockCalendarService _blockCalendarService;
+
+  private BlockInstance _blockInstance;
+
+  private String _url;
+
+  @Before
+  public void setup() throws IOException {
+
+    _journalPath = File.createTempFile(
+        "ArrivalAndDepartureAlarmServiceImplTest-", ".journal");
+    _journalPath.delete();
+
+    _server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    _server.createContext("/alarm", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        _firedAlarmIds.add(exchange.getRequestURI().getQuery());
+        exchange.sendResponseHeaders(200, -1);
+        OutputStream out = exchange.getResponseBody();
+        out.close();
+      }
+    });
+    _server.start();
+    _url = "http://localhost:" + _server.getAddress().getPort()
+        + "/alarm?#ALARM_ID#";
+
+    StopEntryImpl stop = stop("stop", 47.5, -122.5);
+    BlockEntryImpl block = block("block");
+    TripEntryImpl trip = trip("trip", "serviceId");
+    stopTime(0, stop, trip, time(10, 00), 0);
+    BlockConfigurationEntry blockConfig = linkBlockTrips(block, trip);
+
+    /**
+     * The vehicle is scheduled to reach the stop an hour from now
+     */
+    long serviceDate = System.currentTimeMillis() - time(9, 00) * 1000L;
+    _blockInstance = new BlockInstance(blockConfig, serviceDate);
+
+    StopTimeInstance sti = new StopTimeInstance(
+        blockConfig.getStopTimes().get(0), _blockInstance.getState());
+    ArrivalAndDepartureInstance instance = new ArrivalAndDepartureInstance(sti);
+
+    _arrivalAndDepartureService = Mockito.mock(ArrivalAndDepartureService.class);
+    Mockito.when(
+        _arrivalAndDepartureService.getArrivalAndDepartureForStop(Mockito.any(ArrivalAndDepartureQuery.class))).thenReturn(
+        instance);
+
+    _blockCalendarService = Mockito.mock(BlockCalendarService.class);
+    Mockito.when(
+        _blockCalendarService.getBlockInstance(block.getId(), serviceDate)).thenReturn(
+        _blockInstance);
+  }
+
+  @After
+  public void teardown() {
+    _server.stop(0);
+    _journalPath.delete();
+    new File(_journalPath.getPath() + ".tmp").delete();
+  }
+
+  @Test
+  public void testRestart() throws Exception {
+
+    ArrivalAndDepartureAlarmServiceImpl service = createService();
+
+    AgencyAndId alarmA = register(service, 60 * 60 - 3);
+    AgencyAndId alarmB = register(service, 0);
+    AgencyAndId alarmC = register(service, 0);
+    service.cancelAlarmForArrivalAndDepartureAtStop(alarmB);
+    assertEquals(2, service.getAlarmCount());
+
+    service.stop();
+
+    /**
+     * An alarm that should have fired an hour before the restart
+     */
+    ArrivalAndDepartureAlarmJournal journal = new ArrivalAndDepartureAlarmJournal(
+        _journalPath);
+    journal.appendRegistration(new Registration(aid("alarmD"),
+        _blockInstance.getBlock().getBlock().getId(),
+        _blockInstance.getServiceDate(), -1, time(8, 00), _url));
+    journal.close();
+
+    /**
+     * After the restart, the canceled and the stale alarms are gone, and the
+     * first alarm fires in a few seconds
+     */
+    service = createService();
+    assertEquals(2, service.getAlarmCount());
+
+    String fired = _firedAlarmIds.poll(10, TimeUnit.SECONDS);
+    assertEquals(AgencyAndIdLibrary.convertToString(alarmA), fired);
+    assertEquals(1, service.getAlarmCount());
+
+    service.stop();
+
+    /**
+     * The fired alarm doesn't come back after another restart
+     */
+    service = createService();
+    assertEquals(1, service.getAlarmCount());
+    service.cancelAlarmForArrivalAndDepartureAtStop(alarmC);
+    assertEquals(0, service.getAlarmCount());
+    service.stop();
+
+    service = createService();
+    assertEquals(0, service.getAlarmCount());
+    service.stop();
+
+    assertNull(_firedAlarmIds.poll());
+  }
+
+  private ArrivalAndDepartureAlarmServiceImpl createService() {
+    ArrivalAndDepartureAlarmServiceImpl service = new ArrivalAndDepartureAlarmServiceImpl();
+    service.setArrivalAndDepartureService(_arrivalAndDepartureService);
+    service.setBlockCalendarService(_blockCalendarService);
+    service.setAlarmJournalPath(_journalPath);
+    service.start();
+    return service;
+  }
+
+  /**
+   * Registers an alarm the specified number of seconds before the vehicle
+   * reaches the stop
+   */
+  private AgencyAndId register(ArrivalAndDepartureAlarmServiceImpl service,
+      int alarmTimeOffset) {
+    RegisterAlarmQueryBean bean = new RegisterAlarmQueryBean();
+    bean.setOnArrival(true);
+    bean.setAlarmTimeOffset(alarmTimeOffset);
+    bean.setUrl(_url);
+    return service.registerAlarmForArrivalAndDepartureAtStop(
+        new ArrivalAndDepartureQuery(), bean);
+  }
+}
@@ -16,6 +16,7 @@
 package org.onebusaway.transit_data_federation.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.addServiceDates;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.block;
@@ -307,4 +308,52 @@ public class ExtendedCalendarServiceImplTest {
 
     assertEquals(0, dates.size());
   }
+
+  @Test
+  public void testPrecomputedServiceDates() {
+
+    ServiceIdActivation serviceIdsA = serviceIds(lsids("sA"), lsids("sB"));
+    ServiceIdActivation serviceIdsB = serviceIds(lsids("sA", "sB"), lsids());
+    ServiceIdActivation serviceIdsC = serviceIds(lsids("sB"), lsids());
+
+    BlockEntry blockA = block("blockA");
+    blockConfiguration(blockA, serviceIdsA);
+    BlockEntry blockB = block("blockB");
+    blockConfiguration(blockB, serviceIdsB);
+    BlockEntry blockC = block("blockC");
+    blockConfiguration(blockC, serviceIdsC);
+
+    Mockito.when(_transitGraphDao.getAllBlocks()).thenReturn(
+        Arrays.asList(blockA, blockB, blockC));
+
+    _service.start();
+
+    Date dayA = new ServiceDate(2010, 9, 10).getAsDate(timeZone());
+    Date dayB = new ServiceDate(2010, 9, 11).getAsDate(timeZone());
+    Date dayC = new ServiceDate(2010, 9, 12).getAsDate(timeZone());
+
+    assertTrue(_service.areServiceIdsActiveOnServiceDate(serviceIdsA, dayA));
+    assertFalse(_service.areServiceIdsActiveOnServiceDate(serviceIdsA, dayB));
+    assertFalse(_service.areServiceIdsActiveOnServiceDate(serviceIdsB, dayA));
+    assertTrue(_service.areServiceIdsActiveOnServiceDate(serviceIdsB, dayB));
+    assertTrue(_service.areServiceIdsActiveOnServiceDate(serviceIdsC, dayC));
+    assertFalse(_service.areServiceIdsActiveOnServiceDate(serviceIdsC,
+        date("2010-09-12 09:30")));
+
+    Collection<Date> dates = _service.getServiceDatesWithinRange(serviceIdsA,
+        interval, date("2010-09-10 09:30"), date("2010-09-10 10:30"));
+    assertEquals(Arrays.asList(dayA), dates);
+
+    dates = _service.getServiceDatesWithinRange(serviceIdsA, interval,
+        date("2010-09-11 09:30"), date("2010-09-11 10:30"));
+    assertEquals(0, dates.size());
+
+    dates = _service.getServiceDatesWithinRange(serviceIdsC, interval,
+        date("2010-09-11 10:05"), date("2010-09-12 09:00"));
+    assertEquals(Arrays.asList(dayB, dayC), dates);
+
+    dates = _service.getServiceDatesWithinRange(serviceIdsC, interval,
+        date("2010-09-11 10:06"), date("2010-09-12 08:59"));
+    assertEquals(0, dates.size());
+  }
 }
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.onebusaway.transit_data_federation.impl.HierarchicalTimingWheel.Timeout;
+
+public class HierarchicalTimingWheelTest {
+
+  @Test
+  public void testScheduleAndAdvance() {
+
+    HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<String>(
+        100);
+
+    wheel.schedule("a", 105);
+    wheel.schedule("b", 100 + 64 * 64 + 3);
+    Timeout<String> c = wheel.schedule("c", 110);
+    Timeout<String> d = wheel.schedule("d", 50);
+    assertEquals(4, wheel.size());
+
+    List<String> expired = new ArrayList<String>();
+    wheel.advance(100, expired);
+    assertEquals(1, expired.size());
+    assertEquals("d", expired.get(0));
+    assertFalse(wheel.cancel(d));
+
+    assertTrue(wheel.reschedule(c, 104));
+    expired.clear();
+    wheel.advance(104, expired);
+    assertEquals(1, expired.size());
+    assertEquals("c", expired.get(0));
+    assertFalse(wheel.reschedule(c, 200));
+
+    expired.clear();
+    wheel.advance(105, expired);
+    assertEquals(1, expired.size());
+    assertEquals("a", expired.get(0));
+
+    expired.clear();
+    wheel.advance(100 + 64 * 64 + 2, expired);
+    assertEquals(0, expired.size());
+    wheel.advance(100 + 64 * 64 + 3, expired);
+    assertEquals(1, expired.size());
+    assertEquals("b", expired.get(0));
+    assertEquals(0, wheel.size());
+  }
+
+  /**
+   * Loads the wheel with 100k alarms spread over a day, along with a few
+   * beyond the span of the top wheel, cancels or moves some of them, and
+   * checks that every remaining alarm expires exactly at its deadline.
+   */
+  @Test
+  public void testManyTimeouts() {
+
+    int n = 100000;
+    long start = 1000;
+    long day = 24 * 60 * 60;
+
+    HierarchicalTimingWheel<Integer> wheel = new HierarchicalTimingWheel<Integer>(
+        start);
+    Random random = new Random(42);
+
+    long[] deadlines = new long[n];
+    List<Timeout<Integer>> timeouts = new ArrayList<Timeout<Integer>>(n);
+
+    for (int i = 0; i < n; i++) {
+      long deadline = start + random.nextInt((int) day);
+      if (i % 1000 == 0)
+        deadline = start + (1L << 24) + random.nextInt(1000);
+      deadlines[i] = deadline;
+      timeouts.add(wheel.schedule(i, deadline));
+    }
+
+    int canceled = 0;
+    for (int i = 0; i < n; i += 7) {
+      if (i % 2 == 0) {
+        assertTrue(wheel.cancel(timeouts.get(i)));
+        deadlines[i] = -1;
+        canceled++;
+      } else {
+        deadlines[i] = start + random.nextInt((int) day);
+        assertTrue(wheel.reschedule(timeouts.get(i), deadlines[i]));
+      }
+    }
+
+    assertEquals(n - canceled, wheel.size());
+
+    long end = start + (1L << 24) + 1000;
+    int fired = 0;
+    List<Integer> expired = new ArrayList<Integer>();
+
+    for (long tick = start; tick <= end; tick++) {
+      expired.clear();
+      wheel.advance(tick, expired);
+      for (Integer i : expired) {
+        assertEquals(deadlines[i], tick);
+        deadlines[i] = -1;
+        fired++;
+      }
+    }
+
+    assertEquals(n - canceled, fired);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testConcurrentScheduling() throws InterruptedException {
+
+    final HierarchicalTimingWheel<Integer> wheel = new HierarchicalTimingWheel<Integer>(
+        0);
+    final int threads = 4;
+    final int perThread = 25000;
+    final CountDownLatch latch = new CountDownLatch(threads);
+
+    for (int t = 0; t < threads; t++) {
+      final int offset = t * perThread;
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; i++)
+            wheel.schedule(offset + i, 1 + (offset + i) % 5000);
+          latch.countDown();
+        }
+      }.start();
+    }
+
+    latch.await();
+    assertEquals(threads * perThread, wheel.size());
+
+    List<Integer> expired = new ArrayList<Integer>();
+    wheel.advance(5000, expired);
+    assertEquals(threads * perThread, expired.size());
+    assertEquals(0, wheel.size());
+  }
+}
@@ -16,6 +16,7 @@
 package org.onebusaway.transit_data_federation.impl.blocks;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.block;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.blockTripIndices;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.findBlockConfig;
@@ -27,12 +28,14 @@ import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
 import org.onebusaway.gtfs.impl.calendar.CalendarServiceImpl;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.transit_data_federation.impl.ExtendedCalendarServiceImpl;
@@ -46,7 +49,9 @@ import org.onebusaway.transit_data_federation.services.blocks.BlockLayoverIndex;
 import org.onebusaway.transit_data_federation.services.blocks.BlockTripIndex;
 import org.onebusaway.transit_data_federation.services.blocks.FrequencyBlockTripIndex;
 import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockEntry;
 import org.onebusaway.transit_data_federation.services.transit_graph.ServiceIdActivation;
+import org.onebusaway.transit_data_federation.services.transit_graph.TransitGraphDao;
 import org.onebusaway.transit_data_federation.services.transit_graph.TripEntry;
 import org.onebusaway.transit_data_federation.testing.UnitTestingSupport;
 
@@ -306,6 +311,68 @@ public class BlockCalendarServiceImplTest {
     assertEquals(serviceDateC.getTime(), instance.getServiceDate());
   }
 
+  @Test
+  public void testGetBlockInstanceWithActiveBlockInstances() {
+
+    Date serviceDateA = UnitTestingSupport.date("2010-09-07 00:00");
+    Date serviceDateB = UnitTestingSupport.date("2010-09-08 00:00");
+    Date serviceDateC = UnitTestingSupport.date("2010-09-09 00:00");
+    Date serviceDateD = UnitTestingSupport.date("2010-09-10 00:00");
+
+    UnitTestingSupport.addDates(_calendarData, "sidA", serviceDateA,
+        serviceDateB, serviceDateD);
+    UnitTestingSupport.addDates(_calendarData, "sidB", serviceDateB,
+        serviceDateC);
+
+    ServiceIdActivation ids_A_not_B = serviceIds(lsids("sidA"), lsids("sidB"));
+    ServiceIdActivation ids_B_not_A = serviceIds(lsids("sidB"), lsids("sidA"));
+    ServiceIdActivation ids_A_and_B = serviceIds(lsids("sidA", "sidB"), lsids());
+
+    StopEntryImpl stopA = stop("stopA", 0.0, 0.0);
+    StopEntryImpl stopB = stop("stopB", 0.0, 0.0);
+
+    BlockEntryImpl blockA = block("blockA");
+    TripEntryImpl tripA = trip("tripA", "sidA");
+    TripEntryImpl tripB = trip("tripB", "sidB");
+
+    stopTime(0, stopA, tripA, time(9, 00), time(9, 00), 0);
+    stopTime(1, stopB, tripA, time(9, 30), time(9, 30), 100);
+    stopTime(2, stopB, tripB, time(10, 00), time(10, 00), 200);
+    stopTime(3, stopA, tripB, time(10, 30), time(10, 30), 300);
+
+    linkBlockTrips(ids_A_not_B, blockA, tripA);
+    linkBlockTrips(ids_A_and_B, blockA, tripA, tripB);
+    linkBlockTrips(ids_B_not_A, blockA, tripB);
+
+    TransitGraphDao dao = Mockito.mock(TransitGraphDao.class);
+    Mockito.when(dao.getAllBlocks()).thenReturn(
+        Arrays.<BlockEntry> asList(blockA));
+    Mockito.when(dao.getBlockEntryForId(blockA.getId())).thenReturn(blockA);
+    _service.setTransitGraphDao(dao);
+
+    _service.buildActiveBlockInstances(timeFromString("2010-09-08 12:00"));
+
+    BlockInstance instance = _service.getBlockInstance(blockA.getId(),
+        serviceDateA.getTime());
+    assertEquals(findBlockConfig(blockA, ids_A_not_B), instance.getBlock());
+    assertEquals(serviceDateA.getTime(), instance.getServiceDate());
+    assertSame(instance,
+        _service.getBlockInstance(blockA.getId(), serviceDateA.getTime()));
+
+    instance = _service.getBlockInstance(blockA.getId(), serviceDateB.getTime());
+    assertEquals(findBlockConfig(blockA, ids_A_and_B), instance.getBlock());
+
+    instance = _service.getBlockInstance(blockA.getId(), serviceDateC.getTime());
+    assertEquals(findBlockConfig(blockA, ids_B_not_A), instance.getBlock());
+
+    // Outside of the precomputed service dates
+    instance = _service.getBlockInstance(blockA.getId(), serviceDateD.getTime());
+    assertEquals(findBlockConfig(blockA, ids_A_not_B), instance.getBlock());
+    assertEquals(serviceDateD.getTime(), instance.getServiceDate());
+
+    Mockito.verify(dao, Mockito.times(1)).getBlockEntryForId(blockA.getId());
+  }
+
   private static void linkBlockTrips(ServiceIdActivation serviceIds,
       BlockEntryImpl block, TripEntryImpl... trips) {
 
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.EVehiclePhase;
+
+public class BlockLocationRecordDaoImplTest {
+
+  private BlockLocationRecordDaoImpl _dao;
+
+  private SessionFactory _sessionFactory;
+
+  @Before
+  public void setup() throws IOException {
+
+    _dao = new BlockLocationRecordDaoImpl();
+
+    Configuration config = new AnnotationConfiguration();
+    config = config.configure("org/onebusaway/transit_data_federation/hibernate-configuration.xml");
+    _sessionFactory = config.buildSessionFactory();
+
+    _dao.setSessionFactory(_sessionFactory);
+  }
+
+  @After
+  public void teardown() {
+    if (_sessionFactory != null)
+      _sessionFactory.close();
+  }
+
+  @Test
+  public void testSaveBlockLocationRecords() {
+
+    BlockLocationRecord.Builder b = BlockLocationRecord.builder();
+    b.setBlockId(new AgencyAndId("1", "blockA"));
+    b.setTripId(new AgencyAndId("1", "tripA"));
+    b.setServiceDate(1000);
+    b.setTime(2000);
+    b.setScheduleDeviation(120.0);
+    b.setDistanceAlongBlock(500.0);
+    b.setLocationLat(47.5);
+    b.setLocationLon(-122.5);
+    b.setPhase(EVehiclePhase.IN_PROGRESS);
+    b.setStatus("status");
+    b.setVehicleId(new AgencyAndId("1", "vehicleA"));
+    BlockLocationRecord recordA = b.create();
+
+    b = BlockLocationRecord.builder();
+    b.setBlockId(new AgencyAndId("1", "blockA"));
+    b.setServiceDate(1000);
+    b.setTime(3000);
+    b.setVehicleId(new AgencyAndId("1", "vehicleA"));
+    BlockLocationRecord recordB = b.create();
+
+    _dao.setJdbcBatchSize(1);
+    _dao.saveBlockLocationRecords(Arrays.asList(recordA, recordB));
+    assertEquals(2, _dao.getSavedRecordCount());
+
+    List<BlockLocationRecord> records = _dao.getBlockLocationRecordsForVehicleAndTimeRange(
+        new AgencyAndId("1", "vehicleA"), 0, 5000);
+    assertEquals(2, records.size());
+
+    Collections.sort(records, new Comparator<BlockLocationRecord>() {
+      @Override
+      public int compare(BlockLocationRecord o1, BlockLocationRecord o2) {
+        return o1.getTime() < o2.getTime() ? -1 : 1;
+      }
+    });
+
+    BlockLocationRecord record = records.get(0);
+    assertEquals(new AgencyAndId("1", "blockA"), record.getBlockId());
+    assertEquals(new AgencyAndId("1", "tripA"), record.getTripId());
+    assertEquals(1000, record.getServiceDate());
+    assertEquals(2000, record.getTime());
+    assertEquals(120.0, record.getScheduleDeviation(), 0.0);
+    assertEquals(500.0, record.getDistanceAlongBlock(), 0.0);
+    assertNull(record.getDistanceAlongTrip());
+    assertEquals(47.5, record.getLocationLat(), 0.0);
+    assertEquals(-122.5, record.getLocationLon(), 0.0);
+    assertEquals(EVehiclePhase.IN_PROGRESS, record.getPhase());
+    assertEquals("status", record.getStatus());
+
+    record = records.get(1);
+    assertEquals(3000, record.getTime());
+    assertNull(record.getTripId());
+    assertNull(record.getScheduleDeviation());
+    assertNull(record.getPhase());
+  }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+
+public class BlockLocationRecordPersistenceQueueTest {
+
+  private MockDao _dao;
+
+  private File _spillPath;
+
+  @Before
+  public void setup() throws IOException {
+    _dao = new MockDao();
+    _spillPath = File.createTempFile(
+        BlockLocationRecordPersistenceQueueTest.class.getName(), ".spill");
+    _spillPath.delete();
+  }
+
+  @After
+  public void teardown() {
+    _spillPath.delete();
+    new File(_spillPath.getPath() + ".replay").delete();
+  }
+
+  @Test
+  public void testBatching() {
+
+    BlockLocationRecordPersistenceQueue queue = new BlockLocationRecordPersistenceQueue(
+        _dao, 10);
+    queue.setBatchSize(3);
+
+    queue.add(records(0, 4));
+    assertTrue(queue.isBatchReady());
+
+    queue.flush();
+
+    assertEquals(2, _dao.batches.size());
+    assertEquals(3, _dao.batches.get(0).size());
+    assertEquals(1, _dao.batches.get(1).size());
+    assertEquals(0, queue.getSize());
+    assertEquals(2, queue.getInsertDuration().getCount());
+    assertEquals(1, queue.getLastInsertCount());
+  }
+
+  @Test
+  public void testDropOldest() {
+
+    BlockLocationRecordPersistenceQueue queue = new BlockLocationRecordPersistenceQueue(
+        _dao, 3);
+    queue.setOverflowPolicy(EPersistenceOverflowPolicy.DROP_OLDEST);
+
+    queue.add(records(0, 5));
+    assertEquals(3, queue.getSize());
+    assertEquals(2, queue.getDroppedRecordCount());
+
+    queue.flush();
+
+    List<BlockLocationRecord> saved = _dao.getSavedRecords();
+    assertEquals(3, saved.size());
+    assertEquals(2, saved.get(0).getTime());
+    assertEquals(4, saved.get(2).getTime());
+  }
+
+  @Test
+  public void testRetryBeforeDrop() {
+
+    BlockLocationRecordPersistenceQueue queue = new BlockLocationRecordPersistenceQueue(
+        _dao, 10);
+    queue.setOverflowPolicy(EPersistenceOverflowPolicy.DROP_OLDEST);
+    queue.setMaxBatchAttempts(3);
+
+    // A transient failure keeps the batch for the next flush
+    _dao.failing = true;
+    queue.add(records(0, 2));
+    queue.flush();
+    assertEquals(1, queue.getFailedBatchCount());
+    assertEquals(0, queue.getDroppedRecordCount());
+
+    _dao.failing = false;
+    queue.add(records(2, 3));
+    queue.flush();
+
+    List<BlockLocationRecord> saved = _dao.getSavedRecords();
+    assertEquals(3, saved.size());
+    assertEquals(0, saved.get(0).getTime());
+    assertEquals(2, saved.get(2).getTime());
+    assertEquals(0, queue.getDroppedRecordCount());
+
+    // A persistent failure drops the batch once it runs out of attempts
+    _dao.failing = true;
+    queue.add(records(3, 5));
+    queue.flush();
+    queue.flush();
+    assertEquals(0, queue.getDroppedRecordCount());
+    queue.flush();
+    assertEquals(2, queue.getDroppedRecordCount());
+    assertEquals(4, queue.getFailedBatchCount());
+
+    _dao.failing = false;
+    queue.flush();
+    assertEquals(3, _dao.getSavedRecords().size());
+  }
+
+  @Test
+  public void testFlushOnClose() {
+
+    BlockLocationRecordPersistenceQueue queue = new BlockLocationRecordPersistenceQueue(
+        _dao, 10);
+    queue.setOverflowPolicy(EPersistenceOverflowPolicy.DROP_OLDEST);
+    queue.setBatchSize(3);
+
+    // A failed batch waiting for another attempt is written along with the
+    // rest of the queue
+    _dao.failing = true;
+    queue.add(records(0, 2));
+    queue.flush();
+
+    _dao.failing = false;
+    queue.add(records(2, 6));
+    queue.close();
+
+    List<BlockLocationRecord> saved = _dao.getSavedRecords();
+    assertEquals(6, saved.size());
+    assertEquals(0, saved.get(0).getTime());
+    assertEquals(5, saved.get(5).getTime());
+    assertEquals(0, queue.getSize());
+    assertEquals(0, queue.getDroppedRecordCount());
+  }
+
+  @Test
+  public void testSpillAndReplay() {
+
+    BlockLocationRecordPersistenceQueue queue = new BlockLocationRecordPersistenceQueue(
+        _dao, 2);
+    queue.setBatchSize(2);
+    queue.setOverflowPolicy(EPersistenceOverflowPolicy.SPILL_TO_DISK);
+    BlockLocationRecordSpillFile spillFile = new BlockLocationRecordSpillFile(
+        _spillPath);
+    queue.setSpillFile(spillFile);
+
+    // The queue overflows while the database is down. The overflow buffer is
+    // bounded by the queue capacity too.
+    _dao.failing = true;
+    queue.add(records(0, 5));
+    assertEquals(0, queue.getSpilledRecordCount());
+    assertEquals(2, queue.getOverflowSize());
+    assertEquals(1, queue.getDroppedRecordCount());
+
+    // The writer spills the overflow, and the queued batch fails, so it gets
+    // spilled too
+    queue.flush();
+    assertEquals(4, queue.getSpilledRecordCount());
+    assertEquals(0, queue.getOverflowSize());
+    assertEquals(1, queue.getFailedBatchCount());
+    assertTrue(spillFile.hasPendingRecords());
+
+    // Once the database recovers, the spilled records are replayed
+    _dao.failing = false;
+    queue.add(records(5, 6));
+    queue.flush();
+
+    List<BlockLocationRecord> saved = _dao.getSavedRecords();
+    assertEquals(5, saved.size());
+    assertEquals(5, saved.get(0).getTime());
+    assertEquals(2, saved.get(1).getTime());
+    assertEquals(new AgencyAndId("1", "vehicle"), saved.get(1).getVehicleId());
+    assertEquals(4, queue.getReplayedRecordCount());
+    assertFalse(spillFile.hasPendingRecords());
+
+    queue.close();
+  }
+
+  @Test
+  public void testSkipCorruptSpillRecord() throws IOException {
+
+    BlockLocationRecordSpillFile spillFile = new BlockLocationRecordSpillFile(
+        _spillPath);
+    spillFile.append(records(0, 2));
+    spillFile.close();
+
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(
+        _spillPath, true));
+    out.writeInt(3);
+    out.write(new byte[] {9, 9, 9});
+    out.close();
+
+    spillFile.append(records(2, 3));
+
+    BlockLocationRecordPersistenceQueue queue = new BlockLocationRecordPersistenceQueue(
+        _dao, 10);
+    queue.setOverflowPolicy(EPersistenceOverflowPolicy.SPILL_TO_DISK);
+    queue.setSpillFile(spillFile);
+    queue.flush();
+
+    List<BlockLocationRecord> saved = _dao.getSavedRecords();
+    assertEquals(3, saved.size());
+    assertEquals(2, saved.get(2).getTime());
+    assertEquals(3, queue.getReplayedRecordCount());
+    assertEquals(1, queue.getSkippedSpillRecordCount());
+    assertFalse(spillFile.hasPendingRecords());
+
+    queue.close();
+  }
+
+  private List<BlockLocationRecord> records(int from, int to) {
+    List<BlockLocationRecord> records = new ArrayList<BlockLocationRecord>();
+    for (int i = from; i < to; i++) {
+      BlockLocationRecord.Builder b = BlockLocationRecord.builder();
+      b.setBlockId(new AgencyAndId("1", "block"));
+      b.setTime(i);
+      b.setScheduleDeviation(i * 10.0);
+      b.setVehicleId(new AgencyAndId("1", "vehicle"));
+      records.add(b.create());
+    }
+    return records;
+  }
+
+  private static class MockDao implements BlockLocationRecordDao {
+
+    private List<List<BlockLocationRecord>> batches = new ArrayList<List<BlockLocationRecord>>();
+
+    private boolean failing = false;
+
+    public List<BlockLocationRecord> getSavedRecords() {
+      List<BlockLocationRecord> records = new ArrayList<BlockLocationRecord>();
+      for (List<BlockLocationRecord> batch : batches)
+        records.addAll(batch);
+      return records;
+    }
+
+    @Override
+    public void saveBlockLocationRecord(BlockLocationRecord record) {
+      saveBlockLocationRecords(Arrays.asList(record));
+    }
+
+    @Override
+    public void saveBlockLocationRecords(List<BlockLocationRecord> records) {
+      if (failing)
+        throw new IllegalStateException("database is down");
+      batches.add(new ArrayList<BlockLocationRecord>(records));
+    }
+
+    @Override
+    public List<BlockLocationRecord> getBlockLocationRecordsForBlockServiceDateAndTimeRange(
+        AgencyAndId blockId, long serviceDate, long fromTime, long toTime) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<BlockLocationRecord> getBlockLocationRecordsForVehicleAndTimeRange(
+        AgencyAndId vehicleId, long fromTime, long toTime) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<BlockLocationRecord> getBlockLocationRecords(
+        AgencyAndId blockId, AgencyAndId tripId, AgencyAndId vehicleId,
+        long serviceDate, long fromTime, long toTime, int recordLimit) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
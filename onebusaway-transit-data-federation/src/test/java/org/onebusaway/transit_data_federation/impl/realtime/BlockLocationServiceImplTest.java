@@ -25,10 +25,15 @@ import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stopTime;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
 
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.onebusaway.geospatial.model.CoordinateBounds;
 import org.onebusaway.geospatial.model.CoordinatePoint;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.VehicleLocationRecord;
 import org.onebusaway.transit_data_federation.impl.transit_graph.BlockEntryImpl;
 import org.onebusaway.transit_data_federation.impl.transit_graph.StopEntryImpl;
 import org.onebusaway.transit_data_federation.impl.transit_graph.TripEntryImpl;
@@ -51,6 +56,8 @@ public class BlockLocationServiceImplTest {
 
   private BlockCalendarService _blockCalendarService;
 
+  private VehicleLocationRecordCacheImpl _cache;
+
   @Before
   public void setup() {
 
@@ -62,7 +69,8 @@ public class BlockLocationServiceImplTest {
     _blockLocationService = Mockito.mock(ScheduledBlockLocationService.class);
     _service.setScheduledBlockLocationService(_blockLocationService);
 
-    _service.setVehicleLocationRecordCache(new VehicleLocationRecordCacheImpl());
+    _cache = new VehicleLocationRecordCacheImpl();
+    _service.setVehicleLocationRecordCache(_cache);
 
     _blockCalendarService = Mockito.mock(BlockCalendarService.class);
     _service.setBlockCalendarService(_blockCalendarService);
@@ -147,6 +155,65 @@ public class BlockLocationServiceImplTest {
     assertEquals(0, location.getClosestStopTimeOffset());
   }
 
+  @Test
+  public void testLocationsForBounds() {
+
+    StopEntryImpl stopA = stop("a", 47.5, -122.5);
+    StopEntryImpl stopB = stop("b", 47.6, -122.5);
+
+    BlockEntryImpl block = block("block");
+    TripEntryImpl trip = trip("trip", "serviceId");
+    stopTime(0, stopA, trip, 0, 0, 0);
+    stopTime(1, stopB, trip, 600, 600, 11000);
+    BlockConfigurationEntry blockConfig = linkBlockTrips(block, trip);
+
+    long serviceDate = 1000 * 1000;
+    BlockInstance blockInstance = new BlockInstance(blockConfig, serviceDate);
+
+    /**
+     * The vehicle's last record, four minutes ago, put it about three
+     * kilometers south of the bounds
+     */
+    VehicleLocationRecord record = new VehicleLocationRecord();
+    record.setBlockId(block.getId());
+    record.setServiceDate(serviceDate);
+    record.setVehicleId(new AgencyAndId("1", "vehicle"));
+    record.setTimeOfRecord(t(serviceDate, 0, 5));
+    record.setScheduleDeviation(0);
+
+    ScheduledBlockLocation last = new ScheduledBlockLocation();
+    last.setActiveTrip(blockConfig.getTrips().get(0));
+    last.setScheduledTime(300);
+    last.setLocation(new CoordinatePoint(47.55, -122.5));
+    last.setInService(true);
+
+    _cache.addRecord(blockInstance, record, last, null);
+
+    ScheduledBlockLocation now = new ScheduledBlockLocation();
+    now.setActiveTrip(blockConfig.getTrips().get(0));
+    now.setScheduledTime(540);
+    now.setLocation(new CoordinatePoint(47.58, -122.5));
+    now.setInService(true);
+
+    Mockito.when(
+        _blockLocationService.getScheduledBlockLocationFromScheduledTime(last,
+            540)).thenReturn(now);
+
+    CoordinateBounds bounds = new CoordinateBounds(47.575, -122.505, 47.585,
+        -122.495);
+    long time = t(serviceDate, 0, 9);
+
+    List<BlockLocation> locations = _service.getLocationsForBounds(bounds,
+        new TargetTime(time, time));
+
+    assertEquals(1, locations.size());
+    BlockLocation location = locations.get(0);
+    assertEquals(new AgencyAndId("1", "vehicle"), location.getVehicleId());
+    assertEquals(now.getLocation(), location.getLocation());
+    assertTrue(_service.isRealTimeAvailableForBlockInstance(blockInstance,
+        new TargetTime(time, time)));
+  }
+
   private long t(long serviceDate, int hours, double minutes) {
     return (long) (serviceDate + (((hours * 60) + minutes) * 60) * 1000);
   }
@@ -26,14 +26,18 @@ import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
+import org.onebusaway.geospatial.model.CoordinateBounds;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.realtime.api.VehicleLocationRecord;
 import org.onebusaway.transit_data_federation.impl.transit_graph.BlockEntryImpl;
 import org.onebusaway.transit_data_federation.impl.transit_graph.TripEntryImpl;
 import org.onebusaway.transit_data_federation.services.blocks.BlockInstance;
+import org.onebusaway.transit_data_federation.services.realtime.VehicleLocationCacheElement;
 import org.onebusaway.transit_data_federation.services.realtime.VehicleLocationCacheElements;
 import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
 
@@ -178,6 +182,156 @@ public class VehicleLocationRecordCacheImplTest {
     assertEquals(1, records.size());
   }
 
+  @Test
+  public void testRecordsPerVehicle() {
+
+    long serviceDate = System.currentTimeMillis();
+
+    BlockEntryImpl block = block("blockA");
+    TripEntryImpl trip = trip("tripA", "serviceId");
+    stopTime(0, null, trip, time(9, 00), 0);
+    BlockConfigurationEntry blockConfig = linkBlockTrips(block, trip);
+    BlockInstance blockInstance = new BlockInstance(blockConfig, serviceDate);
+
+    VehicleLocationRecordCacheImpl cache = new VehicleLocationRecordCacheImpl();
+    cache.setRecordsPerVehicle(3);
+
+    List<VehicleLocationCacheElements> snapshots = new ArrayList<VehicleLocationCacheElements>();
+    for (int i = 0; i < 10; i++)
+      snapshots.add(cache.addRecord(blockInstance,
+          record(i * 10, "blockA", serviceDate, "vehicleA", i * 10.0), null,
+          null));
+
+    VehicleLocationCacheElements cacheRecord = cache.getRecordForVehicleId(aid("vehicleA"));
+    assertEquals(Arrays.asList(70L, 80L, 90L), getTimes(cacheRecord));
+    assertEquals(90, cacheRecord.getLastElement().getRecord().getTimeOfRecord());
+
+    /**
+     * Earlier snapshots are unaffected by the elements added and evicted since
+     */
+    assertEquals(Arrays.asList(0L), getTimes(snapshots.get(0)));
+    assertEquals(Arrays.asList(0L, 10L, 20L), getTimes(snapshots.get(2)));
+    assertEquals(Arrays.asList(20L, 30L, 40L), getTimes(snapshots.get(4)));
+    assertEquals(Arrays.asList(50L, 60L, 70L), getTimes(snapshots.get(7)));
+
+    cache.clearStaleRecords(System.currentTimeMillis() - 60 * 1000);
+
+    assertSame(cacheRecord, cache.getRecordForVehicleId(aid("vehicleA")));
+    assertEquals(1, cache.getRecordsForBlockInstance(blockInstance).size());
+
+    /**
+     * Once every element is older than the cache window, the vehicle goes
+     */
+    cache.clearStaleRecords(System.currentTimeMillis() + 60 * 1000);
+
+    assertNull(cache.getRecordForVehicleId(aid("vehicleA")));
+    assertEquals(0, cache.getRecordsForBlockInstance(blockInstance).size());
+  }
+
+  private List<Long> getTimes(VehicleLocationCacheElements elements) {
+    List<Long> times = new ArrayList<Long>();
+    for (VehicleLocationCacheElement element : elements.getElements())
+      times.add(element.getRecord().getTimeOfRecord());
+    return times;
+  }
+
+  @Test
+  public void testRecordsForBounds() {
+
+    long serviceDate = System.currentTimeMillis();
+
+    BlockEntryImpl block = block("blockA");
+    TripEntryImpl trip = trip("tripA", "serviceId");
+    stopTime(0, null, trip, time(9, 00), 0);
+    BlockConfigurationEntry blockConfig = linkBlockTrips(block, trip);
+    BlockInstance blockInstance = new BlockInstance(blockConfig, serviceDate);
+
+    VehicleLocationRecordCacheImpl cache = new VehicleLocationRecordCacheImpl();
+
+    VehicleLocationRecord a = record(10, "blockA", serviceDate, "vehicleA", 0);
+    a.setCurrentLocationLat(47.61);
+    a.setCurrentLocationLon(-122.33);
+    cache.addRecord(blockInstance, a, null, null);
+
+    VehicleLocationRecord b = record(10, "blockA", serviceDate, "vehicleB", 0);
+    b.setCurrentLocationLat(47.70);
+    b.setCurrentLocationLon(-122.33);
+    cache.addRecord(blockInstance, b, null, null);
+
+    CoordinateBounds bounds = new CoordinateBounds(47.60, -122.34, 47.62,
+        -122.32);
+
+    List<VehicleLocationCacheElements> records = cache.getRecordsForBounds(bounds);
+    assertEquals(1, records.size());
+    assertEquals(aid("vehicleA"),
+        records.get(0).getLastElement().getRecord().getVehicleId());
+
+    // vehicleB moves into the bounds, and vehicleA out of them
+    b = record(20, "blockA", serviceDate, "vehicleB", 0);
+    b.setCurrentLocationLat(47.615);
+    b.setCurrentLocationLon(-122.325);
+    cache.addRecord(blockInstance, b, null, null);
+
+    a = record(20, "blockA", serviceDate, "vehicleA", 0);
+    a.setCurrentLocationLat(47.50);
+    a.setCurrentLocationLon(-122.33);
+    cache.addRecord(blockInstance, a, null, null);
+
+    records = cache.getRecordsForBounds(bounds);
+    assertEquals(1, records.size());
+    assertEquals(aid("vehicleB"),
+        records.get(0).getLastElement().getRecord().getVehicleId());
+
+    cache.clearRecordsForVehicleId(aid("vehicleB"));
+    assertEquals(0, cache.getRecordsForBounds(bounds).size());
+  }
+
+  @Test
+  public void testRecordsForBoundsAtTargetTime() {
+
+    long serviceDate = System.currentTimeMillis();
+
+    BlockEntryImpl block = block("blockA");
+    TripEntryImpl trip = trip("tripA", "serviceId");
+    stopTime(0, null, trip, time(9, 00), 0);
+    BlockConfigurationEntry blockConfig = linkBlockTrips(block, trip);
+    BlockInstance blockInstance = new BlockInstance(blockConfig, serviceDate);
+
+    VehicleLocationRecordCacheImpl cache = new VehicleLocationRecordCacheImpl();
+
+    /**
+     * vehicleA is about two kilometers south of the bounds, vehicleB inside
+     * them
+     */
+    VehicleLocationRecord a = record(1000, "blockA", serviceDate, "vehicleA", 0);
+    a.setCurrentLocationLat(47.58);
+    a.setCurrentLocationLon(-122.33);
+    cache.addRecord(blockInstance, a, null, null);
+
+    VehicleLocationRecord b = record(1000, "blockA", serviceDate, "vehicleB", 0);
+    b.setCurrentLocationLat(47.61);
+    b.setCurrentLocationLon(-122.33);
+    cache.addRecord(blockInstance, b, null, null);
+
+    CoordinateBounds bounds = new CoordinateBounds(47.60, -122.34, 47.62,
+        -122.32);
+
+    // Ten seconds later, vehicleA can't have made it into the bounds
+    List<VehicleLocationCacheElements> records = cache.getRecordsForBounds(
+        bounds, 11 * 1000, 30, 9000);
+    assertEquals(1, records.size());
+    assertEquals(aid("vehicleB"),
+        records.get(0).getLastElement().getRecord().getVehicleId());
+
+    // Four minutes later, it might have
+    records = cache.getRecordsForBounds(bounds, 241 * 1000, 30, 9000);
+    assertEquals(2, records.size());
+
+    // ...unless we cap how far a vehicle can travel
+    records = cache.getRecordsForBounds(bounds, 241 * 1000, 30, 1000);
+    assertEquals(1, records.size());
+  }
+
   @Test
   public void testConcurrentOperations() {
 
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime.gtfs_realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+import org.junit.Test;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeConstants;
+
+public class GtfsRealtimeFeedFetcherTest {
+
+  private MockServer _server = new MockServer();
+
+  @Test
+  public void testNotModified() throws IOException {
+
+    GtfsRealtimeFeedFetcher fetcher = fetcher();
+
+    _server.setFeed("a", 10);
+    assertNotNull(fetcher.fetch());
+    assertNull(_server.lastIfNoneMatch);
+    fetcher.commit();
+
+    assertNull(fetcher.fetch());
+    assertEquals("a", _server.lastIfNoneMatch);
+    assertEquals(1, fetcher.getNotModifiedCount());
+
+    _server.setFeed("b", 20);
+    FeedMessage feed = fetcher.fetch();
+    assertEquals(20, feed.getHeader().getTimestamp());
+  }
+
+  @Test
+  public void testUnchangedHeaderTimestamp() throws IOException {
+
+    GtfsRealtimeFeedFetcher fetcher = fetcher();
+
+    _server.setFeed(null, 10);
+    assertNotNull(fetcher.fetch());
+    fetcher.commit();
+
+    assertNull(fetcher.fetch());
+    assertEquals(1, fetcher.getUnchangedTimestampCount());
+
+    _server.setFeed(null, 11);
+    FeedMessage feed = fetcher.fetch();
+    assertEquals(11, feed.getHeader().getTimestamp());
+  }
+
+  @Test
+  public void testFailedRefreshIsFetchedAgain() throws IOException {
+
+    GtfsRealtimeFeedFetcher fetcher = fetcher();
+
+    _server.setFeed("a", 10);
+    assertNotNull(fetcher.fetch());
+
+    // Processing failed, so the feed was never committed
+    assertNull(fetcher.getLastFeed());
+    FeedMessage feed = fetcher.fetch();
+    assertNotNull(feed);
+    assertNull(_server.lastIfNoneMatch);
+    assertEquals(0, fetcher.getNotModifiedCount());
+    assertEquals(0, fetcher.getUnchangedTimestampCount());
+
+    fetcher.commit();
+    assertSame(feed, fetcher.getLastFeed());
+    assertNull(fetcher.fetch());
+    assertEquals("a", _server.lastIfNoneMatch);
+
+    // Committing after a fetch that returned nothing leaves the last feed
+    fetcher.commit();
+    assertSame(feed, fetcher.getLastFeed());
+  }
+
+  private GtfsRealtimeFeedFetcher fetcher() throws IOException {
+    URL url = new URL(null, "http://localhost/feed", _server);
+    return new GtfsRealtimeFeedFetcher(url, ExtensionRegistry.getEmptyRegistry());
+  }
+
+  /**
+   * Serves a single feed over a fake http connection, answering with a 304
+   * when the request's If-None-Match matches the feed's ETag.
+   */
+  private static class MockServer extends URLStreamHandler {
+
+    private String etag;
+
+    private byte[] body;
+
+    private String lastIfNoneMatch;
+
+    public void setFeed(String etag, long timestamp) {
+      FeedHeader.Builder header = FeedHeader.newBuilder();
+      header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+      header.setTimestamp(timestamp);
+      FeedMessage.Builder feed = FeedMessage.newBuilder();
+      feed.setHeader(header);
+      this.etag = etag;
+      this.body = feed.build().toByteArray();
+    }
+
+    @Override
+    protected URLConnection openConnection(URL url) {
+      return new MockConnection(url, this);
+    }
+  }
+
+  private static class MockConnection extends HttpURLConnection {
+
+    private final MockServer _server;
+
+    private int _responseCode = -1;
+
+    public MockConnection(URL url, MockServer server) {
+      super(url);
+      _server = server;
+    }
+
+    @Override
+    public int getResponseCode() {
+      if (_responseCode == -1) {
+        String ifNoneMatch = getRequestProperty("If-None-Match");
+        _server.lastIfNoneMatch = ifNoneMatch;
+        if (_server.etag != null && _server.etag.equals(ifNoneMatch))
+          _responseCode = HTTP_NOT_MODIFIED;
+        else
+          _responseCode = HTTP_OK;
+      }
+      return _responseCode;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      if (getResponseCode() == HTTP_NOT_MODIFIED)
+        return new ByteArrayInputStream(new byte[0]);
+      return new ByteArrayInputStream(_server.body);
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+      if ("ETag".equalsIgnoreCase(name))
+        return _server.etag;
+      return null;
+    }
+
+    @Override
+    public long getLastModified() {
+      return 0;
+    }
+
+    @Override
+    public void connect() {
+
+    }
+
+    @Override
+    public void disconnect() {
+
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+  }
+}
@@ -17,6 +17,7 @@ package org.onebusaway.transit_data_federation.impl.realtime.gtfs_realtime;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.block;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.blockConfiguration;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.serviceIds;
@@ -25,13 +26,18 @@ import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
 import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.VehicleLocationListener;
 import org.onebusaway.realtime.api.VehicleLocationRecord;
 import org.onebusaway.transit_data_federation.impl.transit_graph.BlockEntryImpl;
 import org.onebusaway.transit_data_federation.impl.transit_graph.StopEntryImpl;
@@ -187,6 +193,85 @@ public class GtfsRealtimeTripLibraryTest {
     assertEquals(120, record.getScheduleDeviation(), 0.0);
   }
 
+  @Test
+  public void testCreateVehicleLocationRecordsForUpdatesInParallel() {
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    _library.setExecutor(executor);
+    _library.setParallelism(2);
+
+    try {
+      List<CombinedTripUpdatesAndVehiclePosition> updates = new ArrayList<CombinedTripUpdatesAndVehiclePosition>();
+      for (String id : Arrays.asList("A", "B", "C", "D"))
+        updates.add(createUpdateForBlock(id));
+
+      final Thread caller = Thread.currentThread();
+      final List<VehicleLocationRecord> records = new ArrayList<VehicleLocationRecord>();
+      VehicleLocationListener listener = new VehicleLocationListener() {
+
+        @Override
+        public void handleVehicleLocationRecord(VehicleLocationRecord record) {
+          // The listener is never called concurrently
+          assertSame(caller, Thread.currentThread());
+          records.add(record);
+        }
+
+        @Override
+        public void handleVehicleLocationRecords(
+            List<VehicleLocationRecord> records) {
+          for (VehicleLocationRecord record : records)
+            handleVehicleLocationRecord(record);
+        }
+
+        @Override
+        public void resetVehicleLocation(AgencyAndId vehicleId) {
+        }
+      };
+
+      _library.createVehicleLocationRecordsForUpdates(null, updates, listener);
+      assertEquals(4, records.size());
+
+      // A failed partition is reported to the caller
+      Mockito.when(
+          _blockCalendarService.getActiveBlocks(
+              Mockito.eq(updates.get(0).block.getBlockEntry().getId()),
+              Mockito.anyLong(), Mockito.anyLong())).thenThrow(
+          new IllegalStateException("bad block"));
+      try {
+        _library.createVehicleLocationRecordsForUpdates(null, updates, listener);
+        fail();
+      } catch (IllegalStateException ex) {
+        assertEquals("bad block", ex.getCause().getMessage());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private CombinedTripUpdatesAndVehiclePosition createUpdateForBlock(String id) {
+
+    TripUpdate tripUpdate = TripUpdate.newBuilder().setTrip(
+        TripDescriptor.newBuilder().setTripId("trip" + id)).setDelay(120).setTimestamp(
+        123456789).build();
+
+    TripEntryImpl trip = trip("trip" + id);
+    stopTime(0, stop("stop" + id, 0, 0), trip, time(7, 30), 0.0);
+    BlockEntryImpl block = block("block" + id);
+    BlockConfigurationEntry blockConfig = blockConfiguration(block,
+        serviceIds("s1"), trip);
+    BlockInstance blockInstance = new BlockInstance(blockConfig, 0L);
+    Mockito.when(
+        _blockCalendarService.getActiveBlocks(Mockito.eq(block.getId()),
+            Mockito.anyLong(), Mockito.anyLong())).thenReturn(
+        Arrays.asList(blockInstance));
+
+    CombinedTripUpdatesAndVehiclePosition update = new CombinedTripUpdatesAndVehiclePosition();
+    update.block = new BlockDescriptor();
+    update.block.setBlockEntry(block);
+    update.tripUpdates = Arrays.asList(tripUpdate);
+    return update;
+  }
+
   private FeedMessage.Builder createFeed() {
     FeedMessage.Builder builder = FeedMessage.newBuilder();
     FeedHeader.Builder header = FeedHeader.newBuilder();
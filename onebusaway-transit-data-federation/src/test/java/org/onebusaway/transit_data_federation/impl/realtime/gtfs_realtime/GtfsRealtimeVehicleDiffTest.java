@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime.gtfs_realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.aid;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.block;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.onebusaway.transit_data_federation.impl.transit_graph.BlockEntryImpl;
+
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+
+public class GtfsRealtimeVehicleDiffTest {
+
+  @Test
+  public void testFilterChangedUpdates() {
+
+    GtfsRealtimeVehicleDiff diff = new GtfsRealtimeVehicleDiff();
+    diff.setMaxSuppressionInterval(60 * 1000);
+
+    BlockEntryImpl blockA = block("blockA");
+    BlockEntryImpl blockB = block("blockB");
+
+    CombinedTripUpdatesAndVehiclePosition a = update(blockA, "vA", "tripA",
+        60, 47.0f);
+    CombinedTripUpdatesAndVehiclePosition b = update(blockB, "vB", "tripB",
+        120, 47.1f);
+
+    List<CombinedTripUpdatesAndVehiclePosition> suppressed = new ArrayList<CombinedTripUpdatesAndVehiclePosition>();
+    List<CombinedTripUpdatesAndVehiclePosition> changed = diff.filterChangedUpdates(
+        Arrays.asList(a, b), suppressed, 0);
+    assertEquals(2, changed.size());
+    assertEquals(0, suppressed.size());
+
+    diff.handleRecordCreated(aid("vA"), aid("tripA"));
+    diff.handleRecordCreated(aid("vB"), aid("tripB"));
+
+    // Same content, new objects
+    CombinedTripUpdatesAndVehiclePosition a2 = update(blockA, "vA", "tripA",
+        60, 47.0f);
+    // A new delay
+    CombinedTripUpdatesAndVehiclePosition b2 = update(blockB, "vB", "tripB",
+        180, 47.1f);
+
+    changed = diff.filterChangedUpdates(Arrays.asList(a2, b2), suppressed,
+        30 * 1000);
+    assertEquals(1, changed.size());
+    assertSame(b2, changed.get(0));
+    assertEquals(1, suppressed.size());
+    assertSame(a2, suppressed.get(0));
+    assertEquals(aid("tripA"), diff.getLastTripId(aid("vA")));
+
+    // A new position
+    CombinedTripUpdatesAndVehiclePosition a3 = update(blockA, "vA", "tripA",
+        60, 47.2f);
+    suppressed.clear();
+    changed = diff.filterChangedUpdates(Arrays.asList(a3), suppressed,
+        40 * 1000);
+    assertEquals(1, changed.size());
+    assertEquals(1, diff.size());
+    diff.handleRecordCreated(aid("vA"), aid("tripA"));
+
+    // Unchanged, but past the max suppression interval
+    changed = diff.filterChangedUpdates(Arrays.asList(a3), suppressed,
+        99 * 1000);
+    assertEquals(0, changed.size());
+    changed = diff.filterChangedUpdates(Arrays.asList(a3), suppressed,
+        101 * 1000);
+    assertEquals(1, changed.size());
+
+    assertEquals(5, diff.getForwardedCount());
+    assertEquals(2, diff.getSuppressedCount());
+  }
+
+  @Test
+  public void testUpdatesWithoutRecordsAreForwardedAgain() {
+
+    GtfsRealtimeVehicleDiff diff = new GtfsRealtimeVehicleDiff();
+    diff.setMaxSuppressionInterval(60 * 1000);
+
+    BlockEntryImpl blockA = block("blockA");
+    CombinedTripUpdatesAndVehiclePosition a = update(blockA, "vA", "tripA",
+        60, 47.0f);
+
+    List<CombinedTripUpdatesAndVehiclePosition> suppressed = new ArrayList<CombinedTripUpdatesAndVehiclePosition>();
+    List<CombinedTripUpdatesAndVehiclePosition> changed = diff.filterChangedUpdates(
+        Arrays.asList(a), suppressed, 0);
+    assertEquals(1, changed.size());
+
+    // No record was created for the update, so it isn't suppressed
+    changed = diff.filterChangedUpdates(Arrays.asList(a), suppressed,
+        10 * 1000);
+    assertEquals(1, changed.size());
+    assertEquals(0, suppressed.size());
+    assertNull(diff.getLastTripId(aid("vA")));
+
+    diff.handleRecordCreated(aid("vA"), aid("tripA"));
+
+    changed = diff.filterChangedUpdates(Arrays.asList(a), suppressed,
+        20 * 1000);
+    assertEquals(0, changed.size());
+    assertEquals(1, suppressed.size());
+    assertEquals(aid("tripA"), diff.getLastTripId(aid("vA")));
+  }
+
+  @Test
+  public void testUpdatesThatDependOnCurrentTimeAreForwarded() {
+
+    GtfsRealtimeVehicleDiff diff = new GtfsRealtimeVehicleDiff();
+    diff.setMaxSuppressionInterval(60 * 1000);
+
+    BlockEntryImpl blockA = block("blockA");
+
+    // Without a timestamp, the record's time is the current time, and without
+    // a trip delay, its deviation depends on the current time
+    CombinedTripUpdatesAndVehiclePosition a = update(blockA, "vA", "tripA",
+        60, 47.0f, false);
+    assertFalse(GtfsRealtimeVehicleDiff.isIndependentOfCurrentTime(a));
+    assertTrue(GtfsRealtimeVehicleDiff.isIndependentOfCurrentTime(update(
+        blockA, "vA", "tripA", 60, 47.0f)));
+
+    List<CombinedTripUpdatesAndVehiclePosition> suppressed = new ArrayList<CombinedTripUpdatesAndVehiclePosition>();
+    List<CombinedTripUpdatesAndVehiclePosition> changed = diff.filterChangedUpdates(
+        Arrays.asList(a), suppressed, 0);
+    assertEquals(1, changed.size());
+
+    changed = diff.filterChangedUpdates(Arrays.asList(a), suppressed,
+        30 * 1000);
+    assertEquals(1, changed.size());
+    assertEquals(0, suppressed.size());
+    assertEquals(0, diff.getSuppressedCount());
+  }
+
+  private CombinedTripUpdatesAndVehiclePosition update(BlockEntryImpl block,
+      String vehicleId, String tripId, int delay, float lat) {
+    return update(block, vehicleId, tripId, delay, lat, true);
+  }
+
+  private CombinedTripUpdatesAndVehiclePosition update(BlockEntryImpl block,
+      String vehicleId, String tripId, int delay, float lat,
+      boolean timestampAndDelay) {
+
+    BlockDescriptor blockDescriptor = new BlockDescriptor();
+    blockDescriptor.setBlockEntry(block);
+    blockDescriptor.setVehicleId(vehicleId);
+
+    TripDescriptor trip = TripDescriptor.newBuilder().setTripId(tripId).build();
+
+    StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder();
+    stopTimeUpdate.setStopId("stopA");
+    stopTimeUpdate.setArrival(StopTimeEvent.newBuilder().setDelay(delay));
+
+    TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+    tripUpdate.setTrip(trip);
+    tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+    if (timestampAndDelay) {
+      tripUpdate.setTimestamp(1000);
+      tripUpdate.setDelay(delay);
+    }
+
+    VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
+    vehiclePosition.setTrip(trip);
+    vehiclePosition.setPosition(Position.newBuilder().setLatitude(lat).setLongitude(
+        -122.0f));
+
+    CombinedTripUpdatesAndVehiclePosition update = new CombinedTripUpdatesAndVehiclePosition();
+    update.block = blockDescriptor;
+    update.tripUpdates = Arrays.asList(tripUpdate.build());
+    update.vehiclePosition = vehiclePosition.build();
+    return update;
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.realtime.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.realtime.api.EVehiclePhase;
+
+public class BlockLocationArchiveFileTest {
+
+  @Test
+  public void testWriteAndReadRecordsForTrip() throws IOException {
+
+    File path = File.createTempFile("BlockLocationArchiveFileTest-",
+        BlockLocationArchiveFile.FILE_EXTENSION);
+    path.deleteOnExit();
+
+    AgencyAndId blockId = new AgencyAndId("1", "blockA");
+    AgencyAndId tripA = new AgencyAndId("1", "tripA");
+    AgencyAndId tripB = new AgencyAndId("1", "tripB");
+
+    List<BlockLocationArchiveRecord> records = new ArrayList<BlockLocationArchiveRecord>();
+    records.add(record(blockId, tripB, 1000, 300.0));
+    records.add(record(blockId, tripA, 2000, 200.0));
+    records.add(record(blockId, tripA, 1000, 100.0));
+    BlockLocationArchiveRecord withNulls = record(blockId, tripA, 3000, null);
+    withNulls.setVehicleId(null);
+    withNulls.setPhase(null);
+    withNulls.setStatus(null);
+    records.add(withNulls);
+
+    BlockLocationArchiveFile.write(path, records);
+
+    List<BlockLocationArchiveRecord> read = BlockLocationArchiveFile.readRecordsForTrip(
+        path, tripA);
+    assertEquals(3, read.size());
+
+    BlockLocationArchiveRecord first = read.get(0);
+    assertEquals(tripA, first.getTripId());
+    assertEquals(blockId, first.getBlockId());
+    assertEquals(1000, first.getTime());
+    assertEquals(100.0, first.getDistanceAlongBlock(), 0.0);
+    assertEquals(30.0, first.getScheduleDeviation(), 0.0);
+    assertEquals(47.5, first.getLocationLat(), 0.0);
+    assertEquals(-122.25, first.getLocationLon(), 0.0);
+    assertNull(first.getOrientation());
+    assertEquals(new AgencyAndId("1", "vehicleA"), first.getVehicleId());
+    assertEquals(new AgencyAndId("1", "timepointA"), first.getTimepointId());
+    assertEquals(EVehiclePhase.IN_PROGRESS, first.getPhase());
+    assertEquals("default", first.getStatus());
+    assertEquals("id-1000", first.getId());
+
+    assertEquals(200.0, read.get(1).getDistanceAlongBlock(), 0.0);
+
+    BlockLocationArchiveRecord last = read.get(2);
+    assertNull(last.getDistanceAlongBlock());
+    assertNull(last.getVehicleId());
+    assertNull(last.getPhase());
+    assertNull(last.getStatus());
+
+    read = BlockLocationArchiveFile.readRecordsForTrip(path, tripB);
+    assertEquals(1, read.size());
+    assertEquals(300.0, read.get(0).getDistanceAlongBlock(), 0.0);
+
+    read = BlockLocationArchiveFile.readRecordsForTrip(path, new AgencyAndId(
+        "1", "tripC"));
+    assertTrue(read.isEmpty());
+  }
+
+  @Test
+  public void testGetPath() {
+
+    // Midnight on 2012-06-02 in Paris, which is 2012-06-01 22:00 UTC
+    long serviceDate = 1338588000000L;
+
+    File path = BlockLocationArchiveFile.getPath(new File("archive"),
+        serviceDate, new AgencyAndId("1", "blockA"),
+        TimeZone.getTimeZone("Europe/Paris"));
+    assertEquals("20120602", path.getParentFile().getName());
+    assertEquals("1_blockA" + BlockLocationArchiveFile.FILE_EXTENSION,
+        path.getName());
+  }
+
+  private BlockLocationArchiveRecord record(AgencyAndId blockId,
+      AgencyAndId tripId, long time, Double distanceAlongBlock) {
+    BlockLocationArchiveRecord record = new BlockLocationArchiveRecord();
+    record.setId("id-" + time);
+    record.setBlockId(blockId);
+    record.setTripId(tripId);
+    record.setServiceDate(0);
+    record.setTime(time);
+    record.setScheduleDeviation(30.0);
+    record.setDistanceAlongBlock(distanceAlongBlock);
+    record.setLocationLat(47.5);
+    record.setLocationLon(-122.25);
+    record.setTimepointId(new AgencyAndId("1", "timepointA"));
+    record.setVehicleId(new AgencyAndId("1", "vehicleA"));
+    record.setPhase(EVehiclePhase.IN_PROGRESS);
+    record.setStatus("default");
+    return record;
+  }
+}
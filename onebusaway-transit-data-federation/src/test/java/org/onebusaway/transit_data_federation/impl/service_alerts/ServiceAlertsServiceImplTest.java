@@ -34,6 +34,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Before;
@@ -87,6 +88,9 @@ public class ServiceAlertsServiceImplTest {
     ServiceAlert serviceAlert = _service.createOrUpdateServiceAlert(builder,
         "1");
 
+    // Changes are journaled, and only written to the snapshot on compaction
+    _service.stop();
+
     FileInputStream in = new FileInputStream(_serviceAlertsPath);
     ServiceAlertsCollection collection = ServiceAlertsCollection.parseFrom(in);
     in.close();
@@ -98,6 +102,52 @@ public class ServiceAlertsServiceImplTest {
     assertEquals(serviceAlert.getCreationTime(), read.getCreationTime());
   }
 
+  @Test
+  public void testJournalReplay() {
+
+    ServiceAlert.Builder builder1 = ServiceAlert.newBuilder();
+    ServiceAlert serviceAlert1 = _service.createOrUpdateServiceAlert(
+        builder1, "1");
+    ServiceAlert.Builder builder2 = ServiceAlert.newBuilder();
+    ServiceAlert serviceAlert2 = _service.createOrUpdateServiceAlert(
+        builder2, "1");
+    _service.removeServiceAlert(ServiceAlertLibrary.agencyAndId(serviceAlert1.getId()));
+
+    // Simulate a restart without a clean shutdown
+    ServiceAlertsServiceImpl service = new ServiceAlertsServiceImpl();
+    service.setServiceAlertsPath(_serviceAlertsPath);
+    service.start();
+
+    List<ServiceAlert> alerts = service.getAllServiceAlerts();
+    assertEquals(1, alerts.size());
+    assertEquals(serviceAlert2, alerts.get(0));
+  }
+
+  @Test
+  public void testUpdateServiceAlerts() {
+
+    ServiceAlert serviceAlert1 = _service.createOrUpdateServiceAlert(
+        ServiceAlert.newBuilder(), "1");
+    long version = _service.getServiceAlertsVersion();
+
+    Affects.Builder affects = Affects.newBuilder();
+    affects.setAgencyId("2");
+    List<ServiceAlert.Builder> builders = new ArrayList<ServiceAlert.Builder>();
+    builders.add(ServiceAlert.newBuilder().addAffects(affects));
+    builders.add(ServiceAlert.newBuilder().addAffects(affects));
+
+    List<ServiceAlert> serviceAlerts = _service.updateServiceAlerts(builders,
+        Arrays.asList(ServiceAlertLibrary.agencyAndId(serviceAlert1.getId())),
+        "1");
+    assertEquals(2, serviceAlerts.size());
+    assertEquals(version + 1, _service.getServiceAlertsVersion());
+
+    assertEquals(2, _service.getAllServiceAlerts().size());
+    assertEquals(2, _service.getServiceAlertsForAgencyId(
+        System.currentTimeMillis(), "2").size());
+    assertNull(_service.getServiceAlertForId(ServiceAlertLibrary.agencyAndId(serviceAlert1.getId())));
+  }
+
   @Test
   public void testGetAllServiceAlerts() {
     ServiceAlert.Builder builder1 = ServiceAlert.newBuilder();
@@ -166,6 +216,63 @@ public class ServiceAlertsServiceImplTest {
     assertTrue(alerts.contains(serviceAlert4));
   }
 
+  @Test
+  public void testGetServiceAlertsForAgencyIdWithTime() {
+    String agencyId = "1";
+    long hour = 60 * 60 * 1000;
+    long now = 1000 * hour + 30 * 60 * 1000;
+
+    ServiceAlert.Builder builder = ServiceAlert.newBuilder();
+    Affects.Builder affects = Affects.newBuilder();
+    affects.setAgencyId(agencyId);
+    builder.addAffects(affects);
+    ServiceAlert noWindow = _service.createOrUpdateServiceAlert(builder,
+        agencyId);
+
+    ServiceAlert past = addServiceAlertWithTimeRange(agencyId,
+        createTimeRange(now - 3 * hour, now - 2 * hour));
+    ServiceAlert sameBucketPast = addServiceAlertWithTimeRange(agencyId,
+        createTimeRange(now - 20 * 60 * 1000, now - 10 * 60 * 1000));
+    ServiceAlert current = addServiceAlertWithTimeRange(agencyId,
+        createTimeRange(now - 2 * hour, now + 2 * hour));
+    ServiceAlert openEnded = addServiceAlertWithTimeRange(agencyId,
+        createTimeRange(now - 100 * hour, 0));
+    ServiceAlert longWindow = addServiceAlertWithTimeRange(agencyId,
+        createTimeRange(now - 30 * 24 * hour, now + 30 * 24 * hour));
+    ServiceAlert future = addServiceAlertWithTimeRange(agencyId,
+        createTimeRange(now + hour, now + 2 * hour));
+
+    List<ServiceAlert> alerts = _service.getServiceAlertsForAgencyId(now,
+        agencyId);
+    assertEquals(4, alerts.size());
+    assertTrue(alerts.contains(noWindow));
+    assertTrue(alerts.contains(current));
+    assertTrue(alerts.contains(openEnded));
+    assertTrue(alerts.contains(longWindow));
+    assertTrue(!alerts.contains(past));
+    assertTrue(!alerts.contains(sameBucketPast));
+    assertTrue(!alerts.contains(future));
+
+    alerts = _service.getServiceAlertsForAgencyId(now + hour, agencyId);
+    assertTrue(alerts.contains(future));
+    assertTrue(!alerts.contains(sameBucketPast));
+
+    // Moving a window must move the alert between time buckets
+    builder = ServiceAlert.newBuilder(future);
+    builder.clearPublicationWindow();
+    builder.addPublicationWindow(createTimeRange(now - hour, now + hour));
+    _service.createOrUpdateServiceAlert(builder, agencyId);
+
+    alerts = _service.getServiceAlertsForAgencyId(now, agencyId);
+    assertEquals(5, alerts.size());
+    alerts = _service.getServiceAlertsForAgencyId(now + 3 * hour, agencyId);
+    assertEquals(3, alerts.size());
+
+    // No time filtering at all
+    alerts = _service.getServiceAlertsForAgencyId(-1, agencyId);
+    assertEquals(7, alerts.size());
+  }
+
   private TimeRange createTimeRange(long start, long end) {
     Builder timeRangeBuilder = TimeRange.newBuilder();
     if (start != 0)
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.transit_graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.agency;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.aid;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.block;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.frequency;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.linkBlockTrips;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.route;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.routeCollection;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stop;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stopTime;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.onebusaway.transit_data.model.EAccessibility;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockStopTimeEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.FrequencyEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.TripEntry;
+
+public class ColumnarTransitGraphReaderTest {
+
+  @Test
+  public void testRoundTrip() throws IOException {
+
+    AgencyEntryImpl agency = agency("1");
+
+    StopEntryImpl stopA = stop("stopA", 47.0, -122.0);
+    StopEntryImpl stopB = stop("stopB", 47.1, -122.1);
+    stopB.setWheelchairBoarding(EAccessibility.ACCESSIBLE);
+    agency.setStops(Arrays.asList((StopEntry) stopA, stopB));
+
+    RouteEntryImpl route = route("route");
+    RouteCollectionEntryImpl routeCollection = routeCollection("route", route);
+
+    TripEntryImpl tripA = trip("tripA", "serviceId", 1000.0);
+    tripA.setRoute(route);
+    tripA.setDirectionId("0");
+    tripA.setShapeId(aid("shape"));
+    TripEntryImpl tripB = trip("tripB", "serviceId", 1000.0);
+    tripB.setRoute(route);
+    route.setTrips(Arrays.asList((TripEntry) tripA, tripB));
+
+    stopTime(0, stopA, tripA, time(9, 0), time(9, 1), 0.0);
+    stopTime(1, stopB, tripA, time(9, 10), 1000.0);
+    stopTime(2, stopB, tripB, time(9, 20), 0.0);
+    stopTime(3, stopA, tripB, time(9, 30), time(9, 32), 1000.0);
+
+    BlockEntryImpl block = block("block");
+    List<FrequencyEntry> frequencies = Arrays.asList(frequency(time(6, 0),
+        time(9, 0), 600));
+    linkBlockTrips(block, frequencies, tripA, tripB);
+
+    TransitGraphImpl graph = new TransitGraphImpl();
+    graph.putAgencyEntry(agency);
+    graph.putStopEntry(stopA);
+    graph.putStopEntry(stopB);
+    graph.putRouteEntry(route);
+    graph.putRouteCollectionEntry(routeCollection);
+    graph.putTripEntry(tripA);
+    graph.putTripEntry(tripB);
+    graph.putBlockEntry(block);
+    graph.initialize();
+
+    File path = File.createTempFile("ColumnarTransitGraphReaderTest-", "");
+    path.delete();
+
+    ColumnarTransitGraphWriter.write(graph, path);
+    TransitGraphImpl read = ColumnarTransitGraphReader.read(path);
+    read.initialize();
+
+    assertEquals(1, read.getAllAgencies().size());
+    assertEquals(2, read.getAgencyForId("1").getStops().size());
+
+    StopEntry readStopB = read.getStopEntryForId(aid("stopB"));
+    assertEquals(47.1, readStopB.getStopLat(), 0.0);
+    assertEquals(-122.1, readStopB.getStopLon(), 0.0);
+    assertEquals(EAccessibility.ACCESSIBLE, readStopB.getWheelchairBoarding());
+
+    TripEntryImpl readTripA = read.getTripEntryForId(aid("tripA"));
+    assertEquals("0", readTripA.getDirectionId());
+    assertEquals(aid("shape"), readTripA.getShapeId());
+    assertEquals(aid("serviceId"), readTripA.getServiceId().getId());
+    assertSame(read.getRouteForId(aid("route")), readTripA.getRoute());
+    assertEquals(aid("route"), readTripA.getRouteCollection().getId());
+
+    TripEntryImpl readTripB = read.getTripEntryForId(aid("tripB"));
+    assertNull(readTripB.getDirectionId());
+    assertNull(readTripB.getShapeId());
+
+    List<StopTimeEntry> stopTimes = readTripA.getStopTimes();
+    assertEquals(2, stopTimes.size());
+    StopTimeEntry stopTime = stopTimes.get(0);
+    assertEquals(0, stopTime.getId());
+    assertSame(read.getStopEntryForId(aid("stopA")), stopTime.getStop());
+    assertSame(readTripA, stopTime.getTrip());
+    assertEquals(time(9, 0), stopTime.getArrivalTime());
+    assertEquals(time(9, 1), stopTime.getDepartureTime());
+    assertEquals(60, stopTime.getSlackTime());
+    assertEquals(stopTime, readTripA.getStopTimes().get(0));
+
+    BlockEntry readBlock = read.getBlockEntryForId(aid("block"));
+    assertSame(readBlock, readTripA.getBlock());
+    assertEquals(1, readBlock.getConfigurations().size());
+
+    BlockConfigurationEntry blockConfig = readBlock.getConfigurations().get(0);
+    assertEquals(2, blockConfig.getTrips().size());
+    assertEquals(2000.0, blockConfig.getTotalBlockDistance(), 0.0);
+    assertEquals(1, blockConfig.getFrequencies().size());
+    assertEquals(600, blockConfig.getFrequencies().get(0).getHeadwaySecs());
+
+    List<BlockStopTimeEntry> blockStopTimes = blockConfig.getStopTimes();
+    assertEquals(4, blockStopTimes.size());
+    assertEquals(time(9, 32), blockConfig.getDepartureTimeForIndex(3));
+    assertEquals(2000.0, blockConfig.getDistanceAlongBlockForIndex(3), 0.0);
+    assertEquals(660, blockStopTimes.get(2).getAccumulatedSlackTime());
+  }
+}
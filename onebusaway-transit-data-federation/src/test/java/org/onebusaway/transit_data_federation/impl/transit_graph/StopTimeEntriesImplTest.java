@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.transit_graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.linkBlockTrips;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stop;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stopTime;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockConfigurationEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockStopTimeEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopTimeEntry;
+
+public class StopTimeEntriesImplTest {
+
+  @Test
+  public void testCompactStopTimes() {
+
+    StopEntryImpl stopA = stop("stopA", 47.0, -122.0);
+    StopEntryImpl stopB = stop("stopB", 47.1, -122.1);
+
+    TripEntryImpl tripA = trip("tripA", "serviceId", 1000.0);
+    TripEntryImpl tripB = trip("tripB", "serviceId", 1000.0);
+
+    stopTime(0, stopA, tripA, time(9, 0), time(9, 1), 0.0);
+    stopTime(1, stopB, tripA, time(9, 10), 1000.0);
+    stopTime(2, stopB, tripB, time(9, 20), 0.0);
+    stopTime(3, stopA, tripB, time(9, 30), time(9, 32), 1000.0);
+
+    BlockConfigurationEntry blockConfig = linkBlockTrips("block", tripA, tripB);
+
+    TransitGraphImpl graph = new TransitGraphImpl();
+    graph.putStopEntry(stopA);
+    graph.putStopEntry(stopB);
+    graph.putTripEntry(tripA);
+    graph.putTripEntry(tripB);
+    graph.compactStopTimes();
+
+    List<StopTimeEntry> stopTimes = tripA.getStopTimes();
+    assertTrue(stopTimes instanceof StopTimeEntriesImpl);
+    assertEquals(2, stopTimes.size());
+
+    StopTimeEntry stopTime = stopTimes.get(0);
+    assertEquals(0, stopTime.getId());
+    assertSame(tripA, stopTime.getTrip());
+    assertSame(stopA, stopTime.getStop());
+    assertEquals(0, stopTime.getSequence());
+    assertEquals(time(9, 0), stopTime.getArrivalTime());
+    assertEquals(time(9, 1), stopTime.getDepartureTime());
+    assertEquals(60, stopTime.getSlackTime());
+    assertEquals(stopTime, tripA.getStopTimes().get(0));
+
+    stopTime = tripB.getStopTimes().get(1);
+    assertEquals(1, stopTime.getSequence());
+    assertEquals(1000.0, stopTime.getShapeDistTraveled(), 0.0);
+
+    List<BlockStopTimeEntry> blockStopTimes = blockConfig.getStopTimes();
+    assertEquals(4, blockStopTimes.size());
+    assertSame(stopB, blockStopTimes.get(2).getStopTime().getStop());
+    assertEquals(time(9, 32), blockConfig.getDepartureTimeForIndex(3));
+    assertEquals(2000.0, blockConfig.getDistanceAlongBlockForIndex(3), 0.0);
+    assertEquals(2000.0, blockStopTimes.get(3).getDistanceAlongBlock(), 0.0);
+  }
+}
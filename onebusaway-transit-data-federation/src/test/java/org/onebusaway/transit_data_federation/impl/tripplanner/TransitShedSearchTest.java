@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.transit_data_federation.impl.tripplanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.addTransfer;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.linkBlockTrips;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stop;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.stopTime;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.time;
+import static org.onebusaway.transit_data_federation.testing.UnitTestingSupport.trip;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.geospatial.services.SphericalGeometryLibrary;
+import org.onebusaway.transit_data_federation.impl.blocks.BlockIndexFactoryServiceImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.StopEntryImpl;
+import org.onebusaway.transit_data_federation.impl.transit_graph.TripEntryImpl;
+import org.onebusaway.transit_data_federation.services.blocks.BlockSequenceIndex;
+import org.onebusaway.transit_data_federation.services.transit_graph.BlockEntry;
+import org.onebusaway.transit_data_federation.services.transit_graph.StopEntry;
+
+public class TransitShedSearchTest {
+
+  private StopEntryImpl _stopA;
+
+  private StopEntryImpl _stopB;
+
+  private StopEntryImpl _stopC;
+
+  private StopEntryImpl _stopD;
+
+  private StopEntryImpl _stopE;
+
+  private TransitShedSearch _search;
+
+  @Before
+  public void setup() {
+
+    _stopA = stop("stopA", 47.60, -122.30);
+    _stopB = stop("stopB", 47.61, -122.30);
+    _stopC = stop("stopC", 47.62, -122.30);
+    _stopD = stop("stopD", 47.63, -122.30);
+    _stopE = stop("stopE", 47.621, -122.30);
+
+    List<StopEntry> stops = new ArrayList<StopEntry>();
+    for (StopEntryImpl stop : Arrays.asList(_stopA, _stopB, _stopC, _stopD,
+        _stopE)) {
+      stop.setIndex(stops.size());
+      stops.add(stop);
+    }
+
+    addTransfer(_stopC, _stopE);
+
+    TripEntryImpl tripA = trip("tripA", "sA");
+    stopTime(0, _stopA, tripA, time(10, 00), 0);
+    stopTime(1, _stopB, tripA, time(10, 10), 0);
+    stopTime(2, _stopC, tripA, time(10, 20), 0);
+
+    TripEntryImpl tripB = trip("tripB", "sA");
+    stopTime(3, _stopA, tripB, time(10, 30), 0);
+    stopTime(4, _stopB, tripB, time(10, 40), 0);
+    stopTime(5, _stopC, tripB, time(10, 50), 0);
+
+    TripEntryImpl tripC = trip("tripC", "sA");
+    stopTime(6, _stopC, tripC, time(10, 25), 0);
+    stopTime(7, _stopD, tripC, time(10, 35), 0);
+
+    List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+    blocks.add(linkBlockTrips("blockA", tripA).getBlock());
+    blocks.add(linkBlockTrips("blockB", tripB).getBlock());
+    blocks.add(linkBlockTrips("blockC", tripC).getBlock());
+
+    BlockIndexFactoryServiceImpl factory = new BlockIndexFactoryServiceImpl();
+    List<BlockSequenceIndex> indices = factory.createSequenceIndices(blocks);
+
+    TransitShedGraph graph = TransitShedGraph.create(stops, indices,
+        new StopTransferServiceImpl());
+    assertEquals(5, graph.getStopCount());
+    assertEquals(2, graph.getPatternCount());
+    assertEquals(1, graph.getActivationCount());
+
+    _search = new TransitShedSearch(graph);
+  }
+
+  @Test
+  public void testRun() {
+
+    search(30 * 60, 60 * 60, 3);
+
+    // Walked two minutes to stopA and waited three for tripA
+    assertEquals(120, _search.getTravelTime(_stopA.getIndex()));
+    assertEquals(time(0, 12), _search.getTravelTime(_stopB.getIndex()));
+    assertEquals(time(0, 22), _search.getTravelTime(_stopC.getIndex()));
+    assertEquals(time(0, 37), _search.getTravelTime(_stopD.getIndex()));
+
+    int walk = (int) SphericalGeometryLibrary.distance(
+        _stopC.getStopLocation(), _stopE.getStopLocation());
+    assertEquals(time(0, 22) + walk, _search.getTravelTime(_stopE.getIndex()));
+
+    assertEquals(5, _search.getReachedStopCount());
+
+    // A single boarding doesn't get us to stopD
+    search(30 * 60, 60 * 60, 1);
+    assertEquals(4, _search.getReachedStopCount());
+    assertEquals(TransitShedSearch.UNREACHED,
+        _search.getArrival(_stopD.getIndex()));
+
+    // Nor does a short trip duration
+    search(30 * 60, time(0, 30), 3);
+    assertEquals(4, _search.getReachedStopCount());
+    assertEquals(TransitShedSearch.UNREACHED,
+        _search.getArrival(_stopD.getIndex()));
+
+    // We aren't willing to wait three minutes for the first vehicle
+    search(60, 60 * 60, 3);
+    assertEquals(1, _search.getReachedStopCount());
+    assertEquals(120, _search.getTravelTime(_stopA.getIndex()));
+  }
+
+  @Test
+  public void testWalkOrWait() {
+
+    _search.reset();
+    _search.setLimits(30 * 60, 60 * 60);
+    _search.addServiceDate(0, -time(9, 55));
+    _search.addAccessStop(_stopA.getIndex(), 120);
+    _search.addAccessStop(_stopB.getIndex(), 800);
+    _search.run(3, 1.0, 0);
+
+    /**
+     * Walking gets us to stopB before tripA does, but riding tripA is quicker
+     * once the wait for it at stopA is left out
+     */
+    assertEquals(800, _search.getArrival(_stopB.getIndex()));
+    assertEquals(time(0, 12), _search.getTravelTime(_stopB.getIndex()));
+    assertEquals(time(0, 22), _search.getTravelTime(_stopC.getIndex()));
+    assertEquals(time(0, 37), _search.getTravelTime(_stopD.getIndex()));
+  }
+
+  @Test
+  public void testMinTransferTime() {
+
+    // tripA gets to stopC five minutes before tripC leaves it
+    search(30 * 60, 60 * 60, 3, 2 * 60);
+    assertEquals(time(0, 22), _search.getTravelTime(_stopC.getIndex()));
+    assertEquals(time(0, 37), _search.getTravelTime(_stopD.getIndex()));
+
+    // ...which isn't enough time to make the transfer
+    search(30 * 60, 60 * 60, 3, 6 * 60);
+    assertEquals(time(0, 22), _search.getTravelTime(_stopC.getIndex()));
+    assertEquals(TransitShedSearch.UNREACHED,
+        _search.getArrival(_stopD.getIndex()));
+
+    // The buffer is only added on boarding, not to the walk to stopE
+    int walk = (int) SphericalGeometryLibrary.distance(
+        _stopC.getStopLocation(), _stopE.getStopLocation());
+    assertEquals(time(0, 22) + walk, _search.getTravelTime(_stopE.getIndex()));
+  }
+
+  /**
+   * Starts a search at 9:55 on the service date, with a two minute walk to
+   * stopA
+   */
+  private void search(int maxInitialWait, int maxTripDuration, int maxRounds) {
+    search(maxInitialWait, maxTripDuration, maxRounds, 0);
+  }
+
+  private void search(int maxInitialWait, int maxTripDuration, int maxRounds,
+      int minTransferTime) {
+    _search.reset();
+    _search.setLimits(maxInitialWait, maxTripDuration);
+    _search.addServiceDate(0, -time(9, 55));
+    _search.addAccessStop(_stopA.getIndex(), 120);
+    _search.run(maxRounds, 1.0, minTransferTime);
+  }
+}
@@ -17,47 +17,315 @@ package org.onebusaway.users.impl;
 
 import org.onebusaway.users.services.ApiKeyPermissionService;
 import org.onebusaway.users.services.UserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Rate limits API keys with a token bucket per key. A key with a minimum
+ * request interval of {@code interval} earns one token every {@code interval}
+ * ms, and can hold up to {@link #setBurstCapacity(int)} tokens, so a key that
+ * has been quiet for a while can make a short burst of requests. The bucket
+ * is kept as a single "theoretical arrival time" that is updated with a
+ * compare-and-set, so checking a key never takes a lock.
+ * 
+ * The minimum request interval of each key is looked up from the
+ * {@link UserService} the first time the key is seen, and is then refreshed
+ * in the background for keys that are still in use. Keys that haven't been
+ * seen for a while are dropped, and the number of keys tracked is bounded.
+ */
 @Component
 public class ApiKeyPermissionServiceImpl implements ApiKeyPermissionService {
 
-  private HashMap<String, Long> _lastVisitForUser;
+  private static Logger _log = LoggerFactory.getLogger(ApiKeyPermissionServiceImpl.class);
+
+  /**
+   * Marks a key with no permission to access the API
+   */
+  private static final long NO_PERMISSION = -1;
+
+  private final ConcurrentMap<String, KeyState> _stateByKey = new ConcurrentHashMap<String, KeyState>();
+
+  private final AtomicLong _acceptedCount = new AtomicLong();
+
+  private final AtomicLong _rejectedCount = new AtomicLong();
+
   private UserService _userService;
 
+  private ScheduledExecutorService _executor;
+
+  private int _burstCapacity = 1;
+
+  private long _limitRefreshInterval = 60 * 1000;
+
+  private long _idleExpiry = 10 * 60 * 1000;
+
+  private int _maxKeys = 100000;
+
+  private long _maintenanceInterval = 10 * 1000;
+
   @Autowired
   public void setUserService(UserService userService) {
     _userService = userService;
   }
 
-  public ApiKeyPermissionServiceImpl() {
-    _lastVisitForUser = new HashMap<String, Long>();
+  /**
+   * 
+   * @param burstCapacity the number of requests a key can make back to back
+   *          after being idle. The default of 1 enforces the minimum request
+   *          interval between every pair of requests.
+   */
+  public void setBurstCapacity(int burstCapacity) {
+    _burstCapacity = burstCapacity;
+  }
+
+  /**
+   * 
+   * @param limitRefreshInterval how often, in ms, the minimum request interval
+   *          of a key in use is reloaded from the {@link UserService}
+   */
+  public void setLimitRefreshInterval(long limitRefreshInterval) {
+    _limitRefreshInterval = limitRefreshInterval;
+  }
+
+  /**
+   * 
+   * @param idleExpiry how long, in ms, an unused key is remembered
+   */
+  public void setIdleExpiry(long idleExpiry) {
+    _idleExpiry = idleExpiry;
+  }
+
+  /**
+   * 
+   * @param maxKeys the max number of keys remembered. The least recently used
+   *          keys are dropped beyond that.
+   */
+  public void setMaxKeys(int maxKeys) {
+    _maxKeys = maxKeys;
+  }
 
+  /**
+   * 
+   * @param maintenanceInterval how often, in ms, limits are refreshed and idle
+   *          keys dropped
+   */
+  public void setMaintenanceInterval(long maintenanceInterval) {
+    _maintenanceInterval = maintenanceInterval;
+  }
+
+  @PostConstruct
+  public void start() {
+    _executor = Executors.newSingleThreadScheduledExecutor();
+    _executor.scheduleWithFixedDelay(new MaintenanceTask(),
+        _maintenanceInterval, _maintenanceInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_executor != null) {
+      _executor.shutdownNow();
+      _executor = null;
+    }
   }
 
   @Override
   public boolean getPermission(String key, String service) {
+    return getPermission(key, service, System.currentTimeMillis());
+  }
+
+  public long getAcceptedCount() {
+    return _acceptedCount.get();
+  }
+
+  public long getRejectedCount() {
+    return _rejectedCount.get();
+  }
+
+  /**
+   * 
+   * @param key
+   * @return the number of requests accepted for the key since it was last
+   *         idle, or 0 if the key isn't being tracked
+   */
+  public long getAcceptedCount(String key) {
+    KeyState state = _stateByKey.get(key);
+    return state == null ? 0 : state.acceptedCount.get();
+  }
+
+  /**
+   * 
+   * @param key
+   * @return the number of requests rejected for the key since it was last
+   *         idle, or 0 if the key isn't being tracked
+   */
+  public long getRejectedCount(String key) {
+    KeyState state = _stateByKey.get(key);
+    return state == null ? 0 : state.rejectedCount.get();
+  }
+
+  public int getKeyCount() {
+    return _stateByKey.size();
+  }
+
+  /****
+   * Package Methods
+   ****/
+
+  boolean getPermission(String key, String service, long now) {
+
+    KeyState state = getStateForKey(key, now);
+    state.lastAccess = now;
+
+    boolean ok = state.tryAcquire(now, _burstCapacity);
+
+    if (ok) {
+      state.acceptedCount.incrementAndGet();
+      _acceptedCount.incrementAndGet();
+    } else {
+      state.rejectedCount.incrementAndGet();
+      _rejectedCount.incrementAndGet();
+    }
 
-    Long minRequestInterval = _userService.getMinApiRequestIntervalForKey(key,false);
-    if (minRequestInterval == null) {
-      return false;
-    }
-    
-    long now = System.currentTimeMillis();
-    Long lastVisit = _lastVisitForUser.get(key);
-    
-    boolean ok = false;
-    
-    if (lastVisit == null || lastVisit + minRequestInterval <= now) {
-      ok = true;
-    }
-    
-    _lastVisitForUser.put(key, now);
     return ok;
   }
-  
+
+  void performMaintenance(long now) {
+
+    for (Iterator<Map.Entry<String, KeyState>> it = _stateByKey.entrySet().iterator(); it.hasNext();) {
+
+      Map.Entry<String, KeyState> entry = it.next();
+      KeyState state = entry.getValue();
+
+      if (state.lastAccess + _idleExpiry <= now) {
+        it.remove();
+        continue;
+      }
+
+      if (state.limitRefreshedAt + _limitRefreshInterval <= now
+          && state.lastAccess > state.limitRefreshedAt) {
+        state.minRequestInterval = getMinRequestInterval(entry.getKey(), true);
+        state.limitRefreshedAt = now;
+      }
+    }
+
+    int excess = _stateByKey.size() - _maxKeys;
+    if (excess > 0) {
+      List<Map.Entry<String, KeyState>> entries = new ArrayList<Map.Entry<String, KeyState>>(
+          _stateByKey.entrySet());
+      Collections.sort(entries, new LastAccessComparator());
+      for (int i = 0; i < excess && i < entries.size(); i++)
+        _stateByKey.remove(entries.get(i).getKey());
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private KeyState getStateForKey(String key, long now) {
+    KeyState state = _stateByKey.get(key);
+    if (state == null) {
+      state = new KeyState(getMinRequestInterval(key, false), now);
+      KeyState existing = _stateByKey.putIfAbsent(key, state);
+      if (existing != null)
+        state = existing;
+    }
+    return state;
+  }
+
+  private long getMinRequestInterval(String key, boolean forceRefresh) {
+    Long minRequestInterval = _userService.getMinApiRequestIntervalForKey(key,
+        forceRefresh);
+    if (minRequestInterval == null)
+      return NO_PERMISSION;
+    return Math.max(minRequestInterval, 0);
+  }
+
+  private static class KeyState {
+
+    /**
+     * The time at which the bucket will next be full, or rather, the time at
+     * which the next request would be admitted if no tokens were banked
+     */
+    private final AtomicLong theoreticalArrivalTime = new AtomicLong();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private volatile long minRequestInterval;
+
+    private volatile long limitRefreshedAt;
+
+    private volatile long lastAccess;
+
+    public KeyState(long minRequestInterval, long now) {
+      this.minRequestInterval = minRequestInterval;
+      this.limitRefreshedAt = now;
+      this.lastAccess = now;
+    }
+
+    public boolean tryAcquire(long now, int burstCapacity) {
+
+      long interval = minRequestInterval;
+      if (interval == NO_PERMISSION)
+        return false;
+      if (interval == 0)
+        return true;
+
+      long tolerance = interval * (Math.max(burstCapacity, 1) - 1);
+
+      while (true) {
+        long tat = theoreticalArrivalTime.get();
+        long next = Math.max(tat, now);
+        if (next - now > tolerance)
+          return false;
+        if (theoreticalArrivalTime.compareAndSet(tat, next + interval))
+          return true;
+      }
+    }
+  }
+
+  private static class LastAccessComparator implements
+      Comparator<Map.Entry<String, KeyState>> {
+
+    @Override
+    public int compare(Map.Entry<String, KeyState> o1,
+        Map.Entry<String, KeyState> o2) {
+      long a = o1.getValue().lastAccess;
+      long b = o2.getValue().lastAccess;
+      return a == b ? 0 : (a < b ? -1 : 1);
+    }
+  }
+
+  private class MaintenanceTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        performMaintenance(System.currentTimeMillis());
+      } catch (Throwable ex) {
+        _log.warn("error refreshing api key limits", ex);
+      }
+    }
+  }
 }
@@ -15,15 +15,20 @@
  */
 package org.onebusaway.users.impl;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.jdbc.Work;
 import org.onebusaway.users.model.User;
 import org.onebusaway.users.model.UserIndex;
 import org.onebusaway.users.model.UserIndexKey;
@@ -38,6 +43,15 @@ import org.springframework.transaction.annotation.Transactional;
 @Component
 class UserDaoImpl implements UserDao {
 
+  /**
+   * Written with plain JDBC rather than an HQL bulk update, which would evict
+   * every cached user instead of just the ones we touch
+   */
+  private static final String UPDATE_LAST_ACCESS_TIME_SQL = "UPDATE oba_users SET lastAccessTime = ? "
+      + "WHERE id = ? AND (lastAccessTime IS NULL OR lastAccessTime < ?)";
+
+  private static final int MAX_UPDATES_PER_BATCH = 500;
+
   private HibernateTemplate _template;
 
   @Autowired
@@ -125,6 +139,29 @@ class UserDaoImpl implements UserDao {
     _template.saveOrUpdateAll(list);
   }
 
+  @Transactional
+  @Override
+  public int updateLastAccessTimes(
+      final Map<Integer, Date> lastAccessTimesByUserId) {
+
+    int count = _template.execute(new HibernateCallback<Integer>() {
+      @Override
+      public Integer doInHibernate(Session session) throws HibernateException,
+          SQLException {
+        UpdateLastAccessTimesWork work = new UpdateLastAccessTimesWork(
+            lastAccessTimesByUserId);
+        session.doWork(work);
+        return work.getCount();
+      }
+    });
+
+    SessionFactory sessionFactory = _template.getSessionFactory();
+    for (Integer userId : lastAccessTimesByUserId.keySet())
+      sessionFactory.evict(User.class, userId);
+
+    return count;
+  }
+
   @Override
   public void deleteUser(User user) {
     _template.delete(user);
@@ -182,4 +219,49 @@ class UserDaoImpl implements UserDao {
     _template.delete(index);
   }
 
+  private static class UpdateLastAccessTimesWork implements Work {
+
+    private final Map<Integer, Date> _lastAccessTimesByUserId;
+
+    private int _count = 0;
+
+    public UpdateLastAccessTimesWork(Map<Integer, Date> lastAccessTimesByUserId) {
+      _lastAccessTimesByUserId = lastAccessTimesByUserId;
+    }
+
+    public int getCount() {
+      return _count;
+    }
+
+    @Override
+    public void execute(Connection connection) throws SQLException {
+      PreparedStatement statement = connection.prepareStatement(UPDATE_LAST_ACCESS_TIME_SQL);
+      try {
+        int pending = 0;
+        for (Map.Entry<Integer, Date> entry : _lastAccessTimesByUserId.entrySet()) {
+          Timestamp lastAccessTime = new Timestamp(entry.getValue().getTime());
+          statement.setTimestamp(1, lastAccessTime);
+          statement.setInt(2, entry.getKey());
+          statement.setTimestamp(3, lastAccessTime);
+          statement.addBatch();
+          if (++pending == MAX_UPDATES_PER_BATCH) {
+            addCounts(statement.executeBatch());
+            pending = 0;
+          }
+        }
+        if (pending > 0)
+          addCounts(statement.executeBatch());
+      } finally {
+        statement.close();
+      }
+    }
+
+    private void addCounts(int[] counts) {
+      for (int count : counts) {
+        if (count > 0)
+          _count += count;
+      }
+    }
+  }
+
 }
@@ -16,12 +16,22 @@
 package org.onebusaway.users.impl.internal;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.Statistics;
 
-import org.onebusaway.users.model.User;
 import org.onebusaway.users.services.UserDao;
 import org.onebusaway.users.services.internal.UserLastAccessTimeService;
 import org.slf4j.Logger;
@@ -29,15 +39,40 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+/**
+ * Records user last access times without touching the database on the request
+ * thread. An access is only recorded when the user is not already in the
+ * cache. Recorded access times are coalesced per user in memory and written
+ * out periodically with a handful of bulk UPDATE statements (see
+ * {@link UserDao#updateLastAccessTimes(Map)}). Access times are rounded down
+ * to {@link #setResolution(long)}, so that users written in the same flush
+ * share an UPDATE.
+ * 
+ * The number of pending users is bounded: beyond that, accesses are dropped
+ * and the user is left out of the cache, so the next access tries again.
+ * Pending access times are flushed when the service is stopped.
+ */
 @Component
 public class UserLastAccessTimeServiceImpl implements UserLastAccessTimeService {
 
   private Logger _log = LoggerFactory.getLogger(UserLastAccessTimeServiceImpl.class);
 
+  private final ConcurrentMap<Integer, Long> _pendingAccessTimes = new ConcurrentHashMap<Integer, Long>();
+
+  private final AtomicLong _droppedCount = new AtomicLong();
+
   private UserDao _userDao;
 
   private Cache _cache;
 
+  private ScheduledExecutorService _executor;
+
+  private long _flushInterval = 10 * 1000;
+
+  private int _maxPendingUsers = 50000;
+
+  private long _resolution = 60 * 1000;
+
   @Autowired
   public void setUserDao(UserDao userDao) {
     _userDao = userDao;
@@ -47,21 +82,145 @@ public class UserLastAccessTimeServiceImpl implements UserLastAccessTimeService
     _cache = cache;
   }
 
+  /**
+   * 
+   * @param flushInterval how often pending access times are written, in ms
+   */
+  public void setFlushInterval(long flushInterval) {
+    _flushInterval = flushInterval;
+  }
+
+  public void setMaxPendingUsers(int maxPendingUsers) {
+    _maxPendingUsers = maxPendingUsers;
+  }
+
+  /**
+   * 
+   * @param resolution access times are rounded down to a multiple of this
+   *          many ms
+   */
+  public void setResolution(long resolution) {
+    _resolution = resolution;
+  }
+
+  @PostConstruct
+  public void start() {
+    _executor = Executors.newSingleThreadScheduledExecutor();
+    _executor.scheduleWithFixedDelay(new FlushTask(), _flushInterval,
+        _flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_executor != null) {
+      _executor.shutdown();
+      try {
+        if (!_executor.awaitTermination(_flushInterval, TimeUnit.MILLISECONDS))
+          _executor.shutdownNow();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      _executor = null;
+    }
+    flush();
+  }
+
   public long getNumberOfActiveUsers() {
     Statistics stats = _cache.getStatistics();
     return stats.getObjectCount();
   }
 
+  public int getNumberOfPendingUsers() {
+    return _pendingAccessTimes.size();
+  }
+
+  public long getNumberOfDroppedAccesses() {
+    return _droppedCount.get();
+  }
+
   public void handleAccessForUser(int userId, long accessTime) {
     Element element = _cache.get(userId);
     if (element == null) {
-      User user = _userDao.getUserForId(userId);
-      user.setLastAccessTime(new Date(accessTime));
-      _userDao.saveOrUpdateUser(user);
+      if (!enqueue(userId, accessTime)) {
+        _droppedCount.incrementAndGet();
+        return;
+      }
       if (_log.isDebugEnabled())
-        _log.debug("user last access set " + userId);
+        _log.debug("user last access queued " + userId);
       element = new Element(userId, accessTime);
       _cache.put(element);
     }
   }
+
+  /**
+   * Writes all pending access times to the database.
+   * 
+   * @return the number of users written
+   */
+  public int flush() {
+
+    Map<Integer, Date> lastAccessTimes = new HashMap<Integer, Date>();
+
+    for (Map.Entry<Integer, Long> entry : _pendingAccessTimes.entrySet()) {
+      Integer userId = entry.getKey();
+      Long accessTime = entry.getValue();
+      if (_pendingAccessTimes.remove(userId, accessTime))
+        lastAccessTimes.put(userId, new Date(accessTime));
+    }
+
+    if (lastAccessTimes.isEmpty())
+      return 0;
+
+    try {
+      _userDao.updateLastAccessTimes(lastAccessTimes);
+      if (_log.isDebugEnabled())
+        _log.debug("user last access set for " + lastAccessTimes.size()
+            + " users");
+    } catch (RuntimeException ex) {
+      _log.warn("error writing last access times for " + lastAccessTimes.size()
+          + " users", ex);
+      for (Map.Entry<Integer, Date> entry : lastAccessTimes.entrySet())
+        enqueue(entry.getKey(), entry.getValue().getTime());
+      return 0;
+    }
+
+    return lastAccessTimes.size();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private boolean enqueue(int userId, long accessTime) {
+
+    if (_resolution > 1)
+      accessTime -= accessTime % _resolution;
+
+    Integer key = userId;
+
+    while (true) {
+      Long existing = _pendingAccessTimes.get(key);
+      if (existing == null) {
+        if (_pendingAccessTimes.size() >= _maxPendingUsers)
+          return false;
+        if (_pendingAccessTimes.putIfAbsent(key, accessTime) == null)
+          return true;
+      } else if (existing >= accessTime
+          || _pendingAccessTimes.replace(key, existing, accessTime)) {
+        return true;
+      }
+    }
+  }
+
+  private class FlushTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        flush();
+      } catch (Throwable ex) {
+        _log.warn("error flushing user last access times", ex);
+      }
+    }
+  }
 }
@@ -20,6 +20,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import javax.persistence.CascadeType;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
@@ -100,6 +101,11 @@ public class User extends IdentityBean<Integer> {
 
   private Date creationTime;
 
+  /**
+   * Only ever moved forward, by {@link UserDao#updateLastAccessTimes(java.util.Map)},
+   * so that saving a stale copy of the user can't set it back
+   */
+  @Column(updatable = false)
   private Date lastAccessTime;
 
   private boolean temporary;
@@ -18,6 +18,7 @@ package org.onebusaway.users.services;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.onebusaway.users.model.User;
 import org.onebusaway.users.model.UserIndex;
@@ -52,6 +53,15 @@ public interface UserDao {
 
   public void saveOrUpdateUsers(User... users);
 
+  /**
+   * Sets the last access time of a number of users in bulk, without loading
+   * them. A user's last access time is never moved backwards.
+   * 
+   * @param lastAccessTimesByUserId
+   * @return the number of users updated
+   */
+  public int updateLastAccessTimes(Map<Integer, Date> lastAccessTimesByUserId);
+
   public void deleteUser(User user);
 
   public int getNumberOfUserRoles();
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.users.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.onebusaway.users.services.UserService;
+
+public class ApiKeyPermissionServiceImplTest {
+
+  private ApiKeyPermissionServiceImpl _service;
+
+  private UserService _userService;
+
+  @Before
+  public void setup() {
+    _userService = Mockito.mock(UserService.class);
+    Mockito.when(_userService.getMinApiRequestIntervalForKey("a", false)).thenReturn(
+        100L);
+    Mockito.when(_userService.getMinApiRequestIntervalForKey("a", true)).thenReturn(
+        100L);
+    Mockito.when(_userService.getMinApiRequestIntervalForKey("free", false)).thenReturn(
+        0L);
+
+    _service = new ApiKeyPermissionServiceImpl();
+    _service.setUserService(_userService);
+  }
+
+  @Test
+  public void testMinRequestInterval() {
+
+    assertTrue(_service.getPermission("a", "api", 1000));
+    assertFalse(_service.getPermission("a", "api", 1050));
+    assertTrue(_service.getPermission("a", "api", 1100));
+    assertFalse(_service.getPermission("a", "api", 1150));
+
+    assertEquals(2, _service.getAcceptedCount("a"));
+    assertEquals(2, _service.getRejectedCount("a"));
+
+    // The limit is only looked up once
+    Mockito.verify(_userService, Mockito.times(1)).getMinApiRequestIntervalForKey(
+        "a", false);
+  }
+
+  @Test
+  public void testBurst() {
+
+    _service.setBurstCapacity(3);
+
+    assertTrue(_service.getPermission("a", "api", 1000));
+    assertTrue(_service.getPermission("a", "api", 1000));
+    assertTrue(_service.getPermission("a", "api", 1000));
+    assertFalse(_service.getPermission("a", "api", 1000));
+
+    // One token is earned back per interval
+    assertTrue(_service.getPermission("a", "api", 1100));
+    assertFalse(_service.getPermission("a", "api", 1100));
+
+    // After being idle, the whole burst is available again
+    for (int i = 0; i < 3; i++)
+      assertTrue(_service.getPermission("a", "api", 2000));
+    assertFalse(_service.getPermission("a", "api", 2000));
+  }
+
+  @Test
+  public void testNoLimitAndNoPermission() {
+
+    for (int i = 0; i < 10; i++)
+      assertTrue(_service.getPermission("free", "api", 1000));
+
+    assertFalse(_service.getPermission("unknown", "api", 1000));
+    assertFalse(_service.getPermission("unknown", "api", 5000));
+
+    assertEquals(10, _service.getAcceptedCount());
+    assertEquals(2, _service.getRejectedCount());
+  }
+
+  @Test
+  public void testMaintenance() {
+
+    _service.setIdleExpiry(1000);
+    _service.setLimitRefreshInterval(500);
+    _service.setMaxKeys(1);
+
+    _service.getPermission("a", "api", 1000);
+    _service.getPermission("free", "api", 1200);
+    assertEquals(2, _service.getKeyCount());
+
+    // "a" is the least recently used key over the max
+    _service.performMaintenance(1300);
+    assertEquals(1, _service.getKeyCount());
+    assertEquals(0, _service.getAcceptedCount("a"));
+    assertEquals(1, _service.getAcceptedCount("free"));
+
+    _service.performMaintenance(2200);
+    assertEquals(0, _service.getKeyCount());
+
+    // Limits of keys in use are refreshed
+    _service.setMaxKeys(10);
+    _service.getPermission("a", "api", 3000);
+    _service.getPermission("a", "api", 3600);
+    _service.performMaintenance(3600);
+    Mockito.verify(_userService).getMinApiRequestIntervalForKey("a", true);
+  }
+}
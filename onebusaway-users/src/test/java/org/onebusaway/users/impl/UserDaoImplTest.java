@@ -23,8 +23,10 @@ import static org.junit.Assert.assertTrue;
 import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.hibernate.SessionFactory;
@@ -165,6 +167,44 @@ public class UserDaoImplTest {
     assertEquals(0, _dao.getNumberOfStaleUsers(threeMonth));
   }
 
+  @Test
+  public void testUpdateLastAccessTimes() {
+
+    Date timeA = new Date(1000000000000L);
+    Date timeB = new Date(timeA.getTime() + 60 * 1000);
+
+    User userA = new User();
+    userA.setCreationTime(new Date());
+    userA.setLastAccessTime(timeB);
+    userA.setProperties(new UserPropertiesV2());
+    _dao.saveOrUpdateUser(userA);
+
+    User userB = new User();
+    userB.setCreationTime(new Date());
+    userB.setProperties(new UserPropertiesV2());
+    _dao.saveOrUpdateUser(userB);
+
+    Map<Integer, Date> lastAccessTimes = new HashMap<Integer, Date>();
+    lastAccessTimes.put(userA.getId(), timeA);
+    lastAccessTimes.put(userB.getId(), timeA);
+
+    // userA's last access time is not moved backwards
+    assertEquals(1, _dao.updateLastAccessTimes(lastAccessTimes));
+    assertEquals(0, _dao.getNumberOfStaleUsers(timeA));
+    assertEquals(1, _dao.getNumberOfStaleUsers(timeB));
+
+    lastAccessTimes.put(userB.getId(), timeB);
+    lastAccessTimes.remove(userA.getId());
+    assertEquals(1, _dao.updateLastAccessTimes(lastAccessTimes));
+    assertEquals(0, _dao.getNumberOfStaleUsers(timeB));
+
+    // Saving a stale copy of userB doesn't move its last access time back
+    userB.setTemporary(true);
+    _dao.saveOrUpdateUser(userB);
+    assertEquals(0, _dao.getNumberOfStaleUsers(timeB));
+    assertTrue(_dao.getUserForId(userB.getId()).isTemporary());
+  }
+
   @Test
   public void testGetAllUserIds() {
 
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2011 Brian Ferris <bdferris@onebusaway.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.users.impl.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.onebusaway.users.services.UserDao;
+
+public class UserLastAccessTimeServiceImplTest {
+
+  private static final String CACHE_NAME = "UserLastAccessTimeServiceImplTest";
+
+  private CacheManager _cacheManager;
+
+  private UserDao _userDao;
+
+  private UserLastAccessTimeServiceImpl _service;
+
+  @Before
+  public void setup() {
+    _cacheManager = CacheManager.create();
+    _cacheManager.addCache(CACHE_NAME);
+
+    _userDao = Mockito.mock(UserDao.class);
+
+    _service = new UserLastAccessTimeServiceImpl();
+    _service.setUserDao(_userDao);
+    _service.setCache(_cacheManager.getCache(CACHE_NAME));
+    _service.setResolution(1000);
+    _service.setMaxPendingUsers(2);
+  }
+
+  @After
+  public void teardown() {
+    _cacheManager.removeCache(CACHE_NAME);
+  }
+
+  @Test
+  public void test() {
+
+    _service.handleAccessForUser(1, 5500);
+    _service.handleAccessForUser(2, 6200);
+    // Already cached, so nothing is queued
+    _service.handleAccessForUser(1, 7000);
+    // Over the max pending users
+    _service.handleAccessForUser(3, 7000);
+
+    assertEquals(2, _service.getNumberOfPendingUsers());
+    assertEquals(1, _service.getNumberOfDroppedAccesses());
+    Mockito.verifyZeroInteractions(_userDao);
+
+    assertEquals(2, _service.flush());
+
+    Map<Integer, Date> expected = new HashMap<Integer, Date>();
+    expected.put(1, new Date(5000));
+    expected.put(2, new Date(6000));
+    Mockito.verify(_userDao).updateLastAccessTimes(expected);
+
+    // The dropped user is picked up on its next access
+    _service.handleAccessForUser(3, 8000);
+    assertEquals(1, _service.getNumberOfPendingUsers());
+
+    // Pending access times are written on shutdown
+    _service.stop();
+    assertEquals(0, _service.getNumberOfPendingUsers());
+  }
+}